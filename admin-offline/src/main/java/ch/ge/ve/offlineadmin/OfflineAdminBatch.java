@@ -0,0 +1,266 @@
+package ch.ge.ve.offlineadmin;
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.ballot.BallotCipherService;
+import ch.ge.ve.commons.crypto.exceptions.PrivateKeyPasswordMismatchException;
+import ch.ge.ve.commons.fileutils.StreamHasher;
+import ch.ge.ve.commons.properties.PropertyConfigurationService;
+import ch.ge.ve.offlineadmin.exception.MissingKeyFilesException;
+import ch.ge.ve.offlineadmin.exception.ProcessInterruptedException;
+import ch.ge.ve.offlineadmin.services.BallotBoxDecryption;
+import ch.ge.ve.offlineadmin.services.BallotCipherServiceFactory;
+import ch.ge.ve.offlineadmin.services.DecryptionMetricsFormatter;
+import ch.ge.ve.offlineadmin.services.ShuffledBallots;
+import ch.ge.ve.offlineadmin.util.ConsoleProgressTracker;
+import ch.ge.ve.offlineadmin.util.LogLevel;
+import ch.ge.ve.offlineadmin.util.PropertyConfigurationServiceFactory;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.Security;
+import java.util.ResourceBundle;
+
+import static ch.ge.ve.offlineadmin.util.SecurityConstants.DECRYPTION_THREADS;
+import static ch.ge.ve.offlineadmin.util.SecurityConstants.PROPERTIES_LOG4J;
+
+/**
+ * Main class of the command-line mode, decrypting a ballot box without any user interface, with the same services as
+ * the ballot decryption tab of {@link OfflineAdminApp}:
+ * <pre>
+ * java -cp offline-admin.jar ch.ge.ve.offlineadmin.OfflineAdminBatch --keys &lt;key directory&gt; --input &lt;encrypted ballots file&gt; --output &lt;output directory&gt; [--threads &lt;n&gt;]
+ * </pre>
+ * <p>
+ * The passwords of both groups of Election Officers are read from the console if there is one, otherwise one per
+ * line from the standard input. The decryption is checkpointed into the output directory as in the user interface.
+ * </p>
+ * <p>
+ * The exit code is 0 if the decrypted ballots have been saved, 1 if the decryption failed, and 2 if the arguments
+ * are invalid.
+ * </p>
+ */
+public class OfflineAdminBatch {
+    static final int EXIT_SUCCESS = 0;
+    static final int EXIT_FAILURE = 1;
+    static final int EXIT_USAGE = 2;
+
+    private static final Logger LOGGER = Logger.getLogger(OfflineAdminBatch.class);
+    private static final String PROCESS_INTERRUPTED_MESSAGE = "Process interrupted";
+
+    private final ResourceBundle resources;
+    private final PrintStream out;
+    private final Console console;
+    private final BufferedReader in;
+
+    /**
+     * @param resources the messages
+     * @param out       the output of the messages and statistics
+     * @param console   the console reading the passwords, or <tt>null</tt> to read them from <tt>in</tt>
+     * @param in        the input of the passwords, one per line, when there is no console
+     */
+    OfflineAdminBatch(ResourceBundle resources, PrintStream out, Console console, BufferedReader in) {
+        this.resources = resources;
+        this.out = out;
+        this.console = console;
+        this.in = in;
+    }
+
+    /**
+     * @param args the arguments passed, see {@link OfflineAdminBatch}
+     */
+    public static void main(String[] args) throws IOException {
+        Security.addProvider(new BouncyCastleProvider());
+        try (InputStream log4jProperties = OfflineAdminBatch.class.getClassLoader().getResourceAsStream(PROPERTIES_LOG4J)) {
+            PropertyConfigurator.configure(log4jProperties);
+        }
+        ResourceBundle resources = ResourceBundle.getBundle("ch.ge.ve.offlineadmin.bundles.offlineadmin-messages");
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        System.exit(new OfflineAdminBatch(resources, System.out, System.console(), in).run(args));
+    }
+
+    /**
+     * Decrypts the ballot box
+     *
+     * @param args the arguments passed, see {@link OfflineAdminBatch}
+     * @return the exit code
+     */
+    int run(String[] args) {
+        Arguments arguments;
+        try {
+            arguments = Arguments.parse(args);
+        } catch (IllegalArgumentException e) {
+            out.println(String.format(resources.getString("ballot_decryption.batch.invalid_arguments"), e.getMessage()));
+            out.println(resources.getString("ballot_decryption.batch.usage"));
+            return EXIT_USAGE;
+        }
+
+        PropertyConfigurationService propertyConfigurationService = new PropertyConfigurationServiceFactory().propertyConfigurationService();
+        if (arguments.threads != null) {
+            propertyConfigurationService.addConfigValue(DECRYPTION_THREADS, arguments.threads.toString());
+        }
+        ConsoleProgressTracker progressTracker = new ConsoleProgressTracker(out);
+        try {
+            BallotCipherService ballotCipherService = new BallotCipherServiceFactory(propertyConfigurationService)
+                    .decryptionBallotCipherService(arguments.keyDirectory.toFile());
+            ballotCipherService.loadBallotKeyCipherPrivateKey(readPassword(1) + readPassword(2));
+            return decryptBallots(arguments, propertyConfigurationService, ballotCipherService, progressTracker);
+        } catch (MissingKeyFilesException e) {
+            progressTracker.progressMessage(resources.getString("keys_not_found_in_directory"), LogLevel.WARN);
+            LOGGER.warn(PROCESS_INTERRUPTED_MESSAGE, e);
+        } catch (PrivateKeyPasswordMismatchException e) {
+            progressTracker.progressMessage(resources.getString("key_password_mismatch"), LogLevel.WARN);
+            LOGGER.warn("key password mismatch", e);
+        } catch (ProcessInterruptedException e) {
+            progressTracker.progressMessage(resources.getString("ballot_decryption.process_interrupted"), LogLevel.WARN);
+            LOGGER.warn(PROCESS_INTERRUPTED_MESSAGE, e);
+        }
+        return EXIT_FAILURE;
+    }
+
+    private String readPassword(int group) throws ProcessInterruptedException {
+        String prompt = String.format(resources.getString("ballot_decryption.batch.password_prompt"), group);
+        if (console != null) {
+            char[] password = console.readPassword("%s", prompt);
+            if (password == null) {
+                throw new ProcessInterruptedException("no password entered for group " + group);
+            }
+            return new String(password);
+        }
+        try {
+            String password = in.readLine();
+            if (password == null) {
+                throw new ProcessInterruptedException("no password entered for group " + group);
+            }
+            return password;
+        } catch (IOException e) {
+            throw new ProcessInterruptedException("cannot read the password of group " + group, e);
+        }
+    }
+
+    private int decryptBallots(Arguments arguments, PropertyConfigurationService propertyConfigurationService,
+                               BallotCipherService ballotCipherService, ConsoleProgressTracker progressTracker) throws ProcessInterruptedException {
+        BallotBoxDecryption ballotBoxDecryption = new BallotBoxDecryption(propertyConfigurationService, new StreamHasher(propertyConfigurationService),
+                resources, progressTracker, ballotCipherService, arguments.encryptedBallotsFile, arguments.outputDirectory);
+        try {
+            ShuffledBallots decryptedBallots = ballotBoxDecryption.decrypt();
+
+            long decryptedBallotsCount = ballotBoxDecryption.getDecryptedBallotsCount();
+            double seconds = Math.max(ballotBoxDecryption.getDecryptionMillis(), 1L) / 1000.0;
+            progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.batch.throughput"),
+                    decryptedBallotsCount, decryptedBallotsCount / seconds, ballotBoxDecryption.getParallelism()));
+
+            ballotBoxDecryption.save(decryptedBallots);
+            progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.batch.latencies"),
+                    new DecryptionMetricsFormatter(resources).formatLatencies(ballotBoxDecryption.getMetrics())));
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            ballotBoxDecryption.reportFailure(e);
+            return EXIT_FAILURE;
+        }
+        return EXIT_SUCCESS;
+    }
+
+    /**
+     * Arguments of the command-line mode
+     */
+    static final class Arguments {
+        final Path keyDirectory;
+        final Path encryptedBallotsFile;
+        final Path outputDirectory;
+        final Integer threads;
+
+        private Arguments(Path keyDirectory, Path encryptedBallotsFile, Path outputDirectory, Integer threads) {
+            this.keyDirectory = keyDirectory;
+            this.encryptedBallotsFile = encryptedBallotsFile;
+            this.outputDirectory = outputDirectory;
+            this.threads = threads;
+        }
+
+        /**
+         * @param args the arguments passed
+         * @return the parsed arguments
+         * @throws IllegalArgumentException if an argument is unknown, missing or invalid
+         */
+        static Arguments parse(String[] args) {
+            Path keyDirectory = null;
+            Path encryptedBallotsFile = null;
+            Path outputDirectory = null;
+            Integer threads = null;
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("missing value of " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--keys":
+                        keyDirectory = Paths.get(value);
+                        break;
+                    case "--input":
+                        encryptedBallotsFile = Paths.get(value);
+                        break;
+                    case "--output":
+                        outputDirectory = Paths.get(value);
+                        break;
+                    case "--threads":
+                        threads = parseThreads(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown argument " + args[i]);
+                }
+            }
+            checkDirectory("--keys", keyDirectory);
+            checkDirectory("--output", outputDirectory);
+            if (encryptedBallotsFile == null || !Files.isRegularFile(encryptedBallotsFile)) {
+                throw new IllegalArgumentException("--input must be an existing file");
+            }
+            return new Arguments(keyDirectory, encryptedBallotsFile, outputDirectory, threads);
+        }
+
+        private static Integer parseThreads(String value) {
+            try {
+                int threads = Integer.parseInt(value);
+                if (threads > 0) {
+                    return threads;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("--threads must be a positive number: " + value);
+        }
+
+        private static void checkDirectory(String name, Path directory) {
+            if (directory == null || !Files.isDirectory(directory)) {
+                throw new IllegalArgumentException(name + " must be an existing directory");
+            }
+        }
+    }
+}
@@ -22,22 +22,20 @@ package ch.ge.ve.offlineadmin.controller;
  */
 
 import ch.ge.ve.commons.crypto.ballot.BallotCipherService;
-import ch.ge.ve.commons.crypto.ballot.EncryptedBallotAndWrappedKey;
 import ch.ge.ve.commons.crypto.exceptions.PrivateKeyPasswordMismatchException;
-import ch.ge.ve.commons.fileutils.OutputFilesPattern;
 import ch.ge.ve.commons.fileutils.StreamHasher;
-import ch.ge.ve.commons.properties.PropertyConfigurationException;
 import ch.ge.ve.commons.properties.PropertyConfigurationService;
-import ch.ge.ve.commons.streamutils.SafeObjectReader;
 import ch.ge.ve.offlineadmin.exception.MissingKeyFilesException;
 import ch.ge.ve.offlineadmin.exception.ProcessInterruptedException;
+import ch.ge.ve.offlineadmin.services.BallotBoxDecryption;
 import ch.ge.ve.offlineadmin.services.BallotCipherServiceFactory;
-import ch.ge.ve.offlineadmin.services.DecryptionService;
+import ch.ge.ve.offlineadmin.services.DecryptionMetricsFormatter;
+import ch.ge.ve.offlineadmin.services.ShuffledBallots;
 import ch.ge.ve.offlineadmin.util.FileUtils;
 import ch.ge.ve.offlineadmin.util.LogLevel;
+import ch.ge.ve.offlineadmin.util.ProgressTracker;
 import ch.ge.ve.offlineadmin.util.PropertyConfigurationServiceFactory;
-import com.google.common.base.Stopwatch;
-import com.google.common.collect.ImmutableList;
+import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.concurrent.Task;
@@ -45,31 +43,15 @@ import javafx.fxml.FXML;
 import javafx.scene.layout.BorderPane;
 import org.apache.log4j.Logger;
 
-import javax.crypto.SealedObject;
-import javax.xml.bind.DatatypeConverter;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.time.ZoneId;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 import java.util.ResourceBundle;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.time.ZonedDateTime;
-
-import static ch.ge.ve.commons.crypto.SensitiveDataCryptoUtilsConfigurationDefaultImpl.COMMON_CRYPTO_STREAM_MAX_BYTES;
-import static ch.ge.ve.offlineadmin.util.SecurityConstants.BALLOTS_FILENAME;
-import static ch.ge.ve.offlineadmin.util.SecurityConstants.STREAM_MAX_OBJECTS;
 
 /**
- * This controller handles the management of the display of the ballot decryption tab, including the decryption process.
+ * This controller handles the management of the display of the ballot decryption tab, the decryption process itself
+ * being performed by a {@link BallotBoxDecryption}, in the background.
  */
 public class BallotDecryptionController extends InterruptibleProcessController {
     private static final Logger LOGGER = Logger.getLogger(BallotDecryptionController.class);
@@ -93,20 +75,15 @@ public class BallotDecryptionController extends InterruptibleProcessController {
 
     private FileUtils fileUtils;
     private StreamHasher streamHasher;
-    private OutputFilesPattern outputFilesPattern;
     private PropertyConfigurationService propertyConfigurationService;
     private PasswordDialogController passwordDialogController;
     private BallotCipherServiceFactory ballotCipherServiceFactory;
-    private ZoneId chZoneId = ZoneId.of("Europe/Zurich");
 
     @FXML
     public void initialize() throws IOException {
         fileUtils = new FileUtils(resources);
         propertyConfigurationService = new PropertyConfigurationServiceFactory().propertyConfigurationService();
         streamHasher = new StreamHasher(propertyConfigurationService);
-        outputFilesPattern = new OutputFilesPattern();
-
-
 
         passwordDialogController = new PasswordDialogController(resources, consoleOutputController);
         ballotCipherServiceFactory = new BallotCipherServiceFactory(propertyConfigurationService);
@@ -150,126 +127,54 @@ public class BallotDecryptionController extends InterruptibleProcessController {
             throw new ProcessInterruptedException("action cancelled");
         }
 
-        logEncryptedBallotsFileHash(encryptedBallotsFile);
+        // the output directory is selected beforehand, since it also holds the checkpoint of the decryption
+        File outputDirectory = selectDirectory();
 
-        unserializeAndDecryptEncryptedBallots(encryptedBallotsFile, ballotCipherService);
+        unserializeAndDecryptEncryptedBallots(encryptedBallotsFile, outputDirectory, ballotCipherService);
     }
 
-    private void logEncryptedBallotsFileHash(File encryptedBallotsFile) throws ProcessInterruptedException {
-        try (InputStream encBallotsInputStream = Files.newInputStream(encryptedBallotsFile.toPath(), StandardOpenOption.READ)) {
-            byte[] encBallotsFileHash = streamHasher.threadSafeComputeHash(encBallotsInputStream);
-            consoleOutputController.logOnScreen(
-                    String.format(resources.getString("ballot_decryption.enc_ballots_file_hash"),
-                            DatatypeConverter.printHexBinary(encBallotsFileHash)));
-        } catch (IOException e) {
-            throw new ProcessInterruptedException(resources.getString("ballot_decryption.exception_occurred"), e);
-        }
-    }
+    private void unserializeAndDecryptEncryptedBallots(File encryptedBallotsFile, File outputDirectory, BallotCipherService ballotCipherService) throws ProcessInterruptedException {
+        BallotBoxDecryption ballotBoxDecryption = new BallotBoxDecryption(propertyConfigurationService, streamHasher, resources,
+                new ConsoleProgressReporter(), ballotCipherService, encryptedBallotsFile.toPath(), outputDirectory.toPath());
 
-    private void unserializeAndDecryptEncryptedBallots(File encryptedBallotsFile, BallotCipherService ballotCipherService) throws ProcessInterruptedException {
         // Using a task here, so as to perform decryption without blocking the UI.
-        final long maxObjects;
-        try {
-            maxObjects = propertyConfigurationService.getConfigValueAsLong(STREAM_MAX_OBJECTS);
-        } catch (PropertyConfigurationException e) {
-            throw new ProcessInterruptedException(String.format(resources.getString("ballot_decryption.undefined_property"), STREAM_MAX_OBJECTS), e);
-        }
-
-        final long maxBytes;
-        try {
-            maxBytes = propertyConfigurationService.getConfigValueAsLong(COMMON_CRYPTO_STREAM_MAX_BYTES);
-        } catch (PropertyConfigurationException e) {
-            throw new ProcessInterruptedException(String.format(resources.getString("ballot_decryption.undefined_property"), COMMON_CRYPTO_STREAM_MAX_BYTES), e);
-        }
-
-        Task<List<EncryptedBallotAndWrappedKey>> unserializeEncryptedBallotsTask = new UnserializeEncryptedBallotsTask(
-                encryptedBallotsFile,
-                maxObjects,
-                maxBytes);
-
-        Stopwatch fileOpening = Stopwatch.createStarted();
-
-        // Handle success
-        unserializeEncryptedBallotsTask.setOnSucceeded(event -> {
-            List<EncryptedBallotAndWrappedKey> encryptedBallots = unserializeEncryptedBallotsTask.getValue();
-            fileOpening.stop();
-            consoleOutputController.logOnScreen(
-                    String.format(resources.getString("ballot_decryption.enc_ballots_loaded"),
-                            formatElapsedTime(fileOpening)));
-            consoleOutputController.logOnScreen(
-                    String.format(resources.getString("ballot_decryption.number_of_ballots"),
-                            encryptedBallots.size())
-            );
-            consoleOutputController.setStepCount(encryptedBallots.size() / DecryptionService.STEP_SIZE);
-
-            // Once the ballots are deserialized, they can be decrypted
-            performBallotDecryption(ballotCipherService, encryptedBallots);
-        });
-
-        // Handle failure
-        unserializeEncryptedBallotsTask.exceptionProperty().addListener((observable, oldValue, newException) -> {
-            if (newException != null) {
-                LOGGER.error(resources.getString("ballot_decryption.exception_occurred"), newException);
-                consoleOutputController.logOnScreen(resources.getString("ballot_decryption.exception_occurred"), LogLevel.ERROR);
-            }
-        });
-
-        // Start execution
-        exec.execute(unserializeEncryptedBallotsTask);
-    }
-
-    private void performBallotDecryption(BallotCipherService ballotCipherService, List<EncryptedBallotAndWrappedKey> encryptedBallots) {
-        DecryptionService decryptionService = new DecryptionService(ballotCipherService, consoleOutputController);
-        // Using a task here, so as to perform decryption without blocking the UI.
-        Task<List<String>> ballotDecryptionTask = new BallotDecryptionTask(decryptionService, encryptedBallots);
-
-        final Stopwatch ballotDecryption = Stopwatch.createStarted();
+        Task<ShuffledBallots> ballotDecryptionTask = new BallotDecryptionTask(ballotBoxDecryption);
 
         // Handle success
         ballotDecryptionTask.setOnSucceeded(event -> {
-            ballotDecryption.stop();
-            consoleOutputController.logOnScreen(
-                    String.format(resources.getString("ballot_decryption.decryption_finished"),
-                            formatElapsedTime(ballotDecryption)));
-
-            consoleOutputController.progressMessage(String.format(resources.getString("ballot_decryption.invalid_ballots_text"), decryptionService.getInvalidCounter()));      //"Count of invalid ballots : " +
-            saveCleartextBallots(ballotDecryptionTask.getValue());
-            consoleOutputController.incrementStepCount();
+            // The decrypted ballots are merged and written by another task, so as not to block the UI either
+            Task<Void> ballotsSavingTask = new BallotsSavingTask(ballotBoxDecryption, ballotDecryptionTask.getValue());
+            ballotsSavingTask.setOnSucceeded(savingEvent -> {
+                consoleOutputController.stopStatusRefresh();
+                consoleOutputController.incrementStepCount();
+            });
+            ballotsSavingTask.exceptionProperty().addListener((observable, oldValue, newException) -> {
+                if (newException != null) {
+                    logFailure(newException, ballotBoxDecryption);
+                }
+            });
+            exec.execute(ballotsSavingTask);
         });
 
         // Handle failure
         ballotDecryptionTask.exceptionProperty().addListener((observable, oldValue, newException) -> {
             if (newException != null) {
-                LOGGER.error(resources.getString("ballot_decryption.exception_occurred"), newException);
-                consoleOutputController.logOnScreen(resources.getString("ballot_decryption.exception_occurred"), LogLevel.ERROR);
+                logFailure(newException, ballotBoxDecryption);
             }
         });
 
-        // Start execution
+        // Start execution, showing the throughput and the latencies of the decryption while it is running
+        DecryptionMetricsFormatter metricsFormatter = new DecryptionMetricsFormatter(resources);
+        consoleOutputController.startStatusRefresh(() -> metricsFormatter.formatStatus(ballotBoxDecryption.getMetrics()));
         exec.execute(ballotDecryptionTask);
     }
 
-    private void saveCleartextBallots(List<String> decryptedBallots) {
-        try {
-            File selectedDirectory = selectDirectory();
-            final String ballotsFilename = propertyConfigurationService.getConfigValue(BALLOTS_FILENAME);
-
-            Path cleartextBallotsFilename = Paths.get(selectedDirectory.toString(), outputFilesPattern.injectParams(ballotsFilename, ZonedDateTime.now(chZoneId)));
-            Files.write(cleartextBallotsFilename, decryptedBallots);
-
-            byte[] cleartextBallotsFileHash;
-            try (InputStream cleartextBallotsInputStream = Files.newInputStream(cleartextBallotsFilename, StandardOpenOption.READ)) {
-                cleartextBallotsFileHash = streamHasher.threadSafeComputeHash(cleartextBallotsInputStream);
-            }
-            consoleOutputController.logOnScreen(
-                    String.format(resources.getString("ballot_decryption.output_file_hash"),
-                            DatatypeConverter.printHexBinary(cleartextBallotsFileHash)));
-
-            consoleOutputController.logOnScreen(String.format(resources.getString("ballot_decryption.file_saved"), cleartextBallotsFilename));
-        } catch (ProcessInterruptedException | IOException | PropertyConfigurationException e) {
-            consoleOutputController.logOnScreen(resources.getString("ballot_decryption.process_interrupted"), LogLevel.WARN);
-            LOGGER.warn(PROCESS_INTERRUPTED_MESSAGE, e);
-        }
+    /**
+     * Reports the failure of the decryption or of the saving of the decrypted ballots, from the JavaFX thread
+     */
+    private void logFailure(Throwable exception, BallotBoxDecryption ballotBoxDecryption) {
+        consoleOutputController.stopStatusRefresh();
+        ballotBoxDecryption.reportFailure(exception);
     }
 
     private File selectDirectory() throws ProcessInterruptedException {
@@ -281,17 +186,6 @@ public class BallotDecryptionController extends InterruptibleProcessController {
         return selectedDirectory;
     }
 
-    private String formatElapsedTime(Stopwatch stopwatch) {
-        long elapsed = stopwatch.elapsed(TimeUnit.SECONDS);
-
-        long hours = elapsed / 3600;
-        long hourLessElapsed = elapsed % 3600;
-        long minutes = hourLessElapsed / 60;
-        long seconds = hourLessElapsed % 60;
-
-        return String.format("%d h %02d min %02d sec ", hours, minutes, seconds);
-    }
-
     @Override
     protected ResourceBundle getResourceBundle() {
         return resources;
@@ -313,43 +207,66 @@ public class BallotDecryptionController extends InterruptibleProcessController {
         this.streamHasher = streamHasher;
     }
 
-    private static class UnserializeEncryptedBallotsTask extends Task<List<EncryptedBallotAndWrappedKey>> {
-        private final File encryptedBallotsFile;
-        private final long maxObjects;
-        private final long maxBytes;
+    /**
+     * Reports the progress and the messages of the decryption on the console, from any thread
+     */
+    private class ConsoleProgressReporter implements ProgressTracker {
+        @Override
+        public void progressMessage(String message, LogLevel logLevel) {
+            if (Platform.isFxApplicationThread()) {
+                consoleOutputController.logOnScreen(message, logLevel);
+            } else {
+                Platform.runLater(() -> consoleOutputController.logOnScreen(message, logLevel));
+            }
+        }
 
-        public UnserializeEncryptedBallotsTask(File encryptedBallotsFile, long maxObjects, long maxBytes) {
-            this.encryptedBallotsFile = encryptedBallotsFile;
-            this.maxObjects = maxObjects;
-            this.maxBytes = maxBytes;
+        @Override
+        public void progressMessage(String message) {
+            progressMessage(message, LogLevel.OK);
         }
 
         @Override
-        protected List<EncryptedBallotAndWrappedKey> call() throws Exception {
-            // Need to create the stream here, so it'll be available to the executor thread
-            try (InputStream encBallotsInputStream = Files.newInputStream(encryptedBallotsFile.toPath(), StandardOpenOption.READ)) {
-                return (List<EncryptedBallotAndWrappedKey>) SafeObjectReader.safeReadObject(
-                        ArrayList.class,
-                        Arrays.asList(EncryptedBallotAndWrappedKey.class, SealedObject.class),
-                        maxObjects,
-                        maxBytes,
-                        encBallotsInputStream);
-            }
+        public void setStepCount(int stepCount) {
+            consoleOutputController.setStepCount(stepCount);
+        }
+
+        @Override
+        public void incrementStepCount() {
+            consoleOutputController.incrementStepCount();
+        }
+
+        @Override
+        public void incrementStepCount(int steps) {
+            consoleOutputController.incrementStepCount(steps);
+        }
+    }
+
+    private class BallotDecryptionTask extends Task<ShuffledBallots> {
+        private final BallotBoxDecryption ballotBoxDecryption;
+
+        public BallotDecryptionTask(BallotBoxDecryption ballotBoxDecryption) {
+            this.ballotBoxDecryption = ballotBoxDecryption;
+        }
+
+        @Override
+        protected ShuffledBallots call() throws Exception {
+            return ballotBoxDecryption.decrypt();
         }
     }
 
-    private class BallotDecryptionTask extends Task<List<String>> {
-        private final DecryptionService decryptionService;
-        private final List<EncryptedBallotAndWrappedKey> encryptedBallots;
+    private class BallotsSavingTask extends Task<Void> {
+        private final BallotBoxDecryption ballotBoxDecryption;
+        private final ShuffledBallots decryptedBallots;
 
-        public BallotDecryptionTask(DecryptionService decryptionService, List<EncryptedBallotAndWrappedKey> encryptedBallots) {
-            this.decryptionService = decryptionService;
-            this.encryptedBallots = encryptedBallots;
+        public BallotsSavingTask(BallotBoxDecryption ballotBoxDecryption, ShuffledBallots decryptedBallots) {
+            this.ballotBoxDecryption = ballotBoxDecryption;
+            this.decryptedBallots = decryptedBallots;
         }
 
         @Override
-        protected List<String> call() throws Exception {
-            return decryptionService.decrypt(ImmutableList.copyOf(encryptedBallots));
+        protected Void call() throws Exception {
+            ballotBoxDecryption.save(decryptedBallots);
+            return null;
         }
     }
 }
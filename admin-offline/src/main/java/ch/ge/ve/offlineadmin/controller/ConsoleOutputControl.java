@@ -26,6 +26,9 @@ import ch.ge.ve.offlineadmin.util.LogMessage;
 import ch.ge.ve.offlineadmin.util.ProgressTracker;
 
 import de.jensd.fx.glyphs.GlyphIcon;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -39,20 +42,34 @@ import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.Pane;
+import javafx.util.Duration;
 
 import java.io.IOException;
+import java.util.function.Supplier;
 
 /**
  * This controller defines a reusable component. It features a log table for displaying messages, as well as a progress
- * bar to track process progression
+ * bar to track process progression, and a status line refreshed while a process is running
  */
 public class ConsoleOutputControl extends AnchorPane implements ProgressTracker {
+    private static final int UNKNOWN_STEP_COUNT = -1;
+    /**
+     * Interval between two refreshes of the status line
+     */
+    static final double STATUS_REFRESH_MILLIS = 200.0;
     private final ObservableList<LogMessage> logMessages = FXCollections.observableArrayList();
     @FXML
     private TableView<LogMessage> logTable;
     @FXML
     private ProgressBar progressBar;
-    private int stepCount;
+    @FXML
+    private Label statusLabel;
+    private Timeline statusRefresh;
+    private Supplier<String> status;
+    /**
+     * May be set from outside the JavaFX thread, once a background process knows how many steps it will perform
+     */
+    private volatile int stepCount = UNKNOWN_STEP_COUNT;
     private int currentStep = 0;
 
     @FXML
@@ -128,14 +145,54 @@ public class ConsoleOutputControl extends AnchorPane implements ProgressTracker
 
     @Override
     public void incrementStepCount() {
+        incrementStepCount(1);
+    }
+
+    @Override
+    public void incrementStepCount(int steps) {
         if (Platform.isFxApplicationThread()) {
-            incrementProgress();
+            incrementProgress(steps);
         } else {
-            Platform.runLater(this::incrementProgress);
+            Platform.runLater(() -> incrementProgress(steps));
+        }
+    }
+
+    /**
+     * Shows a status line, refreshed at a fixed rate until {@link #stopStatusRefresh()} is called. Must be called from
+     * the JavaFX thread.
+     *
+     * @param status the supplier of the status, called from the JavaFX thread
+     */
+    public void startStatusRefresh(Supplier<String> status) {
+        stopStatusRefresh();
+        this.status = status;
+        statusRefresh = new Timeline(new KeyFrame(Duration.millis(STATUS_REFRESH_MILLIS), event -> showStatus(status.get())));
+        statusRefresh.setCycleCount(Animation.INDEFINITE);
+        showStatus(status.get());
+        statusRefresh.play();
+    }
+
+    /**
+     * Refreshes the status line a last time, then stops its refresh. Must be called from the JavaFX thread.
+     */
+    public void stopStatusRefresh() {
+        if (statusRefresh != null) {
+            statusRefresh.stop();
+            statusRefresh = null;
+            showStatus(status.get());
+            status = null;
         }
     }
 
-    private void incrementProgress() {
-        progressBar.setProgress(++currentStep / (double) stepCount);
+    private void showStatus(String status) {
+        statusLabel.setText(status);
+        statusLabel.setVisible(true);
+        statusLabel.setManaged(true);
+    }
+
+    private void incrementProgress(int steps) {
+        currentStep += steps;
+        // until the number of steps is known, the progress cannot be computed
+        progressBar.setProgress(stepCount == UNKNOWN_STEP_COUNT ? ProgressBar.INDETERMINATE_PROGRESS : currentStep / (double) stepCount);
     }
 }
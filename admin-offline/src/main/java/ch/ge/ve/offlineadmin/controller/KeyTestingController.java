@@ -24,6 +24,7 @@ package ch.ge.ve.offlineadmin.controller;
 import ch.ge.ve.commons.crypto.ballot.AuthenticatedBallot;
 import ch.ge.ve.commons.crypto.ballot.BallotCipherService;
 import ch.ge.ve.commons.crypto.ballot.EncryptedBallotAndWrappedKey;
+import ch.ge.ve.commons.crypto.ballot.PlainTextBallot;
 import ch.ge.ve.commons.crypto.exceptions.AuthenticationTagMismatchException;
 import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
 import ch.ge.ve.commons.crypto.exceptions.PrivateKeyPasswordMismatchException;
@@ -70,6 +71,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -201,10 +203,12 @@ public class KeyTestingController extends InterruptibleProcessController {
 
                 logPublicKeyHash(selectedFile);
 
+                List<PlainTextBallot> plainTextBallots = new ArrayList<>();
                 int index = 1;
                 for (String plainText : plainTexts) {
-                    cipherTexts.add(ballotCipherService.encryptBallotThenWrapForAuthentication(plainText, index++));
+                    plainTextBallots.add(new PlainTextBallot(plainText, index++));
                 }
+                cipherTexts.addAll(ballotCipherService.encryptBallotsThenWrapForAuthentication(plainTextBallots, ForkJoinPool.commonPool()));
 
                 consoleOutputController.logOnScreen(resources.getString("key_testing.encryption.end"));
             } catch (MissingKeyFilesException e) {
@@ -0,0 +1,289 @@
+package ch.ge.ve.offlineadmin.services;
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.ballot.BallotCipherService;
+import ch.ge.ve.commons.fileutils.HashingLineWriter;
+import ch.ge.ve.commons.fileutils.OutputFilesPattern;
+import ch.ge.ve.commons.fileutils.StreamHasher;
+import ch.ge.ve.commons.properties.PropertyConfigurationException;
+import ch.ge.ve.commons.properties.PropertyConfigurationService;
+import ch.ge.ve.offlineadmin.exception.CheckpointMismatchException;
+import ch.ge.ve.offlineadmin.exception.ProcessInterruptedException;
+import ch.ge.ve.offlineadmin.util.LogLevel;
+import ch.ge.ve.offlineadmin.util.ProgressTracker;
+import com.google.common.base.Stopwatch;
+import org.apache.log4j.Logger;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+
+import static ch.ge.ve.commons.crypto.SensitiveDataCryptoUtilsConfigurationDefaultImpl.COMMON_CRYPTO_STREAM_MAX_BYTES;
+import static ch.ge.ve.offlineadmin.util.SecurityConstants.BALLOTS_FILENAME;
+import static ch.ge.ve.offlineadmin.util.SecurityConstants.DECRYPTION_METRICS_FILENAME;
+import static ch.ge.ve.offlineadmin.util.SecurityConstants.STREAM_MAX_OBJECTS;
+
+/**
+ * The decryption of a ballot box, shared by the ballot decryption tab and the command-line mode, which only differ by
+ * the {@link ProgressTracker} reporting its progress and messages.
+ * <p>
+ * Unless disabled, the decryption is checkpointed into the output directory, see {@link DecryptionCheckpoint}. When a
+ * checkpoint of the same encrypted ballots file is found there, the decryption resumes from it, once the fingerprint of
+ * the file and the keys have been verified against the checkpoint; otherwise, the decryption starts over. The hash of
+ * the file, computed while it is being read, is then confirmed against the checkpoint.
+ * </p>
+ * <p>
+ * {@link #decrypt()} then {@link #save(ShuffledBallots)} may be called from any thread, one after the other: the
+ * messages are reported from that thread.
+ * </p>
+ */
+public class BallotBoxDecryption {
+    private static final Logger LOGGER = Logger.getLogger(BallotBoxDecryption.class);
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private final ResourceBundle resources;
+    private final ProgressTracker progressTracker;
+    private final StreamHasher streamHasher;
+    private final DecryptionServiceFactory decryptionServiceFactory;
+    private final BallotCipherService ballotCipherService;
+    private final Path encryptedBallotsFile;
+    private final Path outputDirectory;
+    private final String ballotsFilename;
+    private final String metricsFilename;
+    private final DecryptionService decryptionService;
+    private final EncryptedBallotsFileReader encryptedBallotsFileReader;
+    private final OutputFilesPattern outputFilesPattern = new OutputFilesPattern();
+    private final ZoneId chZoneId = ZoneId.of("Europe/Zurich");
+    /**
+     * Opened by {@link #decrypt()}, and read by the thread hashing the encrypted ballots file
+     */
+    private volatile DecryptionCheckpoint checkpoint;
+    private long decryptionMillis;
+
+    /**
+     * @param propertyConfigurationService the configuration of the decryption
+     * @param streamHasher                 the hasher of the encrypted and of the decrypted ballots files
+     * @param resources                    the messages
+     * @param progressTracker              the tracker of the progress and of the messages of the decryption
+     * @param ballotCipherService          the service decrypting each ballot, whose private key is already unlocked
+     * @param encryptedBallotsFile         the encrypted ballots file
+     * @param outputDirectory              the directory of the decrypted ballots, of the metrics and of the checkpoint
+     * @throws ProcessInterruptedException if a property of the decryption is not defined
+     */
+    public BallotBoxDecryption(PropertyConfigurationService propertyConfigurationService, StreamHasher streamHasher,
+                               ResourceBundle resources, ProgressTracker progressTracker, BallotCipherService ballotCipherService,
+                               Path encryptedBallotsFile, Path outputDirectory) throws ProcessInterruptedException {
+        this.resources = resources;
+        this.progressTracker = progressTracker;
+        this.streamHasher = streamHasher;
+        this.ballotCipherService = ballotCipherService;
+        this.encryptedBallotsFile = encryptedBallotsFile;
+        this.outputDirectory = outputDirectory;
+
+        final long maxObjects;
+        final long maxBytes;
+        try {
+            maxObjects = propertyConfigurationService.getConfigValueAsLong(STREAM_MAX_OBJECTS);
+            maxBytes = propertyConfigurationService.getConfigValueAsLong(COMMON_CRYPTO_STREAM_MAX_BYTES);
+            ballotsFilename = propertyConfigurationService.getConfigValue(BALLOTS_FILENAME);
+            metricsFilename = propertyConfigurationService.getConfigValue(DECRYPTION_METRICS_FILENAME);
+        } catch (PropertyConfigurationException e) {
+            throw new ProcessInterruptedException(String.format(resources.getString("ballot_decryption.undefined_property"), e.getMessage()), e);
+        }
+
+        decryptionServiceFactory = new DecryptionServiceFactory(propertyConfigurationService);
+        decryptionService = decryptionServiceFactory.decryptionService(ballotCipherService, progressTracker);
+        // The ballots are decrypted while the file is being read, and the file is hashed while it is being read, its
+        // hash being confirmed against the checkpoint once known
+        encryptedBallotsFileReader = new EncryptedBallotsFileReader(encryptedBallotsFile, streamHasher,
+                propertyConfigurationService, maxObjects, maxBytes, this::confirmBallotsFileHash);
+    }
+
+    /**
+     * Opens the checkpoint, then decrypts the ballots, reporting the summary of the decryption
+     *
+     * @return the decrypted ballots, to be passed to {@link #save(ShuffledBallots)}
+     * @throws IOException            if the encrypted ballots file or the checkpoint cannot be read
+     * @throws ClassNotFoundException if the encrypted ballots file holds unknown objects
+     */
+    public ShuffledBallots decrypt() throws IOException, ClassNotFoundException {
+        checkpoint = openCheckpoint();
+
+        Stopwatch ballotDecryption = Stopwatch.createStarted();
+        ShuffledBallots decryptedBallots = decryptionService.decrypt(encryptedBallotsFileReader, checkpoint);
+        ballotDecryption.stop();
+        decryptionMillis = ballotDecryption.elapsed(TimeUnit.MILLISECONDS);
+
+        // the ballots are read while they are decrypted: only the time spent reading them is reported
+        long readingTime = TimeUnit.NANOSECONDS.toSeconds(getMetrics().getLatencies(DecryptionMetrics.Stage.READ).getTotal());
+        progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.enc_ballots_loaded"), formatElapsedTime(readingTime)));
+        progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.number_of_ballots"), decryptionService.getBallotsCounter()));
+        progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.decryption_finished"),
+                formatElapsedTime(TimeUnit.MILLISECONDS.toSeconds(decryptionMillis))));
+        progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.invalid_ballots_text"), decryptionService.getInvalidCounter()));
+        return decryptedBallots;
+    }
+
+    /**
+     * Saves the decrypted ballots, then the summary of the metrics of the decryption, including the writing of the
+     * ballots, and finally deletes the checkpoint
+     *
+     * @param decryptedBallots the ballots returned by {@link #decrypt()}, closed once saved
+     * @throws IOException if a file cannot be written
+     */
+    public void save(ShuffledBallots decryptedBallots) throws IOException {
+        DecryptionMetrics metrics = getMetrics();
+        ZonedDateTime now = ZonedDateTime.now(chZoneId);
+        try (ShuffledBallots ballots = decryptedBallots) {
+            saveCleartextBallots(ballots, outputDirectory.resolve(outputFilesPattern.injectParams(ballotsFilename, now)), metrics);
+        }
+        Path metricsSummaryFilename = outputDirectory.resolve(outputFilesPattern.injectParams(metricsFilename, now));
+        metrics.writeSummary(metricsSummaryFilename);
+        progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.metrics_saved"), metricsSummaryFilename));
+
+        deleteCheckpoint();
+    }
+
+    /**
+     * Reports the failure of the decryption or of the saving of the decrypted ballots, and the checkpoint kept, if any
+     *
+     * @param exception the cause of the failure
+     */
+    public void reportFailure(Throwable exception) {
+        LOGGER.error(resources.getString("ballot_decryption.exception_occurred"), exception);
+        progressTracker.progressMessage(resources.getString("ballot_decryption.exception_occurred"), LogLevel.ERROR);
+        if (checkpoint != null) {
+            progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.checkpoint_kept"), checkpoint.getJournal()), LogLevel.WARN);
+        }
+    }
+
+    /**
+     * @return the metrics of the decryption, updated while it is running
+     */
+    public DecryptionMetrics getMetrics() {
+        return decryptionService.getMetrics();
+    }
+
+    /**
+     * @return the number of ballots decrypted by {@link #decrypt()}, excluding those recovered from the checkpoint
+     */
+    public long getDecryptedBallotsCount() {
+        return decryptionService.getBallotsCounter() - (checkpoint == null ? 0 : checkpoint.getRecoveredRecords());
+    }
+
+    /**
+     * @return the time spent by {@link #decrypt()} decrypting the ballots, in milliseconds
+     */
+    public long getDecryptionMillis() {
+        return decryptionMillis;
+    }
+
+    /**
+     * @return the number of decryption threads
+     */
+    public int getParallelism() {
+        return decryptionServiceFactory.getParallelism();
+    }
+
+    /**
+     * Reports the hash of the encrypted ballots file, from the thread reading it, and confirms it against the checkpoint
+     */
+    private void confirmBallotsFileHash(byte[] encBallotsFileHash) {
+        progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.enc_ballots_file_hash"),
+                DatatypeConverter.printHexBinary(encBallotsFileHash)));
+        DecryptionCheckpoint openedCheckpoint = checkpoint;
+        if (openedCheckpoint != null) {
+            openedCheckpoint.confirmBallotsFileHash(encBallotsFileHash);
+        }
+    }
+
+    /**
+     * Opens the checkpoint of the decryption, from the thread decrypting the ballots, since the beginning of the
+     * encrypted ballots file is hashed for its fingerprint
+     *
+     * @return the checkpoint, or <tt>null</tt> if the checkpoints are disabled
+     */
+    private DecryptionCheckpoint openCheckpoint() throws IOException {
+        if (!decryptionServiceFactory.isCheckpointEnabled()) {
+            return null;
+        }
+        byte[] encBallotsFileFingerprint = DecryptionCheckpoint.fingerprint(encryptedBallotsFile, streamHasher);
+        Path journal = outputDirectory.resolve(encryptedBallotsFile.getFileName() + CHECKPOINT_SUFFIX);
+        if (Files.exists(journal)) {
+            try {
+                DecryptionCheckpoint resumedCheckpoint = decryptionServiceFactory.resumeCheckpoint(journal, ballotCipherService, encBallotsFileFingerprint);
+                progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.checkpoint_resumed"), resumedCheckpoint.getRecoveredRecords()));
+                return resumedCheckpoint;
+            } catch (CheckpointMismatchException | IOException e) {
+                LOGGER.warn("cannot resume the decryption checkpoint " + journal, e);
+                progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.checkpoint_discarded"), e.getMessage()), LogLevel.WARN);
+            }
+        }
+        return decryptionServiceFactory.createCheckpoint(journal, ballotCipherService, encBallotsFileFingerprint);
+    }
+
+    private void saveCleartextBallots(Iterable<String> decryptedBallots, Path cleartextBallotsFilename, DecryptionMetrics metrics) throws IOException {
+        // The file is hashed while it is being written, instead of being read back
+        HashingLineWriter cleartextBallotsWriter = streamHasher.hashingLineWriter(Files.newOutputStream(cleartextBallotsFilename));
+        try (HashingLineWriter writer = cleartextBallotsWriter) {
+            long start = System.nanoTime();
+            for (String decryptedBallot : decryptedBallots) {
+                writer.writeLine(decryptedBallot);
+                long written = System.nanoTime();
+                metrics.record(DecryptionMetrics.Stage.WRITE, written - start);
+                start = written;
+            }
+        }
+        progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.output_file_hash"),
+                DatatypeConverter.printHexBinary(cleartextBallotsWriter.getHash())));
+        progressTracker.progressMessage(String.format(resources.getString("ballot_decryption.file_saved"), cleartextBallotsFilename));
+    }
+
+    /**
+     * Deletes the checkpoint, once the decrypted ballots have been saved
+     */
+    private void deleteCheckpoint() {
+        if (checkpoint != null) {
+            try {
+                checkpoint.delete();
+            } catch (IOException e) {
+                LOGGER.warn("cannot delete the decryption checkpoint " + checkpoint.getJournal(), e);
+            }
+        }
+    }
+
+    private static String formatElapsedTime(long elapsed) {
+
+        long hours = elapsed / 3600;
+        long hourLessElapsed = elapsed % 3600;
+        long minutes = hourLessElapsed / 60;
+        long seconds = hourLessElapsed % 60;
+
+        return String.format("%d h %02d min %02d sec ", hours, minutes, seconds);
+    }
+}
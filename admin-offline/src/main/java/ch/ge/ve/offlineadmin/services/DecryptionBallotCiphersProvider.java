@@ -23,6 +23,7 @@ package ch.ge.ve.offlineadmin.services;
 
 import ch.ge.ve.commons.crypto.ballot.BallotCipherService;
 import ch.ge.ve.commons.crypto.ballot.BallotCiphersProviderDefaultImpl;
+import ch.ge.ve.commons.crypto.ballot.BallotKeyUnwrapper;
 import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
 import ch.ge.ve.commons.crypto.exceptions.PrivateKeyPasswordMismatchException;
 import ch.ge.ve.commons.crypto.utils.CertificateUtils;
@@ -37,6 +38,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.security.interfaces.ECPrivateKey;
 import java.util.Optional;
 import java.util.regex.Pattern;
 
@@ -114,6 +116,10 @@ public class DecryptionBallotCiphersProvider extends BallotCiphersProviderDefaul
         } catch (UnrecoverableKeyException e) {
             throw new PrivateKeyPasswordMismatchException("Password mismatch", e);
         }
+        // RSA ballot keys are unwrapped using the Chinese Remainder Theorem, which requires a full CRT key
+        if (!(privateKey instanceof ECPrivateKey)) {
+            BallotKeyUnwrapper.checkCrtKey(privateKey);
+        }
     }
 
     @Override
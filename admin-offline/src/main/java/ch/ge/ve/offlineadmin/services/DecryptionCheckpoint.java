@@ -0,0 +1,570 @@
+package ch.ge.ve.offlineadmin.services;
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.ballot.BallotCipherService;
+import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
+import ch.ge.ve.commons.crypto.utils.CipherFactory;
+import ch.ge.ve.commons.crypto.utils.SecureRandomFactory;
+import ch.ge.ve.commons.fileutils.StreamHasher;
+import ch.ge.ve.offlineadmin.exception.CheckpointMismatchException;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import org.apache.log4j.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Checkpoint of a ballot box decryption, so that an interrupted decryption can be resumed instead of being started
+ * over.
+ * <p>
+ * The checkpoint is a journal file, to which a segment is appended for each decrypted chunk: the range of the records
+ * of the encrypted ballots file covered by the chunk, the number of invalid ballots in this range, and the cleartext
+ * ballots. The journal is forced to the disk at most once per configured interval, and when it is closed.
+ * </p>
+ * <p>
+ * The cleartext ballots never reach the disk unencrypted: the header and the segments of the journal are encrypted
+ * with AES/GCM, using a key derived from the Election Officers' private key and a random salt, see
+ * {@link BallotCipherService#deriveSecretKey(byte[], String)}. The cipher is created once per checkpoint by a
+ * {@link CipherFactory}, and initialized again for each element of the journal. The header holds the fingerprint of the encrypted
+ * ballots file (see {@link #fingerprint(Path, StreamHasher)}), hence a checkpoint can only be resumed with the same
+ * keys, for the same ballot box. The nonce of a segment is its
+ * position in the journal, so that segments can neither be reordered nor duplicated. The journal ends with its first
+ * segment which is truncated or cannot be authenticated, the records of the following segments being decrypted again.
+ * </p>
+ * <p>
+ * A checkpoint is either created empty, see {@link #create(Path, BallotCipherService, CipherFactory, byte[], long)}, or
+ * resumed, see {@link #resume(Path, BallotCipherService, CipherFactory, byte[], long)}, in which case the ranges of records already decrypted are
+ * known before the decryption starts. Upon {@link #start(Consumer)}, the ballots of these ranges are replayed into a
+ * fresh journal, with a new salt, which then replaces the former one.
+ * </p>
+ * <p>
+ * The fingerprint is known before the file is read, whereas its hash is only known once it has been read, while being
+ * decrypted. The hash is then handed over to {@link #confirmBallotsFileHash(byte[])}, which records it in the journal,
+ * or verifies it against the one recorded by the resumed journal, if any.
+ * </p>
+ */
+public class DecryptionCheckpoint implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(DecryptionCheckpoint.class);
+    private static final int MAGIC = 0x43484b50;
+    private static final int VERSION = 2;
+    private static final String KEY_PURPOSE = "ballot decryption checkpoint";
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int SALT_LENGTH = 32;
+    private static final int TAG_LENGTH_BITS = 128;
+    private static final int NONCE_LENGTH = 12;
+    private static final int MAX_HEADER_LENGTH = 1024;
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    /**
+     * Number of bytes at the beginning of the encrypted ballots file covered by its fingerprint
+     */
+    private static final int FINGERPRINT_HEAD_LENGTH = 1 << 20;
+    /**
+     * First record of the segment holding the hash of the encrypted ballots file, instead of a range of records
+     */
+    private static final long HASH_SEGMENT = -1L;
+
+    private final Path journal;
+    private final BallotCipherService ballotCipherService;
+    private final Cipher cipher;
+    private final byte[] ballotsFileFingerprint;
+    private final long forceIntervalNanos;
+    private final NavigableMap<Long, Integer> recoveredRanges = new TreeMap<>();
+    private long recoveredRecords;
+    private int recoveredInvalidCount;
+    private int recoveredSegments;
+    private byte[] recoveredBallotsFileHash;
+    private boolean ballotsFileHashRecorded;
+    private SecretKey formerKey;
+    private SecretKey key;
+    private FileChannel channel;
+    private long segmentIndex;
+    private long lastForce;
+
+    private DecryptionCheckpoint(Path journal, BallotCipherService ballotCipherService, CipherFactory cipherFactory,
+                                 byte[] ballotsFileFingerprint, long forceIntervalMillis) {
+        Preconditions.checkArgument(forceIntervalMillis >= 0, "the force interval cannot be negative");
+        this.journal = journal;
+        this.ballotCipherService = ballotCipherService;
+        this.cipher = cipherFactory.getInstance(CIPHER);
+        this.ballotsFileFingerprint = ballotsFileFingerprint.clone();
+        this.forceIntervalNanos = TimeUnit.MILLISECONDS.toNanos(forceIntervalMillis);
+    }
+
+    /**
+     * Creates an empty checkpoint, replacing the journal, if any, once started
+     *
+     * @param journal                the journal file
+     * @param ballotCipherService    the service whose private key protects the journal, already unlocked
+     * @param cipherFactory          the factory of the cipher of the journal
+     * @param ballotsFileFingerprint the fingerprint of the encrypted ballots file, see {@link #fingerprint(Path, StreamHasher)}
+     * @param forceIntervalMillis    the minimum interval between two writes of the journal to the disk
+     * @return a new checkpoint
+     */
+    public static DecryptionCheckpoint create(Path journal, BallotCipherService ballotCipherService, CipherFactory cipherFactory,
+                                              byte[] ballotsFileFingerprint, long forceIntervalMillis) {
+        return new DecryptionCheckpoint(journal, ballotCipherService, cipherFactory, ballotsFileFingerprint, forceIntervalMillis);
+    }
+
+    /**
+     * Reads an existing journal, once its keys and ballot box have been verified
+     *
+     * @param journal                the journal file
+     * @param ballotCipherService    the service whose private key protects the journal, already unlocked
+     * @param cipherFactory          the factory of the cipher of the journal
+     * @param ballotsFileFingerprint the fingerprint of the encrypted ballots file, see {@link #fingerprint(Path, StreamHasher)}
+     * @param forceIntervalMillis    the minimum interval between two writes of the journal to the disk
+     * @return the checkpoint, holding the ranges of records already decrypted
+     * @throws CheckpointMismatchException if the journal was made with other keys, for another ballot box, or is not a
+     *                                     journal
+     * @throws IOException                 if the journal cannot be read
+     */
+    public static DecryptionCheckpoint resume(Path journal, BallotCipherService ballotCipherService, CipherFactory cipherFactory,
+                                              byte[] ballotsFileFingerprint, long forceIntervalMillis)
+            throws CheckpointMismatchException, IOException {
+        DecryptionCheckpoint checkpoint = new DecryptionCheckpoint(journal, ballotCipherService, cipherFactory, ballotsFileFingerprint, forceIntervalMillis);
+        checkpoint.readFormerJournal();
+        return checkpoint;
+    }
+
+    /**
+     * @return the journal file
+     */
+    public Path getJournal() {
+        return journal;
+    }
+
+    /**
+     * Computes the fingerprint of an encrypted ballots file, which identifies it without reading it entirely: its
+     * size and the hash of its first bytes. The last modification time is left out, as a copy of the same file must
+     * still resume the checkpoint. The whole file is hashed later on, while it is being decrypted, see
+     * {@link #confirmBallotsFileHash(byte[])}.
+     *
+     * @param ballotsFile  the encrypted ballots file
+     * @param streamHasher the hasher of the file
+     * @return the fingerprint of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static byte[] fingerprint(Path ballotsFile, StreamHasher streamHasher) throws IOException {
+        long size = Files.size(ballotsFile);
+        byte[] headHash;
+        try (InputStream head = ByteStreams.limit(Files.newInputStream(ballotsFile, StandardOpenOption.READ), FINGERPRINT_HEAD_LENGTH)) {
+            headHash = streamHasher.threadSafeComputeHash(head);
+        }
+        return ByteBuffer.allocate(Long.BYTES + headHash.length)
+                .putLong(size)
+                .put(headHash)
+                .array();
+    }
+
+    /**
+     * Records the hash of the encrypted ballots file, once it has been read entirely, or verifies it against the hash
+     * recorded by the resumed journal, if any
+     *
+     * @param ballotsFileHash the hash of the encrypted ballots file
+     * @throws CryptoOperationRuntimeException if the hash does not match the one recorded by the resumed journal
+     * @throws UncheckedIOException            if the journal cannot be written
+     */
+    public synchronized void confirmBallotsFileHash(byte[] ballotsFileHash) {
+        Preconditions.checkState(channel != null && channel.isOpen(), "the checkpoint is not started");
+        if (recoveredBallotsFileHash != null && !MessageDigest.isEqual(recoveredBallotsFileHash, ballotsFileHash)) {
+            throw new CryptoOperationRuntimeException("the encrypted ballots file does not match the decryption checkpoint " + journal
+                    + ", which must be deleted for the decryption to start over");
+        }
+        if (!ballotsFileHashRecorded) {
+            try {
+                writeSegment(ByteBuffer.allocate(Long.BYTES + Integer.BYTES + ballotsFileHash.length)
+                        .putLong(HASH_SEGMENT).putInt(ballotsFileHash.length).put(ballotsFileHash).array());
+                channel.force(false);
+                lastForce = System.nanoTime();
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot write the decryption checkpoint " + journal, e);
+            }
+            ballotsFileHashRecorded = true;
+        }
+    }
+
+    /**
+     * @return the number of records already decrypted, according to the resumed journal
+     */
+    public long getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    /**
+     * @return the number of invalid ballots amongst the records already decrypted
+     */
+    public int getRecoveredInvalidCount() {
+        return recoveredInvalidCount;
+    }
+
+    /**
+     * @param record the index of a record of the encrypted ballots file, starting at 0
+     * @return <tt>true</tt> if the record has already been decrypted, according to the resumed journal
+     */
+    public boolean isRecovered(long record) {
+        Map.Entry<Long, Integer> range = recoveredRanges.floorEntry(record);
+        return range != null && record < range.getKey() + range.getValue();
+    }
+
+    /**
+     * Starts a fresh journal, into which the segments of the resumed journal, if any, are replayed, then replaces the
+     * former journal with it
+     *
+     * @param recoveredBallots the consumer of the cleartext ballots of the resumed journal, by segment
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized void start(Consumer<List<String>> recoveredBallots) throws IOException {
+        Preconditions.checkState(channel == null, "the checkpoint has already been started");
+        Path temporaryJournal = journal.resolveSibling(journal.getFileName() + TEMPORARY_SUFFIX);
+        byte[] salt = new byte[SALT_LENGTH];
+        SecureRandomFactory.createPRNG().nextBytes(salt);
+        key = ballotCipherService.deriveSecretKey(salt, KEY_PURPOSE);
+        segmentIndex = 0;
+
+        channel = FileChannel.open(temporaryJournal, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            byte[] encryptedHeader = encrypt(segmentIndex++, ballotsFileFingerprint, headerData(salt));
+            write(ByteBuffer.allocate(Integer.BYTES * 3 + SALT_LENGTH + encryptedHeader.length)
+                    .putInt(MAGIC).putInt(VERSION).put(salt).putInt(encryptedHeader.length).put(encryptedHeader));
+            if (recoveredSegments > 0) {
+                replayFormerJournal(recoveredBallots);
+            }
+            channel.force(false);
+        } finally {
+            // the channel is closed before the file is moved, which would not be allowed otherwise on some systems
+            channel.close();
+        }
+        Files.move(temporaryJournal, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(journal, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        lastForce = System.nanoTime();
+    }
+
+    /**
+     * Appends the result of the decryption of a range of records, and forces the journal to the disk if the interval
+     * since the last time has elapsed
+     *
+     * @param firstRecord  the index of the first record of the range
+     * @param recordsCount the number of records in the range
+     * @param invalidCount the number of invalid ballots in the range
+     * @param ballots      the cleartext ballots of the range
+     * @throws UncheckedIOException if the journal cannot be written
+     */
+    public synchronized void record(long firstRecord, int recordsCount, int invalidCount, List<String> ballots) {
+        Preconditions.checkState(channel != null && channel.isOpen(), "the checkpoint is not started");
+        try {
+            ByteArrayOutputStream segment = new ByteArrayOutputStream();
+            DataOutputStream segmentOut = new DataOutputStream(segment);
+            segmentOut.writeLong(firstRecord);
+            segmentOut.writeInt(recordsCount);
+            segmentOut.writeInt(invalidCount);
+            segmentOut.writeInt(ballots.size());
+            for (String ballot : ballots) {
+                byte[] bytes = ballot.getBytes(StandardCharsets.UTF_8);
+                segmentOut.writeInt(bytes.length);
+                segmentOut.write(bytes);
+            }
+            writeSegment(segment.toByteArray());
+            long now = System.nanoTime();
+            if (now - lastForce >= forceIntervalNanos) {
+                channel.force(false);
+                lastForce = now;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot write the decryption checkpoint " + journal, e);
+        }
+    }
+
+    /**
+     * Forces the journal to the disk, and closes it
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            try {
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the journal, and deletes it, once the decryption is over
+     *
+     * @throws IOException if the journal cannot be deleted
+     */
+    public synchronized void delete() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        Files.deleteIfExists(journal);
+    }
+
+    private void readFormerJournal() throws CheckpointMismatchException, IOException {
+        try (JournalReader reader = new JournalReader()) {
+            Segment segment;
+            while ((segment = reader.nextSegment()) != null) {
+                if (segment.ballotsFileHash != null) {
+                    if (recoveredBallotsFileHash != null) {
+                        throw new CryptoOperationRuntimeException("inconsistent decryption checkpoint " + journal);
+                    }
+                    recoveredBallotsFileHash = segment.ballotsFileHash;
+                } else {
+                    addRecoveredRange(segment);
+                    recoveredRecords += segment.recordsCount;
+                    recoveredInvalidCount += segment.invalidCount;
+                }
+                recoveredSegments++;
+            }
+        }
+    }
+
+    private void addRecoveredRange(Segment segment) {
+        Map.Entry<Long, Integer> previous = recoveredRanges.floorEntry(segment.firstRecord);
+        Long next = recoveredRanges.ceilingKey(segment.firstRecord);
+        if (segment.firstRecord < 0 || segment.recordsCount <= 0
+                || previous != null && previous.getKey() + previous.getValue() > segment.firstRecord
+                || next != null && next < segment.firstRecord + segment.recordsCount) {
+            throw new CryptoOperationRuntimeException("inconsistent decryption checkpoint " + journal);
+        }
+        recoveredRanges.put(segment.firstRecord, segment.recordsCount);
+    }
+
+    private void replayFormerJournal(Consumer<List<String>> recoveredBallots) throws IOException {
+        try (JournalReader reader = new JournalReader()) {
+            for (int i = 0; i < recoveredSegments; i++) {
+                Segment segment = reader.nextSegment();
+                if (segment == null) {
+                    throw new CryptoOperationRuntimeException("the decryption checkpoint " + journal + " changed while being resumed");
+                }
+                if (segment.ballotsFileHash == null) {
+                    recoveredBallots.accept(segment.ballots);
+                }
+                writeSegment(segment.plainText);
+            }
+            ballotsFileHashRecorded = recoveredBallotsFileHash != null;
+        } catch (CheckpointMismatchException e) {
+            throw new CryptoOperationRuntimeException("the decryption checkpoint " + journal + " changed while being resumed", e);
+        }
+    }
+
+    private void writeSegment(byte[] plainText) throws IOException {
+        byte[] encryptedSegment = encrypt(segmentIndex++, plainText, null);
+        write(ByteBuffer.allocate(Integer.BYTES + encryptedSegment.length).putInt(encryptedSegment.length).put(encryptedSegment));
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] headerData(byte[] salt) {
+        return ByteBuffer.allocate(Integer.BYTES * 2 + salt.length).putInt(MAGIC).putInt(VERSION).put(salt).array();
+    }
+
+    private byte[] encrypt(long index, byte[] plainText, byte[] associatedData) {
+        try {
+            return initCipher(Cipher.ENCRYPT_MODE, key, index, associatedData).doFinal(plainText);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoOperationRuntimeException("cannot encrypt the decryption checkpoint", e);
+        }
+    }
+
+    /**
+     * Initializes the cipher of the checkpoint for an element of the journal, the nonce being the position of the
+     * element in the journal. The cipher is only used while holding the lock of the checkpoint, or before the
+     * checkpoint is handed over by {@link #resume(Path, BallotCipherService, CipherFactory, byte[], long)}.
+     *
+     * @return the initialized cipher
+     */
+    private Cipher initCipher(int mode, SecretKey key, long index, byte[] associatedData) {
+        byte[] nonce = ByteBuffer.allocate(NONCE_LENGTH).putInt(0).putLong(index).array();
+        try {
+            cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH_BITS, nonce));
+            if (associatedData != null) {
+                cipher.updateAAD(associatedData);
+            }
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new CryptoConfigurationRuntimeException("cannot initialize the cipher of the decryption checkpoint", e);
+        }
+    }
+
+    /**
+     * A decrypted segment of the journal: either a range of records, or the hash of the encrypted ballots file
+     */
+    private static final class Segment {
+        final byte[] plainText;
+        final long firstRecord;
+        final int recordsCount;
+        final int invalidCount;
+        final List<String> ballots;
+        final byte[] ballotsFileHash;
+
+        Segment(byte[] plainText) throws IOException {
+            this.plainText = plainText;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plainText));
+            firstRecord = in.readLong();
+            if (firstRecord == HASH_SEGMENT) {
+                int hashLength = in.readInt();
+                if (hashLength < 0 || hashLength > in.available()) {
+                    throw new CryptoOperationRuntimeException("inconsistent decryption checkpoint segment");
+                }
+                ballotsFileHash = new byte[hashLength];
+                in.readFully(ballotsFileHash);
+                recordsCount = 0;
+                invalidCount = 0;
+                ballots = new ArrayList<>();
+                return;
+            }
+            ballotsFileHash = null;
+            recordsCount = in.readInt();
+            invalidCount = in.readInt();
+            int ballotsCount = in.readInt();
+            if (ballotsCount < 0 || ballotsCount > recordsCount) {
+                throw new CryptoOperationRuntimeException("inconsistent decryption checkpoint segment");
+            }
+            ballots = new ArrayList<>(ballotsCount);
+            for (int i = 0; i < ballotsCount; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                ballots.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Reads the former journal: verifies its header, then decrypts its segments one at a time
+     */
+    private final class JournalReader implements Closeable {
+        private final DataInputStream in;
+        private long remaining;
+        private long index;
+
+        JournalReader() throws CheckpointMismatchException, IOException {
+            remaining = Files.size(journal);
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)));
+            try {
+                readHeader();
+            } catch (CheckpointMismatchException | IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        private void readHeader() throws CheckpointMismatchException, IOException {
+            byte[] salt = new byte[SALT_LENGTH];
+            byte[] encryptedHeader;
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new CheckpointMismatchException("not a decryption checkpoint");
+                }
+                in.readFully(salt);
+                int length = in.readInt();
+                if (length < 0 || length > MAX_HEADER_LENGTH) {
+                    throw new CheckpointMismatchException("not a decryption checkpoint");
+                }
+                encryptedHeader = new byte[length];
+                in.readFully(encryptedHeader);
+                remaining -= Integer.BYTES * 3 + SALT_LENGTH + length;
+            } catch (EOFException e) {
+                throw new CheckpointMismatchException("truncated decryption checkpoint", e);
+            }
+
+            if (formerKey == null) {
+                formerKey = ballotCipherService.deriveSecretKey(salt, KEY_PURPOSE);
+            }
+            byte[] fingerprint;
+            try {
+                fingerprint = initCipher(Cipher.DECRYPT_MODE, formerKey, index++, headerData(salt)).doFinal(encryptedHeader);
+            } catch (GeneralSecurityException e) {
+                throw new CheckpointMismatchException("the checkpoint was made with other keys", e);
+            }
+            if (!MessageDigest.isEqual(fingerprint, ballotsFileFingerprint)) {
+                throw new CheckpointMismatchException("the checkpoint was made for another ballot box");
+            }
+        }
+
+        /**
+         * @return the next segment, or <tt>null</tt> at the end of the journal, or at its first truncated or altered
+         * segment
+         */
+        Segment nextSegment() throws IOException {
+            if (remaining < Integer.BYTES) {
+                return null;
+            }
+            int length = in.readInt();
+            remaining -= Integer.BYTES;
+            // the length is checked before the segment is authenticated
+            if (length < 0 || length > remaining) {
+                LOGGER.warn("truncated segment in the decryption checkpoint " + journal + ", the journal ends there");
+                return null;
+            }
+            byte[] encryptedSegment = new byte[length];
+            in.readFully(encryptedSegment);
+            remaining -= length;
+            try {
+                return new Segment(initCipher(Cipher.DECRYPT_MODE, formerKey, index++, null).doFinal(encryptedSegment));
+            } catch (GeneralSecurityException e) {
+                LOGGER.warn("altered segment in the decryption checkpoint " + journal + ", the journal ends there", e);
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
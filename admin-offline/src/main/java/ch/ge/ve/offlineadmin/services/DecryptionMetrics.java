@@ -0,0 +1,256 @@
+package ch.ge.ve.offlineadmin.services;
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.ballot.BallotDecryptionTimings;
+import ch.ge.ve.offlineadmin.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live metrics of a ballot decryption: the number of ballots processed, the throughput, the estimated remaining time,
+ * and the latencies of each {@link Stage} of the pipeline.
+ * <p>
+ * The metrics are recorded from the reading, decrypting and writing threads, and may be read at any time, <i>e.g.</i>
+ * to be displayed while the decryption is running. Once the decryption is done, they can be saved as a JSON summary,
+ * see {@link #writeSummary(Path)}.
+ * </p>
+ */
+public class DecryptionMetrics implements BallotDecryptionTimings {
+    private static final double NANOS_PER_MICRO = 1000.0;
+    private static final double[] SUMMARY_PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    /**
+     * Stages of the decryption pipeline
+     */
+    public enum Stage {
+        /**
+         * reading and deserialization of an encrypted ballot
+         */
+        READ("read"),
+        /**
+         * unwrapping of the key of a ballot, with the Election Officers' private key
+         */
+        UNWRAP("unwrap"),
+        /**
+         * symmetric decryption of a ballot
+         */
+        DECRYPT("decrypt"),
+        /**
+         * shuffling of a chunk of decrypted ballots
+         */
+        SHUFFLE("shuffle"),
+        /**
+         * writing of a cleartext ballot
+         */
+        WRITE("write");
+
+        private final String summaryName;
+
+        Stage(String summaryName) {
+            this.summaryName = summaryName;
+        }
+    }
+
+    private final Map<Stage, LatencyHistogram> latencies = new EnumMap<>(Stage.class);
+    private final LongAdder decryptedBallots = new LongAdder();
+    private final LongAdder recoveredBallots = new LongAdder();
+    private final LongAdder invalidBallots = new LongAdder();
+    private final int parallelism;
+    private final long startNanos = System.nanoTime();
+    private volatile long totalBallots = -1L;
+    /**
+     * published by {@link #stopped}, as {@link System#nanoTime()} may return any value, negative ones included
+     */
+    private long endNanos;
+    private volatile boolean stopped;
+
+    /**
+     * @param parallelism the number of decryption threads
+     */
+    public DecryptionMetrics(int parallelism) {
+        this.parallelism = parallelism;
+        for (Stage stage : Stage.values()) {
+            latencies.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * @param stage the stage
+     * @param nanos the duration of the stage, for a single ballot, or a single chunk for {@link Stage#SHUFFLE}
+     */
+    public void record(Stage stage, long nanos) {
+        latencies.get(stage).record(nanos);
+    }
+
+    @Override
+    public void keyUnwrapped(long nanos) {
+        record(Stage.UNWRAP, nanos);
+    }
+
+    @Override
+    public void ballotDecrypted(long nanos) {
+        record(Stage.DECRYPT, nanos);
+    }
+
+    /**
+     * Counts a ballot processed by a decryption thread, whether it is valid or not
+     */
+    void countDecryptedBallot() {
+        decryptedBallots.increment();
+    }
+
+    /**
+     * Counts a ballot skipped since it was already decrypted according to a checkpoint
+     */
+    void countRecoveredBallot() {
+        recoveredBallots.increment();
+    }
+
+    void addInvalidBallots(long count) {
+        invalidBallots.add(count);
+    }
+
+    void setTotalBallots(long totalBallots) {
+        this.totalBallots = totalBallots;
+    }
+
+    void stop() {
+        endNanos = System.nanoTime();
+        stopped = true;
+    }
+
+    /**
+     * @param stage the stage
+     * @return the latencies of the stage, in nanoseconds
+     */
+    public LatencyHistogram getLatencies(Stage stage) {
+        return latencies.get(stage);
+    }
+
+    /**
+     * @return the number of ballots processed so far, including those recovered from a checkpoint
+     */
+    public long getProcessedBallots() {
+        return decryptedBallots.sum() + recoveredBallots.sum();
+    }
+
+    /**
+     * @return the number of ballots decrypted so far during this run
+     */
+    public long getDecryptedBallots() {
+        return decryptedBallots.sum();
+    }
+
+    /**
+     * @return the number of invalid ballots so far, including those recovered from a checkpoint
+     */
+    public long getInvalidBallots() {
+        return invalidBallots.sum();
+    }
+
+    /**
+     * @return the number of ballots to process, -1 until it is known, at the latest once all of them have been read
+     */
+    public long getTotalBallots() {
+        return totalBallots;
+    }
+
+    /**
+     * @param unit the unit of the result
+     * @return the time elapsed since the beginning of the decryption, until its end once it is done
+     */
+    public long getElapsed(TimeUnit unit) {
+        long end = stopped ? endNanos : System.nanoTime();
+        return unit.convert(end - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of ballots decrypted per second during this run
+     */
+    public double getThroughput() {
+        long elapsedNanos = getElapsed(TimeUnit.NANOSECONDS);
+        return elapsedNanos <= 0 ? 0.0 : getDecryptedBallots() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    /**
+     * Estimates the remaining time from the throughput so far. Until the number of ballots to process is known, the
+     * remaining time is unknown as well.
+     *
+     * @param unit the unit of the result
+     * @return the estimated remaining time, or -1 if it is unknown
+     */
+    public long getEstimatedRemaining(TimeUnit unit) {
+        long total = totalBallots;
+        double throughput = getThroughput();
+        if (total < 0 || throughput <= 0.0) {
+            return -1L;
+        }
+        long remainingBallots = Math.max(0L, total - getProcessedBallots());
+        return unit.convert((long) (remainingBallots / throughput * TimeUnit.SECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Writes the metrics as a JSON summary, with the latencies in microseconds
+     *
+     * @param file the summary file
+     * @throws IOException if the file cannot be written
+     */
+    public void writeSummary(Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("{\n");
+            writer.write(String.format(Locale.ROOT, "  \"ballots\": %d,\n", getProcessedBallots()));
+            writer.write(String.format(Locale.ROOT, "  \"decryptedBallots\": %d,\n", getDecryptedBallots()));
+            writer.write(String.format(Locale.ROOT, "  \"invalidBallots\": %d,\n", getInvalidBallots()));
+            writer.write(String.format(Locale.ROOT, "  \"decryptionThreads\": %d,\n", parallelism));
+            writer.write(String.format(Locale.ROOT, "  \"elapsedMillis\": %d,\n", getElapsed(TimeUnit.MILLISECONDS)));
+            writer.write(String.format(Locale.ROOT, "  \"ballotsPerSecond\": %.1f,\n", getThroughput()));
+            writer.write("  \"latenciesMicros\": {\n");
+            Stage[] stages = Stage.values();
+            for (int i = 0; i < stages.length; i++) {
+                LatencyHistogram histogram = latencies.get(stages[i]);
+                writer.write(String.format(Locale.ROOT, "    \"%s\": {\"count\": %d, \"mean\": %.1f",
+                        stages[i].summaryName, histogram.getCount(), histogram.getMean() / NANOS_PER_MICRO));
+                for (double percentile : SUMMARY_PERCENTILES) {
+                    writer.write(String.format(Locale.ROOT, ", \"p%s\": %.1f",
+                            formatPercentile(percentile), histogram.getValueAtPercentile(percentile) / NANOS_PER_MICRO));
+                }
+                writer.write(String.format(Locale.ROOT, ", \"max\": %.1f}%s\n", histogram.getMax() / NANOS_PER_MICRO, i < stages.length - 1 ? "," : ""));
+            }
+            writer.write("  }\n");
+            writer.write("}\n");
+        }
+    }
+
+    private static String formatPercentile(double percentile) {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile).replace('.', '_');
+    }
+}
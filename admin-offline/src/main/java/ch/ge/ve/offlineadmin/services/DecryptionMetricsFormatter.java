@@ -0,0 +1,78 @@
+package ch.ge.ve.offlineadmin.services;
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.offlineadmin.util.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats the {@link DecryptionMetrics} of a running decryption for the operator: the throughput, the estimated
+ * remaining time, and the median and 99th percentile latencies of each stage, in milliseconds.
+ */
+public class DecryptionMetricsFormatter {
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+    private final ResourceBundle resources;
+
+    /**
+     * @param resources the messages
+     */
+    public DecryptionMetricsFormatter(ResourceBundle resources) {
+        this.resources = resources;
+    }
+
+    /**
+     * @param metrics the metrics of the decryption
+     * @return the status of the decryption
+     */
+    public String formatStatus(DecryptionMetrics metrics) {
+        long remainingSeconds = metrics.getEstimatedRemaining(TimeUnit.SECONDS);
+        String remaining = remainingSeconds < 0
+                ? resources.getString("ballot_decryption.status.unknown_remaining")
+                : formatDuration(remainingSeconds);
+        return String.format(resources.getString("ballot_decryption.status"), metrics.getThroughput(), remaining, formatLatencies(metrics));
+    }
+
+    /**
+     * @param metrics the metrics of the decryption
+     * @return the median and 99th percentile latencies of the stages run so far
+     */
+    public String formatLatencies(DecryptionMetrics metrics) {
+        StringJoiner latencies = new StringJoiner(", ");
+        for (DecryptionMetrics.Stage stage : DecryptionMetrics.Stage.values()) {
+            LatencyHistogram histogram = metrics.getLatencies(stage);
+            if (histogram.getCount() > 0) {
+                latencies.add(String.format(resources.getString("ballot_decryption.status.stage_latencies"),
+                        resources.getString("ballot_decryption.stage." + stage.name().toLowerCase(Locale.ROOT)),
+                        histogram.getValueAtPercentile(50.0) / NANOS_PER_MILLI, histogram.getValueAtPercentile(99.0) / NANOS_PER_MILLI));
+            }
+        }
+        return latencies.toString();
+    }
+
+    private static String formatDuration(long seconds) {
+        return String.format("%d h %02d min %02d sec", seconds / 3600, seconds % 3600 / 60, seconds % 60);
+    }
+}
@@ -23,72 +23,532 @@ package ch.ge.ve.offlineadmin.services;
 
 import ch.ge.ve.commons.crypto.ballot.BallotCipherService;
 import ch.ge.ve.commons.crypto.ballot.EncryptedBallotAndWrappedKey;
+import ch.ge.ve.commons.crypto.ballot.EncryptedBallotArena;
 import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
+import ch.ge.ve.commons.crypto.utils.CipherFactory;
 import ch.ge.ve.commons.crypto.utils.SecureRandomFactory;
 import ch.ge.ve.offlineadmin.util.ProgressTracker;
 
-import com.google.common.base.Strings;
+import com.google.common.base.Preconditions;
 import org.apache.log4j.Logger;
 
-import java.util.Collections;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Ballots box decryption service
+ * <p>
+ * The decryption is performed as a pipeline: the encrypted ballots are grouped in chunks as they are read, and each
+ * chunk is decrypted by a dedicated work-stealing pool, so that reading and decryption overlap. The number of chunks
+ * waiting to be decrypted is bounded, hence the encrypted ballots never need to be all held in memory at once.
+ * </p>
+ * <p>
+ * The ballots stored as envelopes are copied as they are read into the {@link EncryptedBallotArena} of their chunk,
+ * without being decoded, so that the ballots waiting to be decrypted are not scanned by the garbage collector. The
+ * chunks are recycled along with their arena, and each decryption thread reads the ballots through its own flyweight
+ * view. The ballots of a serialized ballot box are deserialized as objects, and kept as they are.
+ * </p>
+ * <p>
+ * The decrypted ballots are shuffled as they are decrypted, see {@link ShuffledBallots}: beyond a configured number,
+ * they are spilled to encrypted temporary files, hence the cleartext ballots never need to be all held in memory at
+ * once either.
+ * </p>
+ * <p>
+ * A decryption may be checkpointed, see {@link DecryptionCheckpoint}: each decrypted chunk is then recorded in the
+ * checkpoint, and the records already decrypted according to a resumed checkpoint are skipped, their ballots being
+ * replayed from the checkpoint instead.
+ * </p>
+ * <p>
+ * The decryption threads only count the ballots in striped counters, and never call the {@link ProgressTracker}: the
+ * counters are read at a fixed rate by a dedicated thread, which reports the steps done since its last reading.
+ * </p>
+ * <p>
+ * The throughput and the latencies of the reading, unwrapping, decryption and shuffling of the ballots are recorded
+ * in the {@link DecryptionMetrics} of the run, see {@link #getMetrics()}.
+ * </p>
  */
 public class DecryptionService {
     public static final int STEP_SIZE = 100;
+    /**
+     * Default number of ballots per chunk: decrypting a ballot is dominated by the RSA unwrapping of its key, which
+     * takes in the order of a millisecond, so that a chunk is worth scheduling on its own
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 32;
+    /**
+     * Number of chunks per decryption thread that may wait to be decrypted before the reading is paused
+     */
+    static final int PENDING_CHUNKS_PER_THREAD = 4;
+    /**
+     * Size below which a part of a chunk is no longer split
+     */
+    private static final int MIN_SPLIT_SIZE = 4;
+    /**
+     * Initial number of bytes per ballot of the arena of a chunk, grown as needed and kept when the chunk is recycled
+     */
+    private static final int ARENA_BYTES_PER_BALLOT = 512;
+    /**
+     * Interval between two readings of the progress of the decryption
+     */
+    static final long PROGRESS_REFRESH_MILLIS = 200;
     private static final Logger LOGGER = Logger.getLogger(DecryptionService.class);
     private final BallotCipherService ballotCipherService;
+    private final CipherFactory cipherFactory;
     private final ProgressTracker progressTracker;
-    private AtomicInteger invalidCounter = new AtomicInteger();
+    private final int parallelism;
+    private final int chunkSize;
+    private final int maxBallotsInMemory;
+    private volatile DecryptionMetrics metrics;
+    private volatile long ballotsCounter;
 
     /**
+     * Creates a decryption service using one thread per available core
+     *
      * @param ballotCipherService providing decryption service
+     * @param cipherFactory providing the cipher of the temporary shuffle files
      * @param progressTracker providing tracking utility
      */
-    public DecryptionService(BallotCipherService ballotCipherService, ProgressTracker progressTracker) {
+    public DecryptionService(BallotCipherService ballotCipherService, CipherFactory cipherFactory, ProgressTracker progressTracker) {
+        this(ballotCipherService, cipherFactory, progressTracker, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param ballotCipherService providing decryption service
+     * @param cipherFactory providing the cipher of the temporary shuffle files
+     * @param progressTracker providing tracking utility
+     * @param parallelism the number of decryption threads
+     * @param chunkSize the number of ballots decrypted by a single task
+     */
+    public DecryptionService(BallotCipherService ballotCipherService, CipherFactory cipherFactory, ProgressTracker progressTracker, int parallelism, int chunkSize) {
+        this(ballotCipherService, cipherFactory, progressTracker, parallelism, chunkSize, ShuffledBallots.DEFAULT_MAX_BALLOTS_IN_MEMORY);
+    }
+
+    /**
+     * @param ballotCipherService providing decryption service
+     * @param cipherFactory providing the cipher of the temporary shuffle files
+     * @param progressTracker providing tracking utility
+     * @param parallelism the number of decryption threads
+     * @param chunkSize the number of ballots decrypted by a single task
+     * @param maxBallotsInMemory the number of decrypted ballots held in memory before being spilled to a temporary file
+     */
+    public DecryptionService(BallotCipherService ballotCipherService, CipherFactory cipherFactory, ProgressTracker progressTracker,
+                             int parallelism, int chunkSize, int maxBallotsInMemory) {
+        Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+        Preconditions.checkArgument(chunkSize > 0, "chunk size must be positive");
+        Preconditions.checkArgument(maxBallotsInMemory > 0, "the number of ballots in memory must be positive");
         this.ballotCipherService = ballotCipherService;
+        this.cipherFactory = cipherFactory;
         this.progressTracker = progressTracker;
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+        this.maxBallotsInMemory = maxBallotsInMemory;
+        this.metrics = new DecryptionMetrics(parallelism);
     }
 
     /**
      * Decrypts a list of encrypted ballots
      * @param encryptedBallots  list of encrypted ballots
-     * @return list of decrypted ballots
+     * @return the decrypted ballots, shuffled, to be closed once used
      */
-    public List<String> decrypt(List<EncryptedBallotAndWrappedKey> encryptedBallots) {
-        AtomicInteger counter = new AtomicInteger();
-        invalidCounter = new AtomicInteger();
+    public ShuffledBallots decrypt(List<EncryptedBallotAndWrappedKey> encryptedBallots) {
+        DecryptionPipeline pipeline = new DecryptionPipeline(null);
+        try {
+            encryptedBallots.forEach(pipeline::submit);
+            return pipeline.complete(encryptedBallots.size());
+        } finally {
+            pipeline.shutdown();
+        }
+    }
 
-        Stream<String> decryptedBallots = encryptedBallots.parallelStream().map(encryptedBallot -> decryptBallot(counter, encryptedBallot));
-        List<String> validDecryptedBallots = decryptedBallots.filter(ballot -> !Strings.isNullOrEmpty(ballot)).collect(Collectors.toList());
-        Collections.shuffle(validDecryptedBallots, SecureRandomFactory.createPRNG());
+    /**
+     * Decrypts the encrypted ballots as they are provided by the reader
+     * @param encryptedBallotsReader the reader providing the encrypted ballots, called on the current thread
+     * @return the decrypted ballots, shuffled, to be closed once used
+     * @throws IOException if the reader fails
+     * @throws ClassNotFoundException if the reader fails
+     */
+    public ShuffledBallots decrypt(EncryptedBallotsReader encryptedBallotsReader) throws IOException, ClassNotFoundException {
+        return decrypt(encryptedBallotsReader, null);
+    }
 
-        return validDecryptedBallots;
+    /**
+     * Decrypts the encrypted ballots as they are provided by the reader, recording the progress in a checkpoint
+     * @param encryptedBallotsReader the reader providing the encrypted ballots, called on the current thread
+     * @param checkpoint the checkpoint, not started yet, or <tt>null</tt> for no checkpoint
+     * @return the decrypted ballots, shuffled, to be closed once used
+     * @throws IOException if the reader fails, or if the checkpoint cannot be written
+     * @throws ClassNotFoundException if the reader fails
+     */
+    public ShuffledBallots decrypt(EncryptedBallotsReader encryptedBallotsReader, DecryptionCheckpoint checkpoint) throws IOException, ClassNotFoundException {
+        DecryptionPipeline pipeline = new DecryptionPipeline(checkpoint);
+        try {
+            pipeline.start();
+            long ballotsCount = encryptedBallotsReader.readBallots(pipeline::setBallotsCount, pipeline::submit, pipeline::submitEnvelope);
+            return pipeline.complete(ballotsCount);
+        } finally {
+            pipeline.shutdown();
+        }
     }
 
-    private String decryptBallot(AtomicInteger counter, EncryptedBallotAndWrappedKey encryptedBallot) {
+    private String decryptBallot(DecryptionMetrics runMetrics, Chunk chunk, int index, EncryptedBallotArena.BallotView view) {
         try {
-            if (counter.incrementAndGet() % STEP_SIZE == 0) {
-                progressTracker.incrementStepCount();
-            }
-            return ballotCipherService.decryptBallot(encryptedBallot);
+            runMetrics.countDecryptedBallot();
+            int envelopesCount = chunk.envelopes.size();
+            return index < envelopesCount
+                    ? ballotCipherService.decryptBallot(chunk.envelopes.read(index, view), runMetrics)
+                    : ballotCipherService.decryptBallot(chunk.ballots.get(index - envelopesCount), runMetrics);
         } catch (CryptoOperationRuntimeException e) {
             LOGGER.error(e);
-            invalidCounter.incrementAndGet();
+            runMetrics.addInvalidBallots(1);
             return null;
         }
     }
 
+    /**
+     * Getter for the number of ballots submitted for decryption, known once all of them have been read.
+     * @return the number of encrypted ballots
+     */
+    public long getBallotsCounter() {
+        return ballotsCounter;
+    }
+
     /**
      * Getter for the number of invalid ballots. Those ballots generated an error when trying to decrypt them.
      * @return the number of undecryptable ballots
      */
     public int getInvalidCounter() {
-        return invalidCounter.get();
+        return (int) metrics.getInvalidBallots();
+    }
+
+    /**
+     * Getter for the metrics of the current decryption, or of the last one once it is done
+     * @return the metrics, updated while the decryption is running
+     */
+    public DecryptionMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static Thread newProgressReporterThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "ballot-decryption-progress");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static ForkJoinWorkerThread newWorkerThread(ForkJoinPool forkJoinPool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+        thread.setName("ballot-decryption-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        // the user interface must stay responsive, even when all the cores are used for decryption
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    }
+
+    /**
+     * A single decryption run: the ballots submitted by the reading thread are gathered in chunks of consecutive
+     * records, which are decrypted by a dedicated pool.
+     */
+    private class DecryptionPipeline {
+        private final DecryptionMetrics runMetrics = new DecryptionMetrics(parallelism);
+        private final ScheduledExecutorService progressReporter = Executors.newSingleThreadScheduledExecutor(DecryptionService::newProgressReporterThread);
+        private long reportedSteps;
+        private final ForkJoinPool pool = new ForkJoinPool(parallelism, DecryptionService::newWorkerThread, null, false);
+        private final int maxPendingChunks = parallelism * PENDING_CHUNKS_PER_THREAD;
+        private final Semaphore pendingChunks = new Semaphore(maxPendingChunks);
+        private final ShuffledBallots shuffledBallots =
+                new ShuffledBallots(cipherFactory, SecureRandomFactory::createPRNG, maxBallotsInMemory, Paths.get(System.getProperty("java.io.tmpdir")));
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private final DecryptionCheckpoint checkpoint;
+        private final Queue<Chunk> freeChunks = new ConcurrentLinkedQueue<>();
+        private final ThreadLocal<EncryptedBallotArena.BallotView> views = ThreadLocal.withInitial(EncryptedBallotArena.BallotView::new);
+        private Chunk currentChunk = new Chunk(chunkSize);
+        private long currentChunkFirstRecord;
+        private long nextRecord;
+        private long ballotsCount = -1L;
+        private boolean completed;
+        private long lastSubmitNanos = System.nanoTime();
+
+        DecryptionPipeline(DecryptionCheckpoint checkpoint) {
+            this.checkpoint = checkpoint;
+            metrics = runMetrics;
+            ballotsCounter = 0;
+            progressReporter.scheduleAtFixedRate(this::reportProgress, PROGRESS_REFRESH_MILLIS, PROGRESS_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Starts the checkpoint, if any, replaying the ballots it already holds into the shuffle
+         */
+        void start() throws IOException {
+            if (checkpoint != null) {
+                runMetrics.addInvalidBallots(checkpoint.getRecoveredInvalidCount());
+                checkpoint.start(shuffledBallots::addAll);
+            }
+            lastSubmitNanos = System.nanoTime();
+        }
+
+        /**
+         * Adds an encrypted ballot to the current chunk, which is handed over to the pool once full. Waits if too many
+         * chunks are already pending. The ballots already decrypted according to the checkpoint are skipped,
+         * the current chunk being handed over first, so that a chunk always holds consecutive records.
+         * <p>
+         * The time elapsed since the previous ballot was submitted is recorded as the reading time of the ballot.
+         * </p>
+         */
+        void submit(EncryptedBallotAndWrappedKey encryptedBallot) {
+            runMetrics.record(DecryptionMetrics.Stage.READ, System.nanoTime() - lastSubmitNanos);
+            try {
+                if (startRecord()) {
+                    currentChunk.ballots.add(encryptedBallot);
+                    endRecord();
+                }
+            } finally {
+                lastSubmitNanos = System.nanoTime();
+            }
+        }
+
+        /**
+         * Copies an encoded envelope into the arena of the current chunk, as {@link #submit(EncryptedBallotAndWrappedKey)}
+         * adds a ballot to it
+         * @throws CryptoOperationRuntimeException if the envelope is malformed
+         */
+        void submitEnvelope(ByteBuffer encodedEnvelope) {
+            runMetrics.record(DecryptionMetrics.Stage.READ, System.nanoTime() - lastSubmitNanos);
+            try {
+                if (startRecord()) {
+                    currentChunk.envelopes.add(encodedEnvelope);
+                    endRecord();
+                }
+            } finally {
+                lastSubmitNanos = System.nanoTime();
+            }
+        }
+
+        /**
+         * @return <tt>false</tt> if the next record is skipped, being already decrypted according to the checkpoint
+         */
+        private boolean startRecord() {
+            long record = nextRecord++;
+            if (checkpoint != null && checkpoint.isRecovered(record)) {
+                if (!currentChunk.isEmpty()) {
+                    submitCurrentChunk();
+                }
+                runMetrics.countRecoveredBallot();
+                return false;
+            }
+            if (currentChunk.isEmpty()) {
+                currentChunkFirstRecord = record;
+            }
+            return true;
+        }
+
+        private void endRecord() {
+            if (currentChunk.size() == chunkSize) {
+                submitCurrentChunk();
+            }
+        }
+
+        private void submitCurrentChunk() {
+            checkFailure();
+            acquirePendingChunks(1);
+            pool.execute(new ChunkDecryptionTask(currentChunk, currentChunkFirstRecord));
+            Chunk freeChunk = freeChunks.poll();
+            currentChunk = freeChunk != null ? freeChunk : new Chunk(chunkSize);
+        }
+
+        /**
+         * Sets the number of ballots to decrypt, as soon as it is known, so that the progress can be computed from the
+         * beginning of the decryption
+         * @param count the number of ballots, including those already decrypted according to the checkpoint
+         */
+        void setBallotsCount(long count) {
+            ballotsCount = count;
+            runMetrics.setTotalBallots(count);
+            progressTracker.setStepCount((int) (count / STEP_SIZE));
+        }
+
+        /**
+         * Waits for all the submitted ballots to be decrypted
+         * @param submittedCount the number of submitted ballots
+         * @return the decrypted ballots, shuffled
+         */
+        ShuffledBallots complete(long submittedCount) {
+            ballotsCounter = submittedCount;
+            if (submittedCount != ballotsCount) {
+                setBallotsCount(submittedCount);
+            }
+            if (!currentChunk.isEmpty()) {
+                submitCurrentChunk();
+            }
+            // all the chunks are done once all the permits are available again
+            acquirePendingChunks(maxPendingChunks);
+            checkFailure();
+            runMetrics.stop();
+            reportProgress();
+
+            completed = true;
+            return shuffledBallots;
+        }
+
+        /**
+         * Reports the steps done since the last report, from the progress reporter, or from the reading thread once
+         * the decryption is complete
+         */
+        private synchronized void reportProgress() {
+            long steps = runMetrics.getProcessedBallots() / STEP_SIZE;
+            if (steps > reportedSteps) {
+                progressTracker.incrementStepCount((int) (steps - reportedSteps));
+                reportedSteps = steps;
+            }
+        }
+
+        private void acquirePendingChunks(int permits) {
+            try {
+                pendingChunks.acquire(permits);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CryptoOperationRuntimeException("ballot decryption interrupted", e);
+            }
+        }
+
+        private void checkFailure() {
+            RuntimeException exception = failure.get();
+            if (exception != null) {
+                throw exception;
+            }
+        }
+
+        /**
+         * Stops the pool, whether the decryption is done or not (<i>e.g.</i> when the reading failed), in which case
+         * the ballots decrypted so far are discarded, the checkpoint keeping those which were recorded
+         */
+        void shutdown() {
+            progressReporter.shutdownNow();
+            pool.shutdownNow();
+            if (!completed) {
+                shuffledBallots.close();
+            }
+            if (checkpoint != null) {
+                try {
+                    checkpoint.close();
+                } catch (IOException e) {
+                    LOGGER.warn("cannot close the decryption checkpoint " + checkpoint.getJournal(), e);
+                }
+            }
+        }
+
+        /**
+         * Decrypts a chunk of ballots and records it in the checkpoint, if any, then recycles the chunk and releases
+         * its permit
+         */
+        private class ChunkDecryptionTask extends RecursiveAction {
+            private final Chunk chunk;
+            private final long firstRecord;
+
+            ChunkDecryptionTask(Chunk chunk, long firstRecord) {
+                this.chunk = chunk;
+                this.firstRecord = firstRecord;
+            }
+
+            @Override
+            protected void compute() {
+                try {
+                    List<String> results = new ChunkPartDecryptionTask(chunk, 0, chunk.size()).invoke();
+                    List<String> decryptedBallots = new ArrayList<>(results.size());
+                    int invalidCount = 0;
+                    for (String decryptedBallot : results) {
+                        if (decryptedBallot == null) {
+                            invalidCount++;
+                        } else if (!decryptedBallot.isEmpty()) {
+                            decryptedBallots.add(decryptedBallot);
+                        }
+                    }
+                    long shuffleStart = System.nanoTime();
+                    shuffledBallots.addAll(decryptedBallots);
+                    runMetrics.record(DecryptionMetrics.Stage.SHUFFLE, System.nanoTime() - shuffleStart);
+                    if (checkpoint != null) {
+                        checkpoint.record(firstRecord, chunk.size(), invalidCount, decryptedBallots);
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    chunk.clear();
+                    freeChunks.add(chunk);
+                    pendingChunks.release();
+                }
+            }
+        }
+
+        /**
+         * Decrypts a part of a chunk, splitting it in halves so that idle threads may steal some of the work. The
+         * invalid ballots are left as <tt>null</tt> in the results.
+         */
+        private class ChunkPartDecryptionTask extends RecursiveTask<List<String>> {
+            private final Chunk chunk;
+            private final int from;
+            private final int to;
+
+            ChunkPartDecryptionTask(Chunk chunk, int from, int to) {
+                this.chunk = chunk;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected List<String> compute() {
+                if (to - from > MIN_SPLIT_SIZE) {
+                    int middle = (from + to) >>> 1;
+                    ChunkPartDecryptionTask secondHalf = new ChunkPartDecryptionTask(chunk, middle, to);
+                    secondHalf.fork();
+                    List<String> decryptedBallots = new ChunkPartDecryptionTask(chunk, from, middle).compute();
+                    decryptedBallots.addAll(secondHalf.join());
+                    return decryptedBallots;
+                }
+                List<String> decryptedBallots = new ArrayList<>(to - from);
+                EncryptedBallotArena.BallotView view = views.get();
+                for (int i = from; i < to; i++) {
+                    decryptedBallots.add(decryptBallot(runMetrics, chunk, i, view));
+                }
+                return decryptedBallots;
+            }
+        }
+    }
+
+    /**
+     * A chunk of consecutive records: the envelopes are held in its arena, the other ballots as they are. The order of
+     * the ballots within a chunk does not matter, as they are shuffled once decrypted.
+     */
+    private static final class Chunk {
+        private final EncryptedBallotArena envelopes;
+        private final List<EncryptedBallotAndWrappedKey> ballots;
+
+        Chunk(int chunkSize) {
+            envelopes = new EncryptedBallotArena(chunkSize * ARENA_BYTES_PER_BALLOT);
+            ballots = new ArrayList<>(chunkSize);
+        }
+
+        int size() {
+            return envelopes.size() + ballots.size();
+        }
+
+        boolean isEmpty() {
+            return size() == 0;
+        }
+
+        void clear() {
+            envelopes.clear();
+            ballots.clear();
+        }
     }
 }
@@ -0,0 +1,143 @@
+package ch.ge.ve.offlineadmin.services;
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.ballot.BallotCipherService;
+import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
+import ch.ge.ve.commons.crypto.utils.CipherFactory;
+import ch.ge.ve.commons.properties.PropertyConfigurationException;
+import ch.ge.ve.commons.properties.PropertyConfigurationService;
+import ch.ge.ve.offlineadmin.exception.CheckpointMismatchException;
+import ch.ge.ve.offlineadmin.util.ProgressTracker;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static ch.ge.ve.offlineadmin.util.SecurityConstants.*;
+
+/**
+ * This factory creates instances of {@link DecryptionService}, sized according to the decryption pool and shuffle
+ * configuration, and their {@link DecryptionCheckpoint}s.
+ */
+public class DecryptionServiceFactory {
+    private final CipherFactory cipherFactory;
+    private final int parallelism;
+    private final int chunkSize;
+    private final int maxBallotsInMemory;
+    private final long checkpointIntervalMillis;
+
+    public DecryptionServiceFactory(PropertyConfigurationService propertyConfigurationService) {
+        this(propertyConfigurationService, Runtime.getRuntime().availableProcessors());
+    }
+
+    DecryptionServiceFactory(PropertyConfigurationService propertyConfigurationService, int availableProcessors) {
+        try {
+            int threads = propertyConfigurationService.getConfigValueAsInt(DECRYPTION_THREADS);
+            boolean leaveOneCore = propertyConfigurationService.getConfigValueAsBoolean(DECRYPTION_LEAVE_ONE_CORE);
+            parallelism = computeParallelism(threads, leaveOneCore, availableProcessors);
+            chunkSize = propertyConfigurationService.getConfigValueAsInt(DECRYPTION_CHUNK_SIZE);
+            maxBallotsInMemory = propertyConfigurationService.getConfigValueAsInt(DECRYPTION_SHUFFLE_MAX_BALLOTS_IN_MEMORY);
+            checkpointIntervalMillis = TimeUnit.SECONDS.toMillis(propertyConfigurationService.getConfigValueAsLong(DECRYPTION_CHECKPOINT_INTERVAL_SECONDS));
+        } catch (PropertyConfigurationException e) {
+            throw new CryptoConfigurationRuntimeException("decryption pool configuration missing", e);
+        }
+        cipherFactory = new CipherFactory(propertyConfigurationService);
+    }
+
+    /**
+     * @param threads             the configured number of threads, 0 for one per available core
+     * @param leaveOneCore        whether one core should be left for the user interface, when using one thread per core
+     * @param availableProcessors the number of available cores
+     * @return the number of decryption threads
+     */
+    private static int computeParallelism(int threads, boolean leaveOneCore, int availableProcessors) {
+        if (threads > 0) {
+            return threads;
+        }
+        return leaveOneCore ? Math.max(1, availableProcessors - 1) : availableProcessors;
+    }
+
+    /**
+     * Creates an instance of a {@link DecryptionService} using the configured pool
+     *
+     * @param ballotCipherService the service decrypting each ballot
+     * @param progressTracker     the tracker of the decryption progress
+     * @return a {@link DecryptionService} ready for a decryption
+     */
+    public DecryptionService decryptionService(BallotCipherService ballotCipherService, ProgressTracker progressTracker) {
+        return new DecryptionService(ballotCipherService, cipherFactory, progressTracker, parallelism, chunkSize, maxBallotsInMemory);
+    }
+
+    /**
+     * @return <tt>true</tt> if the decryptions should be checkpointed
+     */
+    public boolean isCheckpointEnabled() {
+        return checkpointIntervalMillis > 0;
+    }
+
+    /**
+     * Creates an empty checkpoint, see {@link DecryptionCheckpoint#create(Path, BallotCipherService, CipherFactory, byte[], long)}
+     *
+     * @param journal                the journal file
+     * @param ballotCipherService    the service whose private key protects the journal, already unlocked
+     * @param ballotsFileFingerprint the fingerprint of the encrypted ballots file, see {@link DecryptionCheckpoint#fingerprint}
+     * @return a new checkpoint, written to the disk at the configured interval
+     */
+    public DecryptionCheckpoint createCheckpoint(Path journal, BallotCipherService ballotCipherService, byte[] ballotsFileFingerprint) {
+        return DecryptionCheckpoint.create(journal, ballotCipherService, cipherFactory, ballotsFileFingerprint, checkpointIntervalMillis);
+    }
+
+    /**
+     * Resumes a checkpoint, see {@link DecryptionCheckpoint#resume(Path, BallotCipherService, CipherFactory, byte[], long)}
+     *
+     * @param journal                the journal file
+     * @param ballotCipherService    the service whose private key protects the journal, already unlocked
+     * @param ballotsFileFingerprint the fingerprint of the encrypted ballots file, see {@link DecryptionCheckpoint#fingerprint}
+     * @return the checkpoint, written to the disk at the configured interval
+     * @throws CheckpointMismatchException if the journal was made with other keys, or for another ballot box
+     * @throws IOException                 if the journal cannot be read
+     */
+    public DecryptionCheckpoint resumeCheckpoint(Path journal, BallotCipherService ballotCipherService, byte[] ballotsFileFingerprint)
+            throws CheckpointMismatchException, IOException {
+        return DecryptionCheckpoint.resume(journal, ballotCipherService, cipherFactory, ballotsFileFingerprint, checkpointIntervalMillis);
+    }
+
+    /**
+     * @return the number of decryption threads
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    int getMaxBallotsInMemory() {
+        return maxBallotsInMemory;
+    }
+
+    long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+}
@@ -0,0 +1,129 @@
+package ch.ge.ve.offlineadmin.services;
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.ballot.BallotBoxReader;
+import ch.ge.ve.commons.crypto.ballot.BallotEnvelopeCodec;
+import ch.ge.ve.commons.crypto.ballot.EncryptedBallotAndWrappedKey;
+import ch.ge.ve.commons.fileutils.ChunkedArchiveReader;
+import ch.ge.ve.commons.fileutils.StreamHasher;
+import ch.ge.ve.commons.properties.PropertyConfigurationService;
+import ch.ge.ve.commons.streamutils.SafeObjectSecurityRuntimeException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Reader of an encrypted ballots file, either a serialized ballot box or a chunked archive of envelopes, the file
+ * being hashed while it is being read.
+ * <p>
+ * The hash of the file is handed over to a listener once known, <i>e.g.</i> to confirm the hash of the file recorded by
+ * a {@link DecryptionCheckpoint}, see {@link DecryptionCheckpoint#confirmBallotsFileHash(byte[])}.
+ * </p>
+ */
+public class EncryptedBallotsFileReader implements EncryptedBallotsReader {
+    private final Path encryptedBallotsFile;
+    private final StreamHasher streamHasher;
+    private final PropertyConfigurationService propertyConfigurationService;
+    private final long maxObjects;
+    private final long maxBytes;
+    private final Consumer<byte[]> hashListener;
+
+    /**
+     * @param encryptedBallotsFile         the encrypted ballots file
+     * @param streamHasher                 the hasher of the file
+     * @param propertyConfigurationService the configuration of the archives
+     * @param maxObjects                   the maximum number of ballots in the file
+     * @param maxBytes                     the maximum number of bytes of a serialized ballot box
+     * @param hashListener                 the listener of the hash of the file, called from the reading thread
+     */
+    public EncryptedBallotsFileReader(Path encryptedBallotsFile, StreamHasher streamHasher, PropertyConfigurationService propertyConfigurationService,
+                                      long maxObjects, long maxBytes, Consumer<byte[]> hashListener) {
+        this.encryptedBallotsFile = encryptedBallotsFile;
+        this.streamHasher = streamHasher;
+        this.propertyConfigurationService = propertyConfigurationService;
+        this.maxObjects = maxObjects;
+        this.maxBytes = maxBytes;
+        this.hashListener = hashListener;
+    }
+
+    @Override
+    public long readBallots(Consumer<EncryptedBallotAndWrappedKey> consumer) throws IOException, ClassNotFoundException {
+        return readBallots(count -> {
+        }, consumer);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The number of ballots is known before the ballots are read, from the header of a chunked archive or from the
+     * size of a serialized ballot box, but only once all of them have been read for a ballot box of envelopes.
+     * </p>
+     */
+    @Override
+    public long readBallots(LongConsumer countListener, Consumer<EncryptedBallotAndWrappedKey> consumer) throws IOException, ClassNotFoundException {
+        return readBallots(countListener, consumer, envelope -> consumer.accept(new EncryptedBallotAndWrappedKey(BallotEnvelopeCodec.decode(envelope))));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The records of a chunked archive are handed over as they are mapped from the file, and the envelopes of a ballot
+     * box as they are read, in a buffer reused from one envelope to the next.
+     * </p>
+     */
+    @Override
+    public long readBallots(LongConsumer countListener, Consumer<EncryptedBallotAndWrappedKey> consumer, Consumer<ByteBuffer> envelopeConsumer) throws IOException, ClassNotFoundException {
+        if (ChunkedArchiveReader.isArchive(encryptedBallotsFile)) {
+            return readBallotsArchive(countListener, envelopeConsumer);
+        }
+        try (DigestInputStream encBallotsInputStream = streamHasher.digestingInputStream(Files.newInputStream(encryptedBallotsFile, StandardOpenOption.READ))) {
+            long ballotsCount = BallotBoxReader.readBallots(maxObjects, maxBytes, encBallotsInputStream, countListener, consumer, envelopeConsumer);
+            hashListener.accept(streamHasher.completeHash(encBallotsInputStream));
+            return ballotsCount;
+        }
+    }
+
+    /**
+     * Reads a ballot box stored as a chunked archive of envelopes: the chunks are verified one at a time, on the calling
+     * thread, the encoded envelopes being handed over to the consumer in the order of the archive. The reading is then
+     * held back by the consumer, no chunk being read ahead of it. The archive file is hashed along the way, the hash
+     * being handed over to the listener once the last chunk has been read.
+     */
+    private long readBallotsArchive(LongConsumer countListener, Consumer<ByteBuffer> envelopeConsumer) throws IOException {
+        try (ChunkedArchiveReader archiveReader = new ChunkedArchiveReader(encryptedBallotsFile, propertyConfigurationService)) {
+            if (archiveReader.getRecordCount() > maxObjects) {
+                throw new SafeObjectSecurityRuntimeException("Security violation: attempt to read too many ballots from archive. Limit is " + maxObjects);
+            }
+            countListener.accept(archiveReader.getRecordCount());
+            // the stream of the records is sequential: the consumer is called from this thread, and may block
+            archiveReader.records(hashListener).forEach(envelopeConsumer);
+            return archiveReader.getRecordCount();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ch.ge.ve.offlineadmin.services;
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.ballot.EncryptedBallotAndWrappedKey;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Source of the encrypted ballots of a ballot box, handing them over one at a time as they are read.
+ */
+@FunctionalInterface
+public interface EncryptedBallotsReader {
+    /**
+     * Reads the encrypted ballots, handing each of them over to the consumer as soon as it is available, from the
+     * calling thread: the consumer may block, holding the reading back
+     *
+     * @param consumer the consumer of the encrypted ballots
+     * @return the number of encrypted ballots read
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    long readBallots(Consumer<EncryptedBallotAndWrappedKey> consumer) throws IOException, ClassNotFoundException;
+
+    /**
+     * Reads the encrypted ballots as {@link #readBallots(Consumer)} does, and also hands the number of ballots over to
+     * the listener as soon as it is known, <i>e.g.</i> from the header of the file, before the ballots are read. By
+     * default, the number of ballots is not known in advance, and the listener is not called.
+     *
+     * @param countListener the listener of the number of ballots to be read, called at most once from the calling thread
+     * @param consumer      the consumer of the encrypted ballots
+     * @return the number of encrypted ballots read
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    default long readBallots(LongConsumer countListener, Consumer<EncryptedBallotAndWrappedKey> consumer) throws IOException, ClassNotFoundException {
+        return readBallots(consumer);
+    }
+
+    /**
+     * Reads the encrypted ballots as {@link #readBallots(LongConsumer, Consumer)} does, but hands the ballots stored as
+     * envelopes over to <tt>envelopeConsumer</tt> as they are encoded, so that they may be copied without being
+     * decoded (see {@link ch.ge.ve.commons.crypto.ballot.EncryptedBallotArena}). The buffer handed over is only valid
+     * during the call. By default, all the ballots are decoded and handed over to <tt>consumer</tt>.
+     *
+     * @param countListener    the listener of the number of ballots to be read, called at most once from the calling thread
+     * @param consumer         the consumer of the encrypted ballots which are not stored as envelopes
+     * @param envelopeConsumer the consumer of the encoded envelopes
+     * @return the number of encrypted ballots read
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    default long readBallots(LongConsumer countListener, Consumer<EncryptedBallotAndWrappedKey> consumer, Consumer<ByteBuffer> envelopeConsumer) throws IOException, ClassNotFoundException {
+        return readBallots(countListener, consumer);
+    }
+}
@@ -38,10 +38,12 @@ import org.bouncycastle.cert.CertIOException;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.X509v3CertificateBuilder;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.bouncycastle.jcajce.provider.asymmetric.util.ECUtil;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
 import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
 import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.bc.BcECContentSignerBuilder;
 import org.bouncycastle.operator.bc.BcRSAContentSignerBuilder;
 
 import javax.crypto.SecretKey;
@@ -53,7 +55,9 @@ import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.ECGenParameterSpec;
 import java.time.temporal.ChronoUnit;
 import java.util.Date;
 
@@ -69,6 +73,7 @@ public class KeyGenerator {
      * Therefore it's bitLength can be of <tt>160 (20 * 8)</tt> and max value is <tt>2^160 - 1</tt>.
      */
     public static final int CERT_SERIAL_NUMBER_BIT_SIZE = 160;
+    private static final String EC_ALGORITHM = "EC";
     private final SecureRandom secureRandom;
     private final PropertyConfigurationService propertyConfigurationService;
 
@@ -110,7 +115,16 @@ public class KeyGenerator {
         } catch (NoSuchAlgorithmException e) {
             throw new KeyGenerationRuntimeException("key pair configuration error", e);
         }
-        keyPairGenerator.initialize(keyLengthInBits, secureRandom);
+        try {
+            if (EC_ALGORITHM.equals(algorithm)) {
+                // the key size selects the NIST prime curve: 256, 384 or 521 bits
+                keyPairGenerator.initialize(new ECGenParameterSpec("secp" + keyLengthInBits + "r1"), secureRandom);
+            } else {
+                keyPairGenerator.initialize(keyLengthInBits, secureRandom);
+            }
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new KeyGenerationRuntimeException("key pair configuration error", e);
+        }
 
         return keyPairGenerator.generateKeyPair();
     }
@@ -195,6 +209,14 @@ public class KeyGenerator {
             signer = new BcRSAContentSignerBuilder(sigAlgId, digAlgId).build(
                     new RSAKeyParameters(true, privateKey.getModulus(), privateKey.getPrivateExponent())
             );
+        } else if (keyPair.getPrivate() instanceof ECPrivateKey) {
+            AlgorithmIdentifier sigAlgId = new DefaultSignatureAlgorithmIdentifierFinder().find(hashAlgo + "withECDSA");
+            AlgorithmIdentifier digAlgId = new DefaultDigestAlgorithmIdentifierFinder().find(sigAlgId);
+            try {
+                signer = new BcECContentSignerBuilder(sigAlgId, digAlgId).build(ECUtil.generatePrivateKeyParameter(keyPair.getPrivate()));
+            } catch (InvalidKeyException e) {
+                throw new KeyGenerationRuntimeException("Unsupported key type", e);
+            }
         } else {
             throw new KeyGenerationRuntimeException("Unsupported key type");
         }
@@ -0,0 +1,509 @@
+package ch.ge.ve.offlineadmin.services;
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
+import ch.ge.ve.commons.crypto.utils.CipherFactory;
+import com.google.common.base.Preconditions;
+import org.apache.log4j.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Supplier;
+
+/**
+ * Cleartext ballots, shuffled on bounded memory.
+ * <p>
+ * Each ballot is tagged with a 128 bits key drawn from a secure random number generator, and the ballots are output
+ * in the order of their keys, which is a uniformly distributed permutation (up to the probability of two keys being
+ * equal, in which case the two ballots keep their order of addition). At most <tt>maxBallotsInMemory</tt> ballots are
+ * held in memory: beyond that, the ballots are sorted and spilled to a temporary run file, and the runs are merged
+ * while the ballots are being iterated over.
+ * </p>
+ * <p>
+ * The cleartext ballots never reach the disk unencrypted: the runs are encrypted by blocks with AES/GCM, using a key
+ * generated for this shuffle only and never stored, so that the run files are unreadable once the shuffle is over, and
+ * any alteration of a run file is detected. The cipher is created by a {@link CipherFactory}, once per run being
+ * written or read, and initialized again for each block. The run files are deleted upon {@link #close()}.
+ * </p>
+ * <p>
+ * The ballots can be added from several threads, and the work scales with them: each thread draws the keys of its
+ * ballots from its own generator, and sorts and spills the runs it fills up, only the appending of the tagged ballots
+ * being serialized. The sorts themselves are parallel. Once the iteration has started, no ballot can be added anymore,
+ * and the ballots can only be iterated over once if some runs have been spilled.
+ * </p>
+ */
+public class ShuffledBallots implements Iterable<String>, Closeable {
+    /**
+     * Default number of ballots held in memory before being spilled to a run file
+     */
+    public static final int DEFAULT_MAX_BALLOTS_IN_MEMORY = 200_000;
+    /**
+     * Number of bytes of cleartext ballots encrypted as a single block of a run file
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final String RUN_CIPHER = "AES/GCM/NoPadding";
+    private static final String RUN_KEY_ALGORITHM = "AES";
+    private static final int RUN_KEY_LENGTH = 32;
+    private static final int TAG_LENGTH_BITS = 128;
+    private static final int NONCE_LENGTH = 12;
+    private static final Logger LOGGER = Logger.getLogger(ShuffledBallots.class);
+    private static final Comparator<TaggedBallot> BY_KEY =
+            Comparator.<TaggedBallot>comparingLong(ballot -> ballot.high).thenComparingLong(ballot -> ballot.low);
+
+    private final CipherFactory cipherFactory;
+    private final ThreadLocal<SecureRandom> randoms;
+    private final int maxBallotsInMemory;
+    private final Path spillDirectory;
+    private final List<Run> runs = new ArrayList<>();
+    private List<TaggedBallot> ballots = new ArrayList<>();
+    private SecretKey runKey;
+    private Path runsDirectory;
+    private long size;
+    private int pendingSpills;
+    private boolean sealed;
+    private boolean iterated;
+
+    /**
+     * @param cipherFactory      the factory of the cipher encrypting the run files
+     * @param randomFactory      the factory of the generators of the shuffling keys and of the key encrypting the run
+     *                           files, called once per adding thread
+     * @param maxBallotsInMemory the number of ballots held in memory before being spilled to a run file
+     * @param spillDirectory     the directory in which a temporary directory holding the run files is created
+     */
+    public ShuffledBallots(CipherFactory cipherFactory, Supplier<SecureRandom> randomFactory, int maxBallotsInMemory, Path spillDirectory) {
+        Preconditions.checkArgument(maxBallotsInMemory > 0, "the number of ballots in memory must be positive");
+        this.cipherFactory = cipherFactory;
+        this.randoms = ThreadLocal.withInitial(randomFactory);
+        this.maxBallotsInMemory = maxBallotsInMemory;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Adds ballots to be shuffled. If the ballots held in memory are then too many, they are spilled by the calling
+     * thread, while other threads may go on adding ballots.
+     *
+     * @param decryptedBallots the cleartext ballots
+     * @throws IllegalStateException if the iteration has already started
+     * @throws UncheckedIOException  if a run file cannot be written
+     */
+    public void addAll(Iterable<String> decryptedBallots) {
+        SecureRandom random = randoms.get();
+        List<TaggedBallot> taggedBallots = new ArrayList<>();
+        for (String decryptedBallot : decryptedBallots) {
+            taggedBallots.add(new TaggedBallot(random.nextLong(), random.nextLong(), decryptedBallot));
+        }
+
+        List<TaggedBallot> ballotsToSpill = null;
+        Run run = null;
+        synchronized (this) {
+            Preconditions.checkState(!sealed, "ballots cannot be added once the iteration has started");
+            ballots.addAll(taggedBallots);
+            size += taggedBallots.size();
+            if (ballots.size() >= maxBallotsInMemory) {
+                ballotsToSpill = ballots;
+                ballots = new ArrayList<>();
+                run = createRun(ballotsToSpill.size());
+                pendingSpills++;
+            }
+        }
+        if (ballotsToSpill != null) {
+            try {
+                spill(run, ballotsToSpill);
+            } finally {
+                spillDone();
+            }
+        }
+    }
+
+    /**
+     * @return the number of ballots
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of run files spilled so far
+     */
+    synchronized int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * @return the ballots, shuffled
+     * @throws IllegalStateException if the ballots have been spilled and already iterated over
+     */
+    @Override
+    public synchronized Iterator<String> iterator() {
+        Preconditions.checkState(runs.isEmpty() || !iterated, "spilled ballots can only be iterated over once");
+        sealed = true;
+        iterated = true;
+        awaitPendingSpills();
+        TaggedBallot[] sortedBallots = sort(ballots);
+        if (runs.isEmpty()) {
+            return Arrays.stream(sortedBallots).map(ballot -> ballot.ballot).iterator();
+        }
+        List<RunCursor> cursors = new ArrayList<>(runs.size() + 1);
+        cursors.add(new InMemoryCursor(sortedBallots));
+        for (Run run : runs) {
+            cursors.add(new SpilledRunCursor(run));
+        }
+        return new MergingIterator(cursors);
+    }
+
+    /**
+     * Deletes the run files
+     */
+    @Override
+    public synchronized void close() {
+        sealed = true;
+        ballots = new ArrayList<>();
+        for (Run run : runs) {
+            deleteQuietly(run.path);
+        }
+        if (runsDirectory != null) {
+            deleteQuietly(runsDirectory);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.warn("cannot delete temporary shuffle file " + path, e);
+        }
+    }
+
+    /**
+     * @return the ballots, sorted by key with a parallel sort
+     */
+    private static TaggedBallot[] sort(List<TaggedBallot> ballots) {
+        TaggedBallot[] sortedBallots = ballots.toArray(new TaggedBallot[ballots.size()]);
+        Arrays.parallelSort(sortedBallots, BY_KEY);
+        return sortedBallots;
+    }
+
+    /**
+     * Creates an empty run file, to be filled in without holding the lock
+     */
+    private Run createRun(int ballotsCount) {
+        try {
+            if (runsDirectory == null) {
+                runsDirectory = Files.createTempDirectory(spillDirectory, "shuffle");
+                runKey = generateRunKey();
+            }
+            Run run = new Run(runs.size(), Files.createTempFile(runsDirectory, "run", ".bin"), ballotsCount);
+            runs.add(run);
+            return run;
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot create a run file", e);
+        }
+    }
+
+    private void spill(Run run, List<TaggedBallot> ballotsToSpill) {
+        try (RunWriter writer = new RunWriter(run)) {
+            for (TaggedBallot ballot : sort(ballotsToSpill)) {
+                writer.write(ballot);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot spill the ballots to a run file", e);
+        }
+    }
+
+    private synchronized void spillDone() {
+        pendingSpills--;
+        notifyAll();
+    }
+
+    private void awaitPendingSpills() {
+        try {
+            while (pendingSpills > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CryptoOperationRuntimeException("shuffle interrupted", e);
+        }
+    }
+
+    private SecretKey generateRunKey() {
+        byte[] keyBytes = new byte[RUN_KEY_LENGTH];
+        randoms.get().nextBytes(keyBytes);
+        return new SecretKeySpec(keyBytes, RUN_KEY_ALGORITHM);
+    }
+
+    /**
+     * Initializes the cipher of a run for one of its blocks, the nonce being unique to the block, so that blocks cannot
+     * be reordered
+     *
+     * @return the initialized cipher
+     */
+    private Cipher initRunCipher(Cipher cipher, int mode, Run run, long blockIndex) {
+        byte[] nonce = ByteBuffer.allocate(NONCE_LENGTH).putInt(run.index).putLong(blockIndex).array();
+        try {
+            cipher.init(mode, runKey, new GCMParameterSpec(TAG_LENGTH_BITS, nonce));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new CryptoConfigurationRuntimeException("cannot initialize the cipher of the shuffle run files", e);
+        }
+    }
+
+    /**
+     * A cleartext ballot and its shuffling key
+     */
+    private static final class TaggedBallot {
+        final long high;
+        final long low;
+        final String ballot;
+
+        TaggedBallot(long high, long low, String ballot) {
+            this.high = high;
+            this.low = low;
+            this.ballot = ballot;
+        }
+    }
+
+    /**
+     * A run file, holding sorted ballots
+     */
+    private static final class Run {
+        final int index;
+        final Path path;
+        final int ballotsCount;
+        int maxBlockLength;
+
+        Run(int index, Path path, int ballotsCount) {
+            this.index = index;
+            this.path = path;
+            this.ballotsCount = ballotsCount;
+        }
+    }
+
+    /**
+     * Writes a run file, as a sequence of encrypted blocks, each one being its length (4 bytes) followed by the block
+     * encrypted with its authentication tag. A decrypted block is a sequence of ballots, each one being its shuffling
+     * key (16 bytes), the length of the ballot (4 bytes) and the ballot, in UTF-8.
+     */
+    private final class RunWriter implements Closeable {
+        private final Run run;
+        private final Cipher cipher = cipherFactory.getInstance(RUN_CIPHER);
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+        private final DataOutputStream blockOut = new DataOutputStream(block);
+        private long blockIndex;
+
+        RunWriter(Run run) throws IOException {
+            this.run = run;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run.path)));
+        }
+
+        void write(TaggedBallot ballot) throws IOException {
+            blockOut.writeLong(ballot.high);
+            blockOut.writeLong(ballot.low);
+            byte[] bytes = ballot.ballot.getBytes(StandardCharsets.UTF_8);
+            blockOut.writeInt(bytes.length);
+            blockOut.write(bytes);
+            if (block.size() >= BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            byte[] encryptedBlock;
+            try {
+                encryptedBlock = initRunCipher(cipher, Cipher.ENCRYPT_MODE, run, blockIndex++).doFinal(block.toByteArray());
+            } catch (GeneralSecurityException e) {
+                throw new CryptoOperationRuntimeException("cannot encrypt a block of a shuffle run file", e);
+            }
+            run.maxBlockLength = Math.max(run.maxBlockLength, encryptedBlock.length);
+            out.writeInt(encryptedBlock.length);
+            out.write(encryptedBlock);
+            block.reset();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (block.size() > 0) {
+                    writeBlock();
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * The next ballot of a sorted source of ballots
+     */
+    private abstract static class RunCursor {
+        TaggedBallot current;
+
+        /**
+         * Moves to the next ballot
+         *
+         * @return <tt>false</tt> if there are no more ballots
+         */
+        abstract boolean advance();
+    }
+
+    private static final class InMemoryCursor extends RunCursor {
+        private final Iterator<TaggedBallot> ballots;
+
+        InMemoryCursor(TaggedBallot[] ballots) {
+            this.ballots = Arrays.asList(ballots).iterator();
+        }
+
+        @Override
+        boolean advance() {
+            current = ballots.hasNext() ? ballots.next() : null;
+            return current != null;
+        }
+    }
+
+    /**
+     * Reads a run file block by block, only one decrypted block being held in memory
+     */
+    private final class SpilledRunCursor extends RunCursor {
+        private final Run run;
+        private final Cipher cipher = cipherFactory.getInstance(RUN_CIPHER);
+        private DataInputStream in;
+        private DataInputStream block;
+        private long blockIndex;
+        private int remaining;
+
+        SpilledRunCursor(Run run) {
+            this.run = run;
+            this.remaining = run.ballotsCount;
+        }
+
+        @Override
+        boolean advance() {
+            try {
+                if (remaining == 0) {
+                    current = null;
+                    closeRun();
+                    return false;
+                }
+                if (in == null) {
+                    in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run.path)));
+                }
+                if (block == null || block.available() == 0) {
+                    block = new DataInputStream(new ByteArrayInputStream(readBlock()));
+                }
+                long high = block.readLong();
+                long low = block.readLong();
+                byte[] bytes = new byte[block.readInt()];
+                block.readFully(bytes);
+                current = new TaggedBallot(high, low, new String(bytes, StandardCharsets.UTF_8));
+                remaining--;
+                return true;
+            } catch (EOFException e) {
+                throw new CryptoOperationRuntimeException("truncated shuffle run file " + run.path, e);
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot read the shuffle run file " + run.path, e);
+            }
+        }
+
+        private byte[] readBlock() throws IOException {
+            int length = in.readInt();
+            // the length is checked before the block is authenticated
+            if (length < 0 || length > run.maxBlockLength) {
+                throw new CryptoOperationRuntimeException("malformed shuffle run file " + run.path);
+            }
+            byte[] encryptedBlock = new byte[length];
+            in.readFully(encryptedBlock);
+            try {
+                return initRunCipher(cipher, Cipher.DECRYPT_MODE, run, blockIndex++).doFinal(encryptedBlock);
+            } catch (GeneralSecurityException e) {
+                throw new CryptoOperationRuntimeException("altered shuffle run file " + run.path, e);
+            }
+        }
+
+        private void closeRun() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Merges the sorted sources of ballots, in the order of the shuffling keys
+     */
+    private static final class MergingIterator implements Iterator<String> {
+        private final PriorityQueue<RunCursor> queue;
+
+        MergingIterator(List<RunCursor> cursors) {
+            queue = new PriorityQueue<>(cursors.size(), Comparator.comparing(cursor -> cursor.current, BY_KEY));
+            for (RunCursor cursor : cursors) {
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            RunCursor cursor = queue.poll();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+            String ballot = cursor.current.ballot;
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+            return ballot;
+        }
+    }
+}
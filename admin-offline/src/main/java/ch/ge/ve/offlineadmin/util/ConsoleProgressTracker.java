@@ -0,0 +1,77 @@
+package ch.ge.ve.offlineadmin.util;
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.PrintStream;
+
+/**
+ * Progress tracker of the command-line mode, printing the messages and the completion percentage to the console.
+ * <p>
+ * The steps may be incremented from any thread, and before the steps count is known: the percentage is only printed
+ * once the steps count is known, and when it changes.
+ * </p>
+ */
+public class ConsoleProgressTracker implements ProgressTracker {
+    private final PrintStream out;
+    private int stepCount;
+    private int currentStep;
+    private int printedPercentage = -1;
+
+    /**
+     * @param out the console
+     */
+    public ConsoleProgressTracker(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public synchronized void progressMessage(String message, LogLevel logLevel) {
+        out.println(logLevel == LogLevel.OK ? message : logLevel.name() + ": " + message);
+    }
+
+    @Override
+    public void progressMessage(String message) {
+        progressMessage(message, LogLevel.OK);
+    }
+
+    @Override
+    public synchronized void setStepCount(int stepCount) {
+        this.stepCount = stepCount;
+    }
+
+    @Override
+    public void incrementStepCount() {
+        incrementStepCount(1);
+    }
+
+    @Override
+    public synchronized void incrementStepCount(int steps) {
+        currentStep += steps;
+        if (stepCount > 0) {
+            int percentage = (int) Math.min(100L, currentStep * 100L / stepCount);
+            if (percentage != printedPercentage) {
+                printedPercentage = percentage;
+                out.printf("%d %%%n", percentage);
+            }
+        }
+    }
+}
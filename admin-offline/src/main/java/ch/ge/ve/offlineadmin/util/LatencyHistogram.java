@@ -0,0 +1,132 @@
+package ch.ge.ve.offlineadmin.util;
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations, recorded from any thread, whose percentiles are computed with a relative error below 1%.
+ * <p>
+ * As in HdrHistogram, the values are counted in log-linear buckets: the values below 256 are counted exactly, then
+ * each power of two is divided into 128 sub-buckets, so that the memory used does not depend on the range of the
+ * values. Recording a value only increments a counter.
+ * </p>
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT_VALUES = 2 * SUB_BUCKET_COUNT;
+    private static final int INDEX_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(INDEX_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value a duration, the negative durations being counted as 0
+     */
+    public void record(long value) {
+        long recordedValue = Math.max(value, 0L);
+        counts.incrementAndGet(indexOf(recordedValue));
+        count.increment();
+        sum.add(recordedValue);
+        if (recordedValue > max.get()) {
+            max.accumulateAndGet(recordedValue, Math::max);
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean of the recorded values, 0 if there are none
+     */
+    public double getMean() {
+        long valuesCount = count.sum();
+        return valuesCount == 0 ? 0.0 : sum.sum() / (double) valuesCount;
+    }
+
+    /**
+     * @return the sum of the recorded values, 0 if there are none
+     */
+    public long getTotal() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the highest recorded value, 0 if there are none
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Computes a percentile of the values recorded so far, while values may still be recorded
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the highest value equivalent to the percentile, 0 if there are no values
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[INDEX_COUNT];
+        long total = 0;
+        for (int i = 0; i < INDEX_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+        long cumulated = 0;
+        for (int i = 0; i < INDEX_COUNT; i++) {
+            cumulated += snapshot[i];
+            if (cumulated >= rank) {
+                return Math.min(highestEquivalentValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int indexOf(long value) {
+        if (value < EXACT_VALUES) {
+            return (int) value;
+        }
+        int bucket = Long.SIZE - Long.numberOfLeadingZeros(value) - 1 - SUB_BUCKET_BITS;
+        return bucket * SUB_BUCKET_COUNT + (int) (value >>> bucket);
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < EXACT_VALUES) {
+            return index;
+        }
+        int bucket = (index >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = index - (long) bucket * SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << bucket) - 1;
+    }
+}
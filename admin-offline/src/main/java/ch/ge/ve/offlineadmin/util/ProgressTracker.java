@@ -48,4 +48,10 @@ public interface ProgressTracker {
      * Increments the steps count
      */
     void incrementStepCount();
+
+    /**
+     * Increments the steps count by several steps at once, for processes reporting their progress periodically
+     * @param steps the number of steps done since the previous increment
+     */
+    void incrementStepCount(int steps);
 }
@@ -51,9 +51,16 @@ public class SecurityConstants {
     public static final String INTEGRITY_KEY_FILENAME_PATTERN = "integrity.filename.pattern";
 
     public static final String BALLOTS_FILENAME = "cleartext.ballots.filename";
+    public static final String DECRYPTION_METRICS_FILENAME = "decryption.metrics.filename";
 
     public static final String STREAM_MAX_OBJECTS = "stream.max.objects";
 
+    public static final String DECRYPTION_THREADS = "decryption.threads";
+    public static final String DECRYPTION_LEAVE_ONE_CORE = "decryption.leave.one.core";
+    public static final String DECRYPTION_CHUNK_SIZE = "decryption.chunk.size";
+    public static final String DECRYPTION_SHUFFLE_MAX_BALLOTS_IN_MEMORY = "decryption.shuffle.max.ballots.in.memory";
+    public static final String DECRYPTION_CHECKPOINT_INTERVAL_SECONDS = "decryption.checkpoint.interval.seconds";
+
     private SecurityConstants() {
         // utility class, do not allow to instantiate it
     }
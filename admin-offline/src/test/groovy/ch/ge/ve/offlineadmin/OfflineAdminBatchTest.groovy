@@ -0,0 +1,139 @@
+package ch.ge.ve.offlineadmin
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.ballot.EncryptedBallotAndWrappedKey
+import ch.ge.ve.offlineadmin.services.BallotCipherServiceFactory
+import ch.ge.ve.offlineadmin.services.KeysProvider
+import ch.ge.ve.offlineadmin.util.PropertyConfigurationServiceFactory
+import org.bouncycastle.jce.provider.BouncyCastleProvider
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.Security
+
+/**
+ * This test suit aims at covering the {@link OfflineAdminBatch} command-line mode.
+ */
+class OfflineAdminBatchTest extends Specification {
+    private static final String PASSWORD_1 = "Test123456"
+    private static final String PASSWORD_2 = "Test123456"
+
+    private File keysDir = new KeysProvider().getTestKeysDir()
+    private ResourceBundle resources = ResourceBundle.getBundle("ch.ge.ve.offlineadmin.bundles.offlineadmin-messages")
+    private ByteArrayOutputStream output = new ByteArrayOutputStream()
+    private Path directory
+    private Path encryptedBallotsFile
+    private Path outputDirectory
+
+    void setup() {
+        Security.addProvider(new BouncyCastleProvider())
+        directory = Files.createTempDirectory("offline-admin-batch-test")
+        encryptedBallotsFile = directory.resolve("encryptedBallots.ser")
+        outputDirectory = Files.createDirectory(directory.resolve("output"))
+    }
+
+    void cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    private int run(String passwords, String... args) {
+        def batch = new OfflineAdminBatch(resources, new PrintStream(output, true, "UTF-8"), null, new BufferedReader(new StringReader(passwords)))
+        batch.run(args)
+    }
+
+    private void writeEncryptedBallots(List<String> ballots) {
+        def factory = new BallotCipherServiceFactory(new PropertyConfigurationServiceFactory().propertyConfigurationService())
+        def encryptionService = factory.encryptionBallotCipherService(keysDir)
+        def decryptionService = factory.decryptionBallotCipherService(keysDir)
+        decryptionService.loadBallotKeyCipherPrivateKey(PASSWORD_1 + PASSWORD_2)
+        // the ballot box is serialized as the exporters do, the ballots being encrypted in the default format
+        def encryptedBallots = new ArrayList<EncryptedBallotAndWrappedKey>()
+        ballots.eachWithIndex { ballot, i ->
+            encryptedBallots.add(decryptionService.verifyAuthenticationThenUnwrap(encryptionService.encryptBallotThenWrapForAuthentication(ballot, i)))
+        }
+        new ObjectOutputStream(Files.newOutputStream(encryptedBallotsFile)).withCloseable { out ->
+            out.writeObject(encryptedBallots)
+        }
+    }
+
+    def "the batch should decrypt the ballot box into the output directory and print the statistics"() {
+        given:
+        def ballots = (1..250).collect { "ballot $it".toString() }
+        writeEncryptedBallots(ballots)
+
+        when:
+        def exitCode = run("$PASSWORD_1\n$PASSWORD_2\n", "--keys", keysDir.path, "--input", encryptedBallotsFile.toString(),
+                "--output", outputDirectory.toString(), "--threads", "2")
+
+        then:
+        exitCode == OfflineAdminBatch.EXIT_SUCCESS
+        def outputFiles = Files.list(outputDirectory).collect()
+        // the checkpoint has been deleted once the ballots and the summary of the metrics were saved
+        outputFiles.size() == 2
+        def ballotList = outputFiles.find { it.fileName.toString().startsWith("ballot-list") }
+        Files.readAllLines(ballotList).sort() == ballots.sort()
+        def metricsSummary = new String(Files.readAllBytes(outputFiles.find { it != ballotList }), "UTF-8")
+        metricsSummary.contains('"ballots": 250')
+        metricsSummary.contains('"write": {"count": 250')
+        def console = output.toString("UTF-8")
+        console.contains(String.format(resources.getString("ballot_decryption.number_of_ballots"), 250))
+        console.contains(String.format(resources.getString("ballot_decryption.invalid_ballots_text"), 0))
+        console.contains("100 %")
+    }
+
+    def "the batch should fail if the passwords do not match the key"() {
+        given:
+        writeEncryptedBallots(["ballot"])
+
+        when:
+        def exitCode = run("$PASSWORD_1\nwrong password\n", "--keys", keysDir.path, "--input", encryptedBallotsFile.toString(),
+                "--output", outputDirectory.toString())
+
+        then:
+        exitCode == OfflineAdminBatch.EXIT_FAILURE
+        output.toString("UTF-8").contains(resources.getString("key_password_mismatch"))
+        Files.list(outputDirectory).count() == 0
+    }
+
+    def "the batch should print its usage if the arguments are invalid"() {
+        given:
+        Files.createFile(encryptedBallotsFile)
+
+        when:
+        def exitCode = run("", args as String[])
+
+        then:
+        exitCode == OfflineAdminBatch.EXIT_USAGE
+        output.toString("UTF-8").contains(resources.getString("ballot_decryption.batch.usage"))
+
+        where:
+        args << [
+                [],
+                ["--keys"],
+                ["--keys", "/nonexistent", "--input", "encryptedBallots.ser", "--output", "."],
+                ["--unknown", "value"],
+                ["--threads", "0"],
+        ]
+    }
+}
@@ -22,6 +22,7 @@ package ch.ge.ve.offlineadmin.controller
  */
 import ch.ge.ve.commons.crypto.ballot.BallotCipherService
 import ch.ge.ve.commons.crypto.ballot.EncryptedBallotAndWrappedKey
+import ch.ge.ve.commons.fileutils.HashingLineWriter
 import ch.ge.ve.commons.fileutils.StreamHasher
 import ch.ge.ve.offlineadmin.GuiSpecification
 import ch.ge.ve.offlineadmin.services.BallotCipherServiceFactory
@@ -33,9 +34,15 @@ import javafx.scene.Parent
 import org.junit.Rule
 import org.junit.rules.TemporaryFolder
 import org.testfx.matcher.control.TableViewMatchers
+import org.testfx.util.WaitForAsyncUtils
 
+import javax.crypto.spec.SecretKeySpec
 import javax.xml.bind.DatatypeConverter
 import java.nio.file.Files
+import java.security.DigestInputStream
+import java.security.MessageDigest
+import java.util.concurrent.Callable
+import java.util.concurrent.TimeUnit
 
 import static ch.ge.ve.offlineadmin.controller.matchers.AdditionalTableViewMatchers.hasTableCell
 import static ch.ge.ve.offlineadmin.controller.matchers.GlyphIconMatchers.isGlyphIconOf
@@ -84,6 +91,7 @@ class BallotDecryptionControllerTest extends GuiSpecification {
         def outputStream = Files.newOutputStream(encryptedBallotsFile.toPath())
         def stream = new ObjectOutputStream(outputStream)
         def encBallotsFileHash = BigInteger.valueOf(0x0123456789).toByteArray()
+        def encBallotsFileHeadHash = BigInteger.valueOf(0x9876543210).toByteArray()
 
         stream.writeObject(encryptedBallotAndWrappedKeyList)
         stream.close()
@@ -98,22 +106,37 @@ class BallotDecryptionControllerTest extends GuiSpecification {
         }
 
         def ballotCipherService = Mock(BallotCipherService)
+        ballotCipherService.deriveSecretKey(_, _) >> new SecretKeySpec(new byte[32], "AES")
         mockBallotCipherServiceFactory.decryptionBallotCipherService(keyFolder) >> ballotCipherService
 
         when:
         fx.interact { ballotDecryptionController.startDecryption() }
+        // the decrypted ballots are saved in the background, once decrypted, the checkpoint being deleted last
+        def metricsFilter = { dir, name -> name.contains("decryption-metrics") } as FilenameFilter
+        WaitForAsyncUtils.waitFor(10, TimeUnit.SECONDS, {
+            outputFolder.listFiles(metricsFilter).length == 1 && outputFolder.list().length == 2
+        } as Callable<Boolean>)
+        WaitForAsyncUtils.waitForFxEvents()
 
         then:
         verifyThat("#logTable", hasTableCell(isGlyphIconOf(LogLevel.OK.glyphName)))
         verifyThat("#logTable", not(hasTableCell(isGlyphIconOf(LogLevel.WARN.glyphName))))
         verifyThat("#logTable", not(hasTableCell(isGlyphIconOf(LogLevel.ERROR.glyphName))))
         verifyThat("#logTable", TableViewMatchers.hasTableCell(String.format(resources.getString("ballot_decryption.enc_ballots_file_hash"), DatatypeConverter.printHexBinary(encBallotsFileHash))))
-        2 * mockStreamHasher.threadSafeComputeHash(_) >> encBallotsFileHash
+        // the file is hashed in a single pass, while it is being read, only its head being hashed beforehand for the
+        // fingerprint of the checkpoint, which is deleted once the ballots are saved
+        1 * mockStreamHasher.digestingInputStream(_) >> { InputStream inputStream -> new DigestInputStream(inputStream, MessageDigest.getInstance("SHA-256")) }
+        1 * mockStreamHasher.completeHash(_) >> encBallotsFileHash
+        1 * mockStreamHasher.threadSafeComputeHash(_) >> encBallotsFileHeadHash
+        1 * mockStreamHasher.hashingLineWriter(_) >> { OutputStream outputStream -> new HashingLineWriter(outputStream, MessageDigest.getInstance("SHA-256")) }
         1 * ballotCipherService.loadBallotKeyCipherPrivateKey("Test56789" + "Test00000")
-        encryptedBallotAndWrappedKeyList.size() * ballotCipherService.decryptBallot(_)
+        encryptedBallotAndWrappedKeyList.size() * ballotCipherService.decryptBallot(_, _)
         def ballotListFilter = { dir, name -> name.contains("ballot-list") } as FilenameFilter
         def ballotListFiles = outputFolder.listFiles(ballotListFilter)
         ballotListFiles.length == 1
         Files.readAllLines(ballotListFiles[0].toPath()).size() == encryptedBallotAndWrappedKeyList.size()
+        // the summary of the metrics of the decryption is saved along with the ballots
+        outputFolder.listFiles(metricsFilter).length == 1
+        outputFolder.list().length == 2
     }
 }
@@ -133,6 +133,15 @@ class ConsoleOutputControlTest extends GuiSpecification {
         verifyThat(progressBar, hasProgress(++progress / stepCount)) // 6/6
     }
 
+    def "incrementStepCount(int) should advance progression by several steps at once"() {
+        when:
+        consoleOutputControl.stepCount = 4
+        fx.interact { consoleOutputControl.incrementStepCount(3) }
+
+        then:
+        verifyThat("#progressBar", hasProgress(3 / 4.0))
+    }
+
     def "incrementStepCount() may be called from outside the JavaFX thread"() {
         when:
         consoleOutputControl.stepCount = 1
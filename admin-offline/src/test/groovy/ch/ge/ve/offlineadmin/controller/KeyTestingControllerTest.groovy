@@ -134,11 +134,8 @@ class KeyTestingControllerTest extends GuiSpecification {
         1 * mockBallotCipherServiceFactory.encryptionBallotCipherService(keyFolder) >> ballotCipherService
 
         and: "encrypt 5 ballots"
-        1 * ballotCipherService.encryptBallotThenWrapForAuthentication(_, 1) >> authenticatedBallot1
-        1 * ballotCipherService.encryptBallotThenWrapForAuthentication(_, 2) >> authenticatedBallot2
-        1 * ballotCipherService.encryptBallotThenWrapForAuthentication(_, 3) >> authenticatedBallot3
-        1 * ballotCipherService.encryptBallotThenWrapForAuthentication(_, 4) >> authenticatedBallot4
-        1 * ballotCipherService.encryptBallotThenWrapForAuthentication(_, 5) >> authenticatedBallot5
+        1 * ballotCipherService.encryptBallotsThenWrapForAuthentication({ it*.ballotIndex == [1, 2, 3, 4, 5] }, _) >>
+                [authenticatedBallot1, authenticatedBallot2, authenticatedBallot3, authenticatedBallot4, authenticatedBallot5]
 
         and: "populate the ciphertext list with the encrypted ballots"
         verifyThat("#cipherTextList", ListViewMatchers.hasItems(5))
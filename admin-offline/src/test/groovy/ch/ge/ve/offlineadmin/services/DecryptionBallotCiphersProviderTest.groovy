@@ -4,6 +4,8 @@ import ch.ge.ve.commons.crypto.exceptions.PrivateKeyPasswordMismatchException
 import ch.ge.ve.commons.properties.PropertyConfigurationService
 import spock.lang.Specification
 
+import java.security.interfaces.RSAPrivateCrtKey
+
 /*-
  * #%L
  * Admin offline
@@ -55,6 +57,7 @@ class DecryptionBallotCiphersProviderTest extends Specification {
         then: "the key should have been loaded"
         privateKey1 != null
         privateKey1.getAlgorithm() == "RSA"
+        privateKey1 instanceof RSAPrivateCrtKey
 
         when: "the cache is invalidated"
         provider.invalidatePrivateKeyCache()
@@ -0,0 +1,228 @@
+package ch.ge.ve.offlineadmin.services
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.ballot.BallotCipherService
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException
+import ch.ge.ve.commons.crypto.utils.CipherFactory
+import ch.ge.ve.commons.fileutils.StreamHasher
+import ch.ge.ve.commons.properties.PropertyConfigurationService
+import ch.ge.ve.offlineadmin.exception.CheckpointMismatchException
+import org.bouncycastle.jce.provider.BouncyCastleProvider
+import spock.lang.Specification
+
+import javax.crypto.spec.SecretKeySpec
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.security.Security
+
+/**
+ * This test suit aims at covering the {@link DecryptionCheckpoint} journal.
+ */
+class DecryptionCheckpointTest extends Specification {
+    private CipherFactory cipherFactory
+    private Path directory
+    private Path journal
+    private byte[] ballotsFileFingerprint = sha256("ballots".bytes)
+
+    void setup() {
+        Security.addProvider(new BouncyCastleProvider())
+        cipherFactory = new CipherFactory(new PropertyConfigurationService())
+        directory = Files.createTempDirectory("decryption-checkpoint-test")
+        journal = directory.resolve("ballots.checkpoint")
+    }
+
+    void cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        MessageDigest.getInstance("SHA-256").digest(bytes)
+    }
+
+    private BallotCipherService keys(String privateKey) {
+        Stub(BallotCipherService) {
+            deriveSecretKey(_, _) >> { byte[] salt, String purpose -> new SecretKeySpec(sha256([*salt, *privateKey.bytes] as byte[]), "AES") }
+        }
+    }
+
+    private void writeJournal(BallotCipherService ballotCipherService) {
+        def checkpoint = DecryptionCheckpoint.create(journal, ballotCipherService, cipherFactory, ballotsFileFingerprint, 0)
+        checkpoint.start({ throw new IllegalStateException("nothing to replay") })
+        checkpoint.record(0, 3, 1, ["ballot 1", "ballot 2 àéè"])
+        checkpoint.record(10, 2, 0, ["ballot 11", "ballot 12"])
+        checkpoint.record(3, 7, 0, (4..10).collect { "ballot $it".toString() })
+        checkpoint.close()
+    }
+
+    def "a resumed checkpoint should hold the ranges and the ballots of the former one, and replace it"() {
+        given:
+        writeJournal(keys("key"))
+        def formerJournal = Files.readAllBytes(journal)
+        def replayedBallots = []
+
+        when:
+        def checkpoint = DecryptionCheckpoint.resume(journal, keys("key"), cipherFactory, ballotsFileFingerprint, 0)
+
+        then:
+        checkpoint.recoveredRecords == 12
+        checkpoint.recoveredInvalidCount == 1
+        (0..11).every { checkpoint.isRecovered(it) }
+        !checkpoint.isRecovered(12)
+
+        when:
+        checkpoint.start({ replayedBallots.addAll(it) })
+        checkpoint.record(12, 1, 0, ["ballot 13"])
+        checkpoint.close()
+
+        then:
+        replayedBallots.size() == 11
+        replayedBallots.contains("ballot 2 àéè")
+        // the journal has been written again, with a new salt
+        Files.readAllBytes(journal) != formerJournal
+        Files.list(directory).count() == 1
+        DecryptionCheckpoint.resume(journal, keys("key"), cipherFactory, ballotsFileFingerprint, 0).recoveredRecords == 13
+    }
+
+    def "the ballots should never reach the disk unencrypted"() {
+        when:
+        writeJournal(keys("key"))
+
+        then:
+        !new String(Files.readAllBytes(journal), "ISO-8859-1").contains("ballot")
+    }
+
+    def "a checkpoint should only be resumed with the same keys, for the same ballot box"() {
+        given:
+        writeJournal(keys("key"))
+
+        when:
+        DecryptionCheckpoint.resume(journal, keys("another key"), cipherFactory, ballotsFileFingerprint, 0)
+
+        then:
+        def otherKeys = thrown(CheckpointMismatchException)
+        otherKeys.message.contains("other keys")
+
+        when:
+        DecryptionCheckpoint.resume(journal, keys("key"), cipherFactory, sha256("other ballots".bytes), 0)
+
+        then:
+        def otherBallotBox = thrown(CheckpointMismatchException)
+        otherBallotBox.message.contains("another ballot box")
+
+        when:
+        Files.write(journal, "not a checkpoint".bytes)
+        DecryptionCheckpoint.resume(journal, keys("key"), cipherFactory, ballotsFileFingerprint, 0)
+
+        then:
+        thrown(CheckpointMismatchException)
+    }
+
+    def "a journal should end with its first truncated or altered segment"() {
+        given:
+        writeJournal(keys("key"))
+        def bytes = Files.readAllBytes(journal)
+
+        when: "the last segment is truncated"
+        Files.write(journal, Arrays.copyOf(bytes, bytes.length - 5))
+
+        then:
+        DecryptionCheckpoint.resume(journal, keys("key"), cipherFactory, ballotsFileFingerprint, 0).recoveredRecords == 5
+
+        when: "the last segment is altered"
+        bytes[bytes.length - 1] ^= 1
+        Files.write(journal, bytes)
+
+        then:
+        DecryptionCheckpoint.resume(journal, keys("key"), cipherFactory, ballotsFileFingerprint, 0).recoveredRecords == 5
+    }
+
+    def "the hash of the ballots file should be recorded, then confirmed by the resumed checkpoints"() {
+        given:
+        def checkpoint = DecryptionCheckpoint.create(journal, keys("key"), cipherFactory, ballotsFileFingerprint, 0)
+        checkpoint.start({ throw new IllegalStateException("nothing to replay") })
+        checkpoint.record(0, 2, 0, ["ballot 1", "ballot 2"])
+        checkpoint.confirmBallotsFileHash(sha256("ballots file".bytes))
+        checkpoint.close()
+
+        when:
+        def resumed = DecryptionCheckpoint.resume(journal, keys("key"), cipherFactory, ballotsFileFingerprint, 0)
+        resumed.start({})
+        resumed.confirmBallotsFileHash(sha256("ballots file".bytes))
+        resumed.close()
+
+        then:
+        resumed.recoveredRecords == 2
+
+        when:
+        def altered = DecryptionCheckpoint.resume(journal, keys("key"), cipherFactory, ballotsFileFingerprint, 0)
+        altered.start({})
+        altered.confirmBallotsFileHash(sha256("another ballots file".bytes))
+
+        then:
+        def mismatch = thrown(CryptoOperationRuntimeException)
+        mismatch.message.contains("does not match")
+
+        cleanup:
+        altered?.close()
+    }
+
+    def "the fingerprint of a ballots file should only cover its size and first bytes"() {
+        given:
+        def ballotsFile = directory.resolve("ballots.ser")
+        def bytes = new byte[3 << 20]
+        Files.write(ballotsFile, bytes)
+        def streamHasher = Stub(StreamHasher) {
+            threadSafeComputeHash(_) >> { InputStream inputStream -> sha256(inputStream.bytes) }
+        }
+        def fingerprint = DecryptionCheckpoint.fingerprint(ballotsFile, streamHasher)
+
+        when: "the file is copied, with another modification time"
+        def copy = Files.copy(ballotsFile, directory.resolve("ballots-copy.ser"))
+        Files.setLastModifiedTime(copy, FileTime.fromMillis(0))
+
+        then:
+        DecryptionCheckpoint.fingerprint(copy, streamHasher) == fingerprint
+
+        when: "a byte beyond the head of the file is changed"
+        bytes[bytes.length - 1] = 1
+        Files.write(ballotsFile, bytes)
+
+        then: "the change is only detected by the hash of the whole file"
+        DecryptionCheckpoint.fingerprint(ballotsFile, streamHasher) == fingerprint
+
+        when: "a byte is appended"
+        Files.write(ballotsFile, Arrays.copyOf(bytes, bytes.length + 1))
+
+        then:
+        DecryptionCheckpoint.fingerprint(ballotsFile, streamHasher) != fingerprint
+
+        when: "a byte of the head of the file is changed"
+        bytes[0] = 1
+        Files.write(ballotsFile, bytes)
+
+        then:
+        DecryptionCheckpoint.fingerprint(ballotsFile, streamHasher) != fingerprint
+    }
+}
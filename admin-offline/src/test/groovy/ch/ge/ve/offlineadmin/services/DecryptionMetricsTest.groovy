@@ -0,0 +1,110 @@
+package ch.ge.ve.offlineadmin.services
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.offlineadmin.util.LatencyHistogram
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+/**
+ * This test suit aims at covering the {@link DecryptionMetrics} and their {@link LatencyHistogram}s.
+ */
+class DecryptionMetricsTest extends Specification {
+
+    def "the percentiles of a histogram should be within 1% of the recorded values"() {
+        given:
+        def histogram = new LatencyHistogram()
+
+        when:
+        (1..100_000).each { histogram.record(it * 1_000L) }
+
+        then:
+        histogram.count == 100_000
+        histogram.max == 100_000_000L
+        Math.abs(histogram.mean - 50_000_500.0) < 1.0
+        Math.abs(histogram.getValueAtPercentile(50.0) - 50_000_000L) <= 500_000L
+        Math.abs(histogram.getValueAtPercentile(99.0) - 99_000_000L) <= 990_000L
+        histogram.getValueAtPercentile(100.0) >= 100_000_000L
+    }
+
+    def "the small values should be counted exactly"() {
+        given:
+        def histogram = new LatencyHistogram()
+
+        when:
+        [3L, 3L, 7L, 255L, -4L].each { histogram.record(it) }
+
+        then:
+        histogram.getValueAtPercentile(20.0) == 0L
+        histogram.getValueAtPercentile(60.0) == 3L
+        histogram.getValueAtPercentile(80.0) == 7L
+        histogram.getValueAtPercentile(100.0) == 255L
+    }
+
+    def "the remaining time should only be estimated once the number of ballots is known"() {
+        given:
+        def metrics = new DecryptionMetrics(2)
+        10.times { metrics.countDecryptedBallot() }
+        5.times { metrics.countRecoveredBallot() }
+        Thread.sleep(10)
+
+        expect:
+        metrics.processedBallots == 15
+        metrics.decryptedBallots == 10
+        metrics.throughput > 0.0
+        metrics.getEstimatedRemaining(TimeUnit.MILLISECONDS) == -1L
+
+        when:
+        metrics.setTotalBallots(15)
+
+        then:
+        metrics.getEstimatedRemaining(TimeUnit.MILLISECONDS) == 0L
+    }
+
+    def "the summary should hold the counters and the latencies of each stage"() {
+        given:
+        def metrics = new DecryptionMetrics(4)
+        def summary = Files.createTempFile("decryption-metrics", ".json")
+        3.times { metrics.countDecryptedBallot() }
+        metrics.addInvalidBallots(1)
+        metrics.keyUnwrapped(2_000_000L)
+        metrics.ballotDecrypted(100_000L)
+        metrics.stop()
+
+        when:
+        metrics.writeSummary(summary)
+        def json = new String(Files.readAllBytes(summary), "UTF-8")
+
+        then:
+        json.contains('"ballots": 3,')
+        json.contains('"invalidBallots": 1,')
+        json.contains('"decryptionThreads": 4,')
+        json.contains('"unwrap": {"count": 1, "mean": 2000.0')
+        json.contains('"decrypt": {"count": 1, "mean": 100.0')
+        json.contains('"write": {"count": 0, "mean": 0.0')
+
+        cleanup:
+        Files.deleteIfExists(summary)
+    }
+}
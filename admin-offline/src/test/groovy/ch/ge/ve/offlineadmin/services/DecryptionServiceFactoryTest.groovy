@@ -0,0 +1,74 @@
+package ch.ge.ve.offlineadmin.services
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.ballot.BallotCipherService
+import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException
+import ch.ge.ve.commons.properties.PropertyConfigurationService
+import ch.ge.ve.offlineadmin.util.ProgressTracker
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static ch.ge.ve.offlineadmin.util.SecurityConstants.*
+
+/**
+ * This test suit aims at covering the {@link DecryptionServiceFactory} factory.
+ */
+class DecryptionServiceFactoryTest extends Specification {
+
+    @Unroll
+    def "the pool should use #expectedParallelism threads with #threads configured threads and leaveOneCore=#leaveOneCore on 4 cores"() {
+        given:
+        def props = new Properties()
+        props.setProperty(DECRYPTION_THREADS, threads)
+        props.setProperty(DECRYPTION_LEAVE_ONE_CORE, leaveOneCore)
+        props.setProperty(DECRYPTION_CHUNK_SIZE, "16")
+        props.setProperty(DECRYPTION_SHUFFLE_MAX_BALLOTS_IN_MEMORY, "1000")
+        props.setProperty(DECRYPTION_CHECKPOINT_INTERVAL_SECONDS, "30")
+
+        when:
+        def factory = new DecryptionServiceFactory(new PropertyConfigurationService(props), 4)
+
+        then:
+        factory.parallelism == expectedParallelism
+        factory.chunkSize == 16
+        factory.maxBallotsInMemory == 1000
+        factory.checkpointIntervalMillis == 30000
+        factory.checkpointEnabled
+        factory.decryptionService(Stub(BallotCipherService), Stub(ProgressTracker)) != null
+
+        where:
+        threads | leaveOneCore || expectedParallelism
+        "0"     | "false"      || 4
+        "0"     | "true"       || 3
+        "2"     | "true"       || 2
+        "6"     | "false"      || 6
+    }
+
+    def "a missing configuration should be reported"() {
+        when:
+        new DecryptionServiceFactory(new PropertyConfigurationService(new Properties()))
+
+        then:
+        thrown(CryptoConfigurationRuntimeException)
+    }
+}
@@ -22,31 +22,49 @@ package ch.ge.ve.offlineadmin.services
  */
 
 import ch.ge.ve.commons.crypto.ballot.BallotCipherService
+import ch.ge.ve.commons.crypto.ballot.BallotEnvelope
+import ch.ge.ve.commons.crypto.ballot.BallotEnvelopeCodec
 import ch.ge.ve.commons.crypto.ballot.EncryptedBallotAndWrappedKey
+import ch.ge.ve.commons.crypto.ballot.EncryptedBallotArena
 import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException
+import ch.ge.ve.commons.crypto.utils.CipherFactory
+import ch.ge.ve.commons.properties.PropertyConfigurationService
 import ch.ge.ve.offlineadmin.util.ProgressTracker
+import org.bouncycastle.jce.provider.BouncyCastleProvider
 import spock.lang.Specification
 
+import javax.crypto.spec.SecretKeySpec
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.security.MessageDigest
+import java.security.Security
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Consumer
+import java.util.function.LongConsumer
+
 /**
  * This test suit aims at covering the {@link DecryptionService} service.
  */
 class DecryptionServiceTest extends Specification {
     private BallotCipherService ballotCipherService
+    private CipherFactory cipherFactory
 
     void setup() {
+        Security.addProvider(new BouncyCastleProvider())
         ballotCipherService = Stub(BallotCipherService)
+        cipherFactory = new CipherFactory(new PropertyConfigurationService())
     }
 
     def """If the ballot box contains an invalid ballot paper,
       the decryption should go until the end and signal that there is an invalid ballot paper"""() {
         given:
-        ballotCipherService.decryptBallot(_) >>> ["a ballot", "another ballot"] >> {
+        ballotCipherService.decryptBallot(_, _) >>> ["a ballot", "another ballot"] >> {
             throw new CryptoOperationRuntimeException("error")
         } >> "a third ballot" >> {
             throw new CryptoOperationRuntimeException("error")
         } >> "a fourth ballot"
 
-        def decryptionService = new DecryptionService(ballotCipherService, Stub(ProgressTracker))
+        def decryptionService = new DecryptionService(ballotCipherService, cipherFactory, Stub(ProgressTracker))
 
         def ballotBox = [Stub(EncryptedBallotAndWrappedKey)]
         for (int i = 0; i < 6; i++) {
@@ -58,15 +76,17 @@ class DecryptionServiceTest extends Specification {
 
         then:
         decryptionService.getInvalidCounter() == 2
-        decryptedBallots.containsAll(["a ballot", "another ballot", "a third ballot", "a fourth ballot"])
+        decryptedBallots.toList().containsAll(["a ballot", "another ballot", "a third ballot", "a fourth ballot"])
     }
 
-    def "Increment the progression step every 100 ballot papers decryption"() {
+    def "Increment the progression step every 100 ballot papers decryption, outside of the decryption threads"() {
         given:
-        ballotCipherService.decryptBallot(_) >> "a ballot"
+        ballotCipherService.decryptBallot(_, _) >> "a ballot"
 
         def progressTracker = Mock(ProgressTracker)
-        def decryptionService = new DecryptionService(ballotCipherService, progressTracker)
+        def decryptionService = new DecryptionService(ballotCipherService, cipherFactory, progressTracker)
+        def steps = 0
+        def reportingThreads = [] as Set
 
         def ballotBox = []
         for (int i = 0; i < 500; i++) {
@@ -77,6 +97,211 @@ class DecryptionServiceTest extends Specification {
         decryptionService.decrypt(ballotBox)
 
         then:
-        5 * progressTracker.incrementStepCount()
+        _ * progressTracker.incrementStepCount(_) >> { int count ->
+            steps += count
+            reportingThreads << Thread.currentThread().name
+        }
+        0 * progressTracker.incrementStepCount()
+        steps == 5
+        // the steps are reported by the progress reporter, or by the calling thread once all the ballots are decrypted
+        reportingThreads.every { it == "ballot-decryption-progress" || !it.startsWith("ballot-decryption-") }
+    }
+
+    def "Decrypt the ballots while they are being read, and set the step count once all of them are read"() {
+        given:
+        ballotCipherService.decryptBallot(_, _) >> "a ballot"
+
+        def progressTracker = Mock(ProgressTracker)
+        def parallelism = 2
+        def chunkSize = 7
+        def decryptionService = new DecryptionService(ballotCipherService, cipherFactory, progressTracker, parallelism, chunkSize)
+
+        // more ballots than may be pending, so that the reading has to wait for the decryption
+        def ballotsCount = 10 * parallelism * chunkSize * DecryptionService.PENDING_CHUNKS_PER_THREAD + 3
+        EncryptedBallotsReader reader = { consumer ->
+            for (int i = 0; i < ballotsCount; i++) {
+                consumer.accept(Stub(EncryptedBallotAndWrappedKey))
+            }
+            return (long) ballotsCount
+        }
+
+        when:
+        def decryptedBallots = decryptionService.decrypt(reader)
+
+        then:
+        decryptedBallots.size() == ballotsCount
+        decryptionService.getBallotsCounter() == ballotsCount
+        1 * progressTracker.setStepCount(ballotsCount.intdiv(DecryptionService.STEP_SIZE))
+    }
+
+    def "Set the step count as soon as the reader knows the number of ballots"() {
+        given:
+        ballotCipherService.decryptBallot(_, _) >> "a ballot"
+
+        def progressTracker = Mock(ProgressTracker)
+        def decryptionService = new DecryptionService(ballotCipherService, cipherFactory, progressTracker, 2, 7)
+        def ballotsCount = 1000
+        def totalBallotsBeforeFirstBallot = null
+        def encryptedBallot = Stub(EncryptedBallotAndWrappedKey)
+        def reader = new EncryptedBallotsReader() {
+            @Override
+            long readBallots(Consumer<EncryptedBallotAndWrappedKey> consumer) {
+                throw new UnsupportedOperationException()
+            }
+
+            @Override
+            long readBallots(LongConsumer countListener, Consumer<EncryptedBallotAndWrappedKey> consumer) {
+                countListener.accept(ballotsCount)
+                totalBallotsBeforeFirstBallot = decryptionService.metrics.totalBallots
+                ballotsCount.times { consumer.accept(encryptedBallot) }
+                return (long) ballotsCount
+            }
+        }
+
+        when:
+        decryptionService.decrypt(reader).close()
+
+        then:
+        totalBallotsBeforeFirstBallot == ballotsCount
+        1 * progressTracker.setStepCount(ballotsCount.intdiv(DecryptionService.STEP_SIZE))
+    }
+
+    def "Copy the envelopes into the arenas of the chunks, and decrypt them along with the other ballots"() {
+        given:
+        def decryptedViews = new AtomicInteger()
+        ballotCipherService.decryptBallot(_ as EncryptedBallotArena.BallotView, _) >> { EncryptedBallotArena.BallotView view, timings ->
+            decryptedViews.incrementAndGet()
+            "envelope ${view.wrappedKey[0]}".toString()
+        }
+        ballotCipherService.decryptBallot(_ as EncryptedBallotAndWrappedKey, _) >> "sealed ballot"
+
+        def decryptionService = new DecryptionService(ballotCipherService, cipherFactory, Stub(ProgressTracker), 2, 7)
+        // more ballots than may be pending, so that the chunks are recycled
+        def ballotsCount = 10 * 2 * 7 * DecryptionService.PENDING_CHUNKS_PER_THREAD
+        def sealedBallot = Stub(EncryptedBallotAndWrappedKey)
+        def reader = new EncryptedBallotsReader() {
+            @Override
+            long readBallots(Consumer<EncryptedBallotAndWrappedKey> consumer) {
+                throw new UnsupportedOperationException()
+            }
+
+            @Override
+            long readBallots(LongConsumer countListener, Consumer<EncryptedBallotAndWrappedKey> consumer, Consumer<ByteBuffer> envelopeConsumer) {
+                def buffer = ByteBuffer.allocate(1024)
+                ballotsCount.times { i ->
+                    if (i % 10 == 0) {
+                        consumer.accept(sealedBallot)
+                    } else {
+                        // the buffer is reused from one envelope to the next, as the readers do
+                        buffer.clear()
+                        BallotEnvelopeCodec.encode(new BallotEnvelope(BallotEnvelopeCodec.ALGORITHM_AES_GCM, new byte[12], [i % 100] as byte[], new byte[i], new byte[16]), buffer)
+                        buffer.flip()
+                        envelopeConsumer.accept(buffer)
+                    }
+                }
+                return (long) ballotsCount
+            }
+        }
+
+        when:
+        def decryptedBallots = decryptionService.decrypt(reader).toList()
+
+        then:
+        decryptedViews.get() == ballotsCount - ballotsCount.intdiv(10)
+        decryptedBallots.count { it == "sealed ballot" } == ballotsCount.intdiv(10)
+        decryptedBallots.findAll { it != "sealed ballot" }.sort() == (0..<ballotsCount).findAll { it % 10 != 0 }.collect { "envelope ${it % 100}".toString() }.sort()
+    }
+
+    def "A malformed envelope should interrupt the decryption"() {
+        given:
+        ballotCipherService.decryptBallot(_, _) >> "a ballot"
+
+        def decryptionService = new DecryptionService(ballotCipherService, cipherFactory, Stub(ProgressTracker))
+        def reader = new EncryptedBallotsReader() {
+            @Override
+            long readBallots(Consumer<EncryptedBallotAndWrappedKey> consumer) {
+                throw new UnsupportedOperationException()
+            }
+
+            @Override
+            long readBallots(LongConsumer countListener, Consumer<EncryptedBallotAndWrappedKey> consumer, Consumer<ByteBuffer> envelopeConsumer) {
+                envelopeConsumer.accept(ByteBuffer.wrap([1, 1, 12] as byte[]))
+                return 1L
+            }
+        }
+
+        when:
+        decryptionService.decrypt(reader)
+
+        then:
+        thrown(CryptoOperationRuntimeException)
+    }
+
+    def "A reading failure should interrupt the decryption"() {
+        given:
+        ballotCipherService.decryptBallot(_, _) >> "a ballot"
+
+        def decryptionService = new DecryptionService(ballotCipherService, cipherFactory, Stub(ProgressTracker))
+
+        EncryptedBallotsReader reader = { consumer ->
+            consumer.accept(Stub(EncryptedBallotAndWrappedKey))
+            throw new IOException("truncated file")
+        }
+
+        when:
+        decryptionService.decrypt(reader)
+
+        then:
+        thrown(IOException)
+    }
+
+    def "A decryption should resume from its checkpoint, without decrypting again the ballots it holds"() {
+        given:
+        def directory = Files.createTempDirectory("decryption-service-test")
+        def journal = directory.resolve("ballots.checkpoint")
+        def ballotsFileFingerprint = MessageDigest.getInstance("SHA-256").digest("ballots".bytes)
+        ballotCipherService.deriveSecretKey(_, _) >> { byte[] salt, String purpose ->
+            new SecretKeySpec(MessageDigest.getInstance("SHA-256").digest(salt), "AES")
+        }
+        def decryptions = new AtomicInteger()
+        ballotCipherService.decryptBallot(_, _) >> {
+            def decryption = decryptions.incrementAndGet()
+            if (decryption % 10 == 0) {
+                throw new CryptoOperationRuntimeException("error")
+            }
+            "ballot ${decryptions.get() > 100 ? 'b' : 'a'}$decryption".toString()
+        }
+        def decryptionService = new DecryptionService(ballotCipherService, cipherFactory, Stub(ProgressTracker), 2, 7)
+        def reader = { int ballotsCount ->
+            { consumer ->
+                ballotsCount.times { consumer.accept(Stub(EncryptedBallotAndWrappedKey)) }
+                return (long) ballotsCount
+            } as EncryptedBallotsReader
+        }
+
+        when: "the decryption stops after 100 ballots, the checkpoint being kept"
+        decryptionService.decrypt(reader(100), DecryptionCheckpoint.create(journal, ballotCipherService, cipherFactory, ballotsFileFingerprint, 0)).close()
+        def checkpoint = DecryptionCheckpoint.resume(journal, ballotCipherService, cipherFactory, ballotsFileFingerprint, 0)
+
+        then:
+        checkpoint.recoveredRecords == 100
+        checkpoint.recoveredInvalidCount == 10
+        checkpoint.isRecovered(99)
+        !checkpoint.isRecovered(100)
+
+        when: "the decryption resumes"
+        decryptions.set(100)
+        def decryptedBallots = decryptionService.decrypt(reader(150), checkpoint).toList()
+
+        then:
+        decryptions.get() == 150
+        decryptionService.invalidCounter == 15
+        decryptedBallots.size() == 135
+        decryptedBallots.toSet().size() == 135
+        decryptedBallots.count { it.startsWith("ballot a") } == 90
+        DecryptionCheckpoint.resume(journal, ballotCipherService, cipherFactory, ballotsFileFingerprint, 0).recoveredRecords == 150
+
+        cleanup:
+        directory.toFile().deleteDir()
     }
 }
@@ -1,5 +1,6 @@
 package ch.ge.ve.offlineadmin.services
 
+import ch.ge.ve.commons.crypto.ballot.BallotCiphersProvider
 import ch.ge.ve.commons.properties.PropertyConfigurationService
 
 /*-
@@ -24,6 +25,7 @@ import ch.ge.ve.commons.properties.PropertyConfigurationService
  */
 import spock.lang.Specification
 
+import java.security.interfaces.ECKey
 import java.security.interfaces.RSAKey
 import java.time.Instant
 import java.time.temporal.ChronoUnit
@@ -105,6 +107,25 @@ class KeyGeneratorTest extends Specification {
         secretKey1.getPrivate().getEncoded() != secretKey2.getPrivate().getEncoded()
     }
 
+    def "The ballot box encryption key pair can be generated on an elliptic curve, and certified"() {
+        given:
+        conf.addConfigValue(BallotCiphersProvider.BALLOT_KEY_CRYPTING_ALGORITHM, "EC")
+        conf.addConfigValue(BallotCiphersProvider.BALLOT_KEY_CRYPTING_KEY_SIZE, "256")
+        def generator = new KeyGenerator(conf)
+
+        when:
+        def keyPair = generator.generateKeyPair()
+        def certificate = generator.generateCertificate(keyPair)
+        def keyStore = generator.createKeyStore(keyPair.getPrivate(), certificate, "password".toCharArray())
+
+        then:
+        keyPair.getPublic().getAlgorithm() == "EC"
+        ((ECKey) keyPair.getPrivate()).getParams().getCurve().getField().getFieldSize() == 256
+        certificate.getSigAlgName() == "SHA256withECDSA"
+        certificate.verify(keyPair.getPublic())
+        keyStore.getCertificate("ctrl").getPublicKey().equals(keyPair.getPublic())
+    }
+
     def "Generate a valid certificate"() {
         given:
         def generator = new KeyGenerator(conf)
@@ -0,0 +1,179 @@
+package ch.ge.ve.offlineadmin.services
+
+/*-
+ * #%L
+ * Admin offline
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException
+import ch.ge.ve.commons.crypto.utils.CipherFactory
+import ch.ge.ve.commons.crypto.utils.SecureRandomFactory
+import ch.ge.ve.commons.properties.PropertyConfigurationService
+import org.bouncycastle.jce.provider.BouncyCastleProvider
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.Security
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * This test suit aims at covering the {@link ShuffledBallots} shuffle.
+ */
+class ShuffledBallotsTest extends Specification {
+    private CipherFactory cipherFactory
+    private Path spillDirectory
+
+    void setup() {
+        Security.addProvider(new BouncyCastleProvider())
+        cipherFactory = new CipherFactory(new PropertyConfigurationService())
+        spillDirectory = Files.createTempDirectory("shuffled-ballots-test")
+    }
+
+    void cleanup() {
+        spillDirectory.toFile().deleteDir()
+    }
+
+    def "ballots held in memory should be shuffled without any run file"() {
+        given:
+        def ballots = (1..500).collect { "ballot $it".toString() }
+        def shuffledBallots = new ShuffledBallots(cipherFactory, { SecureRandomFactory.createPRNG() }, 1000, spillDirectory)
+
+        when:
+        shuffledBallots.addAll(ballots)
+        def shuffled = shuffledBallots.toList()
+
+        then:
+        shuffledBallots.size() == 500
+        shuffledBallots.runCount == 0
+        shuffled != ballots
+        shuffled.sort(false) == ballots.sort(false)
+        Files.list(spillDirectory).count() == 0
+    }
+
+    def "ballots beyond the memory limit should be spilled to encrypted run files, then merged"() {
+        given:
+        def ballots = (1..1050).collect { "ballot ${it} àéè".toString() }
+        def shuffledBallots = new ShuffledBallots(cipherFactory, { SecureRandomFactory.createPRNG() }, 100, spillDirectory)
+
+        when:
+        ballots.collate(7).each { shuffledBallots.addAll(it) }
+        def shuffled = shuffledBallots.toList()
+
+        then:
+        shuffledBallots.size() == 1050
+        shuffledBallots.runCount == 10
+        shuffled != ballots
+        shuffled.sort(false) == ballots.sort(false)
+        // the cleartext ballots never reach the disk
+        Files.walk(spillDirectory).filter { Files.isRegularFile(it) }.allMatch { !new String(Files.readAllBytes(it), "UTF-8").contains("ballot") }
+
+        when:
+        shuffledBallots.close()
+
+        then:
+        Files.list(spillDirectory).count() == 0
+    }
+
+    def "ballots added from several threads should be tagged and spilled by these threads"() {
+        given:
+        def threads = 4
+        def ballotsPerThread = 2500
+        def randomsCreated = new AtomicInteger()
+        def shuffledBallots = new ShuffledBallots(cipherFactory, { randomsCreated.incrementAndGet(); SecureRandomFactory.createPRNG() }, 1000, spillDirectory)
+        def executor = Executors.newFixedThreadPool(threads)
+
+        when:
+        def futures = (0..<threads).collect { thread ->
+            executor.submit {
+                (0..<ballotsPerThread).collect { "ballot $thread-$it".toString() }.collate(25).each { shuffledBallots.addAll(it) }
+            }
+        }
+        futures*.get()
+        def shuffled = shuffledBallots.toList()
+
+        then:
+        randomsCreated.get() == threads
+        shuffledBallots.runCount >= 9
+        shuffled.size() == threads * ballotsPerThread
+        shuffled.toSet().size() == threads * ballotsPerThread
+
+        cleanup:
+        executor.shutdown()
+        shuffledBallots.close()
+    }
+
+    def "every ballot should be equally likely to end up first"() {
+        given:
+        def firstPositions = new int[4]
+
+        when:
+        4000.times {
+            def shuffledBallots = new ShuffledBallots(cipherFactory, { SecureRandomFactory.createPRNG() }, 2, spillDirectory)
+            shuffledBallots.addAll(["0", "1", "2", "3"])
+            firstPositions[shuffledBallots.iterator().next() as int]++
+            shuffledBallots.close()
+        }
+
+        then:
+        firstPositions.every { it > 850 && it < 1150 }
+    }
+
+    def "an altered run file should be detected"() {
+        given:
+        def shuffledBallots = new ShuffledBallots(cipherFactory, { SecureRandomFactory.createPRNG() }, 10, spillDirectory)
+        shuffledBallots.addAll((1..25).collect { "ballot $it".toString() })
+        def runFile = Files.walk(spillDirectory).filter { Files.isRegularFile(it) }.findFirst().get()
+        def bytes = Files.readAllBytes(runFile)
+        bytes[bytes.length - 1] ^= 1
+        Files.write(runFile, bytes)
+
+        when:
+        shuffledBallots.toList()
+
+        then:
+        thrown(CryptoOperationRuntimeException)
+
+        cleanup:
+        shuffledBallots.close()
+    }
+
+    def "spilled ballots can neither be added to nor iterated over once the iteration has started"() {
+        given:
+        def shuffledBallots = new ShuffledBallots(cipherFactory, { SecureRandomFactory.createPRNG() }, 10, spillDirectory)
+        shuffledBallots.addAll((1..25).collect { "ballot $it".toString() })
+        shuffledBallots.iterator()
+
+        when:
+        shuffledBallots.addAll(["a late ballot"])
+
+        then:
+        thrown(IllegalStateException)
+
+        when:
+        shuffledBallots.iterator()
+
+        then:
+        thrown(IllegalStateException)
+
+        cleanup:
+        shuffledBallots.close()
+    }
+}
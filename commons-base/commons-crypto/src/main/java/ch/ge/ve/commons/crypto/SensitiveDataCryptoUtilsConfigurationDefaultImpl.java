@@ -33,7 +33,6 @@ import javax.crypto.Cipher;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import java.io.*;
-import java.security.SecureRandom;
 
 /**
  * This class provides the default implementation for a CryptoUtilsConfiguration
@@ -42,7 +41,6 @@ public class SensitiveDataCryptoUtilsConfigurationDefaultImpl implements Sensiti
     public static final String COMMON_CRYPTO_STORAGE_ALGORITHM = "common.crypto.storage.algorithm";
     public static final String COMMON_CRYPTO_STORAGE_BLOCKMODE = "common.crypto.storage.blockmode";
     public static final String COMMON_CRYPTO_STREAM_MAX_BYTES = "common.crypto.stream.max.bytes";
-    private final SecureRandom SECURE_RANDOM = SecureRandomFactory.createPRNG();
     private PropertyConfigurationService propertyConfigurationService;
 
     // Mac and Cipher are not thread safe and thus cannot be declared as a static member used concurrently,
@@ -106,7 +104,7 @@ public class SensitiveDataCryptoUtilsConfigurationDefaultImpl implements Sensiti
         try {
             int minIterations = propertyConfigurationService.getConfigValueAsInt("common.crypto.pbkdf.min.iterations");
             int maxIterations = propertyConfigurationService.getConfigValueAsInt("common.crypto.pbkdf.max.iterations");
-            return minIterations + SECURE_RANDOM.nextInt(maxIterations - minIterations + 1);
+            return minIterations + SecureRandomFactory.createPRNG().nextInt(maxIterations - minIterations + 1);
         } catch (PropertyConfigurationException e) {
             throw new CryptoConfigurationRuntimeException("cannot find pbkdf2 iterations configuration", e);
         }
@@ -21,6 +21,8 @@ package ch.ge.ve.commons.crypto.ballot;
  * #L%
  */
 
+import java.util.Arrays;
+
 /**
  * <p>
  * This class holds an encrypted ballot as it is stored in the database.
@@ -45,8 +47,21 @@ package ch.ge.ve.commons.crypto.ballot;
  * <li>the {@link #ballotIndex} field is provided as the number of ballots in the ballot box + 1</li>
  * <li>the {@link #authenticatedEncryptedBallot} field is build by encrypting the
  * {@link ch.ge.ve.commons.crypto.ballot.EncryptedBallotAndWrappedKey#encryptedBallot} with the integrity key, with
- * the ballotIndex as associated data</li>
- * <li>the {@link #tag} field contains the tag of the authenticated encryption performed above</li>
+ * the ballotIndex as associated data, the nonce being built from the ballotIndex as per the {@link #integrityVersion}</li>
+ * <li>the {@link #tag} field contains the tag of the authenticated encryption performed above (when omitted, it is read
+ * from the end of the {@link #authenticatedEncryptedBallot}, where the cipher appends it)</li>
+ * </ul>
+ * </p>
+ * <h3>Integrity versions</h3>
+ * <p>
+ * The {@link #integrityVersion} must be stored along with the ballot:
+ * <ul>
+ * <li>{@link #INTEGRITY_VERSION_1}: the nonce and associated data are the ballotIndex, as the shortest two's-complement
+ * representation of an <tt>int</tt> (1 to 4 bytes). The ballots stored without any version are in this version, and the
+ * new ballots too unless {@link BallotCiphersProvider#BALLOT_INTEGRITY_VERSION} is set to 2.</li>
+ * <li>{@link #INTEGRITY_VERSION_2}: the nonce and associated data are 12 bytes, the version (4 bytes) followed by the
+ * ballotIndex (8 bytes), both big-endian. The nonce has the size GCM uses directly, instead of hashing it, and the
+ * ballotIndex can go beyond <tt>Integer.MAX_VALUE</tt>.</li>
  * </ul>
  * </p>
  * <h3>Decryption</h3>
@@ -66,6 +81,16 @@ package ch.ge.ve.commons.crypto.ballot;
  * </p>
  */
 public class AuthenticatedBallot {
+    /**
+     * the integrity layer with a variable length nonce, for <tt>int</tt> ballot indices
+     */
+    public static final int INTEGRITY_VERSION_1 = 1;
+
+    /**
+     * the integrity layer with a 12 bytes nonce, for <tt>long</tt> ballot indices
+     */
+    public static final int INTEGRITY_VERSION_2 = 2;
+
     /**
      * the random key k_i, wrapped with the Electoral Officers public key
      */
@@ -79,10 +104,15 @@ public class AuthenticatedBallot {
     /**
      * the ballot index (by order of insertion)
      */
-    private final int ballotIndex;
+    private final long ballotIndex;
+
+    /**
+     * the version of the integrity layer, defining how the nonce is built from the ballot index
+     */
+    private final int integrityVersion;
 
     /**
-     * the tag produced by the second layer of authenticated encryption
+     * the tag produced by the second layer of authenticated encryption (<tt>null</tt> if not kept apart)
      */
     private final byte[] tag;
 
@@ -94,12 +124,36 @@ public class AuthenticatedBallot {
      * @param tag the tag produced by the second layer of authenticated encryption
      */
     public AuthenticatedBallot(byte[] wrappedKey, byte[] authenticatedEncryptedBallot, int ballotIndex, byte[] tag) {
+        this(wrappedKey, authenticatedEncryptedBallot, ballotIndex, INTEGRITY_VERSION_1, tag);
+    }
+
+    /**
+     * @param wrappedKey the random key k_i, wrapped with the Electoral Officers public key
+     * @param authenticatedEncryptedBallot the doubly encrypted ballot (once with key k_i, once with the integrity key, with the ballot index as associated data), ending with the tag
+     * @param ballotIndex the ballot index (by order of insertion)
+     * @param integrityVersion the version of the integrity layer, {@link #INTEGRITY_VERSION_1} or {@link #INTEGRITY_VERSION_2}
+     */
+    public AuthenticatedBallot(byte[] wrappedKey, byte[] authenticatedEncryptedBallot, long ballotIndex, int integrityVersion) {
+        this(wrappedKey, authenticatedEncryptedBallot, ballotIndex, integrityVersion, null);
+    }
+
+    private AuthenticatedBallot(byte[] wrappedKey, byte[] authenticatedEncryptedBallot, long ballotIndex, int integrityVersion, byte[] tag) {
         this.wrappedKey = wrappedKey;
         this.authenticatedEncryptedBallot = authenticatedEncryptedBallot;
         this.ballotIndex = ballotIndex;
+        this.integrityVersion = integrityVersion;
         this.tag = tag;
     }
 
+    /**
+     * @param wrappedKey the random key k_i, wrapped with the Electoral Officers public key
+     * @param authenticatedEncryptedBallot the doubly encrypted ballot (once with key k_i, once with the integrity key, with the ballot index as associated data), ending with the tag
+     * @param ballotIndex the ballot index (by order of insertion)
+     */
+    public AuthenticatedBallot(byte[] wrappedKey, byte[] authenticatedEncryptedBallot, int ballotIndex) {
+        this(wrappedKey, authenticatedEncryptedBallot, ballotIndex, null);
+    }
+
     /**                                                      *
 
      * @return the wrappedKey
@@ -117,15 +171,33 @@ public class AuthenticatedBallot {
 
     /**
      * @return the ballotIndex
+     * @throws ArithmeticException if the ballotIndex goes beyond <tt>Integer.MAX_VALUE</tt>, see {@link #getBallotIndexAsLong()}
      */
     public int getBallotIndex() {
+        return Math.toIntExact(ballotIndex);
+    }
+
+    /**
+     * @return the ballotIndex, which can go beyond <tt>Integer.MAX_VALUE</tt> in the {@link #INTEGRITY_VERSION_2} version
+     */
+    public long getBallotIndexAsLong() {
         return ballotIndex;
     }
 
+    /**
+     * @return the version of the integrity layer
+     */
+    public int getIntegrityVersion() {
+        return integrityVersion;
+    }
+
     /**
      * @return the authentication tag
      */
     public byte[] getTag() {
+        if (tag == null) {
+            return Arrays.copyOfRange(authenticatedEncryptedBallot, authenticatedEncryptedBallot.length - (BallotCipherService.AEAD_TAG_SIZE / Byte.SIZE), authenticatedEncryptedBallot.length);
+        }
         return tag;
     }
 }
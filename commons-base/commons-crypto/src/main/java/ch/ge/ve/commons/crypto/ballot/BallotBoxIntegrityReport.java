@@ -0,0 +1,256 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcome of the verification of a whole ballot box, see
+ * {@link BallotCipherService#verifyAuthentications(java.util.Iterator, long, java.util.concurrent.Executor)}.
+ * <p>
+ * The ballot box is intact if each of the expected indices, from 1 to the expected number of ballots, has been found
+ * exactly once, on a ballot whose authentication tag matches. The counts are exact, while only the lowest
+ * {@link #MAX_REPORTED_INDICES} indices of each kind of anomaly are listed, in ascending order, whatever the order in
+ * which the ballots were verified.
+ * </p>
+ */
+public final class BallotBoxIntegrityReport {
+    /**
+     * the maximum number of indices listed for each kind of anomaly
+     */
+    public static final int MAX_REPORTED_INDICES = 1000;
+
+    private final long expectedBallotsCount;
+    private final long ballotsCount;
+    private final long verifiedBallotsCount;
+    private final IndexList failingIndices;
+    private final IndexList duplicateIndices;
+    private final IndexList unexpectedIndices;
+    private final IndexList missingIndices;
+    private final long elapsedNanos;
+
+    private BallotBoxIntegrityReport(Collector collector, long elapsedNanos) {
+        this.expectedBallotsCount = collector.expectedBallotsCount;
+        this.ballotsCount = collector.ballotsCount.sum();
+        this.verifiedBallotsCount = collector.verifiedBallotsCount.sum();
+        this.failingIndices = collector.failingIndices.sorted();
+        this.duplicateIndices = collector.duplicateIndices.sorted();
+        this.unexpectedIndices = collector.unexpectedIndices.sorted();
+        this.missingIndices = collector.missingIndices.sorted();
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return <tt>true</tt> if all the expected ballots, and only them, have been found and verified
+     */
+    public boolean isIntact() {
+        return verifiedBallotsCount == expectedBallotsCount && ballotsCount == expectedBallotsCount
+                && failingIndices.count == 0 && duplicateIndices.count == 0
+                && unexpectedIndices.count == 0 && missingIndices.count == 0;
+    }
+
+    /**
+     * @return the expected number of ballots
+     */
+    public long getExpectedBallotsCount() {
+        return expectedBallotsCount;
+    }
+
+    /**
+     * @return the number of ballots read from the ballot box
+     */
+    public long getBallotsCount() {
+        return ballotsCount;
+    }
+
+    /**
+     * @return the number of ballots whose authentication tag matches
+     */
+    public long getVerifiedBallotsCount() {
+        return verifiedBallotsCount;
+    }
+
+    /**
+     * @return the number of ballots whose authentication tag does not match, or which are malformed
+     */
+    public long getFailingCount() {
+        return failingIndices.count;
+    }
+
+    /**
+     * @return the lowest indices of the ballots whose authentication tag does not match, or which are malformed
+     */
+    public List<Long> getFailingIndices() {
+        return failingIndices.indices;
+    }
+
+    /**
+     * @return the number of ballots whose index had already been found
+     */
+    public long getDuplicateCount() {
+        return duplicateIndices.count;
+    }
+
+    /**
+     * @return the lowest indices found more than once
+     */
+    public List<Long> getDuplicateIndices() {
+        return duplicateIndices.indices;
+    }
+
+    /**
+     * @return the number of ballots whose index is out of the expected range
+     */
+    public long getUnexpectedCount() {
+        return unexpectedIndices.count;
+    }
+
+    /**
+     * @return the lowest indices out of the expected range
+     */
+    public List<Long> getUnexpectedIndices() {
+        return unexpectedIndices.indices;
+    }
+
+    /**
+     * @return the number of expected indices that have not been found
+     */
+    public long getMissingCount() {
+        return missingIndices.count;
+    }
+
+    /**
+     * @return the lowest expected indices that have not been found
+     */
+    public List<Long> getMissingIndices() {
+        return missingIndices.indices;
+    }
+
+    /**
+     * @return the duration of the verification, in milliseconds
+     */
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    /**
+     * @return the number of ballots verified per second
+     */
+    public double getBallotsPerSecond() {
+        return elapsedNanos == 0 ? 0 : ballotsCount * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d/%d ballots verified, %d failing, %d duplicate, %d unexpected and %d missing indices, in %d ms (%.0f ballots/s)",
+                isIntact() ? "intact ballot box" : "altered ballot box", verifiedBallotsCount, expectedBallotsCount,
+                failingIndices.count, duplicateIndices.count, unexpectedIndices.count, missingIndices.count,
+                getElapsedMillis(), getBallotsPerSecond());
+    }
+
+    /**
+     * Gathers the outcome of the verification of the ballots, from several threads
+     */
+    static final class Collector {
+        private final long expectedBallotsCount;
+        private final BallotIndexBitmap seenIndices;
+        private final LongAdder ballotsCount = new LongAdder();
+        private final LongAdder verifiedBallotsCount = new LongAdder();
+        private final IndexList failingIndices = new IndexList();
+        private final IndexList duplicateIndices = new IndexList();
+        private final IndexList unexpectedIndices = new IndexList();
+        private final IndexList missingIndices = new IndexList();
+        private final long start = System.nanoTime();
+
+        /**
+         * @param expectedBallotsCount the expected number of ballots, indexed from 1
+         */
+        Collector(long expectedBallotsCount) {
+            this.expectedBallotsCount = expectedBallotsCount;
+            this.seenIndices = new BallotIndexBitmap(1, expectedBallotsCount);
+        }
+
+        /**
+         * Records the index of a ballot, reporting it if it is out of the expected range or already recorded
+         *
+         * @param ballotIndex the index of a ballot
+         */
+        void recordIndex(long ballotIndex) {
+            ballotsCount.increment();
+            if (!seenIndices.isExpected(ballotIndex)) {
+                unexpectedIndices.add(ballotIndex);
+            } else if (!seenIndices.add(ballotIndex)) {
+                duplicateIndices.add(ballotIndex);
+            }
+        }
+
+        void verified() {
+            verifiedBallotsCount.increment();
+        }
+
+        void failed(long ballotIndex) {
+            failingIndices.add(ballotIndex);
+        }
+
+        /**
+         * @return the report, once all the ballots have been recorded
+         */
+        BallotBoxIntegrityReport report() {
+            seenIndices.forEachMissing(missingIndices::add);
+            return new BallotBoxIntegrityReport(this, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Exact count and lowest indices of a kind of anomaly: the indices are recorded in any order by the verifying
+     * threads, and kept in a bounded max-heap, whose head is evicted by any lower index once it is full
+     */
+    private static final class IndexList {
+        private long count;
+        private final PriorityQueue<Long> lowestIndices = new PriorityQueue<>(MAX_REPORTED_INDICES, Collections.reverseOrder());
+        private List<Long> indices = Collections.emptyList();
+
+        synchronized void add(long index) {
+            count++;
+            if (lowestIndices.size() < MAX_REPORTED_INDICES) {
+                lowestIndices.add(index);
+            } else if (index < lowestIndices.peek()) {
+                lowestIndices.poll();
+                lowestIndices.add(index);
+            }
+        }
+
+        synchronized IndexList sorted() {
+            IndexList sorted = new IndexList();
+            sorted.count = count;
+            List<Long> sortedIndices = new ArrayList<>(lowestIndices);
+            Collections.sort(sortedIndices);
+            sorted.indices = Collections.unmodifiableList(sortedIndices);
+            return sorted;
+        }
+    }
+}
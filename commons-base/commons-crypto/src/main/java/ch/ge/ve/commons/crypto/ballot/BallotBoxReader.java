@@ -0,0 +1,179 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
+import ch.ge.ve.commons.streamutils.SafeObjectReader;
+import ch.ge.ve.commons.streamutils.SafeObjectSecurityRuntimeException;
+
+import javax.crypto.SealedObject;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Reads a ballot box, in either of its formats:
+ * <ul>
+ * <li>the binary envelope format, as written by {@link BallotBoxWriter}</li>
+ * <li>the former format, a serialized list of {@link EncryptedBallotAndWrappedKey}s holding {@link SealedObject}s,
+ * read with {@link SafeObjectReader}</li>
+ * </ul>
+ * The format is detected from the first bytes of the stream.
+ */
+public final class BallotBoxReader {
+    private static final int INITIAL_ENVELOPE_CAPACITY = 1024;
+
+    private BallotBoxReader() {
+        // utility class, do not allow to instantiate it
+    }
+
+    /**
+     * Reads the ballots of a ballot box, handing each of them over to the given consumer as soon as it has been read.
+     *
+     * @param maxObjects the maximum number of objects allowed to be read (for the envelope format: of ballots)
+     * @param maxBytes   the maximum number of bytes allowed to be read
+     * @param in         the ballot box, from an untrusted source
+     * @param consumer   the consumer of the ballots, called on the reading thread in the order of the ballot box
+     * @return the number of ballots read
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws SafeObjectSecurityRuntimeException if the limits are exceeded or the contents are not allowed
+     */
+    public static long readBallots(long maxObjects, long maxBytes, InputStream in, Consumer<? super EncryptedBallotAndWrappedKey> consumer) throws IOException, ClassNotFoundException {
+        return readBallots(maxObjects, maxBytes, in, count -> {
+        }, consumer);
+    }
+
+    /**
+     * Reads the ballots of a ballot box as {@link #readBallots(long, long, InputStream, Consumer)} does, and also
+     * hands the number of ballots announced by the box over to the given listener, as soon as it is known: for the
+     * former format, the size of the serialized list is read ahead of the ballots, whereas the envelope format only
+     * tells the number of ballots at its end, the listener being then called once all of them have been read.
+     *
+     * @param maxObjects    the maximum number of objects allowed to be read (for the envelope format: of ballots)
+     * @param maxBytes      the maximum number of bytes allowed to be read
+     * @param in            the ballot box, from an untrusted source
+     * @param countListener the listener of the number of ballots, called at most once on the reading thread
+     * @param consumer      the consumer of the ballots, called on the reading thread in the order of the ballot box
+     * @return the number of ballots read
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws SafeObjectSecurityRuntimeException if the limits are exceeded or the contents are not allowed
+     */
+    public static long readBallots(long maxObjects, long maxBytes, InputStream in, LongConsumer countListener, Consumer<? super EncryptedBallotAndWrappedKey> consumer) throws IOException, ClassNotFoundException {
+        return readBallots(maxObjects, maxBytes, in, countListener, consumer,
+                envelope -> consumer.accept(new EncryptedBallotAndWrappedKey(BallotEnvelopeCodec.decode(envelope))));
+    }
+
+    /**
+     * Reads the ballots of a ballot box as {@link #readBallots(long, long, InputStream, LongConsumer, Consumer)} does,
+     * but hands the ballots of the envelope format over to <tt>envelopeConsumer</tt> as they are encoded, without
+     * decoding them (<i>e.g.</i> to copy them into an {@link EncryptedBallotArena}). The ballots of the former format
+     * are still handed over to <tt>consumer</tt>.
+     *
+     * @param maxObjects       the maximum number of objects allowed to be read (for the envelope format: of ballots)
+     * @param maxBytes         the maximum number of bytes allowed to be read
+     * @param in               the ballot box, from an untrusted source
+     * @param countListener    the listener of the number of ballots, called at most once on the reading thread
+     * @param consumer         the consumer of the ballots of the former format, called on the reading thread in the order of the ballot box
+     * @param envelopeConsumer the consumer of the encoded envelopes, called on the reading thread in the order of the ballot
+     *                         box, with a buffer that is reused for the next envelope once the call returns
+     * @return the number of ballots read
+     * @throws IOException if the ballot box cannot be read, or if the consumer rejects an envelope as malformed
+     * @throws ClassNotFoundException
+     * @throws SafeObjectSecurityRuntimeException if the limits are exceeded or the contents are not allowed
+     */
+    public static long readBallots(long maxObjects, long maxBytes, InputStream in, LongConsumer countListener,
+                                   Consumer<? super EncryptedBallotAndWrappedKey> consumer, Consumer<? super ByteBuffer> envelopeConsumer) throws IOException, ClassNotFoundException {
+        BufferedInputStream bis = new BufferedInputStream(in);
+        bis.mark(BallotBoxWriter.BOX_MAGIC.length);
+        byte[] magic = new byte[BallotBoxWriter.BOX_MAGIC.length];
+        int read = readFully(bis, magic);
+        bis.reset();
+
+        if (read == magic.length && Arrays.equals(magic, BallotBoxWriter.BOX_MAGIC)) {
+            long count = readEnvelopes(maxObjects, maxBytes, new DataInputStream(bis), envelopeConsumer);
+            countListener.accept(count);
+            return count;
+        }
+        return SafeObjectReader.safeReadElements(
+                ArrayList.class,
+                EncryptedBallotAndWrappedKey.class,
+                Collections.singletonList(SealedObject.class),
+                maxObjects,
+                maxBytes,
+                bis,
+                countListener,
+                consumer);
+    }
+
+    private static long readEnvelopes(long maxBallots, long maxBytes, DataInputStream in, Consumer<? super ByteBuffer> envelopeConsumer) throws IOException {
+        in.skipBytes(BallotBoxWriter.BOX_MAGIC.length);
+        int version = in.readUnsignedByte();
+        if (version != BallotBoxWriter.BOX_VERSION_1) {
+            throw new IOException("unsupported ballot box version: " + version);
+        }
+        long bytesRead = BallotBoxWriter.BOX_MAGIC.length + 1L;
+        long count = 0;
+        ByteBuffer envelope = ByteBuffer.allocate(INITIAL_ENVELOPE_CAPACITY);
+        try {
+            int length;
+            while ((length = in.readInt()) != 0) {
+                bytesRead += Integer.BYTES + Integer.toUnsignedLong(length);
+                if (length < 0 || bytesRead > maxBytes) {
+                    throw new SafeObjectSecurityRuntimeException("Security violation: attempt to read too many bytes from ballot box. Limit is " + maxBytes);
+                }
+                if (++count > maxBallots) {
+                    throw new SafeObjectSecurityRuntimeException("Security violation: attempt to read too many ballots from ballot box. Limit is " + maxBallots);
+                }
+                if (length > envelope.capacity()) {
+                    envelope = ByteBuffer.allocate(length);
+                }
+                in.readFully(envelope.array(), 0, length);
+                envelope.clear().limit(length);
+                envelopeConsumer.accept(envelope);
+            }
+        } catch (EOFException e) {
+            throw new IOException("truncated ballot box, after " + count + " ballots", e);
+        } catch (CryptoOperationRuntimeException e) {
+            throw new IOException("malformed ballot #" + count + " in ballot box", e);
+        }
+        return count;
+    }
+
+    private static int readFully(InputStream in, byte[] bytes) throws IOException {
+        int total = 0;
+        int read;
+        while (total < bytes.length && (read = in.read(bytes, total, bytes.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,133 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a ballot box in the binary envelope format.
+ * <p>
+ * The ballot box starts with the {@link #BOX_MAGIC} bytes and the {@link #BOX_VERSION_1} byte, followed by one record
+ * per ballot (the length of the envelope as a 4 bytes big-endian integer, then the envelope, see
+ * {@link BallotEnvelopeCodec}), and ends with an empty record, so that truncated files are detected. It is read by
+ * {@link BallotBoxReader}.
+ * </p>
+ * <p>
+ * The empty record is only written by {@link #finish()}, once all the ballots have been written: a ballot box closed
+ * without being finished, <i>e.g.</i> after a failed {@link #write(EncryptedBallotAndWrappedKey)}, is left truncated,
+ * and is rejected by {@link BallotBoxReader}.
+ * </p>
+ * <p>
+ * Instances are not thread safe.
+ * </p>
+ */
+public class BallotBoxWriter implements Closeable {
+    /**
+     * the first bytes of a ballot box in the envelope format
+     */
+    static final byte[] BOX_MAGIC = "CHVB".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * the first version of the ballot box format
+     */
+    static final int BOX_VERSION_1 = 1;
+
+    private final DataOutputStream out;
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+    private long count;
+    private boolean finished;
+
+    /**
+     * Writes the ballot box header
+     *
+     * @param out the target stream, closed along with this writer
+     * @throws IOException
+     */
+    public BallotBoxWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.write(BOX_MAGIC);
+        this.out.writeByte(BOX_VERSION_1);
+    }
+
+    /**
+     * @param encryptedBallotAndWrappedKey a ballot held in an envelope, as provided by
+     *                                     {@link BallotCipherService#verifyAuthenticationThenUnwrap(AuthenticatedBallot)}
+     * @throws IOException
+     * @throws IllegalArgumentException if the ballot is held in a sealed object
+     * @throws IllegalStateException if the ballot box is already finished
+     */
+    public void write(EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("the ballot box is already finished");
+        }
+        BallotEnvelope envelope = encryptedBallotAndWrappedKey.getEnvelope();
+        if (envelope == null) {
+            throw new IllegalArgumentException("only ballots held in an envelope can be written to the ballot box");
+        }
+        int length = BallotEnvelopeCodec.encodedLength(envelope);
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(length);
+        }
+        buffer.clear();
+        BallotEnvelopeCodec.encode(envelope, buffer);
+        out.writeInt(length);
+        out.write(buffer.array(), 0, length);
+        count++;
+    }
+
+    /**
+     * @return the number of ballots written so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Writes the end of the ballot box, once all the ballots have been written, and flushes it. No ballot may be
+     * written afterwards.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            out.writeInt(0);
+            out.flush();
+        }
+    }
+
+    /**
+     * Closes the underlying stream, the ballot box being left truncated unless {@link #finish()} has been called
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,247 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
+import ch.ge.ve.commons.crypto.utils.SecureRandomFactory;
+import ch.ge.ve.commons.properties.PropertyConfigurationException;
+import ch.ge.ve.commons.properties.PropertyConfigurationService;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Thread-confined holder of the cryptographic primitives used by the {@link BallotCipherService}.
+ * <p>
+ * Instantiating ciphers, key generators and PRNGs (and loading the keys) costs more than encrypting a single ballot,
+ * hence each thread keeps its own context and reuses it from one ballot to the next. The elements are resolved lazily,
+ * since an encryption service never needs the private key and a decryption service never needs the public key.
+ * </p>
+ * <p>
+ * A context is bound to a generation of the keys configuration: the {@link BallotCipherService} discards it as soon as
+ * one of the keys files is changed. Instances are not thread safe and must never be shared between threads.
+ * </p>
+ */
+class BallotCipherContext {
+    private final BallotCiphersProvider ciphersProvider;
+    private final PropertyConfigurationService propertyConfigurationService;
+    private final int keysGeneration;
+
+    private SecureRandom secureRandom;
+    private Cipher ballotCipher;
+    private Cipher ballotKeyCipher;
+    private BallotKeyUnwrapper ballotKeyUnwrapper;
+    private EcBallotKeyEncapsulation ecBallotKeyEncapsulation;
+    private Cipher integrityCipher;
+    private KeyGenerator symmetricKeyGenerator;
+    private Key ballotKeyCipherPublicKey;
+    private Key integrityKey;
+    private Boolean legacyFormat;
+    private Integer integrityVersion;
+    private final byte[] integrityNonce = new byte[BallotCipherService.INTEGRITY_NONCE_SIZE];
+    private byte[] byteBuffer = new byte[0];
+    private char[] charBuffer = new char[0];
+
+    /**
+     * @param ciphersProvider              the provider of the ciphers and keys
+     * @param propertyConfigurationService the configuration service defining the algorithms to use
+     * @param keysGeneration               the generation of the keys configuration this context is built for
+     */
+    BallotCipherContext(BallotCiphersProvider ciphersProvider, PropertyConfigurationService propertyConfigurationService, int keysGeneration) {
+        this.ciphersProvider = ciphersProvider;
+        this.propertyConfigurationService = propertyConfigurationService;
+        this.keysGeneration = keysGeneration;
+    }
+
+    int getKeysGeneration() {
+        return keysGeneration;
+    }
+
+    SecureRandom getSecureRandom() {
+        if (secureRandom == null) {
+            secureRandom = SecureRandomFactory.createPRNG();
+        }
+        return secureRandom;
+    }
+
+    Cipher getBallotCipher() {
+        if (ballotCipher == null) {
+            ballotCipher = ciphersProvider.getBallotCipher();
+        }
+        return ballotCipher;
+    }
+
+    Cipher getBallotKeyCipher() {
+        if (ballotKeyCipher == null) {
+            ballotKeyCipher = ciphersProvider.getBallotKeyCipher();
+        }
+        return ballotKeyCipher;
+    }
+
+    /**
+     * @return the unwrapper of the ballot keys, initialized once per private key
+     */
+    BallotKeyUnwrapper getBallotKeyUnwrapper() {
+        if (ballotKeyUnwrapper == null) {
+            String engine;
+            try {
+                engine = propertyConfigurationService.isDefined(BallotCiphersProvider.BALLOT_KEY_UNWRAP_ENGINE)
+                        ? propertyConfigurationService.getConfigValue(BallotCiphersProvider.BALLOT_KEY_UNWRAP_ENGINE)
+                        : BallotKeyUnwrapper.ENGINE_JCE;
+            } catch (PropertyConfigurationException e) {
+                throw new CryptoConfigurationRuntimeException("ballot key unwrap engine is invalid", e);
+            }
+            ballotKeyUnwrapper = BallotKeyUnwrapper.create(engine.trim(), getBallotKeyCipher(), getSecureRandom());
+        }
+        return ballotKeyUnwrapper;
+    }
+
+    /**
+     * @return the wrapper and unwrapper of the ballot keys, when the Election Officers' keys are EC keys
+     */
+    EcBallotKeyEncapsulation getEcBallotKeyEncapsulation() {
+        if (ecBallotKeyEncapsulation == null) {
+            ecBallotKeyEncapsulation = new EcBallotKeyEncapsulation();
+        }
+        return ecBallotKeyEncapsulation;
+    }
+
+    Cipher getIntegrityCipher() {
+        if (integrityCipher == null) {
+            integrityCipher = ciphersProvider.getIntegrityCipher(propertyConfigurationService);
+        }
+        return integrityCipher;
+    }
+
+    /**
+     * @return a key generator for the first layer symmetric cipher, initialized with the configured key size
+     */
+    KeyGenerator getSymmetricKeyGenerator() {
+        if (symmetricKeyGenerator == null) {
+            try {
+                symmetricKeyGenerator = KeyGenerator.getInstance(getBallotCipherAlgorithmName());
+            } catch (NoSuchAlgorithmException e) {
+                throw new CryptoConfigurationRuntimeException("first layer symmetric cipher key algorithm is invalid", e);
+            }
+            symmetricKeyGenerator.init(ciphersProvider.getBallotCipherSize(), getSecureRandom());
+        }
+        return symmetricKeyGenerator;
+    }
+
+    /**
+     * @return the plain name of the first layer symmetric cipher algorithm (<i>e.g.</i> "AES")
+     */
+    String getBallotCipherAlgorithmName() {
+        return BallotCipherService.getAlgoPlainName(getBallotCipher().getAlgorithm());
+    }
+
+    /**
+     * @return <tt>true</tt> if the ballots must be encrypted into serialized sealed objects rather than envelopes, which
+     * is the case unless the legacy format is explicitly disabled
+     */
+    boolean isLegacyFormat() {
+        if (legacyFormat == null) {
+            try {
+                legacyFormat = !propertyConfigurationService.isDefined(BallotCiphersProvider.BALLOT_LEGACY_FORMAT)
+                        || propertyConfigurationService.getConfigValueAsBoolean(BallotCiphersProvider.BALLOT_LEGACY_FORMAT);
+            } catch (PropertyConfigurationException e) {
+                throw new CryptoConfigurationRuntimeException("ballot format is invalid", e);
+            }
+        }
+        return legacyFormat;
+    }
+
+    /**
+     * @return the version of the integrity layer the ballots must be authenticated with
+     */
+    int getIntegrityVersion() {
+        if (integrityVersion == null) {
+            int version;
+            try {
+                version = propertyConfigurationService.isDefined(BallotCiphersProvider.BALLOT_INTEGRITY_VERSION)
+                        ? propertyConfigurationService.getConfigValueAsInt(BallotCiphersProvider.BALLOT_INTEGRITY_VERSION)
+                        : AuthenticatedBallot.INTEGRITY_VERSION_1;
+            } catch (PropertyConfigurationException e) {
+                throw new CryptoConfigurationRuntimeException("integrity version is invalid", e);
+            }
+            if (version != AuthenticatedBallot.INTEGRITY_VERSION_1 && version != AuthenticatedBallot.INTEGRITY_VERSION_2) {
+                throw new CryptoConfigurationRuntimeException("unsupported integrity version: " + version);
+            }
+            integrityVersion = version;
+        }
+        return integrityVersion;
+    }
+
+    /**
+     * @return the identifier of the first layer symmetric cipher algorithm in the envelope format
+     */
+    int getBallotAlgorithmId() {
+        return BallotEnvelopeCodec.algorithmId(getBallotCipher().getAlgorithm());
+    }
+
+    Key getBallotKeyCipherPublicKey() {
+        if (ballotKeyCipherPublicKey == null) {
+            ballotKeyCipherPublicKey = ciphersProvider.getBallotKeyCipherPublicKey();
+        }
+        return ballotKeyCipherPublicKey;
+    }
+
+    Key getIntegrityKey() {
+        if (integrityKey == null) {
+            integrityKey = ciphersProvider.getIntegrityCheckSecretKey();
+        }
+        return integrityKey;
+    }
+
+    /**
+     * @return the buffer of the nonce of the integrity layer, reused by the subsequent calls
+     */
+    byte[] getIntegrityNonce() {
+        return integrityNonce;
+    }
+
+    /**
+     * @param minLength the minimal length of the buffer
+     * @return a working buffer of at least <tt>minLength</tt> bytes, reused by the subsequent calls
+     */
+    byte[] getByteBuffer(int minLength) {
+        if (byteBuffer.length < minLength) {
+            byteBuffer = new byte[minLength];
+        }
+        return byteBuffer;
+    }
+
+    /**
+     * @param minLength the minimal length of the buffer
+     * @return a working buffer of at least <tt>minLength</tt> chars, reused by the subsequent calls
+     */
+    char[] getCharBuffer(int minLength) {
+        if (charBuffer.length < minLength) {
+            charBuffer = new char[minLength];
+        }
+        return charBuffer;
+    }
+}
@@ -25,37 +25,100 @@ import ch.ge.ve.commons.crypto.exceptions.AuthenticationTagMismatchException;
 import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
 import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
 import ch.ge.ve.commons.crypto.exceptions.PrivateKeyPasswordMismatchException;
-import ch.ge.ve.commons.crypto.utils.SecureRandomFactory;
 import ch.ge.ve.commons.properties.PropertyConfigurationService;
 
 import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
 import org.bouncycastle.crypto.modes.AEADBlockCipher;
 import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.HKDFParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 import javax.crypto.*;
 import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * This class is responsible for managing the encryption and decryption of ballot related elements:
  * <ul>
- * <li>the ballot contents themselves, see {@link #encryptBallotThenWrapForAuthentication(String, int)}, {@link #verifyAuthenticationThenUnwrap(AuthenticatedBallot)} and {@link #decryptBallot(EncryptedBallotAndWrappedKey)} </li>
+ * <li>the ballot contents themselves, see {@link #encryptBallotThenWrapForAuthentication(String, int)} (or
+ * {@link #encryptBallotsThenWrapForAuthentication(Collection, Executor)} for batches, or
+ * {@link #encryptBallotsThenWrapForAuthentication(Iterator, Executor, Consumer)} for streams), {@link #verifyAuthenticationThenUnwrap(AuthenticatedBallot)} (or
+ * {@link #verifyAuthentications(Iterator, long, Executor)} for whole ballot boxes) and {@link #decryptBallot(EncryptedBallotAndWrappedKey)} </li>
  * </ul>
  */
 public class BallotCipherService {
     public static final int AEAD_TAG_SIZE = 128;
+
+    /**
+     * Size of the nonce of the first layer symmetric encryption, in bytes (the recommended size for GCM)
+     */
+    static final int BALLOT_NONCE_SIZE = 12;
+
+    /**
+     * Size of the nonce of the second layer authenticated encryption, in bytes, see {@link AuthenticatedBallot#INTEGRITY_VERSION_2}
+     */
+    static final int INTEGRITY_NONCE_SIZE = 12;
+
+    private static final byte[] NO_WRAPPED_KEY = new byte[0];
+
+    private static final int DERIVED_KEY_LENGTH = 32;
+
+    /**
+     * Number of ballots encrypted by a single task of a batch encryption: large enough for the task scheduling cost to
+     * be negligible, small enough for the ballots to be spread evenly amongst the executor's threads.
+     */
+    static final int BATCH_CHUNK_SIZE = 256;
+
+    /**
+     * Number of chunks of a whole ballot box verification submitted to the executor and not completed yet, beyond
+     * which the reading of the ballots waits, so that the ballot box is never held entirely in memory.
+     */
+    static final int MAX_PENDING_VERIFICATION_CHUNKS = 64;
+
+    /**
+     * Number of chunks of a streamed batch encryption submitted to the executor and not handed over to the consumer
+     * yet, beyond which the reading of the plain text ballots waits for the oldest chunk.
+     */
+    static final int MAX_PENDING_ENCRYPTION_CHUNKS = 64;
+
     private final BallotCiphersProvider ciphersProvider;
 
     private final PropertyConfigurationService propertyConfigurationService;
 
+    /**
+     * Incremented each time a key file is changed, so that the per-thread contexts built with the former keys are
+     * discarded upon their next use.
+     */
+    private final AtomicInteger keysGeneration = new AtomicInteger();
+
+    private final ThreadLocal<BallotCipherContext> cipherContext = new ThreadLocal<>();
+
     /**
      * The default constructor.
      *
@@ -96,7 +159,7 @@ public class BallotCipherService {
      * @param transformation expected input examples: "AES/CBC/PKCS5PADDING", "AES", ...
      * @return the name of the underlying algorithm (<i>e.g.</i> "AES", "RSA", ...)
      */
-    private static String getAlgoPlainName(String transformation) {
+    static String getAlgoPlainName(String transformation) {
         return transformation.split("/")[0];
     }
 
@@ -104,9 +167,12 @@ public class BallotCipherService {
      * Encrypts the ballot contents (supports any String), to an AuthenticatedBallot
      * <p>The process is two-fold</p>
      * <ul>
-     * <li>First, the ballot is encrypted using the Election officials public key and standard mixed encryption</li>
+     * <li>First, the ballot is encrypted using the Election officials public key and standard mixed encryption, into
+     * a serialized {@link SealedObject} (or a {@link BallotEnvelope} if {@link BallotCiphersProvider#BALLOT_LEGACY_FORMAT}
+     * is set to <tt>false</tt>)</li>
      * <li>Second, the resulting encrypted ballot and wrapped key are encrypted a second time, using an AEAD cipher,
-     * using the ballot index as associated data.</li>
+     * using the ballot index as associated data, in the version set by {@link BallotCiphersProvider#BALLOT_INTEGRITY_VERSION}
+     * ({@link AuthenticatedBallot#INTEGRITY_VERSION_1} by default).</li>
      * </ul>
      * <p>The result is an AuthenticatedBallot</p>
      *
@@ -117,44 +183,142 @@ public class BallotCipherService {
      * @throws CryptoOperationRuntimeException
      */
     public AuthenticatedBallot encryptBallotThenWrapForAuthentication(String plainText, int ballotIndex)  {
-        Cipher ballotKeyCipher = ciphersProvider.getBallotKeyCipher();
-        Cipher ballotCipher = ciphersProvider.getBallotCipher();
+        return encryptBallotThenWrapForAuthentication(plainText, (long) ballotIndex);
+    }
+
+    /**
+     * Encrypts the ballot contents, as {@link #encryptBallotThenWrapForAuthentication(String, int)} does, for a ballot
+     * index that can go beyond <tt>Integer.MAX_VALUE</tt> in the {@link AuthenticatedBallot#INTEGRITY_VERSION_2} version.
+     *
+     * @param plainText   the plainText to be encrypted
+     * @param ballotIndex the index of the ballot (since it is authenticated, it prevents the copy of one vote to another)
+     * @return an AuthenticatedBallot ready for storage
+     * @throws CryptoConfigurationRuntimeException
+     * @throws CryptoOperationRuntimeException if the index does not fit in the configured integrity version
+     */
+    public AuthenticatedBallot encryptBallotThenWrapForAuthentication(String plainText, long ballotIndex)  {
+        BallotCipherContext context = getCipherContext();
+        int integrityVersion = context.getIntegrityVersion();
+        if (integrityVersion == AuthenticatedBallot.INTEGRITY_VERSION_1 && (ballotIndex < Integer.MIN_VALUE || ballotIndex > Integer.MAX_VALUE)) {
+            throw new CryptoOperationRuntimeException("ballot index out of the range of the integrity version 1: " + ballotIndex);
+        }
 
         // Generate a random symmetric key, renewed for each ballot
-        Key plainSymmetricKey = createNewRandomSymmetricKey(ballotCipher);
+        Key plainSymmetricKey = context.getSymmetricKeyGenerator().generateKey();
 
         // Initialise the first layer symmetric cipher and  perform the first layer of symmetric encryption
-        byte[] encryptedBallot = doFirstLayerEncryption(plainText, ballotCipher, plainSymmetricKey);
-
-        Key integrityKey = ciphersProvider.getIntegrityCheckSecretKey();
-        Cipher integrityCipher = ciphersProvider.getIntegrityCipher(propertyConfigurationService);
-
-        byte[] authenticatedBallot = aeadEncrypt(integrityCipher, integrityKey, ballotIndex, encryptedBallot);
+        byte[] encryptedBallot;
+        if (context.isLegacyFormat()) {
+            encryptedBallot = doFirstLayerEncryption(plainText, context.getBallotCipher(), plainSymmetricKey, context.getSecureRandom());
+        } else {
+            encryptedBallot = encryptIntoEnvelope(plainText, context, plainSymmetricKey);
+        }
 
-        // Due to the lack of an API to retrieve the tag from the cipher, it must be extracted from the resulting ciphertext
-        // BouncyCastle simply appends the tag to the ciphertext and verifies it upon decryption
-        byte[] tag = Arrays.copyOfRange(authenticatedBallot, authenticatedBallot.length - (AEAD_TAG_SIZE / Byte.SIZE), authenticatedBallot.length);
+        byte[] authenticatedBallot = aeadEncrypt(context, ballotIndex, integrityVersion, encryptedBallot);
 
         // Wrapping of the random symmetric key using the Electoral Officers' public key
-        byte[] wrappedKey = wrapKey(ballotKeyCipher, plainSymmetricKey);
+        byte[] wrappedKey = wrapKey(context, plainSymmetricKey);
 
-        return new AuthenticatedBallot(wrappedKey, authenticatedBallot, ballotIndex, tag);
+        // BouncyCastle simply appends the tag to the ciphertext and verifies it upon decryption, the tag is not duplicated
+        return new AuthenticatedBallot(wrappedKey, authenticatedBallot, ballotIndex, integrityVersion);
     }
 
-    private Key createNewRandomSymmetricKey(Cipher ballotCipher) {
-        KeyGenerator generator;
+    /**
+     * Encrypts a batch of ballots, in the same way as {@link #encryptBallotThenWrapForAuthentication(String, int)}.
+     * <p>
+     * The ballots are split in chunks that are encrypted by the given executor. Each of the executor's threads
+     * resolves the ciphers and keys once, and reuses them for all the ballots it encrypts.
+     * </p>
+     *
+     * @param plainTextBallots the ballots to be encrypted, with their indices
+     * @param executor         the executor performing the encryption
+     * @return the AuthenticatedBallots, in the iteration order of <tt>plainTextBallots</tt>
+     * @throws CryptoConfigurationRuntimeException
+     * @throws CryptoOperationRuntimeException
+     */
+    public List<AuthenticatedBallot> encryptBallotsThenWrapForAuthentication(Collection<PlainTextBallot> plainTextBallots, Executor executor) {
+        List<AuthenticatedBallot> authenticatedBallots = new ArrayList<>(plainTextBallots.size());
+        encryptBallotsThenWrapForAuthentication(plainTextBallots.iterator(), executor, authenticatedBallots::add);
+        return authenticatedBallots;
+    }
+
+    /**
+     * Encrypts a stream of ballots, in the same way as {@link #encryptBallotsThenWrapForAuthentication(Collection, Executor)},
+     * handing the encrypted ballots over to the consumer instead of gathering them.
+     * <p>
+     * The ballots are read on the calling thread and encrypted by chunks on the given executor. At most
+     * {@link #MAX_PENDING_ENCRYPTION_CHUNKS} chunks are in flight: beyond that, the reading waits for the oldest chunk
+     * to be encrypted and handed over, so that neither the plain text ballots nor the encrypted ones are ever held
+     * entirely in memory.
+     * </p>
+     *
+     * @param plainTextBallots the ballots to be encrypted, with their indices
+     * @param executor         the executor performing the encryption
+     * @param consumer         the consumer of the AuthenticatedBallots, called on the calling thread in the iteration
+     *                         order of <tt>plainTextBallots</tt>
+     * @throws CryptoConfigurationRuntimeException
+     * @throws CryptoOperationRuntimeException
+     */
+    public void encryptBallotsThenWrapForAuthentication(Iterator<PlainTextBallot> plainTextBallots, Executor executor, Consumer<? super AuthenticatedBallot> consumer) {
+        Deque<CompletableFuture<List<AuthenticatedBallot>>> pendingChunks = new ArrayDeque<>();
+        List<PlainTextBallot> chunk = new ArrayList<>(BATCH_CHUNK_SIZE);
         try {
-            generator = KeyGenerator.getInstance(getAlgoPlainName(ballotCipher.getAlgorithm()));
-        } catch (NoSuchAlgorithmException e) {
-            throw new CryptoConfigurationRuntimeException("first layer symmetric cipher key algorithm is invalid", e);
+            while (plainTextBallots.hasNext()) {
+                chunk.add(plainTextBallots.next());
+                if (chunk.size() == BATCH_CHUNK_SIZE) {
+                    if (pendingChunks.size() == MAX_PENDING_ENCRYPTION_CHUNKS) {
+                        pendingChunks.removeFirst().join().forEach(consumer);
+                    }
+                    pendingChunks.addLast(encryptChunkAsync(chunk, executor));
+                    chunk = new ArrayList<>(BATCH_CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                if (pendingChunks.size() == MAX_PENDING_ENCRYPTION_CHUNKS) {
+                    pendingChunks.removeFirst().join().forEach(consumer);
+                }
+                pendingChunks.addLast(encryptChunkAsync(chunk, executor));
+            }
+            while (!pendingChunks.isEmpty()) {
+                pendingChunks.removeFirst().join().forEach(consumer);
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new CryptoOperationRuntimeException("batch encryption error", e.getCause());
         }
-        generator.init(ciphersProvider.getBallotCipherSize(), SecureRandomFactory.createPRNG());
-        return generator.generateKey();
     }
 
-    private byte[] doFirstLayerEncryption(String plainText, Cipher ballotCipher, Key plainSymmetricKey) {
+    private CompletableFuture<List<AuthenticatedBallot>> encryptChunkAsync(List<PlainTextBallot> chunk, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<AuthenticatedBallot> authenticatedBallots = new ArrayList<>(chunk.size());
+            for (PlainTextBallot plainTextBallot : chunk) {
+                authenticatedBallots.add(encryptBallotThenWrapForAuthentication(plainTextBallot.getPlainText(), plainTextBallot.getBallotIndex()));
+            }
+            return authenticatedBallots;
+        }, executor);
+    }
+
+    /**
+     * Retrieves the cipher context of the current thread, building a new one if none exists yet or if the keys
+     * have been changed since it was built.
+     *
+     * @return the cipher context confined to the current thread
+     */
+    private BallotCipherContext getCipherContext() {
+        int currentGeneration = keysGeneration.get();
+        BallotCipherContext context = cipherContext.get();
+        if (context == null || context.getKeysGeneration() != currentGeneration) {
+            context = new BallotCipherContext(ciphersProvider, propertyConfigurationService, currentGeneration);
+            cipherContext.set(context);
+        }
+        return context;
+    }
+
+    private byte[] doFirstLayerEncryption(String plainText, Cipher ballotCipher, Key plainSymmetricKey, SecureRandom secureRandom) {
         try {
-            ballotCipher.init(Cipher.ENCRYPT_MODE, plainSymmetricKey, SecureRandomFactory.createPRNG());
+            ballotCipher.init(Cipher.ENCRYPT_MODE, plainSymmetricKey, secureRandom);
         } catch (InvalidKeyException e) {
             throw new CryptoConfigurationRuntimeException("first layer symmetric cipher key is invalid", e);
         }
@@ -168,13 +332,42 @@ public class BallotCipherService {
         return encryptedBallot;
     }
 
-    private byte[] aeadEncrypt(Cipher cipher, Key integrityKey, int ballotIndex, byte[] encryptedBallot) {
-        byte[] ballotIndexBytes = BigInteger.valueOf(ballotIndex).toByteArray();
-        GCMParameterSpec spec = new GCMParameterSpec(AEAD_TAG_SIZE, ballotIndexBytes);
+    private byte[] encryptIntoEnvelope(String plainText, BallotCipherContext context, Key plainSymmetricKey) {
+        Cipher ballotCipher = context.getBallotCipher();
+        byte[] nonce = new byte[BALLOT_NONCE_SIZE];
+        context.getSecureRandom().nextBytes(nonce);
+        byte[] plainTextBytes = plainText.getBytes(StandardCharsets.UTF_8);
+
+        byte[] cipherTextAndTag;
+        int length;
+        try {
+            ballotCipher.init(Cipher.ENCRYPT_MODE, plainSymmetricKey, new GCMParameterSpec(AEAD_TAG_SIZE, nonce));
+            cipherTextAndTag = context.getByteBuffer(ballotCipher.getOutputSize(plainTextBytes.length));
+            length = ballotCipher.doFinal(plainTextBytes, 0, plainTextBytes.length, cipherTextAndTag);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+            throw new CryptoConfigurationRuntimeException("first layer symmetric cipher key is invalid", e);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoOperationRuntimeException("cannot encrypt ballot", e);
+        }
+
+        // The cipher appends the tag to the cipher text, the envelope keeps them apart
+        int cipherTextLength = length - AEAD_TAG_SIZE / Byte.SIZE;
+        BallotEnvelope envelope = new BallotEnvelope(
+                context.getBallotAlgorithmId(),
+                nonce,
+                NO_WRAPPED_KEY,
+                Arrays.copyOf(cipherTextAndTag, cipherTextLength),
+                Arrays.copyOfRange(cipherTextAndTag, cipherTextLength, length));
+        return BallotEnvelopeCodec.encode(envelope);
+    }
+
+    private byte[] aeadEncrypt(BallotCipherContext context, long ballotIndex, int integrityVersion, byte[] encryptedBallot) {
+        Cipher cipher = context.getIntegrityCipher();
+        byte[] nonce = integrityNonce(context, ballotIndex, integrityVersion);
         byte[] result;
         try {
-            cipher.init(Cipher.ENCRYPT_MODE, integrityKey, spec);
-            cipher.updateAAD(ballotIndexBytes);
+            cipher.init(Cipher.ENCRYPT_MODE, context.getIntegrityKey(), new GCMParameterSpec(AEAD_TAG_SIZE, nonce));
+            cipher.updateAAD(nonce);
 
             result = cipher.doFinal(encryptedBallot);
         } catch (BadPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException e) {
@@ -184,10 +377,47 @@ public class BallotCipherService {
         return result;
     }
 
-    private byte[] wrapKey(Cipher ballotKeyCipher, Key plainSymmetricKey) {
+    /**
+     * Builds the nonce (and associated data) of the second layer for the given integrity version
+     */
+    private static byte[] integrityNonce(BallotCipherContext context, long ballotIndex, int integrityVersion) {
+        switch (integrityVersion) {
+            case AuthenticatedBallot.INTEGRITY_VERSION_1:
+                return BigInteger.valueOf(ballotIndex).toByteArray();
+            case AuthenticatedBallot.INTEGRITY_VERSION_2:
+                return integrityNonce(context.getIntegrityNonce(), ballotIndex);
+            default:
+                throw new CryptoOperationRuntimeException("unsupported integrity version: " + integrityVersion);
+        }
+    }
+
+    /**
+     * Writes the nonce of the second layer, in the {@link AuthenticatedBallot#INTEGRITY_VERSION_2} version, into the
+     * given buffer: the version (4 bytes) followed by the ballot index (8 bytes), both big-endian
+     */
+    private static byte[] integrityNonce(byte[] nonce, long ballotIndex) {
+        int version = AuthenticatedBallot.INTEGRITY_VERSION_2;
+        for (int i = 3; i >= 0; i--) {
+            nonce[i] = (byte) version;
+            version >>>= Byte.SIZE;
+        }
+        long index = ballotIndex;
+        for (int i = INTEGRITY_NONCE_SIZE - 1; i >= 4; i--) {
+            nonce[i] = (byte) index;
+            index >>>= Byte.SIZE;
+        }
+        return nonce;
+    }
+
+    private byte[] wrapKey(BallotCipherContext context, Key plainSymmetricKey) {
+        Key ballotKeyCipherPublicKey = context.getBallotKeyCipherPublicKey();
+        if (ballotKeyCipherPublicKey instanceof ECPublicKey) {
+            return context.getEcBallotKeyEncapsulation().wrap(plainSymmetricKey, (ECPublicKey) ballotKeyCipherPublicKey, context.getSecureRandom());
+        }
+        Cipher ballotKeyCipher = context.getBallotKeyCipher();
         byte[] wrappedKey;
         try {
-            ballotKeyCipher.init(Cipher.WRAP_MODE, ciphersProvider.getBallotKeyCipherPublicKey(), SecureRandomFactory.createPRNG());
+            ballotKeyCipher.init(Cipher.WRAP_MODE, ballotKeyCipherPublicKey, context.getSecureRandom());
             wrappedKey = ballotKeyCipher.wrap(plainSymmetricKey);
         } catch (InvalidKeyException e) {
             throw new CryptoConfigurationRuntimeException("wrapping public key is invalid", e);
@@ -206,16 +436,18 @@ public class BallotCipherService {
      * @throws CryptoOperationRuntimeException
      */
     public EncryptedBallotAndWrappedKey verifyAuthenticationThenUnwrap(AuthenticatedBallot authenticatedBallot) throws AuthenticationTagMismatchException {
-        Key integrityKey = ciphersProvider.getIntegrityCheckSecretKey();
-        Cipher integrityCipher = ciphersProvider.getIntegrityCipher(propertyConfigurationService);
+        BallotCipherContext context = getCipherContext();
 
         byte[] bytes;
         try {
-            bytes = aeadDecrypt(integrityCipher, integrityKey, authenticatedBallot.getBallotIndex(), authenticatedBallot.getAuthenticatedEncryptedBallot());
+            bytes = aeadDecrypt(context, authenticatedBallot);
         } catch (AEADBadTagException e) {
             throw new AuthenticationTagMismatchException(e.getMessage());
         }
 
+        if (!BallotEnvelopeCodec.isLegacyFormat(bytes)) {
+            return new EncryptedBallotAndWrappedKey(BallotEnvelopeCodec.decode(bytes).withWrappedKey(authenticatedBallot.getWrappedKey()));
+        }
         try {
             return new EncryptedBallotAndWrappedKey(toSealedObject(bytes), authenticatedBallot.getWrappedKey());
         } catch (IOException | ClassNotFoundException e) {
@@ -223,15 +455,74 @@ public class BallotCipherService {
         }
     }
 
-    private byte[] aeadDecrypt(Cipher cipher, Key integrityKey, int ballotIndex, byte[] authenticatedEncryptedBallot) throws AEADBadTagException {
-        byte[] ballotIndexBytes = BigInteger.valueOf(ballotIndex).toByteArray();
-        GCMParameterSpec spec = new GCMParameterSpec(AEAD_TAG_SIZE, ballotIndexBytes);
+    /**
+     * Verifies the authenticity of all the ballots of a ballot box, as {@link #verifyAuthenticationThenUnwrap(AuthenticatedBallot)}
+     * does for a single ballot, and checks that their indices are exactly the expected ones.
+     * <p>
+     * The ballots are read on the calling thread and verified by chunks on the given executor, each of its threads
+     * resolving the ciphers and keys once. The indices are recorded in a bitmap, to find the duplicate and missing ones.
+     * </p>
+     *
+     * @param authenticatedBallots the ballots of the ballot box, as stored in the database
+     * @param expectedBallotsCount the expected number of ballots, indexed from 1 to <tt>expectedBallotsCount</tt>
+     * @param executor             the executor performing the verification
+     * @return the report of the verification, listing the anomalies
+     * @throws CryptoConfigurationRuntimeException
+     */
+    public BallotBoxIntegrityReport verifyAuthentications(Iterator<AuthenticatedBallot> authenticatedBallots, long expectedBallotsCount, Executor executor) {
+        BallotBoxIntegrityReport.Collector collector = new BallotBoxIntegrityReport.Collector(expectedBallotsCount);
+        Deque<CompletableFuture<Void>> pendingChunks = new ArrayDeque<>();
+        List<AuthenticatedBallot> chunk = new ArrayList<>(BATCH_CHUNK_SIZE);
+        try {
+            while (authenticatedBallots.hasNext()) {
+                chunk.add(authenticatedBallots.next());
+                if (chunk.size() == BATCH_CHUNK_SIZE) {
+                    if (pendingChunks.size() == MAX_PENDING_VERIFICATION_CHUNKS) {
+                        pendingChunks.removeFirst().join();
+                    }
+                    pendingChunks.addLast(verifyChunkAsync(chunk, collector, executor));
+                    chunk = new ArrayList<>(BATCH_CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                pendingChunks.addLast(verifyChunkAsync(chunk, collector, executor));
+            }
+            for (CompletableFuture<Void> pendingChunk : pendingChunks) {
+                pendingChunk.join();
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new CryptoOperationRuntimeException("ballot box verification error", e.getCause());
+        }
+        return collector.report();
+    }
+
+    private CompletableFuture<Void> verifyChunkAsync(List<AuthenticatedBallot> chunk, BallotBoxIntegrityReport.Collector collector, Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            BallotCipherContext context = getCipherContext();
+            for (AuthenticatedBallot authenticatedBallot : chunk) {
+                collector.recordIndex(authenticatedBallot.getBallotIndexAsLong());
+                try {
+                    aeadDecrypt(context, authenticatedBallot);
+                    collector.verified();
+                } catch (AEADBadTagException | CryptoOperationRuntimeException e) {
+                    collector.failed(authenticatedBallot.getBallotIndexAsLong());
+                }
+            }
+        }, executor);
+    }
+
+    private byte[] aeadDecrypt(BallotCipherContext context, AuthenticatedBallot authenticatedBallot) throws AEADBadTagException {
+        byte[] nonce = integrityNonce(context, authenticatedBallot.getBallotIndexAsLong(), authenticatedBallot.getIntegrityVersion());
+        Cipher cipher = context.getIntegrityCipher();
         byte[] result;
         try {
-            cipher.init(Cipher.DECRYPT_MODE, integrityKey, spec);
-            cipher.updateAAD(ballotIndexBytes);
+            cipher.init(Cipher.DECRYPT_MODE, context.getIntegrityKey(), new GCMParameterSpec(AEAD_TAG_SIZE, nonce));
+            cipher.updateAAD(nonce);
 
-            result = cipher.doFinal(authenticatedEncryptedBallot);
+            result = cipher.doFinal(authenticatedBallot.getAuthenticatedEncryptedBallot());
         } catch (AEADBadTagException e) {
             // In case of a tag mismatch, we want the exception to be handled by the caller
             throw e;
@@ -251,24 +542,86 @@ public class BallotCipherService {
      * @throws CryptoOperationRuntimeException
      */
     public String decryptBallot(EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey) {
-        Cipher ballotKeyCipher = ciphersProvider.getBallotKeyCipher();
-        Cipher ballotCipher = ciphersProvider.getBallotCipher();
+        return decryptBallot(encryptedBallotAndWrappedKey, null);
+    }
+
+    /**
+     * Decrypts a ballot, see {@link #decryptBallot(EncryptedBallotAndWrappedKey)}, reporting the durations of the
+     * unwrapping of its key and of its decryption. The durations are not reported if the decryption fails.
+     *
+     * @param encryptedBallotAndWrappedKey an EncryptedBallotAndWrappedKey, as provided per a previous call to {@link #verifyAuthenticationThenUnwrap(AuthenticatedBallot)}
+     * @param timings                      the receiver of the durations, or <tt>null</tt>
+     * @return the ballot's original contents
+     * @throws CryptoConfigurationRuntimeException
+     * @throws CryptoOperationRuntimeException
+     */
+    public String decryptBallot(EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey, BallotDecryptionTimings timings) {
+        BallotCipherContext context = getCipherContext();
 
         // Unwrap the random key k_i, using the Election Officers' private key
-        try {
-            ballotKeyCipher.init(Cipher.UNWRAP_MODE, ciphersProvider.getBallotKeyCipherPrivateKey());
-        } catch (InvalidKeyException e) {
-            throw new CryptoConfigurationRuntimeException("decryption key is invalid", e);
+        long start = timings != null ? System.nanoTime() : 0L;
+        Key plainSymmetricKey = unwrapKey(context, encryptedBallotAndWrappedKey.getWrappedKey());
+        if (timings != null) {
+            long unwrapped = System.nanoTime();
+            timings.keyUnwrapped(unwrapped - start);
+            start = unwrapped;
         }
-        Key plainSymmetricKey;
-        try {
-            plainSymmetricKey = ballotKeyCipher.unwrap(encryptedBallotAndWrappedKey.getWrappedKey(), getAlgoPlainName(ballotCipher.getAlgorithm()), Cipher.SECRET_KEY);
-        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
-            throw new CryptoOperationRuntimeException("key unwrapping error", e);
+
+        String ballot = decryptWithUnwrappedKey(encryptedBallotAndWrappedKey, plainSymmetricKey, context);
+        if (timings != null) {
+            timings.ballotDecrypted(System.nanoTime() - start);
+        }
+        return ballot;
+    }
+
+    /**
+     * Decrypts a ballot held in an {@link EncryptedBallotArena}, see
+     * {@link #decryptBallot(EncryptedBallotAndWrappedKey, BallotDecryptionTimings)}, straight from the bytes of the
+     * view, without decoding its envelope.
+     *
+     * @param ballotView a view of an encrypted ballot, see {@link EncryptedBallotArena#read(int, EncryptedBallotArena.BallotView)}
+     * @param timings    the receiver of the durations, or <tt>null</tt>
+     * @return the ballot's original contents
+     * @throws CryptoConfigurationRuntimeException
+     * @throws CryptoOperationRuntimeException
+     */
+    public String decryptBallot(EncryptedBallotArena.BallotView ballotView, BallotDecryptionTimings timings) {
+        BallotCipherContext context = getCipherContext();
+
+        long start = timings != null ? System.nanoTime() : 0L;
+        Key plainSymmetricKey = unwrapKey(context, ballotView.getWrappedKey());
+        if (timings != null) {
+            long unwrapped = System.nanoTime();
+            timings.keyUnwrapped(unwrapped - start);
+            start = unwrapped;
         }
 
-        // Decrypt the ballot using the unwrapped key k_i
+        byte[] bytes = ballotView.bytes;
+        String ballot = decryptEnvelope(ballotView.algorithmId, bytes, ballotView.nonceOffset, ballotView.nonceLength,
+                bytes, ballotView.cipherTextOffset, ballotView.cipherTextLength, bytes, ballotView.tagOffset, ballotView.tagLength,
+                plainSymmetricKey, context);
+        if (timings != null) {
+            timings.ballotDecrypted(System.nanoTime() - start);
+        }
+        return ballot;
+    }
+
+    private String decryptWithUnwrappedKey(EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey, Key plainSymmetricKey, BallotCipherContext context) {
+        BallotEnvelope envelope = encryptedBallotAndWrappedKey.getEnvelope();
+        if (envelope != null) {
+            byte[] nonce = envelope.getNonce();
+            byte[] cipherText = envelope.getCipherText();
+            byte[] tag = envelope.getTag();
+            return decryptEnvelope(envelope.getAlgorithmId(), nonce, 0, nonce.length, cipherText, 0, cipherText.length, tag, 0, tag.length,
+                    plainSymmetricKey, context);
+        }
+
+        // Decrypt the ballot using the unwrapped key k_i, reusing the cipher of the current thread whenever possible
         SealedObject sealedBallot = encryptedBallotAndWrappedKey.getEncryptedBallot();
+        String ballot = SealedBallotDecoder.decrypt(sealedBallot, plainSymmetricKey, context);
+        if (ballot != null) {
+            return ballot;
+        }
         try {
             return (String) sealedBallot.getObject(plainSymmetricKey);
         } catch (IOException | ClassNotFoundException | NoSuchAlgorithmException | InvalidKeyException e) {
@@ -276,6 +629,62 @@ public class BallotCipherService {
         }
     }
 
+    private Key unwrapKey(BallotCipherContext context, byte[] wrappedKey) {
+        Key privateKey = ciphersProvider.getBallotKeyCipherPrivateKey();
+        return privateKey instanceof ECPrivateKey
+                ? context.getEcBallotKeyEncapsulation().unwrap(wrappedKey, context.getBallotCipherAlgorithmName(), (ECPrivateKey) privateKey)
+                : context.getBallotKeyUnwrapper().unwrap(wrappedKey, context.getBallotCipherAlgorithmName(), privateKey);
+    }
+
+    private String decryptEnvelope(int algorithmId, byte[] nonce, int nonceOffset, int nonceLength,
+                                   byte[] cipherText, int cipherTextOffset, int cipherTextLength,
+                                   byte[] tag, int tagOffset, int tagLength,
+                                   Key plainSymmetricKey, BallotCipherContext context) {
+        if (algorithmId != context.getBallotAlgorithmId()) {
+            throw new CryptoOperationRuntimeException("unexpected ballot algorithm: " + algorithmId);
+        }
+        Cipher ballotCipher = context.getBallotCipher();
+        try {
+            ballotCipher.init(Cipher.DECRYPT_MODE, plainSymmetricKey, new GCMParameterSpec(tagLength * Byte.SIZE, nonce, nonceOffset, nonceLength));
+            int outputSize = ballotCipher.getOutputSize(cipherTextLength + tagLength);
+            byte[] plainText = context.getByteBuffer(outputSize);
+            try {
+                int length = ballotCipher.update(cipherText, cipherTextOffset, cipherTextLength, plainText, 0);
+                length += ballotCipher.doFinal(tag, tagOffset, tagLength, plainText, length);
+                return new String(plainText, 0, length, StandardCharsets.UTF_8);
+            } finally {
+                // the buffer is kept by the thread, the cleartext ballot must not stay in it
+                Arrays.fill(plainText, 0, outputSize, (byte) 0);
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new CryptoOperationRuntimeException("ballot decryption error", e);
+        }
+    }
+
+    /**
+     * Derives a symmetric key from the Election Officers' private key, with HKDF-SHA256, for data which must be
+     * protected across sessions, and be readable again only once the same private key has been unlocked
+     * (<i>e.g.</i> the checkpoints of a decryption).
+     *
+     * @param salt    random bytes, stored along with the protected data
+     * @param purpose a label binding the key to its use
+     * @return an AES-256 key
+     * @throws CryptoConfigurationRuntimeException if the private key cannot be encoded
+     */
+    public SecretKey deriveSecretKey(byte[] salt, String purpose) {
+        Key privateKey = ciphersProvider.getBallotKeyCipherPrivateKey();
+        byte[] encodedPrivateKey = privateKey == null ? null : privateKey.getEncoded();
+        if (encodedPrivateKey == null) {
+            throw new CryptoConfigurationRuntimeException("the decryption key cannot be used for key derivation");
+        }
+        HKDFBytesGenerator kdf = new HKDFBytesGenerator(new SHA256Digest());
+        kdf.init(new HKDFParameters(encodedPrivateKey, salt, purpose.getBytes(StandardCharsets.UTF_8)));
+        byte[] derivedKey = new byte[DERIVED_KEY_LENGTH];
+        kdf.generateBytes(derivedKey, 0, derivedKey.length);
+        Arrays.fill(encodedPrivateKey, (byte) 0);
+        return new SecretKeySpec(derivedKey, "AES");
+    }
+
     /**
      * Unlocks the private key for decryption.
      *
@@ -292,8 +701,8 @@ public class BallotCipherService {
      * @param privateKeyFileName the path to the private key
      */
     public void setPrivateKeyFileName(String privateKeyFileName) {
-        ciphersProvider.invalidatePrivateKeyCache();
         propertyConfigurationService.addConfigValue(BallotCiphersProvider.PRIVATE_KEY_FILE_NAME, privateKeyFileName);
+        invalidatePrivateKeyCache();
     }
 
     /**
@@ -302,8 +711,8 @@ public class BallotCipherService {
      * @param publicKeyFileName the path to the public key
      */
     public void setPublicKeyFileName(String publicKeyFileName) {
-        ciphersProvider.invalidatePublicKeyCache();
         propertyConfigurationService.addConfigValue(BallotCiphersProvider.PUBLIC_KEY_FILE_NAME, publicKeyFileName);
+        invalidatePublicKeyCache();
     }
 
     /**
@@ -312,8 +721,35 @@ public class BallotCipherService {
      * @param integrityKeyFileName the path to the integrity key
      */
     public void setIntegrityKeyFileName(String integrityKeyFileName) {
-        ciphersProvider.invalidateIntegrityKeyCache();
         propertyConfigurationService.addConfigValue(BallotCiphersProvider.INTEGRITY_KEY_FILE_NAME, integrityKeyFileName);
+        invalidateIntegrityKeyCache();
+    }
+
+    /**
+     * Clears the private key in memory, see {@link BallotCiphersProvider#invalidatePrivateKeyCache()}, and the cipher
+     * contexts of all the threads, which are rebuilt upon their next use.
+     */
+    public void invalidatePrivateKeyCache() {
+        ciphersProvider.invalidatePrivateKeyCache();
+        keysGeneration.incrementAndGet();
+    }
+
+    /**
+     * Clears the public key in memory, see {@link BallotCiphersProvider#invalidatePublicKeyCache()}, and the cipher
+     * contexts of all the threads, which are rebuilt upon their next use.
+     */
+    public void invalidatePublicKeyCache() {
+        ciphersProvider.invalidatePublicKeyCache();
+        keysGeneration.incrementAndGet();
+    }
+
+    /**
+     * Clears the integrity key in memory, see {@link BallotCiphersProvider#invalidateIntegrityKeyCache()}, and the
+     * cipher contexts of all the threads, which are rebuilt upon their next use.
+     */
+    public void invalidateIntegrityKeyCache() {
+        ciphersProvider.invalidateIntegrityKeyCache();
+        keysGeneration.incrementAndGet();
     }
 
 }
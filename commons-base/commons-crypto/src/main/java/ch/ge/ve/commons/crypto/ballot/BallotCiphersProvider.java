@@ -48,7 +48,15 @@ public interface BallotCiphersProvider {
     String BALLOT_CRYPTING_KEY_SIZE = "common.crypto.ballot.cipher.keySize";
 
     /**
-     * Nom de la propriété contenant l'algorithme de chiffrement utilisé pour chiffrer les clés spécifiques à chaque bulletin.
+     * Nom de la propriété indiquant si les bulletins sont chiffrés dans l'ancien format (<tt>SealedObject</tt> sérialisé)
+     * plutôt que dans le format binaire, voir {@link BallotEnvelopeCodec}. L'ancien format est utilisé par défaut, les
+     * bulletins au format binaire ne pouvant être exportés qu'avec un {@link BallotBoxWriter}.
+     */
+    String BALLOT_LEGACY_FORMAT = "common.crypto.ballot.legacyFormat";
+
+    /**
+     * Nom de la propriété contenant l'algorithme de chiffrement utilisé pour chiffrer les clés spécifiques à chaque bulletin :
+     * <tt>RSA</tt>, ou <tt>EC</tt> pour une encapsulation de clé sur courbe elliptique, voir {@link EcBallotKeyEncapsulation}.
      */
     String BALLOT_KEY_CRYPTING_ALGORITHM = "common.crypto.electoralBoard.cipher.algorithm";
 
@@ -61,6 +69,12 @@ public interface BallotCiphersProvider {
      * Nom de la propriété contenant la taille de la clé de chiffrement utilisée pour chiffrer les clés spécifiques à chaque bulletin.
      */
     String BALLOT_KEY_CRYPTING_KEY_SIZE = "common.crypto.electoralBoard.cipher.keySize";
+
+    /**
+     * Nom de la propriété contenant le moteur utilisé pour déchiffrer les clés spécifiques à chaque bulletin,
+     * {@link BallotKeyUnwrapper#ENGINE_JCE} (par défaut) ou {@link BallotKeyUnwrapper#ENGINE_BC}.
+     */
+    String BALLOT_KEY_UNWRAP_ENGINE = "common.crypto.electoralBoard.cipher.unwrapEngine";
     /**
      * Nom de la propriété contenant l'algorithme de chiffrement utilisé pour chiffrer le compteur de votes.
      */
@@ -76,6 +90,13 @@ public interface BallotCiphersProvider {
      */
     String BALLOT_INTEGRITY_CHECK_CRYPTING_KEY_SIZE = "common.crypto.integrity.keySize";
 
+    /**
+     * Nom de la propriété contenant la version de la couche d'intégrité des nouveaux bulletins,
+     * {@link AuthenticatedBallot#INTEGRITY_VERSION_1} (par défaut) ou {@link AuthenticatedBallot#INTEGRITY_VERSION_2}.
+     * Les bulletins sont toujours vérifiés dans la version avec laquelle ils ont été stockés.
+     */
+    String BALLOT_INTEGRITY_VERSION = "common.crypto.integrity.version";
+
     /**
      * Nom de la propriété contenant le chemin du fichier contenant la clé publique de chiffrement des votes.
      */
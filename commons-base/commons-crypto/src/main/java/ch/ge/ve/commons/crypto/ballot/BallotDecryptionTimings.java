@@ -0,0 +1,42 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+/**
+ * Receiver of the durations of the two steps of the decryption of a ballot, see
+ * {@link BallotCipherService#decryptBallot(EncryptedBallotAndWrappedKey, BallotDecryptionTimings)} and
+ * {@link BallotCipherService#decryptBallot(EncryptedBallotArena.BallotView, BallotDecryptionTimings)}.
+ * <p>
+ * Implementations are called from all the decrypting threads, and must be thread safe.
+ * </p>
+ */
+public interface BallotDecryptionTimings {
+    /**
+     * @param nanos the duration of the unwrapping of the key of a ballot, with the Election Officers' private key
+     */
+    void keyUnwrapped(long nanos);
+
+    /**
+     * @param nanos the duration of the symmetric decryption of a ballot, once its key is unwrapped
+     */
+    void ballotDecrypted(long nanos);
+}
@@ -0,0 +1,122 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+/**
+ * <p>
+ * This class is a pojo holding a ballot encrypted with a random key k_i, in the binary envelope format (see
+ * {@link BallotEnvelopeCodec} for the encoding).
+ * </p>
+ * <p>
+ * It replaces the serialized {@link javax.crypto.SealedObject} of the former format: the envelope only contains the
+ * elements required for decryption, without class descriptors nor algorithm names, and the authentication tag is kept
+ * apart from the cipher text.
+ * </p>
+ * <p>
+ * Within an {@link AuthenticatedBallot}, the wrapped key is stored along the authenticated ballot, hence the envelope is
+ * encoded with an empty wrapped key. Within a ballot box, the envelope carries its own wrapped key.
+ * </p>
+ */
+public class BallotEnvelope {
+    /**
+     * the identifier of the algorithm used to encrypt the ballot, see {@link BallotEnvelopeCodec#ALGORITHM_AES_GCM}
+     */
+    private final int algorithmId;
+
+    /**
+     * the nonce used to encrypt the ballot
+     */
+    private final byte[] nonce;
+
+    /**
+     * the random key k_i, wrapped with the Electoral Officers public key (empty if it is stored elsewhere)
+     */
+    private final byte[] wrappedKey;
+
+    /**
+     * the ballot contents encrypted with key k_i, without the authentication tag
+     */
+    private final byte[] cipherText;
+
+    /**
+     * the authentication tag of the encryption with key k_i
+     */
+    private final byte[] tag;
+
+    /**
+     * @param algorithmId the identifier of the algorithm used to encrypt the ballot
+     * @param nonce       the nonce used to encrypt the ballot
+     * @param wrappedKey  the random key k_i, wrapped with the Electoral Officers public key (empty if it is stored elsewhere)
+     * @param cipherText  the ballot contents encrypted with key k_i, without the authentication tag
+     * @param tag         the authentication tag of the encryption with key k_i
+     */
+    public BallotEnvelope(int algorithmId, byte[] nonce, byte[] wrappedKey, byte[] cipherText, byte[] tag) {
+        this.algorithmId = algorithmId;
+        this.nonce = nonce;
+        this.wrappedKey = wrappedKey;
+        this.cipherText = cipherText;
+        this.tag = tag;
+    }
+
+    /**
+     * @param wrappedKey the random key k_i, wrapped with the Electoral Officers public key
+     * @return a copy of this envelope, holding the given wrapped key
+     */
+    public BallotEnvelope withWrappedKey(byte[] wrappedKey) {
+        return new BallotEnvelope(algorithmId, nonce, wrappedKey, cipherText, tag);
+    }
+
+    /**
+     * @return the algorithmId
+     */
+    public int getAlgorithmId() {
+        return algorithmId;
+    }
+
+    /**
+     * @return the nonce
+     */
+    public byte[] getNonce() {
+        return nonce;
+    }
+
+    /**
+     * @return the wrappedKey
+     */
+    public byte[] getWrappedKey() {
+        return wrappedKey;
+    }
+
+    /**
+     * @return the cipherText
+     */
+    public byte[] getCipherText() {
+        return cipherText;
+    }
+
+    /**
+     * @return the authentication tag
+     */
+    public byte[] getTag() {
+        return tag;
+    }
+}
@@ -0,0 +1,240 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder and decoder of the binary ballot envelope format.
+ * <p>
+ * An envelope is encoded as follows, all the integers being unsigned and big-endian:
+ * </p>
+ * <table summary="ballot envelope, version 1">
+ * <tr><th>size (bytes)</th><th>content</th></tr>
+ * <tr><td>1</td><td>format version, {@link #FORMAT_VERSION_1}</td></tr>
+ * <tr><td>1</td><td>algorithm identifier, {@link #ALGORITHM_AES_GCM}</td></tr>
+ * <tr><td>1</td><td>nonce length <i>n</i></td></tr>
+ * <tr><td><i>n</i></td><td>nonce</td></tr>
+ * <tr><td>2</td><td>wrapped key length <i>k</i> (0 if the wrapped key is stored elsewhere)</td></tr>
+ * <tr><td><i>k</i></td><td>wrapped key</td></tr>
+ * <tr><td>4</td><td>cipher text length <i>c</i></td></tr>
+ * <tr><td><i>c</i></td><td>cipher text, without the authentication tag</td></tr>
+ * <tr><td>1</td><td>authentication tag length <i>t</i></td></tr>
+ * <tr><td><i>t</i></td><td>authentication tag</td></tr>
+ * </table>
+ * <p>
+ * The format version can never be mistaken for the first byte of a Java serialization stream (<tt>0xAC</tt>), which
+ * is how the ballots encrypted in the former format (a serialized {@link javax.crypto.SealedObject}) are told apart,
+ * see {@link #isLegacyFormat(byte[])}.
+ * </p>
+ */
+public final class BallotEnvelopeCodec {
+    /**
+     * the first version of the envelope format
+     */
+    public static final int FORMAT_VERSION_1 = 1;
+
+    /**
+     * identifier of the AES/GCM/NoPadding algorithm
+     */
+    public static final int ALGORITHM_AES_GCM = 1;
+
+    private static final String AES_GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final byte[] EMPTY = new byte[0];
+    private static final int MAX_UNSIGNED_BYTE = 0xFF;
+    private static final int MAX_UNSIGNED_SHORT = 0xFFFF;
+    private static final int HEADER_LENGTH = 3;
+    private static final int LENGTHS_LENGTH = 2 + 4 + 1;
+    private static final byte[] SERIALIZATION_MAGIC = {(byte) 0xAC, (byte) 0xED};
+
+    private BallotEnvelopeCodec() {
+        // utility class, do not allow to instantiate it
+    }
+
+    /**
+     * @param transformation the transformation of the ballot cipher (<i>e.g.</i> "AES/GCM/NoPadding")
+     * @return the identifier of the algorithm in the envelope format
+     * @throws CryptoConfigurationRuntimeException if the algorithm cannot be represented in the envelope format
+     */
+    public static int algorithmId(String transformation) {
+        if (AES_GCM_TRANSFORMATION.equalsIgnoreCase(transformation)) {
+            return ALGORITHM_AES_GCM;
+        }
+        throw new CryptoConfigurationRuntimeException("ballot cipher " + transformation + " is not supported by the ballot envelope format");
+    }
+
+    /**
+     * @param encryptedBallot an encrypted ballot
+     * @return <tt>true</tt> if the ballot is a serialized {@link javax.crypto.SealedObject}, <tt>false</tt> if it is an envelope
+     */
+    public static boolean isLegacyFormat(byte[] encryptedBallot) {
+        return encryptedBallot.length >= SERIALIZATION_MAGIC.length
+                && encryptedBallot[0] == SERIALIZATION_MAGIC[0]
+                && encryptedBallot[1] == SERIALIZATION_MAGIC[1];
+    }
+
+    /**
+     * @param envelope the envelope to encode
+     * @return the number of bytes of the encoded envelope
+     */
+    public static int encodedLength(BallotEnvelope envelope) {
+        return HEADER_LENGTH + LENGTHS_LENGTH
+                + envelope.getNonce().length + lengthOf(envelope.getWrappedKey()) + envelope.getCipherText().length + envelope.getTag().length;
+    }
+
+    /**
+     * @param envelope the envelope to encode
+     * @return the encoded envelope
+     * @throws CryptoOperationRuntimeException if one of the elements is too long for the format
+     */
+    public static byte[] encode(BallotEnvelope envelope) {
+        byte[] bytes = new byte[encodedLength(envelope)];
+        encode(envelope, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Encodes an envelope at the current position of the buffer
+     *
+     * @param envelope the envelope to encode
+     * @param buffer   the target buffer, with at least {@link #encodedLength(BallotEnvelope)} bytes remaining
+     * @throws CryptoOperationRuntimeException if one of the elements is too long for the format
+     */
+    public static void encode(BallotEnvelope envelope, ByteBuffer buffer) {
+        byte[] wrappedKey = envelope.getWrappedKey() == null ? EMPTY : envelope.getWrappedKey();
+        checkLength("nonce", envelope.getNonce().length, MAX_UNSIGNED_BYTE);
+        checkLength("wrapped key", wrappedKey.length, MAX_UNSIGNED_SHORT);
+        checkLength("tag", envelope.getTag().length, MAX_UNSIGNED_BYTE);
+
+        buffer.put((byte) FORMAT_VERSION_1);
+        buffer.put((byte) envelope.getAlgorithmId());
+        buffer.put((byte) envelope.getNonce().length);
+        buffer.put(envelope.getNonce());
+        buffer.putShort((short) wrappedKey.length);
+        buffer.put(wrappedKey);
+        buffer.putInt(envelope.getCipherText().length);
+        buffer.put(envelope.getCipherText());
+        buffer.put((byte) envelope.getTag().length);
+        buffer.put(envelope.getTag());
+    }
+
+    /**
+     * @param bytes an encoded envelope
+     * @return the decoded envelope
+     * @throws CryptoOperationRuntimeException if the bytes are not a well-formed envelope
+     */
+    public static BallotEnvelope decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * @param buffer a buffer whose remaining bytes hold exactly one encoded envelope
+     * @return the decoded envelope
+     * @throws CryptoOperationRuntimeException if the bytes are not a well-formed envelope
+     */
+    public static BallotEnvelope decode(ByteBuffer buffer) {
+        BallotEnvelope envelope;
+        try {
+            checkVersion(Byte.toUnsignedInt(buffer.get()));
+            int algorithmId = Byte.toUnsignedInt(buffer.get());
+            byte[] nonce = readBytes(buffer, Byte.toUnsignedInt(buffer.get()));
+            byte[] wrappedKey = readBytes(buffer, Short.toUnsignedInt(buffer.getShort()));
+            byte[] cipherText = readBytes(buffer, buffer.getInt());
+            byte[] tag = readBytes(buffer, Byte.toUnsignedInt(buffer.get()));
+            envelope = new BallotEnvelope(algorithmId, nonce, wrappedKey, cipherText, tag);
+        } catch (BufferUnderflowException e) {
+            throw new CryptoOperationRuntimeException("malformed ballot envelope: truncated", e);
+        }
+        checkNoTrailingBytes(buffer);
+        return envelope;
+    }
+
+    /**
+     * Checks that the remaining bytes of a buffer hold exactly one well-formed envelope, as {@link #decode(ByteBuffer)}
+     * does, but without copying any of its elements, nor moving the position of the buffer
+     *
+     * @param buffer a buffer whose remaining bytes should hold exactly one encoded envelope
+     * @throws CryptoOperationRuntimeException if the bytes are not a well-formed envelope
+     */
+    public static void check(ByteBuffer buffer) {
+        ByteBuffer envelope = buffer.duplicate();
+        try {
+            checkVersion(Byte.toUnsignedInt(envelope.get()));
+            // the algorithm identifier is checked upon decryption
+            envelope.get();
+            skipBytes(envelope, Byte.toUnsignedInt(envelope.get()));
+            skipBytes(envelope, Short.toUnsignedInt(envelope.getShort()));
+            skipBytes(envelope, envelope.getInt());
+            skipBytes(envelope, Byte.toUnsignedInt(envelope.get()));
+        } catch (BufferUnderflowException e) {
+            throw new CryptoOperationRuntimeException("malformed ballot envelope: truncated", e);
+        }
+        checkNoTrailingBytes(envelope);
+    }
+
+    private static void checkVersion(int version) {
+        if (version != FORMAT_VERSION_1) {
+            throw new CryptoOperationRuntimeException("unsupported ballot envelope version: " + version);
+        }
+    }
+
+    private static void checkNoTrailingBytes(ByteBuffer buffer) {
+        if (buffer.hasRemaining()) {
+            throw new CryptoOperationRuntimeException("malformed ballot envelope: " + buffer.remaining() + " trailing bytes");
+        }
+    }
+
+    private static void skipBytes(ByteBuffer buffer, int length) {
+        checkRemaining(buffer, length);
+        buffer.position(buffer.position() + length);
+    }
+
+    private static void checkRemaining(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new CryptoOperationRuntimeException("malformed ballot envelope: invalid length " + Integer.toUnsignedString(length));
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int length) {
+        checkRemaining(buffer, length);
+        if (length == 0) {
+            return EMPTY;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static int lengthOf(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void checkLength(String element, int length, int maxLength) {
+        if (length > maxLength) {
+            throw new CryptoOperationRuntimeException("ballot envelope " + element + " is too long: " + length + " bytes");
+        }
+    }
+}
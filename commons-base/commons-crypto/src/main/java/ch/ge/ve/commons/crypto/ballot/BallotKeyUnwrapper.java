@@ -0,0 +1,199 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.encodings.OAEPEncoding;
+import org.bouncycastle.crypto.engines.RSABlindedEngine;
+import org.bouncycastle.crypto.params.ParametersWithRandom;
+import org.bouncycastle.crypto.params.RSAPrivateCrtKeyParameters;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateCrtKey;
+
+/**
+ * Unwraps the keys of the ballots with the Election Officers' private key, which is by far the most expensive step of
+ * the decryption of a ballot.
+ * <p>
+ * An unwrapper is held by the {@link BallotCipherContext} of a thread, and is only initialized again when the private
+ * key changes. Two engines are available, see {@link BallotCiphersProvider#BALLOT_KEY_UNWRAP_ENGINE}:
+ * </p>
+ * <ul>
+ * <li>{@link #ENGINE_JCE}: the configured ballot key cipher, from the configured provider</li>
+ * <li>{@link #ENGINE_BC}: BouncyCastle's lightweight OAEP encoding over a blinded RSA engine, which saves the JCE
+ * dispatching and key translation, only available for the RSA/ECB/OAEPWithSHA1AndMGF1Padding cipher</li>
+ * </ul>
+ * <p>
+ * Both engines use the Chinese Remainder Theorem, which is why the private key must be a full CRT key, see
+ * {@link #checkCrtKey(Key)}. Instances are not thread safe.
+ * </p>
+ */
+public abstract class BallotKeyUnwrapper {
+    /**
+     * the engine relying on the configured ballot key cipher
+     */
+    public static final String ENGINE_JCE = "JCE";
+
+    /**
+     * the engine relying on BouncyCastle's lightweight API
+     */
+    public static final String ENGINE_BC = "BC";
+
+    private static final String[] SUPPORTED_BC_TRANSFORMATIONS = {
+            "RSA/ECB/OAEPWithSHA1AndMGF1Padding", "RSA/ECB/OAEPWithSHA-1AndMGF1Padding", "RSA/NONE/OAEPWithSHA1AndMGF1Padding"
+    };
+
+    private Key privateKey;
+
+    /**
+     * @param engine          the engine, {@link #ENGINE_JCE} or {@link #ENGINE_BC}
+     * @param ballotKeyCipher the configured ballot key cipher
+     * @param secureRandom    the generator used for the blinding of the RSA operations
+     * @return a new unwrapper
+     * @throws CryptoConfigurationRuntimeException if the engine is unknown, or does not support the cipher
+     */
+    static BallotKeyUnwrapper create(String engine, Cipher ballotKeyCipher, SecureRandom secureRandom) {
+        if (ENGINE_JCE.equalsIgnoreCase(engine)) {
+            return new JceUnwrapper(ballotKeyCipher);
+        }
+        if (ENGINE_BC.equalsIgnoreCase(engine)) {
+            for (String transformation : SUPPORTED_BC_TRANSFORMATIONS) {
+                if (transformation.equalsIgnoreCase(ballotKeyCipher.getAlgorithm())) {
+                    return new BcUnwrapper(secureRandom);
+                }
+            }
+            throw new CryptoConfigurationRuntimeException("ballot key unwrap engine " + engine + " does not support " + ballotKeyCipher.getAlgorithm());
+        }
+        throw new CryptoConfigurationRuntimeException("unknown ballot key unwrap engine: " + engine);
+    }
+
+    /**
+     * Checks that a private key holds all the parameters of the Chinese Remainder Theorem, the private operations
+     * being about four times slower without them
+     *
+     * @param privateKey the Election Officers' private key
+     * @throws CryptoConfigurationRuntimeException if the key is not a full RSA CRT key
+     */
+    public static void checkCrtKey(Key privateKey) {
+        if (!(privateKey instanceof RSAPrivateCrtKey)) {
+            throw new CryptoConfigurationRuntimeException("the decryption key is not an RSA CRT private key");
+        }
+        RSAPrivateCrtKey crtKey = (RSAPrivateCrtKey) privateKey;
+        BigInteger[] crtParameters = {crtKey.getPublicExponent(), crtKey.getPrimeP(), crtKey.getPrimeQ(),
+                crtKey.getPrimeExponentP(), crtKey.getPrimeExponentQ(), crtKey.getCrtCoefficient()};
+        for (BigInteger crtParameter : crtParameters) {
+            if (crtParameter == null || crtParameter.signum() <= 0) {
+                throw new CryptoConfigurationRuntimeException("the decryption key lacks some of its CRT parameters");
+            }
+        }
+    }
+
+    /**
+     * @param wrappedKey   the wrapped key of a ballot
+     * @param keyAlgorithm the algorithm of the wrapped key
+     * @param privateKey   the Election Officers' private key
+     * @return the key of the ballot
+     * @throws CryptoConfigurationRuntimeException if the private key is invalid
+     * @throws CryptoOperationRuntimeException     if the key cannot be unwrapped
+     */
+    Key unwrap(byte[] wrappedKey, String keyAlgorithm, Key privateKey) {
+        if (privateKey != this.privateKey) {
+            checkCrtKey(privateKey);
+            init((RSAPrivateCrtKey) privateKey);
+            this.privateKey = privateKey;
+        }
+        return doUnwrap(wrappedKey, keyAlgorithm);
+    }
+
+    abstract void init(RSAPrivateCrtKey privateKey);
+
+    abstract Key doUnwrap(byte[] wrappedKey, String keyAlgorithm);
+
+    private static final class JceUnwrapper extends BallotKeyUnwrapper {
+        private final Cipher ballotKeyCipher;
+
+        JceUnwrapper(Cipher ballotKeyCipher) {
+            // a cipher of its own, since the ballot key cipher of the context is also initialized for wrapping
+            try {
+                this.ballotKeyCipher = Cipher.getInstance(ballotKeyCipher.getAlgorithm(), ballotKeyCipher.getProvider());
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                throw new CryptoConfigurationRuntimeException("cannot instantiate the ballot key cipher", e);
+            }
+        }
+
+        @Override
+        void init(RSAPrivateCrtKey privateKey) {
+            try {
+                ballotKeyCipher.init(Cipher.UNWRAP_MODE, privateKey);
+            } catch (InvalidKeyException e) {
+                throw new CryptoConfigurationRuntimeException("decryption key is invalid", e);
+            }
+        }
+
+        @Override
+        Key doUnwrap(byte[] wrappedKey, String keyAlgorithm) {
+            try {
+                return ballotKeyCipher.unwrap(wrappedKey, keyAlgorithm, Cipher.SECRET_KEY);
+            } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+                throw new CryptoOperationRuntimeException("key unwrapping error", e);
+            }
+        }
+    }
+
+    private static final class BcUnwrapper extends BallotKeyUnwrapper {
+        private final SecureRandom secureRandom;
+        private final OAEPEncoding oaepEncoding = new OAEPEncoding(new RSABlindedEngine(), new SHA1Digest(), new SHA1Digest(), null);
+
+        BcUnwrapper(SecureRandom secureRandom) {
+            this.secureRandom = secureRandom;
+        }
+
+        @Override
+        void init(RSAPrivateCrtKey privateKey) {
+            RSAPrivateCrtKeyParameters keyParameters = new RSAPrivateCrtKeyParameters(
+                    privateKey.getModulus(), privateKey.getPublicExponent(), privateKey.getPrivateExponent(),
+                    privateKey.getPrimeP(), privateKey.getPrimeQ(),
+                    privateKey.getPrimeExponentP(), privateKey.getPrimeExponentQ(), privateKey.getCrtCoefficient());
+            oaepEncoding.init(false, new ParametersWithRandom(keyParameters, secureRandom));
+        }
+
+        @Override
+        Key doUnwrap(byte[] wrappedKey, String keyAlgorithm) {
+            try {
+                return new SecretKeySpec(oaepEncoding.processBlock(wrappedKey, 0, wrappedKey.length), keyAlgorithm);
+            } catch (InvalidCipherTextException | DataLengthException | IllegalArgumentException e) {
+                throw new CryptoOperationRuntimeException("key unwrapping error", e);
+            }
+        }
+    }
+}
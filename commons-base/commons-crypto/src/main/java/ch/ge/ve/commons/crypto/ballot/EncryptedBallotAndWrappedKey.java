@@ -23,6 +23,9 @@ package ch.ge.ve.commons.crypto.ballot;
 
 import javax.crypto.SealedObject;
 
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -42,7 +45,8 @@ import java.io.Serializable;
  * When encrypting a ballot, instances of EncryptedBallotAndWrappedKey are created by:
  * <ul>
  * <li>generating a random symmetric key <tt>k_i</tt></li>
- * <li>the {@link #encryptedBallot} is obtained by encrypting the ballot with k_i into a SealedObject</li>
+ * <li>the {@link #envelope} is obtained by encrypting the ballot with k_i (formerly, the {@link #encryptedBallot} was
+ * obtained by encrypting the ballot with k_i into a SealedObject)</li>
  * <li>the {@link #wrappedKey} is obtained by wrapping the key k_i using the Election officers public key</li>
  * </ul>
  * </p>
@@ -51,12 +55,18 @@ import java.io.Serializable;
  * When decrypting an authenticated ballot, instances of EncryptedBallotAndWrappedKey are created by:
  * <ul>
  * <li>retrieving an instance of AuthenticatedBallot from the ballot box</li>
- * <li>the {@link #encryptedBallot} is obtained by decrypting the
+ * <li>the {@link #envelope} (or the {@link #encryptedBallot} for the former format) is obtained by decrypting the
  * {@link ch.ge.ve.commons.crypto.ballot.AuthenticatedBallot#authenticatedEncryptedBallot}, using the ballotIndex as
  * authenticated data</li>
  * <li>the {@link #wrappedKey} is copied from the {@link ch.ge.ve.commons.crypto.ballot.AuthenticatedBallot#wrappedKey}</li>
  * </ul>
  * </p>
+ * <h3>Storage</h3>
+ * <p>
+ * Instances holding a {@link SealedObject} are stored in a serialized list, instances holding an envelope are stored
+ * with a {@link BallotBoxWriter}, the Java serialization of envelopes being deliberately unsupported. Both formats are
+ * read by {@link BallotBoxReader}.
+ * </p>
  */
 public class EncryptedBallotAndWrappedKey implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -71,6 +81,11 @@ public class EncryptedBallotAndWrappedKey implements Serializable {
      */
     private final byte[] wrappedKey;
 
+    /**
+     * a ballot encrypted with a random key k_i, along with the wrapped key k_i
+     */
+    private final transient BallotEnvelope envelope;
+
     /**
      * @param encryptedBallot a sealed object containing the text representation of the ballot, encrypted with key <tt>k_i</tt>
      * @param wrappedKey      an array of bytes containing the key k_i wrapped with an asymmetric encryption algorithm
@@ -78,10 +93,21 @@ public class EncryptedBallotAndWrappedKey implements Serializable {
     public EncryptedBallotAndWrappedKey(SealedObject encryptedBallot, byte[] wrappedKey) {
         this.encryptedBallot = encryptedBallot;
         this.wrappedKey = wrappedKey;
+        this.envelope = null;
     }
 
     /**
-     * @return the encryptedBallot
+     * @param envelope an envelope containing the ballot, encrypted with key <tt>k_i</tt>, and the key k_i wrapped with an
+     *                 asymmetric encryption algorithm
+     */
+    public EncryptedBallotAndWrappedKey(BallotEnvelope envelope) {
+        this.encryptedBallot = null;
+        this.wrappedKey = envelope.getWrappedKey();
+        this.envelope = envelope;
+    }
+
+    /**
+     * @return the encryptedBallot, or <tt>null</tt> if the ballot is held in an envelope
      */
     public SealedObject getEncryptedBallot() {
         return encryptedBallot;
@@ -93,4 +119,18 @@ public class EncryptedBallotAndWrappedKey implements Serializable {
     public byte[] getWrappedKey() {
         return wrappedKey;
     }
+
+    /**
+     * @return the envelope, or <tt>null</tt> if the ballot is held in a sealed object
+     */
+    public BallotEnvelope getEnvelope() {
+        return envelope;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (envelope != null) {
+            throw new NotSerializableException("ballot envelopes must be stored with " + BallotBoxWriter.class.getName());
+        }
+        out.defaultWriteObject();
+    }
 }
@@ -0,0 +1,186 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Holds encoded ballot envelopes off-heap, in a single direct buffer, so that the ballots waiting to be decrypted are
+ * neither individual objects nor scanned by the garbage collector.
+ * <p>
+ * The envelopes are copied as they are encoded (see {@link BallotEnvelopeCodec}), straight from the records of the
+ * ballot box, after their layout has been checked, and are indexed by their offsets in the buffer. They are read back
+ * through a {@link BallotView}, a flyweight reused from one ballot to the next, and decrypted with
+ * {@link BallotCipherService#decryptBallot(BallotView, BallotDecryptionTimings)}.
+ * </p>
+ * <p>
+ * Only the envelope format can be held: the ballots of the former format are deserialized as a whole by an
+ * {@link java.io.ObjectInputStream}, which keeps referencing them until the end of the stream anyway.
+ * </p>
+ * <p>
+ * An arena is filled by a single thread, and may then be read by several threads at once, provided it is safely
+ * published to them. It can be cleared and filled again once they are done, its buffer being kept.
+ * </p>
+ */
+public final class EncryptedBallotArena {
+    private static final int INITIAL_INDEX_CAPACITY = 16;
+
+    private ByteBuffer buffer;
+    /**
+     * the offset of each envelope in the buffer, followed by the end of the last envelope
+     */
+    private int[] offsets = new int[INITIAL_INDEX_CAPACITY + 1];
+    private int size;
+
+    /**
+     * @param initialCapacity the initial number of bytes of the buffer, grown as needed
+     */
+    public EncryptedBallotArena(int initialCapacity) {
+        Preconditions.checkArgument(initialCapacity > 0, "the initial capacity must be positive");
+        this.buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    /**
+     * Copies an encoded envelope into the arena
+     *
+     * @param encodedEnvelope a buffer whose remaining bytes hold exactly one encoded envelope, left unchanged
+     * @throws ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException if the bytes are not a well-formed envelope
+     */
+    public void add(ByteBuffer encodedEnvelope) {
+        BallotEnvelopeCodec.check(encodedEnvelope);
+        int length = encodedEnvelope.remaining();
+        int offset = offsets[size];
+        ensureCapacity(offset + length);
+        buffer.position(offset);
+        buffer.put(encodedEnvelope.duplicate());
+        size++;
+        if (size == offsets.length - 1) {
+            offsets = Arrays.copyOf(offsets, 2 * size + 1);
+        }
+        offsets[size] = offset + length;
+    }
+
+    /**
+     * Reads an envelope into a view, replacing the envelope it was showing
+     *
+     * @param index the index of the envelope, in the order of addition
+     * @param view  the view, which must not be shared between threads
+     * @return the view
+     */
+    public BallotView read(int index, BallotView view) {
+        Preconditions.checkElementIndex(index, size);
+        int offset = offsets[index];
+        int length = offsets[index + 1] - offset;
+        // an independent position, as the arena may be read by several threads at once
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        view.load(source, length);
+        return view;
+    }
+
+    /**
+     * @return the number of envelopes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes of the envelopes
+     */
+    public int byteSize() {
+        return offsets[size];
+    }
+
+    /**
+     * Removes all the envelopes, keeping the buffer to hold the next ones
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.capacity()) {
+            ByteBuffer grownBuffer = ByteBuffer.allocateDirect(Math.max(capacity, 2 * buffer.capacity()));
+            buffer.limit(offsets[size]).position(0);
+            grownBuffer.put(buffer);
+            buffer = grownBuffer;
+        }
+        buffer.limit(buffer.capacity());
+    }
+
+    /**
+     * A reusable view of an envelope of an {@link EncryptedBallotArena}: the envelope is copied into a buffer of the
+     * view, grown as needed, and its elements are located by their offsets in that buffer, without being decoded.
+     */
+    public static final class BallotView {
+        byte[] bytes = new byte[0];
+        int algorithmId;
+        int nonceOffset;
+        int nonceLength;
+        int wrappedKeyOffset;
+        int wrappedKeyLength;
+        int cipherTextOffset;
+        int cipherTextLength;
+        int tagOffset;
+        int tagLength;
+
+        private void load(ByteBuffer source, int length) {
+            if (bytes.length < length) {
+                bytes = new byte[length];
+            }
+            source.get(bytes, 0, length);
+            // the layout has been checked when the envelope was added, see BallotEnvelopeCodec for the format
+            int position = 1;
+            algorithmId = Byte.toUnsignedInt(bytes[position++]);
+            nonceLength = Byte.toUnsignedInt(bytes[position++]);
+            nonceOffset = position;
+            position += nonceLength;
+            wrappedKeyLength = readUnsigned(position, Short.BYTES);
+            wrappedKeyOffset = position + Short.BYTES;
+            position = wrappedKeyOffset + wrappedKeyLength;
+            cipherTextLength = readUnsigned(position, Integer.BYTES);
+            cipherTextOffset = position + Integer.BYTES;
+            position = cipherTextOffset + cipherTextLength;
+            tagLength = Byte.toUnsignedInt(bytes[position]);
+            tagOffset = position + 1;
+        }
+
+        private int readUnsigned(int offset, int length) {
+            int value = 0;
+            for (int i = offset; i < offset + length; i++) {
+                value = (value << Byte.SIZE) | Byte.toUnsignedInt(bytes[i]);
+            }
+            return value;
+        }
+
+        /**
+         * @return a copy of the wrapped key of the envelope
+         */
+        public byte[] getWrappedKey() {
+            return Arrays.copyOfRange(bytes, wrappedKeyOffset, wrappedKeyOffset + wrappedKeyLength);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+/**
+ * <p>
+ * This class is a pojo holding the contents of a ballot that still needs to be encrypted, along with the index it will
+ * be stored under.
+ * </p>
+ * <p>
+ * It is the input of the batch encryption, see
+ * {@link BallotCipherService#encryptBallotsThenWrapForAuthentication(java.util.Collection, java.util.concurrent.Executor)}.
+ * </p>
+ */
+public class PlainTextBallot {
+    /**
+     * the text representation of the ballot
+     */
+    private final String plainText;
+
+    /**
+     * the ballot index (by order of insertion)
+     */
+    private final long ballotIndex;
+
+    /**
+     * @param plainText   the text representation of the ballot
+     * @param ballotIndex the ballot index (by order of insertion)
+     */
+    public PlainTextBallot(String plainText, long ballotIndex) {
+        this.plainText = plainText;
+        this.ballotIndex = ballotIndex;
+    }
+
+    /**
+     * @return the plainText
+     */
+    public String getPlainText() {
+        return plainText;
+    }
+
+    /**
+     * @return the ballotIndex
+     */
+    public long getBallotIndex() {
+        return ballotIndex;
+    }
+}
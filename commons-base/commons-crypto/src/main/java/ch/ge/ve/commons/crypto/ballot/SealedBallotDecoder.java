@@ -0,0 +1,253 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.cms.GCMParameters;
+
+import javax.crypto.Cipher;
+import javax.crypto.SealedObject;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+import java.io.ObjectStreamConstants;
+import java.io.UTFDataFormatException;
+import java.lang.reflect.Field;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+/**
+ * Fast path for opening the {@link SealedObject}s built by {@link BallotCipherService}, which contain a single
+ * <tt>String</tt> encrypted with the ballot cipher (AES-GCM).
+ * <p>
+ * {@link SealedObject#getObject(Key)} looks up a new cipher and new algorithm parameters from the providers, then opens
+ * an <tt>ObjectInputStream</tt> to read the ballot. This decoder reads the fields of the sealed object instead,
+ * decrypts its contents with the cipher of the current thread's {@link BallotCipherContext}, and decodes the
+ * serialized <tt>String</tt> itself. The result is identical to the one of {@link SealedObject#getObject(Key)}.
+ * </p>
+ * <p>
+ * This is a JDK 8 only optimisation: the private fields of {@link SealedObject} are read by reflection, which the
+ * module system of JDK 16 and later forbids (<tt>setAccessible</tt> throws an <tt>InaccessibleObjectException</tt>
+ * unless <tt>--add-opens java.base/javax.crypto=ALL-UNNAMED</tt> is passed to the JVM). A warning is then logged once,
+ * and all the sealed ballots are opened through {@link SealedObject#getObject(Key)}, see {@link #isAvailable()}.
+ * </p>
+ * <p>
+ * Whenever the fast path does not apply (fields not accessible on the running JVM, other algorithms, other contents),
+ * {@link #decrypt(SealedObject, Key, BallotCipherContext)} returns <tt>null</tt>, and the caller is expected to fall
+ * back to {@link SealedObject#getObject(Key)}.
+ * </p>
+ */
+class SealedBallotDecoder {
+    private static final Logger LOG = Logger.getLogger(SealedBallotDecoder.class);
+    private static final String GCM_PARAMETERS_ALGORITHM = "GCM";
+    private static final int STREAM_HEADER_LENGTH = 4;
+    private static final int SHORT_STRING_HEADER_LENGTH = STREAM_HEADER_LENGTH + 1 + 2;
+    private static final int LONG_STRING_HEADER_LENGTH = STREAM_HEADER_LENGTH + 1 + 8;
+
+    private static final Field ENCRYPTED_CONTENT = accessibleField("encryptedContent");
+    private static final Field ENCODED_PARAMS = accessibleField("encodedParams");
+    private static final Field SEAL_ALG = accessibleField("sealAlg");
+    private static final Field PARAMS_ALG = accessibleField("paramsAlg");
+
+    private SealedBallotDecoder() {
+        // utility class, do not allow to instantiate it
+    }
+
+    private static Field accessibleField(String name) {
+        try {
+            Field field = SealedObject.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            LOG.warn("SealedObject field " + name + " is not accessible on this JVM, the fast decryption path is disabled:"
+                    + " sealed ballots will be opened through SealedObject", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if the fields of the sealed objects can be read on the running JVM, which is the case on
+     * JDK 8, but not on JDK 16 and later without opening <tt>javax.crypto</tt>
+     */
+    static boolean isAvailable() {
+        return ENCRYPTED_CONTENT != null && ENCODED_PARAMS != null && SEAL_ALG != null && PARAMS_ALG != null;
+    }
+
+    /**
+     * Decrypts a sealed ballot
+     *
+     * @param sealedBallot the sealed ballot
+     * @param key          the key the ballot was sealed with
+     * @param context      the cipher context of the current thread
+     * @return the ballot contents, or <tt>null</tt> if the fast path does not apply to this sealed object
+     * @throws CryptoOperationRuntimeException if the sealed ballot cannot be decrypted or decoded
+     */
+    static String decrypt(SealedObject sealedBallot, Key key, BallotCipherContext context) {
+        if (!isAvailable()) {
+            return null;
+        }
+        Cipher ballotCipher = context.getBallotCipher();
+        byte[] encryptedContent;
+        byte[] encodedParams;
+        String paramsAlg;
+        try {
+            if (!ballotCipher.getAlgorithm().equalsIgnoreCase((String) SEAL_ALG.get(sealedBallot))) {
+                return null;
+            }
+            paramsAlg = (String) PARAMS_ALG.get(sealedBallot);
+            encryptedContent = (byte[]) ENCRYPTED_CONTENT.get(sealedBallot);
+            encodedParams = (byte[]) ENCODED_PARAMS.get(sealedBallot);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+        if (paramsAlg == null || encryptedContent == null || encodedParams == null) {
+            return null;
+        }
+
+        byte[] plainText = null;
+        int outputSize = 0;
+        try {
+            AlgorithmParameterSpec parameterSpec = decodeParameters(paramsAlg, encodedParams, context);
+            if (parameterSpec == null) {
+                return null;
+            }
+            ballotCipher.init(Cipher.DECRYPT_MODE, key, parameterSpec);
+            outputSize = ballotCipher.getOutputSize(encryptedContent.length);
+            plainText = context.getByteBuffer(outputSize);
+            int plainTextLength = ballotCipher.doFinal(encryptedContent, 0, encryptedContent.length, plainText);
+            return decodeSerializedString(plainText, plainTextLength, context);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new CryptoOperationRuntimeException("ballot decryption error", e);
+        } finally {
+            // the buffer is kept by the thread, the cleartext ballot must not stay in it
+            if (plainText != null) {
+                Arrays.fill(plainText, 0, outputSize, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Decodes the parameters the way {@link java.security.AlgorithmParameters} would for the given algorithm, without
+     * looking it up from the providers: dedicated GCM parameters, or a plain IV encoded as an octet string (as produced
+     * by the "AES" parameters, the cipher then using its default tag length).
+     *
+     * @return the parameters specification, or <tt>null</tt> if the parameters algorithm is not supported
+     */
+    private static AlgorithmParameterSpec decodeParameters(String paramsAlg, byte[] encodedParams, BallotCipherContext context) {
+        if (GCM_PARAMETERS_ALGORITHM.equalsIgnoreCase(paramsAlg)) {
+            GCMParameters gcmParameters = GCMParameters.getInstance(encodedParams);
+            return new GCMParameterSpec(gcmParameters.getIcvLen() * Byte.SIZE, gcmParameters.getNonce());
+        }
+        if (paramsAlg.equalsIgnoreCase(context.getBallotCipherAlgorithmName())) {
+            return new IvParameterSpec(ASN1OctetString.getInstance(encodedParams).getOctets());
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a <tt>String</tt> serialized alone in an object stream (as done by {@link SealedObject})
+     *
+     * @return the decoded string, or <tt>null</tt> if the bytes contain anything else than a single string
+     */
+    private static String decodeSerializedString(byte[] bytes, int length, BallotCipherContext context) {
+        if (length < SHORT_STRING_HEADER_LENGTH
+                || readUnsignedShort(bytes, 0) != (ObjectStreamConstants.STREAM_MAGIC & 0xFFFF)
+                || readUnsignedShort(bytes, 2) != ObjectStreamConstants.STREAM_VERSION) {
+            return null;
+        }
+        int offset;
+        long utfLength;
+        if (bytes[STREAM_HEADER_LENGTH] == ObjectStreamConstants.TC_STRING) {
+            offset = SHORT_STRING_HEADER_LENGTH;
+            utfLength = readUnsignedShort(bytes, STREAM_HEADER_LENGTH + 1);
+        } else if (bytes[STREAM_HEADER_LENGTH] == ObjectStreamConstants.TC_LONGSTRING && length >= LONG_STRING_HEADER_LENGTH) {
+            offset = LONG_STRING_HEADER_LENGTH;
+            utfLength = readLong(bytes, STREAM_HEADER_LENGTH + 1);
+        } else {
+            return null;
+        }
+        if (utfLength != length - offset) {
+            return null;
+        }
+        char[] chars = context.getCharBuffer(length - offset);
+        try {
+            return decodeModifiedUtf8(bytes, offset, length, chars);
+        } catch (UTFDataFormatException e) {
+            throw new CryptoOperationRuntimeException("ballot decoding error", e);
+        } finally {
+            Arrays.fill(chars, 0, length - offset, '\0');
+        }
+    }
+
+    /**
+     * Decodes the "modified UTF-8" encoding used by object streams, see {@link java.io.DataInput#readUTF()}
+     */
+    private static String decodeModifiedUtf8(byte[] bytes, int offset, int end, char[] chars) throws UTFDataFormatException {
+        int charCount = 0;
+        int i = offset;
+        while (i < end) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                chars[charCount++] = (char) b;
+                i++;
+            } else if ((b & 0xE0) == 0xC0) {
+                if (i + 1 >= end) {
+                    throw new UTFDataFormatException("truncated character at " + i);
+                }
+                chars[charCount++] = (char) (((b & 0x1F) << 6) | continuation(bytes[i + 1], i));
+                i += 2;
+            } else if ((b & 0xF0) == 0xE0) {
+                if (i + 2 >= end) {
+                    throw new UTFDataFormatException("truncated character at " + i);
+                }
+                chars[charCount++] = (char) (((b & 0x0F) << 12) | (continuation(bytes[i + 1], i) << 6) | continuation(bytes[i + 2], i));
+                i += 3;
+            } else {
+                throw new UTFDataFormatException("malformed input around byte " + i);
+            }
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    private static int continuation(byte b, int position) throws UTFDataFormatException {
+        if ((b & 0xC0) != 0x80) {
+            throw new UTFDataFormatException("malformed input around byte " + position);
+        }
+        return b & 0x3F;
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,216 @@
+package ch.ge.ve.commons.crypto.utils;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
+import java.util.stream.LongStream;
+
+/**
+ * Thread safe generator of unique evoting card numbers, for the generation of the voting cards in bulk.
+ * <p/>
+ * As with {@link RandomValuesUtilities#generateUniqueCardNumber(int, int)}, a card number is made of random digits
+ * from 1 to 9, never starts with the prefix of the cards generated by the VOTA system (non evoting cards), and is never
+ * generated twice by the same generator. Since they have no zero digit, the card numbers are handled as <tt>long</tt>s
+ * (their decimal representation being the card number), held in a {@link StripedLongSet}, and the prefix is checked
+ * arithmetically.
+ * <p/>
+ * Given a {@link CardNumberIndex}, the card numbers are also never issued twice across generators, the index holding
+ * the card numbers generated by any of them, all of the same length. The card numbers left to generate are then
+ * counted from those of the index. The card numbers returned by {@link #nextCardNumber()} must not be handed out
+ * before the generator has been flushed, see {@link #flush()}.
+ */
+public class CardNumberGenerator {
+    /**
+     * The maximum length of a card number held in a <tt>long</tt>
+     */
+    public static final int MAX_LENGTH = 18;
+    private static final int DIGITS = 9;
+
+    private final int length;
+    private final int votaPrefix;
+    private final long prefixDivisor;
+    private final long capacity;
+    /**
+     * adds a card number to those generated, returning <tt>false</tt> if it already was
+     */
+    private final LongPredicate generatedCardNumbers;
+    /**
+     * the number of card numbers already taken, by this generator or by those sharing its index
+     */
+    private final LongSupplier takenCount;
+    private final CardNumberIndex issuedCardNumbers;
+    private final LongAdder generatedCount = new LongAdder();
+
+    /**
+     * @param length        the length of the card numbers, at most {@value #MAX_LENGTH}
+     * @param votaPrefix    the prefix of the cards generated by the VOTA system, that should never be present at the
+     *                      beginning of the generated card numbers
+     * @param expectedCards the expected number of cards, so that the set of the generated numbers is not resized
+     */
+    public CardNumberGenerator(int length, int votaPrefix, long expectedCards) {
+        this(length, votaPrefix, new StripedLongSet(Runtime.getRuntime().availableProcessors() * 4, expectedCards)::add, null);
+    }
+
+    /**
+     * @param length            the length of the card numbers, at most {@value #MAX_LENGTH}
+     * @param votaPrefix        the prefix of the cards generated by the VOTA system, that should never be present at
+     *                          the beginning of the generated card numbers
+     * @param issuedCardNumbers the card numbers issued so far, to which the generated ones are added
+     */
+    public CardNumberGenerator(int length, int votaPrefix, CardNumberIndex issuedCardNumbers) {
+        this(length, votaPrefix, issuedCardNumbers::add, issuedCardNumbers);
+    }
+
+    private CardNumberGenerator(int length, int votaPrefix, LongPredicate generatedCardNumbers, CardNumberIndex issuedCardNumbers) {
+        Preconditions.checkArgument(length > 0 && length <= MAX_LENGTH, String.format("Invalid card number length: %d", length));
+        this.length = length;
+        this.votaPrefix = votaPrefix;
+        this.prefixDivisor = prefixDivisor(length, votaPrefix);
+        this.capacity = prefixDivisor > 0
+                ? pow(DIGITS, length) - pow(DIGITS, length - String.valueOf(votaPrefix).length())
+                : pow(DIGITS, length);
+        this.generatedCardNumbers = generatedCardNumbers;
+        this.issuedCardNumbers = issuedCardNumbers;
+        this.takenCount = issuedCardNumbers != null ? issuedCardNumbers::size : generatedCount::sum;
+    }
+
+    /**
+     * @return a card number never generated before by this generator, nor issued before if it has an index (in which
+     * case it only is issued once the generator has been flushed)
+     * @throws IllegalStateException if all the card numbers have been generated
+     * @throws java.io.UncheckedIOException if the card number cannot be added to the {@link CardNumberIndex}
+     */
+    public long nextCardNumber() {
+        RandomBytesBuffer randomBytes = RandomBytesBuffer.forCurrentThread();
+        long cardNumber = randomCardNumber(length, randomBytes);
+        while (startsWith(cardNumber, prefixDivisor, votaPrefix) || !generatedCardNumbers.test(cardNumber)) {
+            // once all the card numbers have been generated, every candidate is a duplicate
+            Preconditions.checkState(takenCount.getAsLong() < capacity, "All the card numbers of length %s have been generated", length);
+            cardNumber = randomCardNumber(length, randomBytes);
+        }
+        generatedCount.increment();
+        return cardNumber;
+    }
+
+    /**
+     * Generates card numbers in parallel, on the common fork join pool, then flushes the generator: the card numbers
+     * are issued once this method has returned
+     *
+     * @param count    the number of card numbers
+     * @param consumer the consumer of the card numbers, called concurrently from several threads
+     * @throws IllegalArgumentException if there are not that many card numbers left
+     * @throws UncheckedIOException if the card numbers cannot be written to the {@link CardNumberIndex}
+     */
+    public void generate(long count, LongConsumer consumer) {
+        Preconditions.checkArgument(count <= capacity - takenCount.getAsLong(),
+                String.format("Cannot generate %d more card numbers of length %d", count, length));
+        LongStream.range(0, count).parallel().forEach(i -> consumer.accept(nextCardNumber()));
+        try {
+            flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot flush the card number index", e);
+        }
+    }
+
+    /**
+     * Flushes the {@link CardNumberIndex} of the generator, if any: the card numbers generated so far are then issued,
+     * and can be handed out
+     *
+     * @throws IOException if the card numbers cannot be written to the index
+     */
+    public void flush() throws IOException {
+        if (issuedCardNumbers != null) {
+            issuedCardNumbers.flush();
+        }
+    }
+
+    /**
+     * @return the number of card numbers generated so far
+     */
+    public long getGeneratedCount() {
+        return generatedCount.sum();
+    }
+
+    /**
+     * @param length      the length of the card number
+     * @param randomBytes the random bytes of the current thread
+     * @return a card number made of random digits from 1 to 9
+     */
+    static long randomCardNumber(int length, RandomBytesBuffer randomBytes) {
+        long cardNumber = 0L;
+        for (int i = 0; i < length; i++) {
+            // Valid digits are 1-9
+            cardNumber = cardNumber * 10 + randomBytes.nextInt(DIGITS) + 1;
+        }
+        return cardNumber;
+    }
+
+    /**
+     * @param cardNumber a card number
+     * @param length     the length of the card number
+     * @param votaPrefix the prefix of the cards generated by the VOTA system
+     * @return <tt>true</tt> if the decimal representation of the card number starts with the prefix
+     */
+    static boolean startsWith(long cardNumber, int length, int votaPrefix) {
+        return startsWith(cardNumber, prefixDivisor(length, votaPrefix), votaPrefix);
+    }
+
+    private static boolean startsWith(long cardNumber, long prefixDivisor, int votaPrefix) {
+        return prefixDivisor > 0 && cardNumber / prefixDivisor == votaPrefix;
+    }
+
+    /**
+     * @return the power of ten by which a card number is divided to get its first digits, as many as the prefix has,
+     * or 0 if no card number can start with the prefix
+     */
+    private static long prefixDivisor(int length, int votaPrefix) {
+        int prefixLength = String.valueOf(votaPrefix).length();
+        if (votaPrefix <= 0 || prefixLength > length || !hasNoZeroDigit(votaPrefix)) {
+            return 0L;
+        }
+        return pow(10, length - prefixLength);
+    }
+
+    private static boolean hasNoZeroDigit(long value) {
+        for (long remaining = value; remaining > 0; remaining /= 10) {
+            if (remaining % 10 == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long pow(long base, int exponent) {
+        long result = 1L;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,504 @@
+package ch.ge.ve.commons.crypto.utils;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import com.google.common.base.Preconditions;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent index of the card numbers issued so far, across voting operations and generation runs, so that a card
+ * number is never issued twice (see {@link CardNumberGenerator#CardNumberGenerator(int, int, CardNumberIndex)}).
+ * <p/>
+ * The file holds a header, the card numbers merged so far, sorted, then the card numbers added since the last merge,
+ * appended as they are added. Upon opening, the sorted card numbers are memory-mapped, and not read: opening an index
+ * of tens of millions of card numbers only reads the numbers appended since the last merge, which are held in a
+ * {@link StripedLongSet}. Since the card numbers are random, the sorted ones are looked up by interpolation search,
+ * which only touches a few pages of the file.
+ * <p/>
+ * {@link #merge()} and {@link #addAll(long[])} rewrite the index, the sorted card numbers being merged with the appended
+ * ones, and with the given ones. A card number partially appended (<i>e.g.</i> before a crash) is dropped upon opening.
+ * <p/>
+ * Since a file cannot be replaced while it is memory-mapped on Windows, the rewritten index is not moved over the file,
+ * but written as its next generation, <tt>&lt;file name&gt;.&lt;generation&gt;</tt> next to it, the index then
+ * switching to it. The index is opened from its latest generation; the previous ones are deleted once they are no
+ * longer mapped, or else upon a later opening.
+ * <p/>
+ * The card numbers added one by one are buffered before being appended: a card number only counts as issued once
+ * {@link #flush()} (or {@link #merge()}, {@link #addAll(long[])}, {@link #close()}) has returned, and must not be handed
+ * out before, since it would be missing from the index after a crash.
+ * <p/>
+ * Instances are thread safe.
+ */
+public class CardNumberIndex implements Closeable {
+    private static final Logger LOG = Logger.getLogger(CardNumberIndex.class);
+    static final byte[] MAGIC = "CHVCNI01".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_LENGTH = MAGIC.length + Long.BYTES;
+    /**
+     * The sorted card numbers are mapped by segments of 2^27 numbers (1 GiB)
+     */
+    private static final int SEGMENT_BITS = 27;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int STRIPES = 64;
+    /**
+     * The number of interpolation probes, before falling back to a binary search should the distribution of the card
+     * numbers not be uniform
+     */
+    private static final int INTERPOLATION_PROBES = 8;
+    /**
+     * The suffix of the files of the generations after the first one, which is the file of the index itself
+     */
+    private static final Pattern GENERATION = Pattern.compile("[1-9]\\d{0,17}");
+
+    private final Path path;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ByteBuffer appendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * <tt>true</tt> if card numbers have been written to the file since it was last forced to the disk
+     */
+    private boolean unforced;
+    private long generation;
+    private Path file;
+    private FileChannel channel;
+    private volatile SortedNumbers sortedNumbers;
+    private volatile StripedLongSet appendedNumbers;
+
+    private CardNumberIndex(Path path, long generation, FileChannel channel, SortedNumbers sortedNumbers, StripedLongSet appendedNumbers) {
+        this.path = path;
+        this.generation = generation;
+        this.file = generationFile(path, generation);
+        this.channel = channel;
+        this.sortedNumbers = sortedNumbers;
+        this.appendedNumbers = appendedNumbers;
+    }
+
+    /**
+     * Opens an index from its latest generation, creating it if it does not exist, and deletes its previous generations
+     *
+     * @param path the path of the index
+     * @return the index
+     * @throws IOException if the file cannot be read, or is not a card number index
+     */
+    public static CardNumberIndex open(Path path) throws IOException {
+        NavigableMap<Long, Path> generations = generationFiles(path);
+        long generation = generations.isEmpty() ? 0L : generations.lastKey();
+        Path file = generationFile(path, generation);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        CardNumberIndex index;
+        try {
+            if (channel.size() == 0) {
+                writeHeader(channel, 0L);
+            }
+            long sortedCount = readHeader(channel, file);
+            long appendedStart = HEADER_LENGTH + sortedCount * Long.BYTES;
+            if (channel.size() < appendedStart) {
+                throw new IOException("truncated card number index " + file);
+            }
+            long appendedCount = (channel.size() - appendedStart) / Long.BYTES;
+            channel.truncate(appendedStart + appendedCount * Long.BYTES);
+            StripedLongSet appendedNumbers = readAppended(channel, appendedStart, appendedCount);
+            channel.position(channel.size());
+            index = new CardNumberIndex(path, generation, channel, SortedNumbers.map(channel, sortedCount), appendedNumbers);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        for (Path previousFile : generations.headMap(generation).values()) {
+            deletePreviousGeneration(previousFile);
+        }
+        return index;
+    }
+
+    /**
+     * @param cardNumber a card number
+     * @return <tt>true</tt> if the card number is in the index
+     */
+    public boolean contains(long cardNumber) {
+        return appendedNumbers.contains(cardNumber) || sortedNumbers.contains(cardNumber);
+    }
+
+    /**
+     * Adds a card number, appended to the file, unless it already is in the index. The card number is only persisted
+     * once the index has been flushed, see {@link #flush()}.
+     *
+     * @param cardNumber a card number, positive
+     * @return <tt>true</tt> if the card number was not in the index yet
+     * @throws UncheckedIOException if the card number cannot be appended to the file
+     */
+    public boolean add(long cardNumber) {
+        Preconditions.checkArgument(cardNumber > 0, String.format("Invalid card number: %d", cardNumber));
+        lock.readLock().lock();
+        try {
+            if (sortedNumbers.contains(cardNumber) || !appendedNumbers.add(cardNumber)) {
+                return false;
+            }
+            synchronized (appendBuffer) {
+                appendBuffer.putLong(cardNumber);
+                if (!appendBuffer.hasRemaining()) {
+                    flushAppended();
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot append to the card number index " + file, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the card numbers added so far to the file, and forces them to the disk: from then on, they are issued
+     *
+     * @throws IOException if the card numbers cannot be written
+     */
+    public void flush() throws IOException {
+        lock.readLock().lock();
+        try {
+            synchronized (appendBuffer) {
+                flushAppended();
+                if (unforced) {
+                    channel.force(false);
+                    unforced = false;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds card numbers in bulk: they are merged with those of the index, which is rewritten as its next generation
+     *
+     * @param cardNumbers card numbers, positive, in any order, possibly already in the index
+     * @throws IOException if the index cannot be rewritten
+     */
+    public void addAll(long[] cardNumbers) throws IOException {
+        long[] added = cardNumbers.clone();
+        Arrays.parallelSort(added);
+        Preconditions.checkArgument(added.length == 0 || added[0] > 0, "Invalid card number: %s", added.length == 0 ? "" : added[0]);
+        lock.writeLock().lock();
+        try {
+            synchronized (appendBuffer) {
+                flushAppended();
+            }
+            long[] appended = appendedNumbers.toArray();
+            Arrays.parallelSort(appended);
+
+            Path directory = path.toAbsolutePath().getParent();
+            Path nextFile = generationFile(path, generation + 1);
+            Path mergedFile = Files.createTempFile(directory, path.getFileName().toString(), ".merge");
+            long mergedCount;
+            try (FileChannel mergedChannel = FileChannel.open(mergedFile, StandardOpenOption.WRITE)) {
+                mergedCount = writeMerged(mergedChannel, sortedNumbers, appended, added);
+                mergedChannel.force(true);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(mergedFile);
+                throw e;
+            }
+            // the next generation only becomes visible once complete, and never replaces a mapped file
+            Files.move(mergedFile, nextFile, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            Path previousFile = file;
+            channel = FileChannel.open(nextFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            generation++;
+            file = nextFile;
+            sortedNumbers = SortedNumbers.map(channel, mergedCount);
+            appendedNumbers = new StripedLongSet(STRIPES, 0L);
+            synchronized (appendBuffer) {
+                unforced = false;
+            }
+            deletePreviousGeneration(previousFile);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Merges the card numbers appended since the last merge with the sorted ones, so that the next opening does not
+     * have to read them
+     *
+     * @throws IOException if the index cannot be rewritten
+     */
+    public void merge() throws IOException {
+        addAll(new long[0]);
+    }
+
+    /**
+     * @return the number of card numbers in the index
+     */
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return sortedNumbers.count + appendedNumbers.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the card numbers appended so far to the file, then closes it
+     *
+     * @throws IOException if the card numbers cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (channel.isOpen()) {
+                try {
+                    synchronized (appendBuffer) {
+                        flushAppended();
+                    }
+                    channel.force(false);
+                } finally {
+                    channel.close();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void flushAppended() throws IOException {
+        appendBuffer.flip();
+        unforced |= appendBuffer.hasRemaining();
+        while (appendBuffer.hasRemaining()) {
+            channel.write(appendBuffer);
+        }
+        appendBuffer.clear();
+    }
+
+    private static Path generationFile(Path path, long generation) {
+        return generation == 0L ? path : path.resolveSibling(path.getFileName() + "." + generation);
+    }
+
+    /**
+     * @return the files of the generations of the index, by generation
+     */
+    private static NavigableMap<Long, Path> generationFiles(Path path) throws IOException {
+        NavigableMap<Long, Path> generations = new TreeMap<>();
+        if (Files.exists(path)) {
+            generations.put(0L, path);
+        }
+        String prefix = path.getFileName() + ".";
+        try (DirectoryStream<Path> siblings = Files.newDirectoryStream(path.toAbsolutePath().getParent())) {
+            for (Path sibling : siblings) {
+                String name = sibling.getFileName().toString();
+                if (name.startsWith(prefix) && GENERATION.matcher(name.substring(prefix.length())).matches()) {
+                    generations.put(Long.parseLong(name.substring(prefix.length())), sibling);
+                }
+            }
+        }
+        return generations;
+    }
+
+    /**
+     * Deletes a previous generation of the index, unless it cannot be deleted yet, which happens on Windows until its
+     * mapped segments have been garbage collected: it is then deleted upon a later opening
+     */
+    private static void deletePreviousGeneration(Path previousFile) {
+        try {
+            Files.deleteIfExists(previousFile);
+        } catch (IOException e) {
+            LOG.debug("previous generation of the card number index still mapped, deleted upon a later opening: " + previousFile, e);
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, long sortedCount) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(MAGIC).putLong(sortedCount).flip();
+        long position = 0L;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+
+    private static long readHeader(FileChannel channel, Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("not a card number index: " + path);
+            }
+        }
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        long sortedCount = header.getLong();
+        if (!Arrays.equals(magic, MAGIC) || sortedCount < 0) {
+            throw new IOException("not a card number index: " + path);
+        }
+        return sortedCount;
+    }
+
+    private static StripedLongSet readAppended(FileChannel channel, long appendedStart, long appendedCount) throws IOException {
+        StripedLongSet appendedNumbers = new StripedLongSet(STRIPES, appendedCount);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = appendedStart;
+        long end = appendedStart + appendedCount * Long.BYTES;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("truncated card number index");
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                appendedNumbers.add(buffer.getLong());
+            }
+            position += buffer.limit();
+        }
+        return appendedNumbers;
+    }
+
+    /**
+     * Writes the header, then the union of the sorted card numbers, without duplicates
+     *
+     * @return the number of card numbers written
+     */
+    private static long writeMerged(FileChannel channel, SortedNumbers sortedNumbers, long[] appended, long[] added) throws IOException {
+        writeHeader(channel, 0L);
+        channel.position(HEADER_LENGTH);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long sortedIndex = 0L;
+        int appendedIndex = 0;
+        int addedIndex = 0;
+        long last = 0L;
+        long count = 0L;
+        while (sortedIndex < sortedNumbers.count || appendedIndex < appended.length || addedIndex < added.length) {
+            long next = Long.MAX_VALUE;
+            if (sortedIndex < sortedNumbers.count) {
+                next = sortedNumbers.get(sortedIndex);
+            }
+            if (appendedIndex < appended.length) {
+                next = Math.min(next, appended[appendedIndex]);
+            }
+            if (addedIndex < added.length) {
+                next = Math.min(next, added[addedIndex]);
+            }
+            if (sortedIndex < sortedNumbers.count && sortedNumbers.get(sortedIndex) == next) {
+                sortedIndex++;
+            }
+            if (appendedIndex < appended.length && appended[appendedIndex] == next) {
+                appendedIndex++;
+            }
+            if (addedIndex < added.length && added[addedIndex] == next) {
+                addedIndex++;
+            }
+            if (next != last) {
+                if (!buffer.hasRemaining()) {
+                    writeFully(channel, buffer);
+                }
+                buffer.putLong(next);
+                last = next;
+                count++;
+            }
+        }
+        writeFully(channel, buffer);
+        writeHeader(channel, count);
+        return count;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * The sorted card numbers, mapped from the file
+     */
+    private static final class SortedNumbers {
+        private final MappedByteBuffer[] segments;
+        private final long count;
+
+        private SortedNumbers(MappedByteBuffer[] segments, long count) {
+            this.segments = segments;
+            this.count = count;
+        }
+
+        static SortedNumbers map(FileChannel channel, long count) throws IOException {
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((count + SEGMENT_MASK) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                long first = (long) i << SEGMENT_BITS;
+                long length = Math.min(SEGMENT_MASK + 1, count - first) * Long.BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH + first * Long.BYTES, length);
+            }
+            return new SortedNumbers(segments, count);
+        }
+
+        long get(long index) {
+            return segments[(int) (index >>> SEGMENT_BITS)].getLong((int) (index & SEGMENT_MASK) * Long.BYTES);
+        }
+
+        boolean contains(long value) {
+            long low = 0L;
+            long high = count - 1;
+            int probes = 0;
+            while (low <= high) {
+                long lowValue = get(low);
+                long highValue = get(high);
+                if (value < lowValue || value > highValue) {
+                    return false;
+                }
+                long middle;
+                if (probes++ < INTERPOLATION_PROBES && highValue > lowValue) {
+                    middle = low + (long) ((double) (value - lowValue) / (highValue - lowValue) * (high - low));
+                } else {
+                    middle = (low + high) >>> 1;
+                }
+                long middleValue = get(middle);
+                if (middleValue == value) {
+                    return true;
+                } else if (middleValue < value) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package ch.ge.ve.commons.crypto.utils;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.EntropySourceProvider;
+import org.bouncycastle.crypto.prng.drbg.HashSP800DRBG;
+import org.bouncycastle.crypto.prng.drbg.SP80090DRBG;
+import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.Pack;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NIST SP800-90A Hash_DRBG (SHA-512, 256 bits of security strength) exposed as a {@link SecureRandom}.
+ * <p/>
+ * The generator is instantiated from the entropy source, with a nonce also drawn from it and a personalization string
+ * unique to the instance, and is reseeded from the entropy source every <tt>reseedInterval</tt> requests. The
+ * {@link #setSeed(byte[])} seeds are mixed into the state, as additional input of a reseed, and never replace it.
+ * <p/>
+ * Instances are meant to be used by a single thread (see {@link SecureRandomFactory#createPRNG()}): the methods are
+ * synchronized, which costs nothing as long as a single thread uses them, but keeps the instances safe when they are
+ * handed over to other threads.
+ */
+final class DrbgSecureRandom extends SecureRandom {
+    static final String ALGORITHM = "Hash_DRBG-SHA512";
+    static final int SECURITY_STRENGTH = 256;
+    /**
+     * The maximum number of bytes returned by a single Hash_DRBG request (2^18 bits)
+     */
+    private static final int MAX_BYTES_PER_REQUEST = 1 << 15;
+    private static final AtomicLong INSTANCES = new AtomicLong();
+
+    private final EntropySource entropySource;
+    private final SP80090DRBG drbg;
+    private final long reseedInterval;
+    private long requestsSinceReseed;
+
+    /**
+     * @param entropySourceProvider the provider of the entropy source
+     * @param reseedInterval        the number of requests between two reseeds from the entropy source
+     */
+    DrbgSecureRandom(EntropySourceProvider entropySourceProvider, long reseedInterval) {
+        super(null, null);
+        this.entropySource = entropySourceProvider.get(SECURITY_STRENGTH);
+        this.reseedInterval = reseedInterval;
+        byte[] nonce = Arrays.copyOf(entropySource.getEntropy(), SECURITY_STRENGTH / 16);
+        byte[] personalization = Arrays.concatenate(
+                Pack.longToBigEndian(INSTANCES.incrementAndGet()),
+                Pack.longToBigEndian(Thread.currentThread().getId()),
+                Pack.longToBigEndian(System.nanoTime()));
+        this.drbg = new HashSP800DRBG(new SHA512Digest(), SECURITY_STRENGTH, entropySource, personalization, nonce);
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public synchronized void nextBytes(byte[] bytes) {
+        if (bytes.length <= MAX_BYTES_PER_REQUEST) {
+            generate(bytes);
+            return;
+        }
+        byte[] block = new byte[MAX_BYTES_PER_REQUEST];
+        for (int offset = 0; offset < bytes.length; offset += MAX_BYTES_PER_REQUEST) {
+            int length = Math.min(MAX_BYTES_PER_REQUEST, bytes.length - offset);
+            if (length < MAX_BYTES_PER_REQUEST) {
+                block = new byte[length];
+            }
+            generate(block);
+            System.arraycopy(block, 0, bytes, offset, length);
+        }
+        Arrays.fill(block, (byte) 0);
+    }
+
+    private void generate(byte[] bytes) {
+        if (requestsSinceReseed >= reseedInterval) {
+            reseedFromEntropy(null);
+        }
+        // the DRBG asks for a reseed itself once its own reseed counter is exhausted
+        if (drbg.generate(bytes, null, false) < 0) {
+            reseedFromEntropy(null);
+            drbg.generate(bytes, null, false);
+        }
+        requestsSinceReseed++;
+    }
+
+    private void reseedFromEntropy(byte[] additionalInput) {
+        drbg.reseed(additionalInput);
+        requestsSinceReseed = 0;
+    }
+
+    @Override
+    public synchronized void setSeed(byte[] seed) {
+        // called by the constructor of SecureRandom, before the generator exists
+        if (drbg != null) {
+            reseedFromEntropy(seed);
+        }
+    }
+
+    @Override
+    public void setSeed(long seed) {
+        // called by the constructor of Random, before the generator exists
+        if (drbg != null) {
+            setSeed(Pack.longToBigEndian(seed));
+        }
+    }
+
+    @Override
+    public byte[] generateSeed(int numBytes) {
+        byte[] seed = new byte[numBytes];
+        int offset = 0;
+        while (offset < numBytes) {
+            byte[] entropy = entropySource.getEntropy();
+            int length = Math.min(entropy.length, numBytes - offset);
+            System.arraycopy(entropy, 0, seed, offset, length);
+            offset += length;
+        }
+        return seed;
+    }
+}
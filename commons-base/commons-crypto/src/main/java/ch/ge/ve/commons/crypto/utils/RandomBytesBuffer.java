@@ -0,0 +1,108 @@
+package ch.ge.ve.commons.crypto.utils;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import com.google.common.base.Preconditions;
+
+import java.security.SecureRandom;
+
+/**
+ * Buffer of random bytes, refilled by large blocks from a {@link SecureRandom}, from which small random values are
+ * drawn without a call to the generator for each of them.
+ * <p/>
+ * The bounded integers are drawn by masked rejection sampling: only as many bytes as the bound needs are read, masked
+ * to the bit length of the bound, and the values beyond the bound are rejected, so that the result is uniform, without
+ * the bias of a modulo.
+ * <p/>
+ * The buffers are not thread safe: each thread uses its own, see {@link #forCurrentThread()}.
+ */
+public final class RandomBytesBuffer {
+    static final int BLOCK_SIZE = 4096;
+
+    private static final ThreadLocal<RandomBytesBuffer> THREAD_BUFFER =
+            ThreadLocal.withInitial(() -> new RandomBytesBuffer(SecureRandomFactory.createPRNG(), BLOCK_SIZE));
+
+    private final SecureRandom secureRandom;
+    private final byte[] buffer;
+    private int position;
+
+    /**
+     * @param secureRandom the generator refilling the buffer
+     * @param blockSize    the number of bytes drawn from the generator at once
+     */
+    RandomBytesBuffer(SecureRandom secureRandom, int blockSize) {
+        this.secureRandom = secureRandom;
+        this.buffer = new byte[blockSize];
+        this.position = blockSize;
+    }
+
+    /**
+     * @return the buffer of the current thread, refilled from the generator of the current thread
+     * @see SecureRandomFactory#createPRNG()
+     */
+    public static RandomBytesBuffer forCurrentThread() {
+        return THREAD_BUFFER.get();
+    }
+
+    /**
+     * @param bound the upper bound (exclusive), must be positive
+     * @return a uniformly distributed integer between 0 (inclusive) and <tt>bound</tt> (exclusive)
+     */
+    public int nextInt(int bound) {
+        Preconditions.checkArgument(bound > 0, String.format("The bound must be positive, but was %d!", bound));
+        int bits = Integer.SIZE - Integer.numberOfLeadingZeros(bound - 1);
+        int mask = (int) ((1L << bits) - 1);
+        int bytes = Math.max(1, (bits + 7) / 8);
+        int value;
+        do {
+            value = nextBytesAsInt(bytes) & mask;
+        } while (value >= bound);
+        return value;
+    }
+
+    /**
+     * @param dictionary the characters to pick from
+     * @param length     the number of characters
+     * @return characters picked uniformly from <tt>dictionary</tt>
+     */
+    public char[] nextChars(String dictionary, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = dictionary.charAt(nextInt(dictionary.length()));
+        }
+        return chars;
+    }
+
+    private int nextBytesAsInt(int bytes) {
+        int value = 0;
+        for (int i = 0; i < bytes; i++) {
+            if (position == buffer.length) {
+                secureRandom.nextBytes(buffer);
+                position = 0;
+            }
+            // the bytes are erased once used, so that the values drawn do not stay in memory
+            value = (value << 8) | (buffer[position] & 0xFF);
+            buffer[position++] = 0;
+        }
+        return value;
+    }
+}
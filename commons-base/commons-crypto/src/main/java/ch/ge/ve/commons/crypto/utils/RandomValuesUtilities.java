@@ -21,17 +21,14 @@ package ch.ge.ve.commons.crypto.utils;
  * #L%
  */
 
-import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
 import org.apache.log4j.Logger;
 
-import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-
 /**
  * Utility for generating random values
+ * <p/>
+ * The values are drawn from the {@link RandomBytesBuffer} of the current thread, rather than by a call to the
+ * generator for each character.
  */
 public class RandomValuesUtilities {
     private static final Logger LOG = Logger.getLogger(RandomValuesUtilities.class);
@@ -44,12 +41,9 @@ public class RandomValuesUtilities {
     public static final String FINALIZATION_CODE_POSSIBLE_CHARS = "123456789";
     public static final int FINALIZATION_CODE_LENGTH = 6;
 
-    private final SecureRandom secureRandom;
-    private final Set<String> generatedCardNumbers = new HashSet<String>();
+    private final StripedLongSet generatedCardNumbers = new StripedLongSet(1, 1024);
 
     public RandomValuesUtilities() {
-        secureRandom = SecureRandomFactory.createPRNG();
-
         if(LOG.isDebugEnabled()) {
             LOG.debug("initialized RandomValuesUtilities");
         }
@@ -63,30 +57,23 @@ public class RandomValuesUtilities {
      * Generates a random String enforcing the card number format.
      * <p>As a further refinement, the result is guaranteed not to match a card number generated with this instance of {@link RandomValuesUtilities}</p>
      *
-     * @param length     Length of the returned String
+     * <p>See {@link CardNumberGenerator} for the generation of the card numbers in bulk.</p>
+     *
+     * @param length     Length of the returned String, at most {@value CardNumberGenerator#MAX_LENGTH}
      * @param votaPrefix The prefix of the cards generated by the VOTA system (non evoting cards) that should never
      *                   be present at the beginning of the generated evoting card numbers.
      * @return An evoting card number guaranteed to not clash with any non evoting card generated by VOTA.
      */
     public String generateUniqueCardNumber(int length, int votaPrefix) {
-        String cardNumber = generateCardNumber(length);
+        Preconditions.checkArgument(length > 0 && length <= CardNumberGenerator.MAX_LENGTH, String.format("Invalid card number length: %d", length));
+        RandomBytesBuffer randomBytes = RandomBytesBuffer.forCurrentThread();
+        long cardNumber = CardNumberGenerator.randomCardNumber(length, randomBytes);
 
-        while (cardNumber.startsWith(String.valueOf(votaPrefix)) || generatedCardNumbers.contains(cardNumber)) {
-            cardNumber = generateCardNumber(length);
+        while (CardNumberGenerator.startsWith(cardNumber, length, votaPrefix) || !generatedCardNumbers.add(cardNumber)) {
+            cardNumber = CardNumberGenerator.randomCardNumber(length, randomBytes);
         }
 
-        generatedCardNumbers.add(cardNumber);
-
-        return cardNumber;
-    }
-
-    private String generateCardNumber(int length) {
-        List<Integer> digits = new ArrayList<Integer>();
-        for (int i = 0; i < length; i++) {
-            // Valid digits are 1-9
-            digits.add(secureRandom.nextInt(9) + 1);
-        }
-        return Joiner.on("").join(digits);
+        return String.valueOf(cardNumber);
     }
 
 
@@ -120,15 +107,16 @@ public class RandomValuesUtilities {
      * @return <i>e.g. A2B6</i>
      */
     private String generateAlternateAlphaNumCode(int length) {
+        RandomBytesBuffer randomBytes = RandomBytesBuffer.forCurrentThread();
         StringBuilder builder = new StringBuilder(length);
         for (int i = 0; i < length; i++) {
             if (i % 2 == 0) {
-                int nextAlphaIndex = secureRandom.nextInt(CODE_POSSIBLE_ALPHA_CHARS.length());
+                int nextAlphaIndex = randomBytes.nextInt(CODE_POSSIBLE_ALPHA_CHARS.length());
                 builder.append(CODE_POSSIBLE_ALPHA_CHARS.charAt(nextAlphaIndex));
 
             } else {
                 // ==>> i % 2 == 1
-                int nextNumIndex = secureRandom.nextInt(CODE_POSSIBLE_NUM_CHARS.length());
+                int nextNumIndex = randomBytes.nextInt(CODE_POSSIBLE_NUM_CHARS.length());
                 builder.append(CODE_POSSIBLE_NUM_CHARS.charAt(nextNumIndex));
             }
         }
@@ -161,13 +149,6 @@ public class RandomValuesUtilities {
      * @return a random String of length <tt>length</tt>, with characters taken uniformly from <tt>dictionary</tt>
      */
     public String generateRandomString(String dictionary, int length) {
-        List<Character> chars = new ArrayList<Character>();
-
-        for (int i = 0; i < length; i++) {
-            int nextCharIndex = secureRandom.nextInt(dictionary.length());
-            chars.add(dictionary.charAt(nextCharIndex));
-        }
-
-        return Joiner.on("").join(chars);
+        return new String(RandomBytesBuffer.forCurrentThread().nextChars(dictionary, length));
     }
 }
@@ -23,14 +23,10 @@ package ch.ge.ve.commons.crypto.utils;
 
 import com.google.common.base.Preconditions;
 
-import java.security.SecureRandom;
-
 /**
  * This utilities class contains method used to generate random salt
  */
 public class SaltUtils {
-    private static final SecureRandom SECURE_RANDOM = SecureRandomFactory.createPRNG();
-
     // Mask default constructor, this class should not be instantiated
     private SaltUtils() {}
 
@@ -43,7 +39,7 @@ public class SaltUtils {
     public static byte[] generateSalt(int lengthInBits) {
         Preconditions.checkArgument(lengthInBits % 8 == 0, String.format("The salt length must be a multiple of 8, but was %d!", lengthInBits));
         byte[] salt = new byte[lengthInBits / 8];
-        SECURE_RANDOM.nextBytes(salt);
+        SecureRandomFactory.createPRNG().nextBytes(salt);
         return salt;
     }
 }
@@ -22,6 +22,10 @@ package ch.ge.ve.commons.crypto.utils;
  */
 
 import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
+import ch.ge.ve.commons.properties.PropertyConfigurationException;
+import ch.ge.ve.commons.properties.PropertyConfigurationService;
+import org.bouncycastle.crypto.prng.BasicEntropySourceProvider;
+import org.bouncycastle.crypto.prng.EntropySourceProvider;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -37,29 +41,86 @@ import java.security.SecureRandom;
  * <li>should not the algorithm provider be provided, the default one of the jdk could be used, and we do not want it</li>
  * </ul>
  * <p/>
+ * The generators are NIST SP800-90A Hash_DRBGs, one per thread, so that they are neither created nor shared in the
+ * hot paths. They are seeded from the system entropy source, through the seed generator of the <tt>SHA1PRNG</tt>
+ * implementation of the <tt>SUN</tt> provider (<i>i.e.</i> <tt>securerandom.source</tt>), and reseeded from it every
+ * <tt>{@value #RESEED_INTERVAL_PROPERTY}</tt> requests, as configured in <tt>common-crypto.properties</tt>
+ * ({@value #DEFAULT_RESEED_INTERVAL} if undefined).
+ * <p/>
  * As a secure coding rule, the direct creation of Random or SecureRandom is prohibited throughout the application.
  */
 public class SecureRandomFactory {
+    /**
+     * The property defining the number of requests between two reseeds of a generator
+     */
+    public static final String RESEED_INTERVAL_PROPERTY = "common.crypto.prng.reseed.interval";
+    public static final long DEFAULT_RESEED_INTERVAL = 1L << 20;
+
+    private static final ThreadLocal<SecureRandom> THREAD_PRNG = ThreadLocal.withInitial(SecureRandomFactory::createDrbg);
+
     // Mask default constructor, this class shouldn't be instantiated
     private SecureRandomFactory() {}
 
     /**
-     * Important notice from the SecureRandom javadoc:
-     * <p>The returned SecureRandom object has not been seeded. To seed the
-     * returned object, call the <code>setSeed</code> method.
-     * If <code>setSeed</code> is not called, the first call to
-     * <code>nextBytes</code> will force the SecureRandom object to seed itself.
-     * This self-seeding will not occur if <code>setSeed</code> was
-     * previously called.</p>
+     * Returns the generator of the current thread, created and seeded on the first call from that thread. The
+     * <code>setSeed</code> method only supplements its seed.
+     * <p/>
+     * The generator is meant to be used by the current thread: it remains thread safe when handed over to other
+     * threads, but they should rather call this method themselves, so as not to contend for it.
      *
-     * @return a new, not already seeded, Pseudo Random Number Generator instance.
+     * @return the Pseudo Random Number Generator of the current thread
      */
     public static SecureRandom createPRNG() {
+        return THREAD_PRNG.get();
+    }
+
+    private static SecureRandom createDrbg() {
+        return new DrbgSecureRandom(EntropySourceHolder.ENTROPY_SOURCE_PROVIDER, ReseedIntervalHolder.RESEED_INTERVAL);
+    }
+
+    /**
+     * @param propertyConfigurationService the configuration
+     * @return the configured number of requests between two reseeds of a generator
+     */
+    static long reseedInterval(PropertyConfigurationService propertyConfigurationService) {
+        long reseedInterval;
         try {
-            return SecureRandom.getInstance("SHA1PRNG", "SUN");
-        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
-            throw new CryptoConfigurationRuntimeException("Error creating PRNG", e);
+            reseedInterval = propertyConfigurationService.isDefined(RESEED_INTERVAL_PROPERTY)
+                    ? propertyConfigurationService.getConfigValueAsLong(RESEED_INTERVAL_PROPERTY)
+                    : DEFAULT_RESEED_INTERVAL;
+        } catch (PropertyConfigurationException e) {
+            throw new CryptoConfigurationRuntimeException("Invalid PRNG reseed interval", e);
+        }
+        if (reseedInterval <= 0) {
+            throw new CryptoConfigurationRuntimeException("Invalid PRNG reseed interval: " + reseedInterval);
         }
+        return reseedInterval;
     }
 
+    /**
+     * Holds the configured reseed interval, read with the first generator
+     */
+    private static final class ReseedIntervalHolder {
+        static final long RESEED_INTERVAL = reseedInterval(new PropertyConfigurationService());
+
+        private ReseedIntervalHolder() {}
+    }
+
+    /**
+     * Holds the system entropy source, initialized with the first generator
+     */
+    private static final class EntropySourceHolder {
+        static final EntropySourceProvider ENTROPY_SOURCE_PROVIDER = new BasicEntropySourceProvider(createEntropySource(), true);
+
+        private EntropySourceHolder() {}
+
+        private static SecureRandom createEntropySource() {
+            try {
+                // only its generateSeed method is used, which reads the system entropy source
+                return SecureRandom.getInstance("SHA1PRNG", "SUN");
+            } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+                throw new CryptoConfigurationRuntimeException("Error creating PRNG", e);
+            }
+        }
+    }
 }
@@ -0,0 +1,196 @@
+package ch.ge.ve.commons.crypto.utils;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Thread safe set of non-zero <tt>long</tt>s, with open addressing.
+ * <p/>
+ * The values are spread over stripes, according to the high bits of their hash, each stripe being a table of
+ * primitive <tt>long</tt>s with linear probing, locked on its own: the threads adding values only contend when they
+ * hit the same stripe, and a value costs at most 16 bytes, without any object per value. Zero marks the free slots,
+ * and thus cannot be added.
+ */
+final class StripedLongSet {
+    private static final int MIN_STRIPE_CAPACITY = 16;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    /**
+     * @param stripeCount  the number of stripes, rounded up to a power of two
+     * @param expectedSize the expected number of values, so that the tables are not resized while they are filled
+     */
+    StripedLongSet(int stripeCount, long expectedSize) {
+        Preconditions.checkArgument(stripeCount > 0 && stripeCount <= 1 << 16, String.format("Invalid number of stripes: %d", stripeCount));
+        int stripeBits = Integer.SIZE - Integer.numberOfLeadingZeros(stripeCount - 1);
+        stripes = new Stripe[1 << stripeBits];
+        // the stripe is chosen by the high bits of the hash, the slot by its low bits
+        stripeShift = Long.SIZE - stripeBits;
+        long stripeSize = expectedSize / stripes.length + 1;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(capacityFor(stripeSize));
+        }
+    }
+
+    /**
+     * @param value the value to add, not zero
+     * @return <tt>true</tt> if the value was not in the set yet
+     */
+    boolean add(long value) {
+        Preconditions.checkArgument(value != 0L, "zero cannot be added");
+        long hash = mix(value);
+        return stripeOf(hash).add(value, hash);
+    }
+
+    /**
+     * @param value a value
+     * @return <tt>true</tt> if the value is in the set
+     */
+    boolean contains(long value) {
+        long hash = mix(value);
+        return value != 0L && stripeOf(hash).contains(value, hash);
+    }
+
+    /**
+     * @return the number of values in the set
+     */
+    long size() {
+        long size = 0L;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the values of the set, in no particular order, the values added meanwhile being possibly missing
+     */
+    long[] toArray() {
+        long[][] stripesValues = new long[stripes.length][];
+        int count = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            stripesValues[i] = stripes[i].toArray();
+            count += stripesValues[i].length;
+        }
+        long[] values = new long[count];
+        int offset = 0;
+        for (long[] stripeValues : stripesValues) {
+            System.arraycopy(stripeValues, 0, values, offset, stripeValues.length);
+            offset += stripeValues.length;
+        }
+        return values;
+    }
+
+    private Stripe stripeOf(long hash) {
+        return stripes[stripes.length == 1 ? 0 : (int) (hash >>> stripeShift)];
+    }
+
+    private static int capacityFor(long size) {
+        // at most half full
+        long capacity = Math.max(MIN_STRIPE_CAPACITY, Long.highestOneBit(Math.max(size, 1L) * 2 - 1) << 1);
+        Preconditions.checkArgument(capacity <= 1 << 30, String.format("Too many values per stripe: %d", size));
+        return (int) capacity;
+    }
+
+    /**
+     * The finalizer of MurmurHash3, so that close values are spread over the stripes and the slots
+     */
+    private static long mix(long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Stripe {
+        private long[] table;
+        private int size;
+
+        Stripe(int capacity) {
+            table = new long[capacity];
+        }
+
+        synchronized boolean add(long value, long hash) {
+            int mask = table.length - 1;
+            int slot = (int) hash & mask;
+            while (table[slot] != 0L) {
+                if (table[slot] == value) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = value;
+            if (++size * 2 > table.length) {
+                resize();
+            }
+            return true;
+        }
+
+        synchronized boolean contains(long value, long hash) {
+            int mask = table.length - 1;
+            int slot = (int) hash & mask;
+            while (table[slot] != 0L) {
+                if (table[slot] == value) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long[] toArray() {
+            long[] values = new long[size];
+            int count = 0;
+            for (long value : table) {
+                if (value != 0L) {
+                    values[count++] = value;
+                }
+            }
+            return values;
+        }
+
+        private void resize() {
+            long[] former = table;
+            Preconditions.checkState(former.length < 1 << 30, String.format("Too many values per stripe: %d", size));
+            table = new long[former.length << 1];
+            int mask = table.length - 1;
+            for (long value : former) {
+                if (value != 0L) {
+                    int slot = (int) mix(value) & mask;
+                    while (table[slot] != 0L) {
+                        slot = (slot + 1) & mask;
+                    }
+                    table[slot] = value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package ch.ge.ve.commons.crypto.votingcard;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes the material of the voting cards to two files, a line per card: the printer file, with the secrets in clear
+ * text, and the storage file, with their protected forms.
+ * <p/>
+ * The fields are separated by <tt>;</tt>, and the verification codes by <tt>,</tt>:
+ * <ul>
+ * <li>printer file: <tt>index;cardNumber;confirmationCode;finalizationCode;verificationCodes</tt></li>
+ * <li>storage file: <tt>index;cardNumberMac;confirmationCodeHash;encryptedFinalizationCode;encryptedVerificationCodes</tt></li>
+ * </ul>
+ */
+public class VotingCardFilesWriter implements VotingCardMaterialWriter {
+    static final char FIELD_SEPARATOR = ';';
+    static final String LIST_SEPARATOR = ",";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Writer printerWriter;
+    private final Writer storageWriter;
+
+    /**
+     * @param printerFile the file of the secrets in clear text
+     * @param storageFile the file of the protected forms of the secrets
+     * @throws IOException if a file cannot be created
+     */
+    public VotingCardFilesWriter(Path printerFile, Path storageFile) throws IOException {
+        this.printerWriter = newWriter(printerFile);
+        try {
+            this.storageWriter = newWriter(storageFile);
+        } catch (IOException e) {
+            printerWriter.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(VotingCardMaterial material) throws IOException {
+        VotingCardSecrets secrets = material.getSecrets();
+        printerWriter.append(Long.toString(secrets.getIndex())).append(FIELD_SEPARATOR)
+                .append(secrets.getCardNumber()).append(FIELD_SEPARATOR)
+                .append(secrets.getConfirmationCode()).append(FIELD_SEPARATOR)
+                .append(secrets.getFinalizationCode()).append(FIELD_SEPARATOR)
+                .append(String.join(LIST_SEPARATOR, secrets.getVerificationCodes())).append('\n');
+        storageWriter.append(Long.toString(secrets.getIndex())).append(FIELD_SEPARATOR)
+                .append(material.getCardNumberMac()).append(FIELD_SEPARATOR)
+                .append(material.getConfirmationCodeHash()).append(FIELD_SEPARATOR)
+                .append(material.getEncryptedFinalizationCode()).append(FIELD_SEPARATOR)
+                .append(String.join(LIST_SEPARATOR, material.getEncryptedVerificationCodes())).append('\n');
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            storageWriter.close();
+        } finally {
+            printerWriter.close();
+        }
+    }
+
+    private static Writer newWriter(Path file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,73 @@
+package ch.ge.ve.commons.crypto.votingcard;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The material of a voting card: its secrets in clear text, for the printer, and their protected forms, for the
+ * storage
+ */
+public final class VotingCardMaterial {
+    private final VotingCardSecrets secrets;
+    private final String cardNumberMac;
+    private final String confirmationCodeHash;
+    private final String encryptedFinalizationCode;
+    private final List<String> encryptedVerificationCodes;
+
+    /**
+     * @param secrets                    the secrets of the card
+     * @param cardNumberMac              the salted MAC of the card number, in base64
+     * @param confirmationCodeHash       the strong hash of the confirmation code
+     * @param encryptedFinalizationCode  the encrypted finalization code, in base64
+     * @param encryptedVerificationCodes the encrypted verification codes, in base64
+     */
+    public VotingCardMaterial(VotingCardSecrets secrets, String cardNumberMac, String confirmationCodeHash,
+                              String encryptedFinalizationCode, List<String> encryptedVerificationCodes) {
+        this.secrets = secrets;
+        this.cardNumberMac = cardNumberMac;
+        this.confirmationCodeHash = confirmationCodeHash;
+        this.encryptedFinalizationCode = encryptedFinalizationCode;
+        this.encryptedVerificationCodes = Collections.unmodifiableList(encryptedVerificationCodes);
+    }
+
+    public VotingCardSecrets getSecrets() {
+        return secrets;
+    }
+
+    public String getCardNumberMac() {
+        return cardNumberMac;
+    }
+
+    public String getConfirmationCodeHash() {
+        return confirmationCodeHash;
+    }
+
+    public String getEncryptedFinalizationCode() {
+        return encryptedFinalizationCode;
+    }
+
+    public List<String> getEncryptedVerificationCodes() {
+        return encryptedVerificationCodes;
+    }
+}
@@ -0,0 +1,36 @@
+package ch.ge.ve.commons.crypto.votingcard;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Output of the {@link VotingCardPipeline}, called from a single thread, in the order of the cards
+ */
+public interface VotingCardMaterialWriter extends Closeable {
+    /**
+     * @param material the material of the next card
+     * @throws IOException if the material cannot be written
+     */
+    void write(VotingCardMaterial material) throws IOException;
+}
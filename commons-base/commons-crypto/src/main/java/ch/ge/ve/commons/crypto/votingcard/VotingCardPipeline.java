@@ -0,0 +1,315 @@
+package ch.ge.ve.commons.crypto.votingcard;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.SensitiveDataCryptoUtils;
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
+import ch.ge.ve.commons.crypto.utils.CardNumberGenerator;
+import ch.ge.ve.commons.crypto.utils.RandomValuesUtilities;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streaming generator of the material of the voting cards: the cards go through a pipeline of three stages, each one
+ * running at its own parallelism.
+ * <ol>
+ * <li>generation: the card numbers, drawn from a {@link CardNumberGenerator}, and the codes of the cards;</li>
+ * <li>protection: the salted MAC of the card number, the strong hash of the confirmation code, and the encryption of
+ * the finalization and verification codes, with the {@link SensitiveDataCryptoUtils};</li>
+ * <li>writing: the cards are handed over to a {@link VotingCardMaterialWriter}, in the order of their indexes, from
+ * the calling thread, once the card number generator has been flushed, so that no card number is written before it
+ * has been issued.</li>
+ * </ol>
+ * <p/>
+ * The cards travel by batches through bounded queues, and the number of batches in flight is bounded as well, so that
+ * the memory used does not depend on the number of cards, and a slow stage holds back the former ones instead of
+ * letting the cards pile up. The throughput of each stage can be followed from another thread with
+ * {@link #getMetrics()}.
+ */
+public class VotingCardPipeline {
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    private static final int QUEUED_BATCHES_PER_THREAD = 4;
+    private static final long FAILURE_CHECK_MILLIS = 100L;
+
+    private final CardNumberGenerator cardNumberGenerator;
+    private final int verificationCodesPerCard;
+    private final int generationThreads;
+    private final int protectionThreads;
+    private final int batchSize;
+    private volatile VotingCardPipelineMetrics metrics;
+
+    /**
+     * Creates a pipeline using all the cores for the protection of the cards, the cheaper generation using a quarter
+     * of them.
+     *
+     * @param cardNumberGenerator      the generator of the card numbers
+     * @param verificationCodesPerCard the number of verification codes of a card
+     */
+    public VotingCardPipeline(CardNumberGenerator cardNumberGenerator, int verificationCodesPerCard) {
+        this(cardNumberGenerator, verificationCodesPerCard, Math.max(1, Runtime.getRuntime().availableProcessors() / 4),
+                Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param cardNumberGenerator      the generator of the card numbers
+     * @param verificationCodesPerCard the number of verification codes of a card
+     * @param generationThreads        the number of threads generating the secrets of the cards
+     * @param protectionThreads        the number of threads protecting the secrets of the cards
+     * @param batchSize                the number of cards of a batch
+     */
+    public VotingCardPipeline(CardNumberGenerator cardNumberGenerator, int verificationCodesPerCard, int generationThreads,
+                              int protectionThreads, int batchSize) {
+        Preconditions.checkArgument(verificationCodesPerCard >= 0,
+                String.format("the number of verification codes must be positive, was %d", verificationCodesPerCard));
+        Preconditions.checkArgument(generationThreads > 0 && protectionThreads > 0,
+                String.format("each stage needs at least one thread, was %d and %d", generationThreads, protectionThreads));
+        Preconditions.checkArgument(batchSize > 0, String.format("the batch size must be strictly positive, was %d", batchSize));
+        this.cardNumberGenerator = cardNumberGenerator;
+        this.verificationCodesPerCard = verificationCodesPerCard;
+        this.generationThreads = generationThreads;
+        this.protectionThreads = protectionThreads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Generates the material of the given number of cards. The writer is called from the calling thread, and is not
+     * closed.
+     *
+     * @param cardCount the number of cards
+     * @param writer    the writer of the material of the cards
+     * @return the metrics of the run
+     * @throws IOException                     if the material cannot be written
+     * @throws CryptoOperationRuntimeException if a card cannot be generated or protected, or if the run is interrupted
+     */
+    public VotingCardPipelineMetrics run(long cardCount, VotingCardMaterialWriter writer) throws IOException {
+        Preconditions.checkArgument(cardCount >= 0, String.format("the number of cards must be positive, was %d", cardCount));
+        VotingCardPipelineMetrics runMetrics = new VotingCardPipelineMetrics(cardCount);
+        metrics = runMetrics;
+        try {
+            new Run(cardCount, runMetrics).execute(writer);
+        } finally {
+            runMetrics.stop();
+        }
+        return runMetrics;
+    }
+
+    /**
+     * Getter for the metrics of the current run, or of the last one once it is done
+     *
+     * @return the metrics, updated while the run is in progress, or null before the first run
+     */
+    public VotingCardPipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    private VotingCardSecrets generateCard(long index, RandomValuesUtilities randomValuesUtilities) {
+        List<String> verificationCodes = new ArrayList<>(verificationCodesPerCard);
+        for (int i = 0; i < verificationCodesPerCard; i++) {
+            verificationCodes.add(randomValuesUtilities.generateVerificationCode());
+        }
+        return new VotingCardSecrets(index, Long.toString(cardNumberGenerator.nextCardNumber()),
+                randomValuesUtilities.generateConfirmationCode(), randomValuesUtilities.generateFinalizationCode(),
+                verificationCodes);
+    }
+
+    private static VotingCardMaterial protectCard(VotingCardSecrets secrets) {
+        List<String> encryptedVerificationCodes = new ArrayList<>(secrets.getVerificationCodes().size());
+        for (String verificationCode : secrets.getVerificationCodes()) {
+            encryptedVerificationCodes.add(SensitiveDataCryptoUtils.encryptAsBase64String(verificationCode));
+        }
+        return new VotingCardMaterial(secrets,
+                SensitiveDataCryptoUtils.buildSaltedMACAsBase64String(secrets.getCardNumber()),
+                SensitiveDataCryptoUtils.generateStrongPasswordHash(secrets.getConfirmationCode().toCharArray()),
+                SensitiveDataCryptoUtils.encryptAsBase64String(secrets.getFinalizationCode()),
+                encryptedVerificationCodes);
+    }
+
+    private static ExecutorService newStageExecutor(String stage, int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "voting-card-" + stage + "-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A batch of consecutive cards
+     */
+    private static final class Batch<T> {
+        private final long index;
+        private final List<T> cards;
+
+        Batch(long index, List<T> cards) {
+            this.index = index;
+            this.cards = cards;
+        }
+    }
+
+    /**
+     * The state of a single run of the pipeline
+     */
+    private final class Run {
+        private final Batch<VotingCardSecrets> endOfGeneration = new Batch<>(-1L, Collections.emptyList());
+        private final long cardCount;
+        private final long batchCount;
+        private final VotingCardPipelineMetrics runMetrics;
+        private final AtomicLong nextBatch = new AtomicLong();
+        private final AtomicInteger runningGenerators = new AtomicInteger(generationThreads);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final BlockingQueue<Batch<VotingCardSecrets>> generatedCards;
+        private final BlockingQueue<Batch<VotingCardMaterial>> protectedCards;
+        // each batch holds a permit from its generation until it is written: this bounds the batches waiting to be
+        // written in order, beside the ones in the queues
+        private final Semaphore batchesInFlight;
+
+        Run(long cardCount, VotingCardPipelineMetrics runMetrics) {
+            this.cardCount = cardCount;
+            this.batchCount = (cardCount + batchSize - 1) / batchSize;
+            this.runMetrics = runMetrics;
+            int queueCapacity = protectionThreads * QUEUED_BATCHES_PER_THREAD;
+            this.generatedCards = new ArrayBlockingQueue<>(queueCapacity);
+            this.protectedCards = new ArrayBlockingQueue<>(queueCapacity);
+            this.batchesInFlight = new Semaphore(2 * queueCapacity + generationThreads + protectionThreads);
+        }
+
+        void execute(VotingCardMaterialWriter writer) throws IOException {
+            ExecutorService generationExecutor = newStageExecutor("generation", generationThreads);
+            ExecutorService protectionExecutor = newStageExecutor("protection", protectionThreads);
+            try {
+                for (int i = 0; i < generationThreads; i++) {
+                    generationExecutor.execute(() -> runStage(this::generate));
+                }
+                for (int i = 0; i < protectionThreads; i++) {
+                    protectionExecutor.execute(() -> runStage(this::protect));
+                }
+                write(writer);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CryptoOperationRuntimeException("voting card generation interrupted", e);
+            } finally {
+                generationExecutor.shutdownNow();
+                protectionExecutor.shutdownNow();
+            }
+        }
+
+        private void runStage(InterruptibleTask task) {
+            try {
+                task.run();
+            } catch (InterruptedException e) {
+                // the run is over, the executors are being shut down
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                // any failure is recorded, since the writing thread waits for the batches of the stage until then
+                failure.compareAndSet(null, e);
+            }
+        }
+
+        private void generate() throws InterruptedException {
+            RandomValuesUtilities randomValuesUtilities = new RandomValuesUtilities();
+            while (true) {
+                batchesInFlight.acquire();
+                long batchIndex = nextBatch.getAndIncrement();
+                if (batchIndex >= batchCount) {
+                    batchesInFlight.release();
+                    break;
+                }
+                long start = System.nanoTime();
+                long firstCard = batchIndex * batchSize;
+                int size = (int) Math.min(batchSize, cardCount - firstCard);
+                List<VotingCardSecrets> cards = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    cards.add(generateCard(firstCard + i, randomValuesUtilities));
+                }
+                runMetrics.record(VotingCardPipelineMetrics.Stage.GENERATION, size, System.nanoTime() - start);
+                generatedCards.put(new Batch<>(batchIndex, cards));
+            }
+            if (runningGenerators.decrementAndGet() == 0) {
+                for (int i = 0; i < protectionThreads; i++) {
+                    generatedCards.put(endOfGeneration);
+                }
+            }
+        }
+
+        private void protect() throws InterruptedException {
+            Batch<VotingCardSecrets> batch;
+            while ((batch = generatedCards.take()) != endOfGeneration) {
+                long start = System.nanoTime();
+                List<VotingCardMaterial> cards = new ArrayList<>(batch.cards.size());
+                for (VotingCardSecrets secrets : batch.cards) {
+                    cards.add(protectCard(secrets));
+                }
+                runMetrics.record(VotingCardPipelineMetrics.Stage.PROTECTION, cards.size(), System.nanoTime() - start);
+                protectedCards.put(new Batch<>(batch.index, cards));
+            }
+        }
+
+        private void write(VotingCardMaterialWriter writer) throws IOException, InterruptedException {
+            // the batches are protected in any order, and written in the order of their indexes
+            Map<Long, Batch<VotingCardMaterial>> pendingBatches = new HashMap<>();
+            for (long batchIndex = 0; batchIndex < batchCount; batchIndex++) {
+                Batch<VotingCardMaterial> batch = pendingBatches.remove(batchIndex);
+                while (batch == null) {
+                    Batch<VotingCardMaterial> protectedBatch = protectedCards.poll(FAILURE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                    Throwable stageFailure = failure.get();
+                    if (stageFailure != null) {
+                        throw new CryptoOperationRuntimeException("voting card generation failed", stageFailure);
+                    }
+                    if (protectedBatch != null) {
+                        if (protectedBatch.index == batchIndex) {
+                            batch = protectedBatch;
+                        } else {
+                            pendingBatches.put(protectedBatch.index, protectedBatch);
+                        }
+                    }
+                }
+                long start = System.nanoTime();
+                cardNumberGenerator.flush();
+                for (VotingCardMaterial card : batch.cards) {
+                    writer.write(card);
+                }
+                runMetrics.record(VotingCardPipelineMetrics.Stage.WRITING, batch.cards.size(), System.nanoTime() - start);
+                batchesInFlight.release();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface InterruptibleTask {
+        void run() throws InterruptedException;
+    }
+}
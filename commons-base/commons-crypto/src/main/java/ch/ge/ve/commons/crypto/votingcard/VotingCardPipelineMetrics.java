@@ -0,0 +1,137 @@
+package ch.ge.ve.commons.crypto.votingcard;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput metrics of a run of the {@link VotingCardPipeline}, updated by the threads of each stage, and readable
+ * from any thread while the run is in progress.
+ */
+public class VotingCardPipelineMetrics {
+    /**
+     * The stages of the pipeline
+     */
+    public enum Stage {
+        /**
+         * Generation of the card numbers and of the codes
+         */
+        GENERATION,
+        /**
+         * Computation of the MACs, hashes and encrypted forms of the secrets
+         */
+        PROTECTION,
+        /**
+         * Writing of the material of the cards
+         */
+        WRITING
+    }
+
+    private final Map<Stage, LongAdder> cards = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> busyNanos = new EnumMap<>(Stage.class);
+    private final long totalCards;
+    private final long startNanos = System.nanoTime();
+    /**
+     * published by {@link #stopped}, as {@link System#nanoTime()} may return any value, negative ones included
+     */
+    private long endNanos;
+    private volatile boolean stopped;
+
+    /**
+     * @param totalCards the number of cards of the run
+     */
+    VotingCardPipelineMetrics(long totalCards) {
+        this.totalCards = totalCards;
+        for (Stage stage : Stage.values()) {
+            cards.put(stage, new LongAdder());
+            busyNanos.put(stage, new LongAdder());
+        }
+    }
+
+    /**
+     * @param stage     the stage
+     * @param cardCount the number of cards processed by the stage
+     * @param nanos     the time spent processing them
+     */
+    void record(Stage stage, int cardCount, long nanos) {
+        cards.get(stage).add(cardCount);
+        busyNanos.get(stage).add(nanos);
+    }
+
+    void stop() {
+        endNanos = System.nanoTime();
+        stopped = true;
+    }
+
+    /**
+     * @return the number of cards of the run
+     */
+    public long getTotalCards() {
+        return totalCards;
+    }
+
+    /**
+     * @param stage the stage
+     * @return the number of cards processed by the stage so far
+     */
+    public long getCards(Stage stage) {
+        return cards.get(stage).sum();
+    }
+
+    /**
+     * @param stage the stage
+     * @param unit  the unit of the result
+     * @return the time spent by the threads of the stage processing cards, summed over the threads
+     */
+    public long getBusyTime(Stage stage, TimeUnit unit) {
+        return unit.convert(busyNanos.get(stage).sum(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param stage the stage
+     * @return the number of cards processed per second of busy time of a thread of the stage
+     */
+    public double getStageThroughput(Stage stage) {
+        long nanos = busyNanos.get(stage).sum();
+        return nanos == 0 ? 0.0 : getCards(stage) * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    /**
+     * @param unit the unit of the result
+     * @return the time elapsed since the beginning of the run, until its end once it is done
+     */
+    public long getElapsed(TimeUnit unit) {
+        long end = stopped ? endNanos : System.nanoTime();
+        return unit.convert(end - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of cards written per second since the beginning of the run
+     */
+    public double getThroughput() {
+        long elapsedNanos = getElapsed(TimeUnit.NANOSECONDS);
+        return elapsedNanos <= 0 ? 0.0 : getCards(Stage.WRITING) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+}
@@ -0,0 +1,71 @@
+package ch.ge.ve.commons.crypto.votingcard;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The secrets of a voting card, in clear text, as printed on the card
+ */
+public final class VotingCardSecrets {
+    private final long index;
+    private final String cardNumber;
+    private final String confirmationCode;
+    private final String finalizationCode;
+    private final List<String> verificationCodes;
+
+    /**
+     * @param index             the index of the card in the generation run, from 0
+     * @param cardNumber        the card number
+     * @param confirmationCode  the confirmation code
+     * @param finalizationCode  the finalization code
+     * @param verificationCodes the verification codes
+     */
+    public VotingCardSecrets(long index, String cardNumber, String confirmationCode, String finalizationCode, List<String> verificationCodes) {
+        this.index = index;
+        this.cardNumber = cardNumber;
+        this.confirmationCode = confirmationCode;
+        this.finalizationCode = finalizationCode;
+        this.verificationCodes = Collections.unmodifiableList(verificationCodes);
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    public String getCardNumber() {
+        return cardNumber;
+    }
+
+    public String getConfirmationCode() {
+        return confirmationCode;
+    }
+
+    public String getFinalizationCode() {
+        return finalizationCode;
+    }
+
+    public List<String> getVerificationCodes() {
+        return verificationCodes;
+    }
+}
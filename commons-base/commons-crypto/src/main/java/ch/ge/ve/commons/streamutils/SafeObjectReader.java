@@ -22,7 +22,10 @@ package ch.ge.ve.commons.streamutils;
  */
 
 import java.io.*;
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /**
  * This class provides for safer object deserialization, by limiting length of input, number and type of objects read.
@@ -59,6 +62,110 @@ public class SafeObjectReader {
 
     }
 
+    /**
+     * This method reads a serialized collection with the same checks as
+     * {@link #safeReadObject(Class, List, long, long, InputStream)}, but hands each element over to the given consumer as
+     * soon as it has been read, instead of returning the whole collection once the stream has been fully read.
+     * <p>
+     * The elements are not added to the collection being read (they are replaced with <tt>null</tt>), which allows the
+     * consumer to process them while the remainder of the stream is read, and to release them when done. Note that the
+     * objects nested within the elements are still referenced by the underlying stream until it has been fully read,
+     * as required to resolve back-references. The element type must not be nested within the elements themselves.
+     * </p>
+     *
+     * @param collectionType  Class of the serialized collection
+     * @param elementType     Class of the elements of the collection (considered safe)
+     * @param safeClasses     The list of Classes allowed to be read within the elements (on top of primitive arrays,
+     *                        numbers and Strings which are always considered safe)
+     * @param maxObjects      The maximum number of objects allowed to be read
+     * @param maxBytes        The maximum number of bytes allowed to be read
+     * @param in              The InputStream containing a collection from an untrusted source
+     * @param elementConsumer The consumer of the elements, called on the reading thread in the order of the collection
+     * @param <E>             The type of the elements
+     * @return the number of elements read from the stream
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static <E> long safeReadElements(final Class<? extends Collection> collectionType, final Class<E> elementType, final List<Class<?>> safeClasses, final long maxObjects, final long maxBytes, InputStream in, Consumer<? super E> elementConsumer) throws IOException, ClassNotFoundException {
+        return safeReadElements(collectionType, elementType, safeClasses, maxObjects, maxBytes, in, size -> {
+        }, elementConsumer);
+    }
+
+    /**
+     * This method reads a serialized collection as {@link #safeReadElements(Class, Class, List, long, long, InputStream, Consumer)}
+     * does, and also hands the size of the collection over to the given listener before the first element is read.
+     * <p>
+     * The size is the first <tt>int</tt> written by the <tt>writeObject</tt> method of the collection, ahead of its
+     * elements, as {@link java.util.ArrayList} and {@link java.util.LinkedList} do. It is read from an untrusted
+     * source, and must only be used as an estimate, <i>e.g.</i> to report the progress of the reading.
+     * </p>
+     *
+     * @param collectionType  Class of the serialized collection
+     * @param elementType     Class of the elements of the collection (considered safe)
+     * @param safeClasses     The list of Classes allowed to be read within the elements (on top of primitive arrays,
+     *                        numbers and Strings which are always considered safe)
+     * @param maxObjects      The maximum number of objects allowed to be read
+     * @param maxBytes        The maximum number of bytes allowed to be read
+     * @param in              The InputStream containing a collection from an untrusted source
+     * @param sizeListener    The listener of the size of the collection, called on the reading thread at most once
+     * @param elementConsumer The consumer of the elements, called on the reading thread in the order of the collection
+     * @param <E>             The type of the elements
+     * @return the number of elements read from the stream
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static <E> long safeReadElements(final Class<? extends Collection> collectionType, final Class<E> elementType, final List<Class<?>> safeClasses, final long maxObjects, final long maxBytes, InputStream in, LongConsumer sizeListener, Consumer<? super E> elementConsumer) throws IOException, ClassNotFoundException {
+        InputStream fis = new LimitedLengthFilterInputStream(in, maxBytes);
+
+        SafeObjectInputStream<Collection> ois = new SafeObjectInputStream<>(fis, maxObjects, collectionType, safeClasses);
+        ElementsConsumer<E> elementsConsumer = new ElementsConsumer<>(elementType, sizeListener, elementConsumer);
+        ois.elementsConsumer = elementsConsumer;
+
+        ois.readObject();
+        return elementsConsumer.count;
+    }
+
+    /**
+     * This class hands the elements of a collection over to a consumer, as they are read from the stream.
+     */
+    private static class ElementsConsumer<E> {
+        private final Class<E> elementType;
+        private final LongConsumer sizeListener;
+        private final Consumer<? super E> consumer;
+        private boolean sizeRead;
+        private long count;
+
+        ElementsConsumer(Class<E> elementType, LongConsumer sizeListener, Consumer<? super E> consumer) {
+            this.elementType = elementType;
+            this.sizeListener = sizeListener;
+            this.consumer = consumer;
+        }
+
+        /**
+         * Hands the first <tt>int</tt> read by the collection over to the size listener, if no element has been read yet
+         */
+        void intRead(int value) {
+            if (!sizeRead && count == 0) {
+                sizeRead = true;
+                if (value >= 0) {
+                    sizeListener.accept(value);
+                }
+            }
+        }
+
+        /**
+         * @return <tt>true</tt> if the object was an element, and has been handed over to the consumer
+         */
+        boolean consume(Object obj) {
+            if (elementType.isInstance(obj)) {
+                consumer.accept(elementType.cast(obj));
+                count++;
+                return true;
+            }
+            return false;
+        }
+    }
+
     /**
      * This class limits the allowed length for reading objects
      */
@@ -109,6 +216,7 @@ public class SafeObjectReader {
         private final List<Class<?>> safeClasses;
         boolean shouldResolveObjects;
         private int objectCount;
+        private ElementsConsumer<?> elementsConsumer;
 
         public SafeObjectInputStream(InputStream fis, long maxObjects, Class<? extends T> type, List<Class<?>> safeClasses) throws IOException {
             super(fis);
@@ -124,9 +232,21 @@ public class SafeObjectReader {
             if (objectCount++ > maxObjects) {
                 throw new SafeObjectSecurityRuntimeException("Security violation: attempt to deserialize too many objects from stream. Limit is " + maxObjects);
             }
+            if (elementsConsumer != null && elementsConsumer.consume(obj)) {
+                return null;
+            }
             return super.resolveObject(obj);
         }
 
+        @Override
+        public int readInt() throws IOException {
+            int value = super.readInt();
+            if (elementsConsumer != null) {
+                elementsConsumer.intRead(value);
+            }
+            return value;
+        }
+
         @Override
         protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
             Class<?> clazz = super.resolveClass(desc);
@@ -143,6 +263,7 @@ public class SafeObjectReader {
                     clazz.equals(type) ||
                     clazz.equals(String.class) ||
                     Number.class.isAssignableFrom(clazz) ||
+                    (elementsConsumer != null && clazz.equals(elementsConsumer.elementType)) ||
                     safeClasses.contains(clazz);
         }
     }
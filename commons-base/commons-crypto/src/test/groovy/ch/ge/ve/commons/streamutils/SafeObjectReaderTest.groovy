@@ -85,6 +85,61 @@ class SafeObjectReaderTest extends Specification {
 
     }
 
+    def "elements of a collection should be handed over one by one"() {
+        given:
+        def samples = [new SimpleSampleClass(1, 1L, true), new SimpleSampleClass(2, 2L, false), new SimpleSampleClass(3, 3L, true)]
+
+        def byteArrayOutputStream = new ByteArrayOutputStream()
+        def objectOutputStream = new ObjectOutputStream(byteArrayOutputStream)
+
+        objectOutputStream.writeObject(new ArrayList<>(samples))
+
+        when:
+        def inputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray())
+        def readSamples = []
+        def count = SafeObjectReader.safeReadElements(ArrayList, SimpleSampleClass, new ArrayList<>(), 10, 1000, inputStream, { readSamples.add(it) })
+
+        then:
+        count == 3
+        readSamples*.someInt == [1, 2, 3]
+    }
+
+    def "size of a collection should be handed over before its elements"() {
+        given:
+        def samples = [new SimpleSampleClass(1, 1L, true), new SimpleSampleClass(2, 2L, false)]
+
+        def byteArrayOutputStream = new ByteArrayOutputStream()
+        def objectOutputStream = new ObjectOutputStream(byteArrayOutputStream)
+
+        objectOutputStream.writeObject(new ArrayList<>(samples))
+
+        when:
+        def inputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray())
+        def events = []
+        SafeObjectReader.safeReadElements(ArrayList, SimpleSampleClass, new ArrayList<>(), 10, 1000, inputStream,
+                { events.add("size " + it) }, { events.add("element " + it.someInt) })
+
+        then:
+        events == ["size 2", "element 1", "element 2"]
+    }
+
+    def "elements of a collection containing unsafe objects should not be read"() {
+        given:
+        def nestedSamples = [new NestedSampleClass(new SimpleSampleClass(42, 42L, true))]
+
+        def byteArrayOutputStream = new ByteArrayOutputStream()
+        def objectOutputStream = new ObjectOutputStream(byteArrayOutputStream)
+
+        objectOutputStream.writeObject(new ArrayList<>(nestedSamples))
+
+        when:
+        def inputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray())
+        SafeObjectReader.safeReadElements(ArrayList, NestedSampleClass, new ArrayList<>(), 10, 1000, inputStream, {})
+
+        then:
+        thrown(SafeObjectSecurityRuntimeException)
+    }
+
     private static class SimpleSampleClass implements Serializable {
         private static final long serialVersionUID = 1L;
 
@@ -29,9 +29,9 @@ import javax.crypto.SecretKey;
 /**
  * Configuration class for the SensitiveDataCryptoUtils tests.
  */
-class TestSensitiveDataCryptoUtilsConfiguration extends SensitiveDataCryptoUtilsConfigurationDefaultImpl {
+public class TestSensitiveDataCryptoUtilsConfiguration extends SensitiveDataCryptoUtilsConfigurationDefaultImpl {
 
-    TestSensitiveDataCryptoUtilsConfiguration() {
+    public TestSensitiveDataCryptoUtilsConfiguration() {
         super(new PropertyConfigurationService());
     }
 
@@ -0,0 +1,168 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.streamutils.SafeObjectSecurityRuntimeException;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SealedObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for the {@link BallotBoxReader} and {@link BallotBoxWriter} classes
+ */
+public class BallotBoxReaderTest {
+    private static final long MAX_OBJECTS = 1000;
+    private static final long MAX_BYTES = 1000000;
+
+    private static EncryptedBallotAndWrappedKey envelopeBallot(int i) {
+        byte[] cipherText = new byte[10 + i];
+        Arrays.fill(cipherText, (byte) i);
+        return new EncryptedBallotAndWrappedKey(new BallotEnvelope(BallotEnvelopeCodec.ALGORITHM_AES_GCM, new byte[12], new byte[]{(byte) i}, cipherText, new byte[16]));
+    }
+
+    private static byte[] writeBox(List<EncryptedBallotAndWrappedKey> ballots) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (BallotBoxWriter writer = new BallotBoxWriter(bos)) {
+            for (EncryptedBallotAndWrappedKey ballot : ballots) {
+                writer.write(ballot);
+            }
+            assertThat(writer.getCount(), is((long) ballots.size()));
+            writer.finish();
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * the ballots written in the envelope format should be read back in order
+     */
+    @Test
+    public void testReadEnvelopeBallotBox() throws Exception {
+        List<EncryptedBallotAndWrappedKey> ballots = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            ballots.add(envelopeBallot(i));
+        }
+
+        List<EncryptedBallotAndWrappedKey> read = new ArrayList<>();
+        long count = BallotBoxReader.readBallots(MAX_OBJECTS, MAX_BYTES, new ByteArrayInputStream(writeBox(ballots)), read::add);
+
+        assertThat(count, is(50L));
+        assertThat(read, hasSize(50));
+        for (int i = 0; i < 50; i++) {
+            assertThat(read.get(i).getEncryptedBallot(), nullValue());
+            assertThat(read.get(i).getWrappedKey(), equalTo(new byte[]{(byte) i}));
+            assertThat(read.get(i).getEnvelope().getCipherText(), equalTo(ballots.get(i).getEnvelope().getCipherText()));
+        }
+    }
+
+    /**
+     * the ballot boxes serialized in the former format should still be read
+     */
+    @Test
+    public void testReadLegacyBallotBox() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(128);
+        cipher.init(Cipher.ENCRYPT_MODE, keyGenerator.generateKey());
+        ArrayList<EncryptedBallotAndWrappedKey> ballots = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ballots.add(new EncryptedBallotAndWrappedKey(new SealedObject("ballot" + i, cipher), new byte[]{(byte) i}));
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(ballots);
+        }
+
+        List<EncryptedBallotAndWrappedKey> read = new ArrayList<>();
+        List<Long> announcedCounts = new ArrayList<>();
+        long count = BallotBoxReader.readBallots(MAX_OBJECTS, MAX_BYTES, new ByteArrayInputStream(bos.toByteArray()), announcedCount -> {
+            // the size of the list is known before any ballot is read
+            assertThat(read, empty());
+            announcedCounts.add(announcedCount);
+        }, read::add);
+
+        assertThat(count, is(5L));
+        assertThat(announcedCounts, contains(5L));
+        assertThat(read.get(4).getEncryptedBallot(), notNullValue());
+        assertThat(read.get(4).getEnvelope(), nullValue());
+        assertThat(read.get(4).getWrappedKey(), equalTo(new byte[]{4}));
+    }
+
+    /**
+     * truncated ballot boxes should be rejected
+     */
+    @Test(expected = IOException.class)
+    public void testReadTruncatedBallotBox() throws Exception {
+        byte[] box = writeBox(Arrays.asList(envelopeBallot(1), envelopeBallot(2)));
+
+        BallotBoxReader.readBallots(MAX_OBJECTS, MAX_BYTES, new ByteArrayInputStream(Arrays.copyOf(box, box.length - 4)), ballot -> {
+        });
+    }
+
+    /**
+     * ballot boxes closed without being finished, e.g. after a failure, should be rejected as truncated
+     */
+    @Test(expected = IOException.class)
+    public void testReadUnfinishedBallotBox() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (BallotBoxWriter writer = new BallotBoxWriter(bos)) {
+            writer.write(envelopeBallot(1));
+            writer.write(envelopeBallot(2));
+        }
+
+        BallotBoxReader.readBallots(MAX_OBJECTS, MAX_BYTES, new ByteArrayInputStream(bos.toByteArray()), ballot -> {
+        });
+    }
+
+    /**
+     * the limits should be enforced on the envelope format as well
+     */
+    @Test(expected = SafeObjectSecurityRuntimeException.class)
+    public void testReadBallotBoxWithTooManyBallots() throws Exception {
+        byte[] box = writeBox(Arrays.asList(envelopeBallot(1), envelopeBallot(2), envelopeBallot(3)));
+
+        BallotBoxReader.readBallots(2, MAX_BYTES, new ByteArrayInputStream(box), ballot -> {
+        });
+    }
+
+    /**
+     * ballots held in envelopes should not be serialized, lest they be silently dropped
+     */
+    @Test(expected = NotSerializableException.class)
+    public void testSerializeEnvelopeBallot() throws Exception {
+        try (ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream())) {
+            out.writeObject(envelopeBallot(1));
+        }
+    }
+}
@@ -22,6 +22,8 @@ package ch.ge.ve.commons.crypto.ballot;
  */
 
 import ch.ge.ve.commons.crypto.exceptions.AuthenticationTagMismatchException;
+import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
 import ch.ge.ve.commons.crypto.exceptions.ProtocolNotRespectedException;
 import ch.ge.ve.commons.crypto.utils.CertificateUtils;
 import ch.ge.ve.commons.crypto.utils.CipherFactory;
@@ -33,16 +35,34 @@ import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.RSAPrivateKeySpec;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
 
 import static ch.ge.ve.commons.crypto.ballot.BallotCiphersProvider.*;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -63,6 +83,8 @@ public class BallotCipherServiceTest {
     public void setUp() {
         ballotCiphersProvider = mock(BallotCiphersProvider.class);
         propertyConfigurationService = mock(PropertyConfigurationService.class);
+        // the former format being the default one, the envelopes have to be enabled explicitly
+        when(propertyConfigurationService.isDefined(BALLOT_LEGACY_FORMAT)).thenReturn(true);
 
         ballotCipherService = new BallotCipherService(ballotCiphersProvider, propertyConfigurationService);
 
@@ -87,6 +109,7 @@ public class BallotCipherServiceTest {
         assertThat("The encrypted ballot key should be 256 bytes long", authenticatedBallot.getWrappedKey().length, is(256));
         assertThat("The encryption authentication tag should be 128bit / 16 bytes long", authenticatedBallot.getTag().length, is(16));
         assertThat("The authenticated ballot should have the proper index attached", authenticatedBallot.getBallotIndex(), is(1));
+        assertThat("The ballots should be authenticated in the first integrity version by default", authenticatedBallot.getIntegrityVersion(), is(AuthenticatedBallot.INTEGRITY_VERSION_1));
     }
 
     /**
@@ -109,6 +132,151 @@ public class BallotCipherServiceTest {
         assertThat("decryptBallot(encryptBallotThenWrapForAuthentication(...)) should be identical", decryptedText, equalTo(plainText));
     }
 
+    /**
+     * ballots should be encrypted into envelopes, without duplicating the tag
+     */
+    @Test
+    public void testEncryptBallotIntoEnvelope() throws Exception {
+        initBallotCiphersProviderMock();
+
+        String plainText = "GE;6699:9903370001;0;37000101;p=DEP" + Strings.repeat(";1001", 545);
+        AuthenticatedBallot authenticatedBallot = ballotCipherService.encryptBallotThenWrapForAuthentication(plainText, 1);
+        EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey = ballotCipherService.verifyAuthenticationThenUnwrap(authenticatedBallot);
+
+        BallotEnvelope envelope = encryptedBallotAndWrappedKey.getEnvelope();
+        assertThat(envelope, notNullValue());
+        assertThat(encryptedBallotAndWrappedKey.getEncryptedBallot(), nullValue());
+        assertThat(envelope.getWrappedKey(), equalTo(authenticatedBallot.getWrappedKey()));
+        assertThat(envelope.getCipherText().length, is(plainText.length()));
+        int envelopeLength = BallotEnvelopeCodec.encodedLength(envelope.withWrappedKey(null));
+        assertThat(authenticatedBallot.getAuthenticatedEncryptedBallot().length, is(envelopeLength + BallotCipherService.AEAD_TAG_SIZE / Byte.SIZE));
+        assertThat(authenticatedBallot.getTag(), equalTo(Arrays.copyOfRange(authenticatedBallot.getAuthenticatedEncryptedBallot(), envelopeLength, envelopeLength + 16)));
+    }
+
+    /**
+     * ballots should be encrypted in the former format unless it is disabled, so that they can still be serialized
+     */
+    @Test
+    public void testEncryptBallotInLegacyFormatByDefault() throws Exception {
+        initBallotCiphersProviderMock();
+        PropertyConfigurationService defaultConfiguration = mock(PropertyConfigurationService.class);
+        PropertyConfigurationService configuration = new PropertyConfigurationService();
+        when(ballotCiphersProvider.getIntegrityCipher(defaultConfiguration)).thenReturn(new CipherFactory(configuration).getInstance(
+                configuration.getConfigValue(BALLOT_INTEGRITY_CHECK_CRYPTING_ALGORITHM) + configuration.getConfigValue(BALLOT_INTEGRITY_CHECK_CRYPTING_BLOCK_MODE)));
+        BallotCipherService defaultBallotCipherService = new BallotCipherService(ballotCiphersProvider, defaultConfiguration);
+
+        AuthenticatedBallot authenticatedBallot = defaultBallotCipherService.encryptBallotThenWrapForAuthentication("plainText", 1);
+        EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey = ballotCipherService.verifyAuthenticationThenUnwrap(authenticatedBallot);
+
+        assertThat(encryptedBallotAndWrappedKey.getEncryptedBallot(), notNullValue());
+        assertThat(encryptedBallotAndWrappedKey.getEnvelope(), nullValue());
+        assertThat(configuration.getConfigValueAsBoolean(BALLOT_LEGACY_FORMAT), is(true));
+        try (ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream())) {
+            out.writeObject(new ArrayList<>(Collections.singletonList(encryptedBallotAndWrappedKey)));
+        }
+    }
+
+    /**
+     * ballots encrypted in the former format should still be decrypted
+     */
+    @Test
+    public void testDecryptBallotInLegacyFormat() throws Exception {
+        initBallotCiphersProviderMock();
+        PropertyConfigurationService legacyConfiguration = mock(PropertyConfigurationService.class);
+        when(legacyConfiguration.isDefined(BALLOT_LEGACY_FORMAT)).thenReturn(true);
+        when(legacyConfiguration.getConfigValueAsBoolean(BALLOT_LEGACY_FORMAT)).thenReturn(true);
+        PropertyConfigurationService configuration = new PropertyConfigurationService();
+        when(ballotCiphersProvider.getIntegrityCipher(legacyConfiguration)).thenReturn(new CipherFactory(configuration).getInstance(
+                configuration.getConfigValue(BALLOT_INTEGRITY_CHECK_CRYPTING_ALGORITHM) + configuration.getConfigValue(BALLOT_INTEGRITY_CHECK_CRYPTING_BLOCK_MODE)));
+        BallotCipherService legacyBallotCipherService = new BallotCipherService(ballotCiphersProvider, legacyConfiguration);
+
+        String plainText = "àéè ü ß ¤ €";
+        AuthenticatedBallot authenticatedBallot = legacyBallotCipherService.encryptBallotThenWrapForAuthentication(plainText, 1);
+        EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey = ballotCipherService.verifyAuthenticationThenUnwrap(authenticatedBallot);
+
+        assertThat(encryptedBallotAndWrappedKey.getEncryptedBallot(), notNullValue());
+        assertThat(encryptedBallotAndWrappedKey.getEnvelope(), nullValue());
+
+        initializePrivateKey();
+        assertThat(ballotCipherService.decryptBallot(encryptedBallotAndWrappedKey), equalTo(plainText));
+    }
+
+    /**
+     * the durations of both steps of the decryption of a ballot should be reported, unless the decryption fails
+     */
+    @Test
+    public void testDecryptBallotWithTimings() throws Exception {
+        initBallotCiphersProviderMock();
+        EncryptedBallotAndWrappedKey ballot = ballotCipherService.verifyAuthenticationThenUnwrap(ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", 1));
+        EncryptedBallotAndWrappedKey alteredBallot = ballotCipherService.verifyAuthenticationThenUnwrap(ballotCipherService.encryptBallotThenWrapForAuthentication("other plainText", 2));
+        alteredBallot.getEnvelope().getCipherText()[0] ^= 1;
+        initializePrivateKey();
+
+        BallotDecryptionTimings timings = mock(BallotDecryptionTimings.class);
+        assertThat(ballotCipherService.decryptBallot(ballot, timings), equalTo("plainText"));
+        verify(timings, times(1)).keyUnwrapped(longThat(greaterThan(0L)));
+        verify(timings, times(1)).ballotDecrypted(longThat(greaterThan(0L)));
+
+        try {
+            ballotCipherService.decryptBallot(alteredBallot, timings);
+        } catch (CryptoOperationRuntimeException e) {
+            verify(timings, times(2)).keyUnwrapped(anyLong());
+            verify(timings, times(1)).ballotDecrypted(anyLong());
+            return;
+        }
+        throw new AssertionError("an altered ballot should not be decrypted");
+    }
+
+    /**
+     * ballots read from a ballot box straight into an arena should be decrypted through a single reused view
+     */
+    @Test
+    public void testDecryptBallotsFromArena() throws Exception {
+        initBallotCiphersProviderMock();
+        List<String> plainTexts = new ArrayList<>();
+        ByteArrayOutputStream box = new ByteArrayOutputStream();
+        try (BallotBoxWriter writer = new BallotBoxWriter(box)) {
+            for (int i = 0; i < 20; i++) {
+                String plainText = "ballot " + i + " àéè" + Strings.repeat(";1001", i);
+                writer.write(ballotCipherService.verifyAuthenticationThenUnwrap(ballotCipherService.encryptBallotThenWrapForAuthentication(plainText, i + 1L)));
+                plainTexts.add(plainText);
+            }
+            writer.finish();
+        }
+
+        // an initial capacity far too small, for the buffer to be grown
+        EncryptedBallotArena arena = new EncryptedBallotArena(64);
+        List<EncryptedBallotAndWrappedKey> sealedBallots = new ArrayList<>();
+        BallotBoxReader.readBallots(20, Long.MAX_VALUE, new ByteArrayInputStream(box.toByteArray()), count -> {
+        }, sealedBallots::add, arena::add);
+        assertThat(sealedBallots, empty());
+        assertThat(arena.size(), is(20));
+        assertThat(arena.byteSize(), greaterThan(20 * 256));
+
+        initializePrivateKey();
+        EncryptedBallotArena.BallotView view = new EncryptedBallotArena.BallotView();
+        for (int i = arena.size() - 1; i >= 0; i--) {
+            assertThat(ballotCipherService.decryptBallot(arena.read(i, view), null), equalTo(plainTexts.get(i)));
+        }
+
+        arena.clear();
+        assertThat(arena.size(), is(0));
+        EncryptedBallotAndWrappedKey ballot = ballotCipherService.verifyAuthenticationThenUnwrap(ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", 1));
+        ByteBuffer encodedEnvelope = ByteBuffer.wrap(BallotEnvelopeCodec.encode(ballot.getEnvelope()));
+        arena.add(encodedEnvelope);
+        assertThat(encodedEnvelope.position(), is(0));
+        assertThat(ballotCipherService.decryptBallot(arena.read(0, view), null), equalTo("plainText"));
+
+        encodedEnvelope.array()[encodedEnvelope.limit() - 1] ^= 1;
+        arena.add(encodedEnvelope);
+        try {
+            ballotCipherService.decryptBallot(arena.read(1, view), null);
+            throw new AssertionError("an altered ballot should not be decrypted");
+        } catch (CryptoOperationRuntimeException e) {
+            assertThat(e.getMessage(), is("ballot decryption error"));
+        }
+    }
+
     /**
      * verification of an altered ballot cipher should fail
      */
@@ -132,6 +300,431 @@ public class BallotCipherServiceTest {
         ballotCipherService.verifyAuthenticationThenUnwrap(authenticatedBallot);
     }
 
+    /**
+     * ballot indices beyond Integer.MAX_VALUE should be authenticated
+     */
+    @Test
+    public void testEncryptAndDecryptBallotWithLongIndex() throws Exception {
+        initBallotCiphersProviderMock();
+        useIntegrityVersion2();
+        long ballotIndex = Integer.MAX_VALUE + 2L;
+
+        AuthenticatedBallot authenticatedBallot = ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", ballotIndex);
+        assertThat(authenticatedBallot.getIntegrityVersion(), is(AuthenticatedBallot.INTEGRITY_VERSION_2));
+        assertThat(authenticatedBallot.getBallotIndexAsLong(), is(ballotIndex));
+
+        EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey = ballotCipherService.verifyAuthenticationThenUnwrap(authenticatedBallot);
+        initializePrivateKey();
+        assertThat(ballotCipherService.decryptBallot(encryptedBallotAndWrappedKey), equalTo("plainText"));
+    }
+
+    /**
+     * a ballot should not be verified under another index, even one sharing its low order bytes
+     */
+    @Test(expected = AuthenticationTagMismatchException.class)
+    public void testVerifyBallotUnderAnotherIndex() throws Exception {
+        initBallotCiphersProviderMock();
+
+        useIntegrityVersion2();
+        AuthenticatedBallot authenticatedBallot = ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", (1L << 32) + 1);
+        AuthenticatedBallot movedBallot = new AuthenticatedBallot(authenticatedBallot.getWrappedKey(),
+                authenticatedBallot.getAuthenticatedEncryptedBallot(), 1L, AuthenticatedBallot.INTEGRITY_VERSION_2);
+
+        ballotCipherService.verifyAuthenticationThenUnwrap(movedBallot);
+    }
+
+    /**
+     * ballot indices beyond Integer.MAX_VALUE should be refused by the first integrity version
+     */
+    @Test(expected = CryptoOperationRuntimeException.class)
+    public void testEncryptBallotWithLongIndexInIntegrityVersion1() throws Exception {
+        initBallotCiphersProviderMock();
+
+        ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", Integer.MAX_VALUE + 2L);
+    }
+
+    /**
+     * ballots authenticated with the former integrity layer should still be verified
+     */
+    @Test
+    public void testVerifyBallotInIntegrityVersion1() throws Exception {
+        initBallotCiphersProviderMock();
+        AuthenticatedBallot authenticatedBallot = ballotCipherService.encryptBallotThenWrapForAuthentication("àéè ü ß ¤ €", 300);
+        BallotEnvelope envelope = ballotCipherService.verifyAuthenticationThenUnwrap(authenticatedBallot).getEnvelope();
+
+        // the former integrity layer: the nonce and associated data are the shortest encoding of the index
+        byte[] ballotIndexBytes = BigInteger.valueOf(300).toByteArray();
+        PropertyConfigurationService configuration = new PropertyConfigurationService();
+        Cipher integrityCipher = new CipherFactory(configuration).getInstance(
+                configuration.getConfigValue(BALLOT_INTEGRITY_CHECK_CRYPTING_ALGORITHM) + configuration.getConfigValue(BALLOT_INTEGRITY_CHECK_CRYPTING_BLOCK_MODE));
+        integrityCipher.init(Cipher.ENCRYPT_MODE, ballotCiphersProvider.getIntegrityCheckSecretKey(), new GCMParameterSpec(BallotCipherService.AEAD_TAG_SIZE, ballotIndexBytes));
+        integrityCipher.updateAAD(ballotIndexBytes);
+        byte[] authenticatedEncryptedBallot = integrityCipher.doFinal(BallotEnvelopeCodec.encode(envelope.withWrappedKey(null)));
+        AuthenticatedBallot version1Ballot = new AuthenticatedBallot(authenticatedBallot.getWrappedKey(), authenticatedEncryptedBallot, 300);
+        assertThat(version1Ballot.getIntegrityVersion(), is(AuthenticatedBallot.INTEGRITY_VERSION_1));
+
+        EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey = ballotCipherService.verifyAuthenticationThenUnwrap(version1Ballot);
+        initializePrivateKey();
+        assertThat(ballotCipherService.decryptBallot(encryptedBallotAndWrappedKey), equalTo("àéè ü ß ¤ €"));
+    }
+
+    /**
+     * the ciphers and keys should be resolved once per thread, and again only once a key file has been changed
+     */
+    @Test
+    public void testEncryptBallotReusesCipherContext() throws Exception {
+        initBallotCiphersProviderMock();
+
+        ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", 1);
+        ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", 2);
+
+        verify(ballotCiphersProvider, times(1)).getBallotCipher();
+        verify(ballotCiphersProvider, times(1)).getBallotKeyCipher();
+        verify(ballotCiphersProvider, times(1)).getIntegrityCipher(propertyConfigurationService);
+        verify(ballotCiphersProvider, times(1)).getBallotKeyCipherPublicKey();
+        verify(ballotCiphersProvider, times(1)).getIntegrityCheckSecretKey();
+
+        ballotCipherService.setPublicKeyFileName("pub_key");
+        ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", 3);
+
+        verify(ballotCiphersProvider, times(2)).getBallotKeyCipherPublicKey();
+        verify(ballotCiphersProvider, times(2)).getIntegrityCheckSecretKey();
+
+        ballotCipherService.invalidateIntegrityKeyCache();
+        ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", 4);
+
+        verify(ballotCiphersProvider, times(1)).invalidateIntegrityKeyCache();
+        verify(ballotCiphersProvider, times(3)).getIntegrityCheckSecretKey();
+    }
+
+    /**
+     * batch encryption should encrypt all the ballots, keeping their order, with one cipher context per thread
+     */
+    @Test
+    public void testEncryptBallotsInBatch() throws Exception {
+        initBallotCiphersProviderMock();
+        initMultiThreadedBallotCiphers();
+
+        int ballotsCount = 2 * BallotCipherService.BATCH_CHUNK_SIZE + 3;
+        List<PlainTextBallot> plainTextBallots = new ArrayList<>();
+        for (int i = 1; i <= ballotsCount; i++) {
+            plainTextBallots.add(new PlainTextBallot("plainText" + i, i));
+        }
+
+        int threadsCount = 2;
+        ExecutorService executor = Executors.newFixedThreadPool(threadsCount);
+        List<AuthenticatedBallot> authenticatedBallots;
+        try {
+            authenticatedBallots = ballotCipherService.encryptBallotsThenWrapForAuthentication(plainTextBallots, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(authenticatedBallots, hasSize(ballotsCount));
+        for (int i = 0; i < ballotsCount; i++) {
+            assertThat(authenticatedBallots.get(i).getBallotIndexAsLong(), is(i + 1L));
+        }
+        verify(ballotCiphersProvider, atMost(threadsCount)).getBallotCipher();
+
+        initializePrivateKey();
+        AuthenticatedBallot lastBallot = authenticatedBallots.get(ballotsCount - 1);
+        String decryptedText = ballotCipherService.decryptBallot(ballotCipherService.verifyAuthenticationThenUnwrap(lastBallot));
+        assertThat(decryptedText, equalTo("plainText" + ballotsCount));
+    }
+
+    /**
+     * a stream of ballots should be encrypted in order, with a bounded number of chunks in flight
+     */
+    @Test
+    public void testEncryptBallotsStream() throws Exception {
+        initBallotCiphersProviderMock();
+        initMultiThreadedBallotCiphers();
+
+        int chunksCount = BallotCipherService.MAX_PENDING_ENCRYPTION_CHUNKS + 3;
+        int ballotsCount = chunksCount * BallotCipherService.BATCH_CHUNK_SIZE - 1;
+        AtomicInteger submittedChunks = new AtomicInteger();
+        List<Long> indices = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Iterator<PlainTextBallot> plainTextBallots = LongStream.rangeClosed(1, ballotsCount)
+                    .mapToObj(i -> new PlainTextBallot("plainText" + i, i))
+                    .iterator();
+            ballotCipherService.encryptBallotsThenWrapForAuthentication(plainTextBallots, task -> {
+                submittedChunks.incrementAndGet();
+                executor.execute(task);
+            }, authenticatedBallot -> {
+                int consumedChunks = indices.size() / BallotCipherService.BATCH_CHUNK_SIZE;
+                assertThat(submittedChunks.get() - consumedChunks, lessThanOrEqualTo(BallotCipherService.MAX_PENDING_ENCRYPTION_CHUNKS));
+                indices.add(authenticatedBallot.getBallotIndexAsLong());
+            });
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(submittedChunks.get(), is(chunksCount));
+        assertThat(indices, hasSize(ballotsCount));
+        for (int i = 0; i < ballotsCount; i++) {
+            assertThat(indices.get(i), is(i + 1L));
+        }
+    }
+
+    /**
+     * a whole ballot box should be verified, its altered ballots and its duplicate, missing and unexpected indices being reported
+     */
+    @Test
+    public void testVerifyAuthenticationsOfBallotBox() throws Exception {
+        initBallotCiphersProviderMock();
+        initMultiThreadedIntegrityCipher();
+        List<AuthenticatedBallot> authenticatedBallots = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++) {
+            authenticatedBallots.add(ballotCipherService.encryptBallotThenWrapForAuthentication("plainText" + i, i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            BallotBoxIntegrityReport intactReport = ballotCipherService.verifyAuthentications(authenticatedBallots.iterator(), 1000, executor);
+            assertThat(intactReport.toString(), intactReport.isIntact(), is(true));
+            assertThat(intactReport.getVerifiedBallotsCount(), is(1000L));
+
+            byte[] alteredBallot = authenticatedBallots.get(41).getAuthenticatedEncryptedBallot();
+            alteredBallot[0] ^= 1;
+            authenticatedBallots.remove(699);
+            authenticatedBallots.add(authenticatedBallots.get(9));
+            authenticatedBallots.add(ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", 1001));
+
+            BallotBoxIntegrityReport report = ballotCipherService.verifyAuthentications(authenticatedBallots.iterator(), 1000, executor);
+            assertThat(report.isIntact(), is(false));
+            assertThat(report.getBallotsCount(), is(1001L));
+            assertThat(report.getVerifiedBallotsCount(), is(1000L));
+            assertThat(report.getFailingIndices(), contains(42L));
+            assertThat(report.getDuplicateIndices(), contains(10L));
+            assertThat(report.getMissingIndices(), contains(700L));
+            assertThat(report.getUnexpectedIndices(), contains(1001L));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * the lowest indices of an anomaly should be listed, whatever the order in which they are recorded
+     */
+    @Test
+    public void testIntegrityReportListsLowestIndices() {
+        BallotBoxIntegrityReport.Collector collector = new BallotBoxIntegrityReport.Collector(10);
+        for (long i = 10; i >= 1; i--) {
+            collector.recordIndex(i);
+        }
+        int unexpectedCount = 3 * BallotBoxIntegrityReport.MAX_REPORTED_INDICES;
+        for (long i = 10 + unexpectedCount; i > 10; i--) {
+            collector.recordIndex(i);
+        }
+
+        BallotBoxIntegrityReport report = collector.report();
+        assertThat(report.getUnexpectedCount(), is((long) unexpectedCount));
+        assertThat(report.getUnexpectedIndices(), hasSize(BallotBoxIntegrityReport.MAX_REPORTED_INDICES));
+        for (int i = 0; i < BallotBoxIntegrityReport.MAX_REPORTED_INDICES; i++) {
+            assertThat(report.getUnexpectedIndices().get(i), is(11L + i));
+        }
+    }
+
+    /**
+     * stress test the whole ballot box verification; the throughput is analysed manually from the provided logs
+     */
+    @Test
+    public void testVerifyAuthenticationsPerf() throws Exception {
+        initBallotCiphersProviderMock();
+        initMultiThreadedIntegrityCipher();
+        int nbBallots = 20000;
+        List<AuthenticatedBallot> authenticatedBallots = new ArrayList<>();
+        for (int i = 1; i <= nbBallots; i++) {
+            authenticatedBallots.add(ballotCipherService.encryptBallotThenWrapForAuthentication("GE;6699:9903370001;0;37000101;p=DEP" + Strings.repeat(";1001", 50), i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            BallotBoxIntegrityReport report = ballotCipherService.verifyAuthentications(authenticatedBallots.iterator(), nbBallots, executor);
+            assertThat(report.isIntact(), is(true));
+            log.info(report);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void initMultiThreadedBallotCiphers() throws PropertyConfigurationException {
+        // ciphers are not thread safe, each worker thread must be given its own instances
+        PropertyConfigurationService configuration = new PropertyConfigurationService();
+        CipherFactory cipherFactory = new CipherFactory(configuration);
+        when(ballotCiphersProvider.getBallotCipher()).thenAnswer(invocation ->
+                cipherFactory.getInstance(configuration.getConfigValue(BALLOT_CRYPTING_ALGORITHM) + configuration.getConfigValue(BALLOT_CRYPTING_BLOCK_MODE)));
+        when(ballotCiphersProvider.getBallotKeyCipher()).thenAnswer(invocation ->
+                cipherFactory.getInstance(configuration.getConfigValue(BALLOT_KEY_CRYPTING_ALGORITHM) + configuration.getConfigValue(BALLOT_KEY_CRYPTING_BLOCKMODE)));
+        when(ballotCiphersProvider.getIntegrityCipher(propertyConfigurationService)).thenAnswer(invocation ->
+                cipherFactory.getInstance(configuration.getConfigValue(BALLOT_INTEGRITY_CHECK_CRYPTING_ALGORITHM) + configuration.getConfigValue(BALLOT_INTEGRITY_CHECK_CRYPTING_BLOCK_MODE)));
+    }
+
+    private void initMultiThreadedIntegrityCipher() throws PropertyConfigurationException {
+        // ciphers are not thread safe, each worker thread must be given its own instance
+        PropertyConfigurationService configuration = new PropertyConfigurationService();
+        CipherFactory cipherFactory = new CipherFactory(configuration);
+        when(ballotCiphersProvider.getIntegrityCipher(propertyConfigurationService)).thenAnswer(invocation ->
+                cipherFactory.getInstance(configuration.getConfigValue(BALLOT_INTEGRITY_CHECK_CRYPTING_ALGORITHM) + configuration.getConfigValue(BALLOT_INTEGRITY_CHECK_CRYPTING_BLOCK_MODE)));
+    }
+
+    /**
+     * both unwrap engines should decrypt the ballots, the private key being checked once per thread
+     */
+    @Test
+    public void testDecryptBallotWithEachUnwrapEngine() throws Exception {
+        initBallotCiphersProviderMock();
+        AuthenticatedBallot authenticatedBallot = ballotCipherService.encryptBallotThenWrapForAuthentication("àéè ü ß ¤ €", 1);
+        EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey = ballotCipherService.verifyAuthenticationThenUnwrap(authenticatedBallot);
+        initializePrivateKey();
+
+        for (String engine : Arrays.asList(BallotKeyUnwrapper.ENGINE_JCE, BallotKeyUnwrapper.ENGINE_BC)) {
+            BallotCipherService engineBallotCipherService = new BallotCipherService(ballotCiphersProvider, unwrapEngineConfiguration(engine));
+            assertThat(engineBallotCipherService.decryptBallot(encryptedBallotAndWrappedKey), equalTo("àéè ü ß ¤ €"));
+            assertThat(engineBallotCipherService.decryptBallot(encryptedBallotAndWrappedKey), equalTo("àéè ü ß ¤ €"));
+        }
+    }
+
+    /**
+     * a private key without its CRT parameters should be rejected
+     */
+    @Test(expected = CryptoConfigurationRuntimeException.class)
+    public void testDecryptBallotWithoutCrtKey() throws Exception {
+        initBallotCiphersProviderMock();
+        AuthenticatedBallot authenticatedBallot = ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", 1);
+        EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey = ballotCipherService.verifyAuthenticationThenUnwrap(authenticatedBallot);
+        initializePrivateKey();
+
+        RSAPrivateCrtKey crtKey = (RSAPrivateCrtKey) ballotCiphersProvider.getBallotKeyCipherPrivateKey();
+        Key nonCrtKey = KeyFactory.getInstance("RSA").generatePrivate(new RSAPrivateKeySpec(crtKey.getModulus(), crtKey.getPrivateExponent()));
+        when(ballotCiphersProvider.getBallotKeyCipherPrivateKey()).thenReturn(nonCrtKey);
+
+        ballotCipherService.decryptBallot(encryptedBallotAndWrappedKey);
+    }
+
+    /**
+     * compare the unwrap engines; the results are analysed manually from the provided logs, to choose the configured engine
+     */
+    @Test
+    public void testUnwrapEnginesPerf() throws Exception {
+        initBallotCiphersProviderMock();
+        int nbIterations = 200;
+        List<EncryptedBallotAndWrappedKey> encryptedBallotAndWrappedKeys = new ArrayList<>();
+        for (int i = 0; i < nbIterations; i++) {
+            encryptedBallotAndWrappedKeys.add(ballotCipherService.verifyAuthenticationThenUnwrap(
+                    ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", i)));
+        }
+        initializePrivateKey();
+
+        for (String engine : Arrays.asList(BallotKeyUnwrapper.ENGINE_JCE, BallotKeyUnwrapper.ENGINE_BC)) {
+            BallotCipherService engineBallotCipherService = new BallotCipherService(ballotCiphersProvider, unwrapEngineConfiguration(engine));
+            // a first run to initialize the engine, we want to discard the initialization time
+            engineBallotCipherService.decryptBallot(encryptedBallotAndWrappedKeys.get(0));
+
+            final long start = System.nanoTime();
+            for (EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey : encryptedBallotAndWrappedKeys) {
+                engineBallotCipherService.decryptBallot(encryptedBallotAndWrappedKey);
+            }
+            final long total = System.nanoTime() - start;
+            log.info(String.format("| %-4s unwrap engine | %8d us mean | %8d ms (%3dx) |", engine, total / nbIterations / 1000, total / 1000000, nbIterations));
+        }
+    }
+
+    private PropertyConfigurationService unwrapEngineConfiguration(String engine) throws PropertyConfigurationException {
+        PropertyConfigurationService engineConfiguration = mock(PropertyConfigurationService.class);
+        when(engineConfiguration.isDefined(BALLOT_KEY_UNWRAP_ENGINE)).thenReturn(true);
+        when(engineConfiguration.getConfigValue(BALLOT_KEY_UNWRAP_ENGINE)).thenReturn(engine);
+        return engineConfiguration;
+    }
+
+    /**
+     * ballot keys should be wrapped and unwrapped with the elliptic curve encapsulation when the Election Officers' keys are EC keys
+     */
+    @Test
+    public void testEncryptAndDecryptBallotWithEcKeys() throws Exception {
+        initBallotCiphersProviderMock();
+        KeyPair ecKeyPair = initializeEcKeys();
+
+        AuthenticatedBallot authenticatedBallot = ballotCipherService.encryptBallotThenWrapForAuthentication("àéè ü ß ¤ €", 1);
+        EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey = ballotCipherService.verifyAuthenticationThenUnwrap(authenticatedBallot);
+        when(ballotCiphersProvider.getBallotKeyCipherPrivateKey()).thenReturn(ecKeyPair.getPrivate());
+
+        // compressed ephemeral point (33 bytes) followed by the AES key wrap of a 256 bits key (40 bytes)
+        assertThat(authenticatedBallot.getWrappedKey().length, is(73));
+        assertThat(ballotCipherService.decryptBallot(encryptedBallotAndWrappedKey), equalTo("àéè ü ß ¤ €"));
+        assertThat(ballotCipherService.decryptBallot(encryptedBallotAndWrappedKey), equalTo("àéè ü ß ¤ €"));
+        verify(ballotCiphersProvider, never()).getBallotKeyCipher();
+    }
+
+    /**
+     * an altered EC wrapped key should be rejected
+     */
+    @Test(expected = CryptoOperationRuntimeException.class)
+    public void testDecryptBallotWithAlteredEcWrappedKey() throws Exception {
+        initBallotCiphersProviderMock();
+        KeyPair ecKeyPair = initializeEcKeys();
+
+        AuthenticatedBallot authenticatedBallot = ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", 1);
+        EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey = ballotCipherService.verifyAuthenticationThenUnwrap(authenticatedBallot);
+        when(ballotCiphersProvider.getBallotKeyCipherPrivateKey()).thenReturn(ecKeyPair.getPrivate());
+
+        byte[] wrappedKey = encryptedBallotAndWrappedKey.getWrappedKey();
+        wrappedKey[wrappedKey.length - 1] ^= 1;
+
+        ballotCipherService.decryptBallot(encryptedBallotAndWrappedKey);
+    }
+
+    /**
+     * compare the unwrapping of the ballot keys with RSA and EC keys; the results are analysed manually from the provided logs
+     */
+    @Test
+    public void testEcUnwrapPerf() throws Exception {
+        initBallotCiphersProviderMock();
+        int nbIterations = 200;
+        List<EncryptedBallotAndWrappedKey> rsaEncryptedBallots = new ArrayList<>();
+        for (int i = 0; i < nbIterations; i++) {
+            rsaEncryptedBallots.add(ballotCipherService.verifyAuthenticationThenUnwrap(
+                    ballotCipherService.encryptBallotThenWrapForAuthentication("plainText", i)));
+        }
+        initializePrivateKey();
+        logDecryptionTime("RSA", rsaEncryptedBallots);
+
+        BallotCipherService ecBallotCipherService = new BallotCipherService(ballotCiphersProvider, propertyConfigurationService);
+        KeyPair ecKeyPair = initializeEcKeys();
+        List<EncryptedBallotAndWrappedKey> ecEncryptedBallots = new ArrayList<>();
+        for (int i = 0; i < nbIterations; i++) {
+            ecEncryptedBallots.add(ecBallotCipherService.verifyAuthenticationThenUnwrap(
+                    ecBallotCipherService.encryptBallotThenWrapForAuthentication("plainText", i)));
+        }
+        when(ballotCiphersProvider.getBallotKeyCipherPrivateKey()).thenReturn(ecKeyPair.getPrivate());
+        logDecryptionTime("EC", ecEncryptedBallots);
+    }
+
+    private void logDecryptionTime(String keyType, List<EncryptedBallotAndWrappedKey> encryptedBallotAndWrappedKeys) throws Exception {
+        BallotCipherService decryptionBallotCipherService = new BallotCipherService(ballotCiphersProvider, propertyConfigurationService);
+        // a first run to initialize the keys, we want to discard the initialization time
+        decryptionBallotCipherService.decryptBallot(encryptedBallotAndWrappedKeys.get(0));
+
+        final long start = System.nanoTime();
+        for (EncryptedBallotAndWrappedKey encryptedBallotAndWrappedKey : encryptedBallotAndWrappedKeys) {
+            decryptionBallotCipherService.decryptBallot(encryptedBallotAndWrappedKey);
+        }
+        final long total = System.nanoTime() - start;
+        int nbIterations = encryptedBallotAndWrappedKeys.size();
+        log.info(String.format("| %-4s decryption | %8d us mean | %8d ms (%3dx) | wrapped key: %3d bytes |", keyType,
+                total / nbIterations / 1000, total / 1000000, nbIterations, encryptedBallotAndWrappedKeys.get(0).getWrappedKey().length));
+    }
+
+    private KeyPair initializeEcKeys() throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair ecKeyPair = keyPairGenerator.generateKeyPair();
+        when(ballotCiphersProvider.getBallotKeyCipherPublicKey()).thenReturn(ecKeyPair.getPublic());
+        return ecKeyPair;
+    }
+
     /**
      * stress test the encrypt and decrypt methods; verification are done manually by analysing the provided logs
      */
@@ -248,6 +841,11 @@ public class BallotCipherServiceTest {
         when(ballotCiphersProvider.getIntegrityCheckSecretKey()).thenReturn(integrityCheckSecretKey);
     }
 
+    private void useIntegrityVersion2() throws PropertyConfigurationException {
+        when(propertyConfigurationService.isDefined(BALLOT_INTEGRITY_VERSION)).thenReturn(true);
+        when(propertyConfigurationService.getConfigValueAsInt(BALLOT_INTEGRITY_VERSION)).thenReturn(AuthenticatedBallot.INTEGRITY_VERSION_2);
+    }
+
     private void initializePrivateKey() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableKeyException {
         // Instantiate private key
         final InputStream privateKeyStream = BallotCipherServiceTest.class.getResourceAsStream("/ctrl.p12");
@@ -257,6 +855,33 @@ public class BallotCipherServiceTest {
         when(ballotCiphersProvider.getBallotKeyCipherPrivateKey()).thenReturn(ballotKeyCipherPrivateKey);
     }
 
+    /**
+     * the keys derived from the private key should only depend on the salt and on the purpose
+     */
+    @Test
+    public void testDeriveSecretKey() throws Exception {
+        initializePrivateKey();
+        byte[] salt = new byte[32];
+        new SecureRandom().nextBytes(salt);
+
+        SecretKey key = ballotCipherService.deriveSecretKey(salt, "checkpoint");
+
+        assertThat(key.getAlgorithm(), is("AES"));
+        assertThat(key.getEncoded().length, is(32));
+        assertThat(ballotCipherService.deriveSecretKey(salt.clone(), "checkpoint").getEncoded(), equalTo(key.getEncoded()));
+        assertThat(ballotCipherService.deriveSecretKey(salt, "another purpose").getEncoded(), not(equalTo(key.getEncoded())));
+        salt[0] ^= 1;
+        assertThat(ballotCipherService.deriveSecretKey(salt, "checkpoint").getEncoded(), not(equalTo(key.getEncoded())));
+    }
+
+    /**
+     * no key should be derived without a private key
+     */
+    @Test(expected = CryptoConfigurationRuntimeException.class)
+    public void testDeriveSecretKeyWithoutPrivateKey() {
+        ballotCipherService.deriveSecretKey(new byte[32], "checkpoint");
+    }
+
     /**
      * loadBallotKeyCipherPrivateKey should be delegated to BallotCiphersProvider
      */
@@ -267,29 +892,35 @@ public class BallotCipherServiceTest {
     }
 
     /**
-     * setPrivateKeyFileName should be delegated to BallotCiphersProvider
+     * setPrivateKeyFileName should update the configuration before the cache of BallotCiphersProvider is cleared
      */
     @Test
     public void testSetPrivateKeyFileName() throws Exception {
         ballotCipherService.setPrivateKeyFileName("priv_key");
-        verify(ballotCiphersProvider, times(1)).invalidatePrivateKeyCache();
+        InOrder inOrder = inOrder(propertyConfigurationService, ballotCiphersProvider);
+        inOrder.verify(propertyConfigurationService).addConfigValue(PRIVATE_KEY_FILE_NAME, "priv_key");
+        inOrder.verify(ballotCiphersProvider, times(1)).invalidatePrivateKeyCache();
     }
 
     /**
-     * setPublicKeyFileName should be delegated to BallotCiphersProvider
+     * setPublicKeyFileName should update the configuration before the cache of BallotCiphersProvider is cleared
      */
     @Test
     public void testSetPublicKeyFileName() throws Exception {
         ballotCipherService.setPublicKeyFileName("pub_key");
-        verify(ballotCiphersProvider, times(1)).invalidatePublicKeyCache();
+        InOrder inOrder = inOrder(propertyConfigurationService, ballotCiphersProvider);
+        inOrder.verify(propertyConfigurationService).addConfigValue(PUBLIC_KEY_FILE_NAME, "pub_key");
+        inOrder.verify(ballotCiphersProvider, times(1)).invalidatePublicKeyCache();
     }
 
     /**
-     * setIntegrityKeyFileName should be delegated to BallotCiphersProvider
+     * setIntegrityKeyFileName should update the configuration before the cache of BallotCiphersProvider is cleared
      */
     @Test
     public void testSetIntegrityKeyFileName() throws Exception {
         ballotCipherService.setIntegrityKeyFileName("integrity_key");
-        verify(ballotCiphersProvider, times(1)).invalidateIntegrityKeyCache();
+        InOrder inOrder = inOrder(propertyConfigurationService, ballotCiphersProvider);
+        inOrder.verify(propertyConfigurationService).addConfigValue(INTEGRITY_KEY_FILE_NAME, "integrity_key");
+        inOrder.verify(ballotCiphersProvider, times(1)).invalidateIntegrityKeyCache();
     }
 }
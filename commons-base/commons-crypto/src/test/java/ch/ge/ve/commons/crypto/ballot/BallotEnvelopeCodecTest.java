@@ -0,0 +1,166 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SealedObject;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for the {@link BallotEnvelopeCodec} class
+ */
+public class BallotEnvelopeCodecTest {
+    private final BallotEnvelope envelope = new BallotEnvelope(BallotEnvelopeCodec.ALGORITHM_AES_GCM,
+            bytes(12, 1), bytes(256, 2), bytes(1000, 3), bytes(16, 4));
+
+    private static byte[] bytes(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    /**
+     * a decoded envelope should be identical to the encoded one
+     */
+    @Test
+    public void testEncodeThenDecode() {
+        byte[] encoded = BallotEnvelopeCodec.encode(envelope);
+
+        assertThat(encoded.length, is(BallotEnvelopeCodec.encodedLength(envelope)));
+        assertThat(encoded.length, is(3 + 12 + 2 + 256 + 4 + 1000 + 1 + 16));
+
+        BallotEnvelope decoded = BallotEnvelopeCodec.decode(encoded);
+        assertThat(decoded.getAlgorithmId(), is(envelope.getAlgorithmId()));
+        assertThat(decoded.getNonce(), equalTo(envelope.getNonce()));
+        assertThat(decoded.getWrappedKey(), equalTo(envelope.getWrappedKey()));
+        assertThat(decoded.getCipherText(), equalTo(envelope.getCipherText()));
+        assertThat(decoded.getTag(), equalTo(envelope.getTag()));
+    }
+
+    /**
+     * the wrapped key may be omitted
+     */
+    @Test
+    public void testEncodeWithoutWrappedKey() {
+        BallotEnvelope decoded = BallotEnvelopeCodec.decode(BallotEnvelopeCodec.encode(envelope.withWrappedKey(null)));
+
+        assertThat(decoded.getWrappedKey().length, is(0));
+        assertThat(decoded.getCipherText(), equalTo(envelope.getCipherText()));
+    }
+
+    /**
+     * truncated or extended envelopes should be rejected
+     */
+    @Test
+    public void testDecodeMalformedEnvelopes() {
+        byte[] encoded = BallotEnvelopeCodec.encode(envelope);
+        for (byte[] malformed : Arrays.asList(
+                Arrays.copyOf(encoded, encoded.length - 1),
+                Arrays.copyOf(encoded, encoded.length + 1),
+                new byte[0])) {
+            try {
+                BallotEnvelopeCodec.decode(malformed);
+                throw new AssertionError("malformed envelope of length " + malformed.length + " should be rejected");
+            } catch (CryptoOperationRuntimeException e) {
+                assertThat(e.getMessage(), startsWith("malformed ballot envelope"));
+            }
+            try {
+                BallotEnvelopeCodec.check(ByteBuffer.wrap(malformed));
+                throw new AssertionError("malformed envelope of length " + malformed.length + " should not pass the check");
+            } catch (CryptoOperationRuntimeException e) {
+                assertThat(e.getMessage(), startsWith("malformed ballot envelope"));
+            }
+        }
+    }
+
+    /**
+     * well-formed envelopes should pass the check, which leaves the buffer unchanged
+     */
+    @Test
+    public void testCheckEnvelope() {
+        ByteBuffer buffer = ByteBuffer.allocate(BallotEnvelopeCodec.encodedLength(envelope) + 4);
+        buffer.putInt(42);
+        BallotEnvelopeCodec.encode(envelope, buffer);
+        buffer.position(4);
+
+        BallotEnvelopeCodec.check(buffer);
+
+        assertThat(buffer.position(), is(4));
+        assertThat(BallotEnvelopeCodec.decode(buffer).getCipherText(), equalTo(envelope.getCipherText()));
+    }
+
+    /**
+     * envelopes of unknown versions should be rejected
+     */
+    @Test(expected = CryptoOperationRuntimeException.class)
+    public void testDecodeUnknownVersion() {
+        byte[] encoded = BallotEnvelopeCodec.encode(envelope);
+        encoded[0] = 2;
+
+        BallotEnvelopeCodec.decode(encoded);
+    }
+
+    /**
+     * serialized sealed objects should be told apart from envelopes
+     */
+    @Test
+    public void testIsLegacyFormat() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(128);
+        cipher.init(Cipher.ENCRYPT_MODE, keyGenerator.generateKey());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(new SealedObject("plainText", cipher));
+        }
+
+        assertThat(BallotEnvelopeCodec.isLegacyFormat(bos.toByteArray()), is(true));
+        assertThat(BallotEnvelopeCodec.isLegacyFormat(BallotEnvelopeCodec.encode(envelope)), is(false));
+    }
+
+    /**
+     * only the ciphers supported by the envelope format should be accepted
+     */
+    @Test
+    public void testAlgorithmId() {
+        assertThat(BallotEnvelopeCodec.algorithmId("AES/GCM/NoPadding"), is(BallotEnvelopeCodec.ALGORITHM_AES_GCM));
+    }
+
+    /**
+     * the ciphers not supported by the envelope format should be rejected
+     */
+    @Test(expected = CryptoConfigurationRuntimeException.class)
+    public void testAlgorithmIdOfUnsupportedCipher() {
+        BallotEnvelopeCodec.algorithmId("AES/CBC/PKCS5Padding");
+    }
+}
@@ -0,0 +1,136 @@
+package ch.ge.ve.commons.crypto.ballot;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
+import ch.ge.ve.commons.crypto.utils.CipherFactory;
+import ch.ge.ve.commons.properties.PropertyConfigurationService;
+import com.google.common.base.Strings;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SealedObject;
+import java.io.Serializable;
+import java.security.Key;
+import java.security.Security;
+
+import static ch.ge.ve.commons.crypto.ballot.BallotCiphersProvider.BALLOT_CRYPTING_ALGORITHM;
+import static ch.ge.ve.commons.crypto.ballot.BallotCiphersProvider.BALLOT_CRYPTING_BLOCK_MODE;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link SealedBallotDecoder} class
+ */
+public class SealedBallotDecoderTest {
+    private Cipher sealingCipher;
+    private BallotCipherContext context;
+    private Key key;
+
+    @Before
+    public void setUp() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        PropertyConfigurationService propertyConfigurationService = new PropertyConfigurationService();
+        String transformation = propertyConfigurationService.getConfigValue(BALLOT_CRYPTING_ALGORITHM) + propertyConfigurationService.getConfigValue(BALLOT_CRYPTING_BLOCK_MODE);
+        CipherFactory cipherFactory = new CipherFactory(propertyConfigurationService);
+
+        sealingCipher = cipherFactory.getInstance(transformation);
+        BallotCiphersProvider ballotCiphersProvider = mock(BallotCiphersProvider.class);
+        when(ballotCiphersProvider.getBallotCipher()).thenReturn(cipherFactory.getInstance(transformation));
+        context = new BallotCipherContext(ballotCiphersProvider, propertyConfigurationService, 0);
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        key = keyGenerator.generateKey();
+    }
+
+    private SealedObject seal(Serializable object) throws Exception {
+        sealingCipher.init(Cipher.ENCRYPT_MODE, key);
+        return new SealedObject(object, sealingCipher);
+    }
+
+    /**
+     * the fields of the sealed objects should be accessible on JDK 8, the fast path being a JDK 8 only optimisation
+     */
+    @Test
+    public void testIsAvailable() {
+        Assume.assumeThat(System.getProperty("java.specification.version"), equalTo("1.8"));
+
+        assertThat(SealedBallotDecoder.isAvailable(), is(true));
+    }
+
+    /**
+     * the decoded ballots should be identical to the ones read through the sealed object, for any contents
+     */
+    @Test
+    public void testDecryptMatchesSealedObject() throws Exception {
+        Assume.assumeTrue(SealedBallotDecoder.isAvailable());
+
+        String[] plainTexts = {
+                "",
+                "GE;6699:9903370001;0;37000101;p=DEP" + Strings.repeat(";1001", 545),
+                "àéè ü ß ¤ € \u0000 🗳",
+                // more than 65535 bytes once encoded, hence serialized as a long string
+                Strings.repeat("€", 30000)
+        };
+        for (String plainText : plainTexts) {
+            SealedObject sealedObject = seal(plainText);
+
+            String decrypted = SealedBallotDecoder.decrypt(sealedObject, key, context);
+
+            assertThat(decrypted, equalTo(plainText));
+            assertThat(decrypted, equalTo(sealedObject.getObject(key)));
+            // the working buffers of the thread should not keep the cleartext ballot
+            assertThat(context.getByteBuffer(0), equalTo(new byte[context.getByteBuffer(0).length]));
+            assertThat(context.getCharBuffer(0), equalTo(new char[context.getCharBuffer(0).length]));
+        }
+    }
+
+    /**
+     * sealed objects containing anything else than a string should be left to the sealed object
+     */
+    @Test
+    public void testDecryptReturnsNullForOtherContents() throws Exception {
+        assertThat(SealedBallotDecoder.decrypt(seal(42), key, context), nullValue());
+    }
+
+    /**
+     * altered sealed ballots should be rejected
+     */
+    @Test(expected = CryptoOperationRuntimeException.class)
+    public void testDecryptWithWrongKey() throws Exception {
+        Assume.assumeTrue(SealedBallotDecoder.isAvailable());
+
+        SealedObject sealedObject = seal("plainText");
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+
+        SealedBallotDecoder.decrypt(sealedObject, keyGenerator.generateKey(), context);
+    }
+}
@@ -0,0 +1,109 @@
+package ch.ge.ve.commons.crypto.utils;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+/**
+ * This test suit aims at covering the {@link CardNumberGenerator} and its {@link StripedLongSet}.
+ */
+public class CardNumberGeneratorTest {
+
+    /**
+     * the card numbers generated in parallel should be unique, and follow the card number format
+     */
+    @Test
+    public void generatedCardNumbersShouldBeUniqueAndWellFormed() {
+        CardNumberGenerator generator = new CardNumberGenerator(16, 15, 100_000);
+        Set<Long> cardNumbers = ConcurrentHashMap.newKeySet();
+
+        generator.generate(100_000, cardNumbers::add);
+
+        assertThat(cardNumbers, hasSize(100_000));
+        assertThat(generator.getGeneratedCount(), is(100_000L));
+        for (long cardNumber : cardNumbers) {
+            String digits = String.valueOf(cardNumber);
+            assertThat(digits.matches("[1-9]{16}"), is(true));
+            assertThat(digits, not(startsWith("15")));
+        }
+    }
+
+    /**
+     * every card number of a small length should be generated once, except those starting with the prefix
+     */
+    @Test
+    public void allTheCardNumbersShouldBeGeneratedBeforeRunningOut() {
+        CardNumberGenerator generator = new CardNumberGenerator(2, 3, 0);
+        Set<Long> cardNumbers = ConcurrentHashMap.newKeySet();
+
+        generator.generate(72, cardNumbers::add);
+
+        assertThat(cardNumbers, hasSize(72));
+        assertThat(cardNumbers, not(hasItem(35L)));
+        assertThat(cardNumbers, hasItem(53L));
+        try {
+            generator.nextCardNumber();
+            fail("all the card numbers have been generated");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), containsString("All the card numbers"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void generateShouldRejectMoreCardsThanAvailable() {
+        new CardNumberGenerator(2, 12, 0).generate(81, cardNumber -> { });
+    }
+
+    @Test
+    public void prefixShouldBeCheckedArithmetically() {
+        assertThat(CardNumberGenerator.startsWith(1512345678912345L, 16, 15), is(true));
+        assertThat(CardNumberGenerator.startsWith(1152345678912345L, 16, 15), is(false));
+        assertThat(CardNumberGenerator.startsWith(1512345678912345L, 16, 1512345678), is(true));
+        // prefixes that no card number can start with
+        assertThat(CardNumberGenerator.startsWith(1512345678912345L, 16, 0), is(false));
+        assertThat(CardNumberGenerator.startsWith(1512345678912345L, 16, -15), is(false));
+        assertThat(CardNumberGenerator.startsWith(1112345678912345L, 16, 10), is(false));
+        assertThat(CardNumberGenerator.startsWith(15L, 2, 151), is(false));
+    }
+
+    @Test
+    public void stripedLongSetShouldHoldDistinctValuesAndGrow() {
+        StripedLongSet set = new StripedLongSet(4, 0);
+
+        for (long value = 1; value <= 10_000; value++) {
+            assertThat(set.add(value * 7919), is(true));
+        }
+
+        assertThat(set.add(7919), is(false));
+        assertThat(set.contains(7919 * 10_000L), is(true));
+        assertThat(set.contains(7920), is(false));
+        assertThat(set.contains(0), is(false));
+        assertThat(set.size(), is(10_000L));
+    }
+}
@@ -0,0 +1,209 @@
+package ch.ge.ve.commons.crypto.utils;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * This test suit aims at covering the {@link CardNumberIndex} persistent index.
+ */
+public class CardNumberIndexTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path indexFile() {
+        return temporaryFolder.getRoot().toPath().resolve("card-numbers.index");
+    }
+
+    private Path generationFile(int generation) {
+        return temporaryFolder.getRoot().toPath().resolve("card-numbers.index." + generation);
+    }
+
+    /**
+     * the card numbers appended, then merged, should be found again once the index is reopened
+     */
+    @Test
+    public void cardNumbersShouldBeFoundAfterAppendAndMerge() throws IOException {
+        try (CardNumberIndex index = CardNumberIndex.open(indexFile())) {
+            assertThat(index.add(1234L), is(true));
+            assertThat(index.add(1234L), is(false));
+            index.addAll(new long[]{99L, 5L, 1234L, 77L, 5L});
+            assertThat(index.add(5L), is(false));
+            assertThat(index.add(42L), is(true));
+            assertThat(index.size(), is(5L));
+        }
+
+        try (CardNumberIndex index = CardNumberIndex.open(indexFile())) {
+            for (long cardNumber : new long[]{5L, 42L, 77L, 99L, 1234L}) {
+                assertThat(index.contains(cardNumber), is(true));
+            }
+            assertThat(index.contains(6L), is(false));
+            assertThat(index.contains(100_000L), is(false));
+            assertThat(index.size(), is(5L));
+            // the appended card number is merged
+            index.merge();
+            assertThat(index.contains(42L), is(true));
+        }
+        // each merge switched to the next generation of the index, the previous ones being deleted
+        assertThat(Files.exists(indexFile()), is(false));
+        assertThat(Files.exists(generationFile(1)), is(false));
+        assertThat(Files.size(generationFile(2)), is(16L + 5 * Long.BYTES));
+    }
+
+    /**
+     * the index should be opened from its latest generation, the previous ones being deleted
+     */
+    @Test
+    public void indexShouldBeOpenedFromItsLatestGeneration() throws IOException {
+        try (CardNumberIndex index = CardNumberIndex.open(indexFile())) {
+            index.addAll(new long[]{11L, 22L});
+            index.add(33L);
+        }
+        // a previous generation left over, e.g. since it was still mapped when the index switched to the next one
+        Files.write(indexFile(), "stale generation".getBytes("US-ASCII"));
+
+        try (CardNumberIndex index = CardNumberIndex.open(indexFile())) {
+            assertThat(index.size(), is(3L));
+            assertThat(index.contains(33L), is(true));
+        }
+        assertThat(Files.exists(indexFile()), is(false));
+        assertThat(Files.exists(generationFile(1)), is(true));
+    }
+
+    /**
+     * a card number partially appended should be dropped, and the previous ones kept
+     */
+    @Test
+    public void partiallyAppendedCardNumberShouldBeDropped() throws IOException {
+        try (CardNumberIndex index = CardNumberIndex.open(indexFile())) {
+            index.add(111L);
+            index.add(222L);
+        }
+        try (FileChannel channel = FileChannel.open(indexFile(), StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(indexFile()) - 3);
+        }
+
+        try (CardNumberIndex index = CardNumberIndex.open(indexFile())) {
+            assertThat(index.contains(111L), is(true));
+            assertThat(index.contains(222L), is(false));
+            assertThat(index.size(), is(1L));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void openShouldRejectOtherFiles() throws IOException {
+        Files.write(indexFile(), "not a card number index".getBytes("US-ASCII"));
+        CardNumberIndex.open(indexFile());
+    }
+
+    /**
+     * the generators sharing an index should never issue the same card number twice, across runs
+     */
+    @Test
+    public void generatorsShouldNotIssueCardNumbersOfTheIndex() throws IOException {
+        Set<Long> firstRun = ConcurrentHashMap.newKeySet();
+        try (CardNumberIndex index = CardNumberIndex.open(indexFile())) {
+            new CardNumberGenerator(4, 15, index).generate(3000, firstRun::add);
+            index.merge();
+        }
+
+        Set<Long> secondRun = ConcurrentHashMap.newKeySet();
+        try (CardNumberIndex index = CardNumberIndex.open(indexFile())) {
+            CardNumberGenerator generator = new CardNumberGenerator(4, 15, index);
+            // 9^4 - 9^2 card numbers of length 4 do not start with 15
+            generator.generate(6480 - 3000, secondRun::add);
+            assertThat(index.size(), is(6480L));
+        }
+
+        assertThat(firstRun, hasSize(3000));
+        assertThat(secondRun, hasSize(3480));
+        secondRun.retainAll(firstRun);
+        assertThat(secondRun, is(empty()));
+    }
+
+    /**
+     * the card numbers added should be in the file once the index has been flushed, before it is closed
+     */
+    @Test
+    public void flushedCardNumbersShouldBePersisted() throws IOException {
+        Path copy = temporaryFolder.getRoot().toPath().resolve("copy.index");
+        try (CardNumberIndex index = CardNumberIndex.open(indexFile())) {
+            index.add(1234L);
+            index.add(5678L);
+            index.flush();
+            Files.copy(indexFile(), copy);
+        }
+
+        try (CardNumberIndex index = CardNumberIndex.open(copy)) {
+            assertThat(index.contains(1234L), is(true));
+            assertThat(index.contains(5678L), is(true));
+            assertThat(index.size(), is(2L));
+        }
+    }
+
+    /**
+     * a generator should run out of card numbers once its index holds all of them, even those of other generators
+     */
+    @Test(expected = IllegalStateException.class)
+    public void generatorShouldRunOutOfTheCardNumbersOfTheIndex() throws IOException {
+        try (CardNumberIndex index = CardNumberIndex.open(indexFile())) {
+            // 9^4 - 9^2 card numbers of length 4 do not start with 15
+            new CardNumberGenerator(4, 15, index).generate(6480, cardNumber -> { });
+
+            new CardNumberGenerator(4, 15, index).nextCardNumber();
+        }
+    }
+
+    /**
+     * the sorted card numbers should be looked up efficiently whatever their distribution
+     */
+    @Test
+    public void lookupShouldSupportSkewedDistributions() throws IOException {
+        long[] cardNumbers = new long[20_000];
+        for (int i = 0; i < cardNumbers.length; i++) {
+            // a few large card numbers, and many small ones
+            cardNumbers[i] = i % 100 == 0 ? 900_000_000_000_000_000L + i : 2 * i + 1;
+        }
+        try (CardNumberIndex index = CardNumberIndex.open(indexFile())) {
+            index.addAll(cardNumbers);
+
+            for (long cardNumber : cardNumbers) {
+                assertThat(index.contains(cardNumber), is(true));
+            }
+            assertThat(index.contains(2L), is(false));
+            assertThat(index.contains(900_000_000_000_000_001L), is(false));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ch.ge.ve.commons.crypto.utils;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.security.SecureRandom;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * This test suit aims at covering the {@link RandomBytesBuffer} utility class.
+ */
+public class RandomBytesBufferTest {
+
+    /**
+     * the generator should only be called once per block, whatever the number of values drawn
+     */
+    @Test
+    public void bufferShouldBeRefilledByBlocks() {
+        CountingSecureRandom secureRandom = new CountingSecureRandom();
+        RandomBytesBuffer randomBytes = new RandomBytesBuffer(secureRandom, 64);
+
+        for (int i = 0; i < 64; i++) {
+            randomBytes.nextInt(256);
+        }
+        assertThat(secureRandom.calls, is(1));
+
+        randomBytes.nextInt(256);
+        assertThat(secureRandom.calls, is(2));
+    }
+
+    /**
+     * the values beyond the bound should be rejected, not reduced modulo the bound
+     */
+    @Test
+    public void valuesBeyondTheBoundShouldBeRejected() {
+        // 0x0F and 0x0C are beyond 9 once masked with 0x0F, 0x13 is 3 once masked
+        RandomBytesBuffer randomBytes = new RandomBytesBuffer(new FixedSecureRandom(0x0F, 0x0C, 0x13, 0x08), 4);
+
+        assertThat(randomBytes.nextInt(9), is(3));
+        assertThat(randomBytes.nextInt(9), is(8));
+    }
+
+    /**
+     * the bounded integers should be uniformly distributed
+     */
+    @Test
+    public void nextIntShouldBeUniform() {
+        RandomBytesBuffer randomBytes = RandomBytesBuffer.forCurrentThread();
+        int bound = 9;
+        int draws = 90_000;
+        int[] counts = new int[bound];
+
+        for (int i = 0; i < draws; i++) {
+            counts[randomBytes.nextInt(bound)]++;
+        }
+
+        // chi-squared with 8 degrees of freedom, well beyond its 99.99th percentile (31.8)
+        double expected = draws / (double) bound;
+        double chiSquared = 0.0;
+        for (int count : counts) {
+            chiSquared += (count - expected) * (count - expected) / expected;
+        }
+        assertThat(chiSquared, lessThan(40.0));
+    }
+
+    /**
+     * the bounds needing several bytes should be supported too
+     */
+    @Test
+    public void nextIntShouldSupportLargeBounds() {
+        RandomBytesBuffer randomBytes = RandomBytesBuffer.forCurrentThread();
+
+        for (int i = 0; i < 10_000; i++) {
+            assertThat(randomBytes.nextInt(1), is(0));
+            assertThat(randomBytes.nextInt(1000), both(greaterThanOrEqualTo(0)).and(lessThan(1000)));
+            assertThat(randomBytes.nextInt(Integer.MAX_VALUE), greaterThanOrEqualTo(0));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nextIntShouldRejectNonPositiveBounds() {
+        RandomBytesBuffer.forCurrentThread().nextInt(0);
+    }
+
+    private static class CountingSecureRandom extends SecureRandom {
+        private int calls;
+
+        @Override
+        public void nextBytes(byte[] bytes) {
+            calls++;
+            super.nextBytes(bytes);
+        }
+    }
+
+    private static class FixedSecureRandom extends SecureRandom {
+        private final int[] values;
+
+        FixedSecureRandom(int... values) {
+            this.values = values;
+        }
+
+        @Override
+        public void nextBytes(byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) values[i % values.length];
+            }
+        }
+    }
+}
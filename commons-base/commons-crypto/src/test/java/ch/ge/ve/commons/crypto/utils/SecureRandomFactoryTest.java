@@ -0,0 +1,160 @@
+package ch.ge.ve.commons.crypto.utils;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.exceptions.CryptoConfigurationRuntimeException;
+import ch.ge.ve.commons.properties.PropertyConfigurationService;
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.EntropySourceProvider;
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * This test suit aims at covering the {@link SecureRandomFactory} and its {@link DrbgSecureRandom} generators.
+ */
+public class SecureRandomFactoryTest {
+
+    /**
+     * each thread should reuse its own generator
+     */
+    @Test
+    public void createPRNGShouldReturnTheGeneratorOfTheCurrentThread() throws Exception {
+        SecureRandom prng = SecureRandomFactory.createPRNG();
+        assertThat(SecureRandomFactory.createPRNG(), sameInstance(prng));
+        assertThat(prng.getAlgorithm(), is(DrbgSecureRandom.ALGORITHM));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Callable<SecureRandom> otherThreadPrng = SecureRandomFactory::createPRNG;
+            assertThat(executor.submit(otherThreadPrng).get(), not(sameInstance(prng)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * two generators should never produce the same output, and the requests larger than the maximum size of a DRBG
+     * request should be fully filled
+     */
+    @Test
+    public void generatorsShouldProduceDistinctOutputs() {
+        DrbgSecureRandom first = new DrbgSecureRandom(new CountingEntropySourceProvider(), 10);
+        DrbgSecureRandom second = new DrbgSecureRandom(new CountingEntropySourceProvider(), 10);
+        byte[] firstBytes = new byte[100_000];
+        byte[] secondBytes = new byte[100_000];
+
+        first.nextBytes(firstBytes);
+        second.nextBytes(secondBytes);
+
+        assertThat(firstBytes, not(equalTo(secondBytes)));
+        // the last block of a large request is generated too
+        assertThat(countZeros(firstBytes, 98_304, 100_000), lessThan(100));
+    }
+
+    /**
+     * the generator should be reseeded from the entropy source after the configured number of requests
+     */
+    @Test
+    public void generatorShouldBeReseededEveryReseedInterval() {
+        CountingEntropySourceProvider entropySourceProvider = new CountingEntropySourceProvider();
+        DrbgSecureRandom prng = new DrbgSecureRandom(entropySourceProvider, 10);
+        // the nonce and the instantiation
+        assertThat(entropySourceProvider.entropyRequests.get(), is(2));
+
+        for (int i = 0; i < 25; i++) {
+            prng.nextInt();
+        }
+
+        assertThat(entropySourceProvider.entropyRequests.get(), is(4));
+
+        prng.setSeed(42L);
+
+        assertThat(entropySourceProvider.entropyRequests.get(), is(5));
+    }
+
+    /**
+     * the reseed interval should be read from the configuration, and default to a conservative value if undefined
+     */
+    @Test
+    public void reseedIntervalShouldBeConfigured() {
+        assertThat(SecureRandomFactory.reseedInterval(new PropertyConfigurationService()), is(1L << 20));
+        assertThat(SecureRandomFactory.reseedInterval(reseedIntervalConfiguration("1000")), is(1000L));
+        assertThat(SecureRandomFactory.reseedInterval(mock(PropertyConfigurationService.class)),
+                is(SecureRandomFactory.DEFAULT_RESEED_INTERVAL));
+    }
+
+    @Test(expected = CryptoConfigurationRuntimeException.class)
+    public void nonPositiveReseedIntervalShouldBeRejected() {
+        SecureRandomFactory.reseedInterval(reseedIntervalConfiguration("0"));
+    }
+
+    private static PropertyConfigurationService reseedIntervalConfiguration(String reseedInterval) {
+        PropertyConfigurationService propertyConfigurationService = new PropertyConfigurationService();
+        propertyConfigurationService.addConfigValue(SecureRandomFactory.RESEED_INTERVAL_PROPERTY, reseedInterval);
+        return propertyConfigurationService;
+    }
+
+    private static int countZeros(byte[] bytes, int from, int to) {
+        int zeros = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == 0) {
+                zeros++;
+            }
+        }
+        return zeros;
+    }
+
+    private static class CountingEntropySourceProvider implements EntropySourceProvider {
+        private final AtomicInteger entropyRequests = new AtomicInteger();
+        private final SecureRandom random = new SecureRandom();
+
+        @Override
+        public EntropySource get(int bitsRequired) {
+            return new EntropySource() {
+                @Override
+                public boolean isPredictionResistant() {
+                    return true;
+                }
+
+                @Override
+                public byte[] getEntropy() {
+                    entropyRequests.incrementAndGet();
+                    return random.generateSeed((bitsRequired + 7) / 8);
+                }
+
+                @Override
+                public int entropySize() {
+                    return bitsRequired;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package ch.ge.ve.commons.crypto.votingcard;
+
+/*-
+ * #%L
+ * Common crypto utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.SensitiveDataCryptoUtils;
+import ch.ge.ve.commons.crypto.TestSensitiveDataCryptoUtilsConfiguration;
+import ch.ge.ve.commons.crypto.exceptions.CryptoOperationRuntimeException;
+import ch.ge.ve.commons.crypto.utils.CardNumberGenerator;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+/**
+ * This test suit aims at covering the {@link VotingCardPipeline} and its {@link VotingCardFilesWriter}.
+ */
+public class VotingCardPipelineTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void init() {
+        SensitiveDataCryptoUtils.configure(new TestSensitiveDataCryptoUtilsConfiguration() {
+            @Override
+            public int getIterations() {
+                return 10;
+            }
+        });
+    }
+
+    /**
+     * the cards should be written in order, with unique card numbers, and protected forms matching their secrets
+     */
+    @Test
+    public void cardsShouldBeWrittenInOrderWithTheirProtectedForms() throws IOException {
+        VotingCardPipeline pipeline = new VotingCardPipeline(new CardNumberGenerator(16, 15, 1000), 3, 2, 3, 7);
+        List<VotingCardMaterial> cards = new ArrayList<>();
+
+        VotingCardPipelineMetrics metrics = pipeline.run(250, new ListWriter(cards));
+
+        assertThat(cards, hasSize(250));
+        Set<String> cardNumbers = new HashSet<>();
+        for (int i = 0; i < cards.size(); i++) {
+            VotingCardMaterial card = cards.get(i);
+            VotingCardSecrets secrets = card.getSecrets();
+            assertThat(secrets.getIndex(), is((long) i));
+            assertThat(cardNumbers.add(secrets.getCardNumber()), is(true));
+            assertThat(secrets.getVerificationCodes(), hasSize(3));
+            assertThat(SensitiveDataCryptoUtils.verifySaltedMAC(secrets.getCardNumber(), card.getCardNumberMac()), is(true));
+            assertThat(SensitiveDataCryptoUtils.validateStrongPasswordHash(secrets.getConfirmationCode().toCharArray(),
+                    card.getConfirmationCodeHash()), is(true));
+            assertThat(SensitiveDataCryptoUtils.decryptAsString(card.getEncryptedFinalizationCode()), is(secrets.getFinalizationCode()));
+            for (int j = 0; j < 3; j++) {
+                assertThat(SensitiveDataCryptoUtils.decryptAsString(card.getEncryptedVerificationCodes().get(j)),
+                        is(secrets.getVerificationCodes().get(j)));
+            }
+        }
+        assertThat(metrics, sameInstance(pipeline.getMetrics()));
+        assertThat(metrics.getTotalCards(), is(250L));
+        for (VotingCardPipelineMetrics.Stage stage : VotingCardPipelineMetrics.Stage.values()) {
+            assertThat(metrics.getCards(stage), is(250L));
+        }
+        assertThat(metrics.getThroughput(), greaterThan(0.0));
+    }
+
+    /**
+     * the files writer should write a line per card in each file, the secrets only going to the printer file
+     */
+    @Test
+    public void filesWriterShouldSeparateTheSecretsFromTheirProtectedForms() throws IOException {
+        Path printerFile = temporaryFolder.getRoot().toPath().resolve("printer.csv");
+        Path storageFile = temporaryFolder.getRoot().toPath().resolve("storage.csv");
+        VotingCardPipeline pipeline = new VotingCardPipeline(new CardNumberGenerator(16, 15, 100), 2);
+
+        try (VotingCardFilesWriter writer = new VotingCardFilesWriter(printerFile, storageFile)) {
+            pipeline.run(100, writer);
+        }
+
+        List<String> printerLines = Files.readAllLines(printerFile, StandardCharsets.UTF_8);
+        List<String> storageLines = Files.readAllLines(storageFile, StandardCharsets.UTF_8);
+        assertThat(printerLines, hasSize(100));
+        assertThat(storageLines, hasSize(100));
+        for (int i = 0; i < 100; i++) {
+            String[] printerFields = printerLines.get(i).split(";");
+            String[] storageFields = storageLines.get(i).split(";");
+            assertThat(printerFields[0], is(String.valueOf(i)));
+            assertThat(storageFields[0], is(String.valueOf(i)));
+            assertThat(SensitiveDataCryptoUtils.verifySaltedMAC(printerFields[1], storageFields[1]), is(true));
+            assertThat(storageLines.get(i), not(containsString(printerFields[1])));
+        }
+    }
+
+    /**
+     * a failure of a stage should stop the run
+     */
+    @Test
+    public void stageFailureShouldStopTheRun() throws IOException {
+        // only 72 card numbers of 2 digits do not start with 3
+        VotingCardPipeline pipeline = new VotingCardPipeline(new CardNumberGenerator(2, 3, 0), 0, 2, 2, 4);
+
+        try {
+            pipeline.run(80, new ListWriter(new ArrayList<>()));
+            fail("the card numbers should have run out");
+        } catch (CryptoOperationRuntimeException e) {
+            assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+        }
+    }
+
+    /**
+     * an error of a stage should stop the run too, instead of leaving the writing thread waiting for its batches
+     */
+    @Test(timeout = 10_000L)
+    public void stageErrorShouldStopTheRun() throws IOException {
+        CardNumberGenerator failingGenerator = new CardNumberGenerator(16, 15, 100) {
+            @Override
+            public long nextCardNumber() {
+                throw new AssertionError("card number generation error");
+            }
+        };
+        VotingCardPipeline pipeline = new VotingCardPipeline(failingGenerator, 1, 2, 2, 4);
+
+        try {
+            pipeline.run(100, new ListWriter(new ArrayList<>()));
+            fail("the card number generation should have failed");
+        } catch (CryptoOperationRuntimeException e) {
+            assertThat(e.getCause(), instanceOf(AssertionError.class));
+        }
+    }
+
+    /**
+     * a failure of the writer should be thrown to the caller
+     */
+    @Test(expected = IOException.class)
+    public void writerFailureShouldBeThrown() throws IOException {
+        VotingCardPipeline pipeline = new VotingCardPipeline(new CardNumberGenerator(16, 15, 100), 1, 1, 1, 4);
+
+        pipeline.run(100, new VotingCardMaterialWriter() {
+            @Override
+            public void write(VotingCardMaterial material) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    private static final class ListWriter implements VotingCardMaterialWriter {
+        private final List<VotingCardMaterial> cards;
+
+        ListWriter(List<VotingCardMaterial> cards) {
+            this.cards = cards;
+        }
+
+        @Override
+        public void write(VotingCardMaterial material) {
+            cards.add(material);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
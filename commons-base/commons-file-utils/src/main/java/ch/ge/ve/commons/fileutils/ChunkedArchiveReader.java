@@ -0,0 +1,427 @@
+package ch.ge.ve.commons.fileutils;
+
+/*-
+ * #%L
+ * Common file utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.utils.MessageDigestFactory;
+import ch.ge.ve.commons.properties.PropertyConfigurationService;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads a chunked archive, as written by {@link ChunkedArchiveWriter}.
+ * <p>
+ * The index is read upon opening the archive. The chunks are then memory-mapped and verified against their digest
+ * upon access, independently from each other: the records can be streamed in parallel (see {@link #records()}), and a
+ * single record can be read without scanning the archive (see {@link #record(long)}). The archive file can also be
+ * hashed while its records are read, in a single pass (see {@link #records(Consumer)}).
+ * </p>
+ * <p>
+ * The records are exposed as read-only buffers mapping the file, which are only valid until the reader is closed.
+ * Instances are thread safe.
+ * </p>
+ */
+public class ChunkedArchiveReader implements Closeable {
+    private static final int HEADER_FIXED_LENGTH = ChunkedArchiveWriter.MAGIC.length + 1 + Integer.BYTES + 1;
+    private static final int INDEX_ENTRY_FIXED_LENGTH = Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private final FileChannel channel;
+    private final MessageDigestFactory messageDigestFactory;
+    private final ThreadLocal<MessageDigest> digests;
+    private final int headerLength;
+    private final Chunk[] chunks;
+    /**
+     * the index of the first record of each chunk, followed by the total number of records
+     */
+    private final long[] firstRecords;
+
+    /**
+     * Opens an archive and reads its index
+     *
+     * @param path                         the path of the archive
+     * @param propertyConfigurationService the service defining the message digest to use
+     * @throws IOException
+     * @throws FileOperationRuntimeException if the file is not a well-formed archive
+     */
+    public ChunkedArchiveReader(Path path, PropertyConfigurationService propertyConfigurationService) throws IOException {
+        this.messageDigestFactory = new MessageDigestFactory(propertyConfigurationService);
+        this.digests = ThreadLocal.withInitial(messageDigestFactory::getInstance);
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.headerLength = readHeader();
+            this.chunks = readIndex(headerLength);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.firstRecords = new long[chunks.length + 1];
+        for (int i = 0; i < chunks.length; i++) {
+            firstRecords[i + 1] = firstRecords[i] + chunks[i].recordCount;
+        }
+    }
+
+    /**
+     * @param path the path of a file
+     * @return <tt>true</tt> if the file starts as a chunked archive
+     * @throws IOException
+     */
+    public static boolean isArchive(Path path) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(ChunkedArchiveWriter.MAGIC.length);
+            while (magic.hasRemaining() && fileChannel.read(magic) != -1) {
+                // read until the buffer is full or the end of the file is reached
+            }
+            return !magic.hasRemaining() && Arrays.equals(magic.array(), ChunkedArchiveWriter.MAGIC);
+        }
+    }
+
+    private int readHeader() throws IOException {
+        ByteBuffer header = read(0, HEADER_FIXED_LENGTH);
+        byte[] magic = new byte[ChunkedArchiveWriter.MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, ChunkedArchiveWriter.MAGIC)) {
+            throw new FileOperationRuntimeException("not a chunked archive");
+        }
+        int version = Byte.toUnsignedInt(header.get());
+        if (version != ChunkedArchiveWriter.VERSION_1) {
+            throw new FileOperationRuntimeException("unsupported chunked archive version: " + version);
+        }
+        header.getInt(); // maximal chunk size, only relevant to the writer
+        int digestAlgorithmLength = Byte.toUnsignedInt(header.get());
+        String digestAlgorithm = new String(read(HEADER_FIXED_LENGTH, digestAlgorithmLength).array(), StandardCharsets.US_ASCII);
+        MessageDigest digest = digests.get();
+        if (!digest.getAlgorithm().equals(digestAlgorithm)) {
+            throw new FileOperationRuntimeException("chunked archive digest " + digestAlgorithm + " does not match the configured digest " + digest.getAlgorithm());
+        }
+        return HEADER_FIXED_LENGTH + digestAlgorithmLength;
+    }
+
+    private Chunk[] readIndex(int headerLength) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < headerLength + Integer.BYTES + ChunkedArchiveWriter.FOOTER_LENGTH) {
+            throw new FileOperationRuntimeException("truncated chunked archive");
+        }
+        ByteBuffer footer = read(fileSize - ChunkedArchiveWriter.FOOTER_LENGTH, ChunkedArchiveWriter.FOOTER_LENGTH);
+        long indexOffset = footer.getLong();
+        byte[] indexMagic = new byte[ChunkedArchiveWriter.INDEX_MAGIC.length];
+        footer.get(indexMagic);
+        long indexLength = fileSize - ChunkedArchiveWriter.FOOTER_LENGTH - indexOffset;
+        if (!Arrays.equals(indexMagic, ChunkedArchiveWriter.INDEX_MAGIC) || indexOffset < headerLength
+                || indexLength < Integer.BYTES || indexLength > Integer.MAX_VALUE) {
+            throw new FileOperationRuntimeException("truncated chunked archive");
+        }
+
+        ByteBuffer index = read(indexOffset, (int) indexLength);
+        int digestLength = digests.get().getDigestLength();
+        int chunkCount = index.getInt();
+        if (chunkCount < 0 || (long) chunkCount * (INDEX_ENTRY_FIXED_LENGTH + digestLength) != indexLength - Integer.BYTES) {
+            throw new FileOperationRuntimeException("malformed chunked archive index");
+        }
+        Chunk[] indexEntries = new Chunk[chunkCount];
+        long expectedOffset = headerLength;
+        for (int i = 0; i < chunkCount; i++) {
+            long offset = index.getLong();
+            int length = index.getInt();
+            int recordCount = index.getInt();
+            byte[] digest = new byte[digestLength];
+            index.get(digest);
+            if (offset != expectedOffset || length < 0 || recordCount < 0) {
+                throw new FileOperationRuntimeException("malformed chunked archive index, at chunk " + i);
+            }
+            expectedOffset += length;
+            indexEntries[i] = new Chunk(offset, length, recordCount, digest);
+        }
+        if (expectedOffset != indexOffset) {
+            throw new FileOperationRuntimeException("malformed chunked archive index");
+        }
+        return indexEntries;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new FileOperationRuntimeException("truncated chunked archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return the number of records of the archive
+     */
+    public long getRecordCount() {
+        return firstRecords[chunks.length];
+    }
+
+    /**
+     * @return the number of chunks of the archive
+     */
+    public int getChunkCount() {
+        return chunks.length;
+    }
+
+    /**
+     * Maps a chunk of the archive, and verifies it against its digest
+     *
+     * @param chunkIndex the index of the chunk
+     * @return a read-only buffer holding the records of the chunk
+     * @throws FileOperationRuntimeException if the chunk cannot be read or does not match its digest
+     */
+    public ByteBuffer chunk(int chunkIndex) {
+        Chunk indexEntry = chunks[chunkIndex];
+        ByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, indexEntry.offset, indexEntry.length);
+        } catch (IOException e) {
+            throw new FileOperationRuntimeException("cannot read chunk " + chunkIndex, e);
+        }
+        MessageDigest digest = digests.get();
+        digest.update(buffer.duplicate());
+        if (!MessageDigest.isEqual(digest.digest(), indexEntry.digest)) {
+            throw new FileOperationRuntimeException("chunk " + chunkIndex + " does not match its digest");
+        }
+        return buffer;
+    }
+
+    /**
+     * Reads a single record, only mapping the chunk holding it
+     *
+     * @param recordIndex the index of the record, from 0 to {@link #getRecordCount()} (excluded)
+     * @return a read-only buffer holding the record
+     * @throws IndexOutOfBoundsException     if there is no such record
+     * @throws FileOperationRuntimeException if the chunk holding the record is corrupted
+     */
+    public ByteBuffer record(long recordIndex) {
+        if (recordIndex < 0 || recordIndex >= getRecordCount()) {
+            throw new IndexOutOfBoundsException("record " + recordIndex + " out of " + getRecordCount());
+        }
+        int position = Arrays.binarySearch(firstRecords, recordIndex);
+        // the first records of empty chunks are duplicates, the last chunk starting with the record holds it
+        int chunkIndex = position >= 0 ? position : -position - 2;
+        while (chunkIndex + 1 < chunks.length && firstRecords[chunkIndex + 1] <= recordIndex) {
+            chunkIndex++;
+        }
+        ByteBuffer chunk = chunk(chunkIndex);
+        for (long i = firstRecords[chunkIndex]; i < recordIndex; i++) {
+            nextRecord(chunk, chunkIndex);
+        }
+        return nextRecord(chunk, chunkIndex);
+    }
+
+    /**
+     * @return a stream of the records, in the order of the archive, that can be processed in parallel (chunk by chunk)
+     */
+    public Stream<ByteBuffer> records() {
+        return StreamSupport.stream(new RecordSpliterator(0, chunks.length), false);
+    }
+
+    /**
+     * Streams the records sequentially, hashing the whole archive file along the way with the configured message
+     * digest: the header first, then each chunk as it is read, then the index and the footer. The file is thus read
+     * once, instead of being hashed in a separate pass.
+     *
+     * @param hashListener the listener of the hash of the archive file, called once the last chunk has been read and
+     *                     the stream has been consumed until its end
+     * @return a sequential stream of the records, in the order of the archive
+     * @throws IOException
+     */
+    public Stream<ByteBuffer> records(Consumer<byte[]> hashListener) throws IOException {
+        MessageDigest fileDigest = messageDigestFactory.getInstance();
+        fileDigest.update(read(0, headerLength));
+        return StreamSupport.stream(new HashingRecordSpliterator(fileDigest, hashListener), false);
+    }
+
+    /**
+     * @return a spliterator over the records, in the order of the archive, splitting on chunk boundaries
+     */
+    public Spliterator<ByteBuffer> spliterator() {
+        return new RecordSpliterator(0, chunks.length);
+    }
+
+    private static ByteBuffer nextRecord(ByteBuffer chunk, int chunkIndex) {
+        try {
+            int length = chunk.getInt();
+            if (length < 0 || length > chunk.remaining()) {
+                throw new FileOperationRuntimeException("malformed record in chunk " + chunkIndex);
+            }
+            ByteBuffer record = chunk.slice();
+            record.limit(length);
+            chunk.position(chunk.position() + length);
+            return record;
+        } catch (BufferUnderflowException e) {
+            throw new FileOperationRuntimeException("malformed record in chunk " + chunkIndex, e);
+        }
+    }
+
+    /**
+     * Closes the underlying file, invalidating the buffers returned so far
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * An entry of the index of the archive
+     */
+    static class Chunk {
+        final long offset;
+        final int length;
+        final int recordCount;
+        final byte[] digest;
+
+        Chunk(long offset, int length, int recordCount, byte[] digest) {
+            this.offset = offset;
+            this.length = length;
+            this.recordCount = recordCount;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Iterates over the records of a range of chunks, split in halves of the range
+     */
+    private class RecordSpliterator implements Spliterator<ByteBuffer> {
+        private int nextChunk;
+        private int endChunk;
+        private int currentChunk;
+        private ByteBuffer current;
+        private int remainingInCurrent;
+
+        RecordSpliterator(int fromChunk, int toChunk) {
+            this.nextChunk = fromChunk;
+            this.endChunk = toChunk;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+            while (remainingInCurrent == 0) {
+                if (current != null && current.hasRemaining()) {
+                    throw new FileOperationRuntimeException("chunk " + currentChunk + " holds more records than indexed");
+                }
+                if (nextChunk >= endChunk) {
+                    onExhausted();
+                    return false;
+                }
+                currentChunk = nextChunk++;
+                current = readChunk(currentChunk);
+                remainingInCurrent = chunks[currentChunk].recordCount;
+            }
+            ByteBuffer record = nextRecord(current, currentChunk);
+            remainingInCurrent--;
+            action.accept(record);
+            return true;
+        }
+
+        ByteBuffer readChunk(int chunkIndex) {
+            return chunk(chunkIndex);
+        }
+
+        void onExhausted() {
+            // nothing to do once all the records have been read
+        }
+
+        @Override
+        public Spliterator<ByteBuffer> trySplit() {
+            int remainingChunks = endChunk - nextChunk;
+            // the returned spliterator must cover a prefix, which is impossible once a chunk is being read
+            if (remainingChunks < 2 || remainingInCurrent > 0) {
+                return null;
+            }
+            int middle = nextChunk + remainingChunks / 2;
+            RecordSpliterator prefix = new RecordSpliterator(nextChunk, middle);
+            nextChunk = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return firstRecords[endChunk] - firstRecords[nextChunk] + remainingInCurrent;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE | SIZED | SUBSIZED;
+        }
+    }
+
+    /**
+     * Iterates over all the records, without splitting, feeding the digest of the file with each chunk in order
+     */
+    private class HashingRecordSpliterator extends RecordSpliterator {
+        private final MessageDigest fileDigest;
+        private final Consumer<byte[]> hashListener;
+        private boolean hashPublished;
+
+        HashingRecordSpliterator(MessageDigest fileDigest, Consumer<byte[]> hashListener) {
+            super(0, chunks.length);
+            this.fileDigest = fileDigest;
+            this.hashListener = hashListener;
+        }
+
+        @Override
+        ByteBuffer readChunk(int chunkIndex) {
+            ByteBuffer chunk = super.readChunk(chunkIndex);
+            fileDigest.update(chunk.duplicate());
+            return chunk;
+        }
+
+        @Override
+        void onExhausted() {
+            if (hashPublished) {
+                return;
+            }
+            // the chunks are contiguous, from the end of the header to the index followed by the footer
+            Chunk lastChunk = chunks.length == 0 ? null : chunks[chunks.length - 1];
+            long indexOffset = lastChunk == null ? headerLength : lastChunk.offset + lastChunk.length;
+            try {
+                fileDigest.update(read(indexOffset, (int) (channel.size() - indexOffset)));
+            } catch (IOException e) {
+                throw new FileOperationRuntimeException("cannot read the index of the chunked archive", e);
+            }
+            hashPublished = true;
+            hashListener.accept(fileDigest.digest());
+        }
+
+        @Override
+        public Spliterator<ByteBuffer> trySplit() {
+            // the chunks must be hashed in the order of the file
+            return null;
+        }
+    }
+}
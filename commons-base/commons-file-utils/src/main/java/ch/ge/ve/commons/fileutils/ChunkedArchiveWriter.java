@@ -0,0 +1,207 @@
+package ch.ge.ve.commons.fileutils;
+
+/*-
+ * #%L
+ * Common file utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.crypto.utils.MessageDigestFactory;
+import ch.ge.ve.commons.properties.PropertyConfigurationService;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a chunked archive: a sequence of records, grouped in chunks that can be located, verified and parsed
+ * independently from each other.
+ * <p>
+ * The archive is laid out as follows, all the integers being big-endian:
+ * </p>
+ * <ul>
+ * <li>the header: the {@link #MAGIC} bytes, the format version ({@link #VERSION_1}, 1 byte), the maximal size of a
+ * chunk (4 bytes), the length of the digest algorithm name (1 byte) and the name itself (US-ASCII)</li>
+ * <li>the chunks, each being a sequence of records, each record being its length (4 bytes) followed by its bytes. A
+ * chunk holds as many records as fit within the maximal chunk size, a record larger than the chunk size being written
+ * alone in its chunk</li>
+ * <li>the index: the number of chunks (4 bytes), then for each chunk its offset (8 bytes), its length (4 bytes), its
+ * number of records (4 bytes) and its digest, computed with the configured message digest</li>
+ * <li>the footer: the offset of the index (8 bytes) and the {@link #INDEX_MAGIC} bytes</li>
+ * </ul>
+ * <p>
+ * The archive is read by {@link ChunkedArchiveReader}. Instances are not thread safe.
+ * </p>
+ */
+public class ChunkedArchiveWriter implements Closeable {
+    /**
+     * the first bytes of a chunked archive
+     */
+    static final byte[] MAGIC = "CHVA".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * the last bytes of a chunked archive
+     */
+    static final byte[] INDEX_MAGIC = "CHVI".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * the first version of the archive format
+     */
+    static final int VERSION_1 = 1;
+
+    /**
+     * the size of the footer: the offset of the index and the {@link #INDEX_MAGIC} bytes
+     */
+    static final int FOOTER_LENGTH = Long.BYTES + 4;
+
+    /**
+     * the default maximal size of a chunk, in bytes
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private final DataOutputStream out;
+    private final MessageDigest digest;
+    private final int chunkSize;
+    private final List<ChunkedArchiveReader.Chunk> chunks = new ArrayList<>();
+    private byte[] chunk;
+    private int chunkLength;
+    private int chunkRecords;
+    private long offset;
+    private long recordCount;
+
+    /**
+     * Writes the archive header, with the {@link #DEFAULT_CHUNK_SIZE default chunk size}
+     *
+     * @param out                          the target stream, closed along with this writer
+     * @param propertyConfigurationService the service defining the message digest to use
+     * @throws IOException
+     */
+    public ChunkedArchiveWriter(OutputStream out, PropertyConfigurationService propertyConfigurationService) throws IOException {
+        this(out, propertyConfigurationService, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Writes the archive header
+     *
+     * @param out                          the target stream, closed along with this writer
+     * @param propertyConfigurationService the service defining the message digest to use
+     * @param chunkSize                    the maximal size of a chunk, in bytes
+     * @throws IOException
+     */
+    public ChunkedArchiveWriter(OutputStream out, PropertyConfigurationService propertyConfigurationService, int chunkSize) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.digest = new MessageDigestFactory(propertyConfigurationService).getInstance();
+        this.chunkSize = chunkSize;
+        this.chunk = new byte[chunkSize];
+
+        byte[] digestAlgorithm = digest.getAlgorithm().getBytes(StandardCharsets.US_ASCII);
+        this.out.write(MAGIC);
+        this.out.writeByte(VERSION_1);
+        this.out.writeInt(chunkSize);
+        this.out.writeByte(digestAlgorithm.length);
+        this.out.write(digestAlgorithm);
+        this.offset = MAGIC.length + 1 + Integer.BYTES + 1 + digestAlgorithm.length;
+    }
+
+    /**
+     * @param record the record to append to the archive
+     * @throws IOException
+     */
+    public void write(byte[] record) throws IOException {
+        write(record, 0, record.length);
+    }
+
+    /**
+     * @param bytes  the buffer holding the record to append to the archive
+     * @param off    the offset of the record in the buffer
+     * @param length the length of the record
+     * @throws IOException
+     */
+    public void write(byte[] bytes, int off, int length) throws IOException {
+        int recordLength = Integer.BYTES + length;
+        if (chunkLength > 0 && chunkLength + recordLength > chunkSize) {
+            writeChunk();
+        }
+        if (chunk.length < recordLength) {
+            // oversized record, written alone in its chunk
+            chunk = new byte[recordLength];
+        }
+        chunk[chunkLength++] = (byte) (length >>> 24);
+        chunk[chunkLength++] = (byte) (length >>> 16);
+        chunk[chunkLength++] = (byte) (length >>> 8);
+        chunk[chunkLength++] = (byte) length;
+        System.arraycopy(bytes, off, chunk, chunkLength, length);
+        chunkLength += length;
+        chunkRecords++;
+        recordCount++;
+    }
+
+    /**
+     * @return the number of records written so far
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    private void writeChunk() throws IOException {
+        digest.update(chunk, 0, chunkLength);
+        chunks.add(new ChunkedArchiveReader.Chunk(offset, chunkLength, chunkRecords, digest.digest()));
+        out.write(chunk, 0, chunkLength);
+        offset += chunkLength;
+        chunkLength = 0;
+        chunkRecords = 0;
+        if (chunk.length > chunkSize) {
+            chunk = new byte[chunkSize];
+        }
+    }
+
+    /**
+     * Writes the last chunk, the index and the footer, then closes the underlying stream
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (chunkLength > 0) {
+                writeChunk();
+            }
+            long indexOffset = offset;
+            out.writeInt(chunks.size());
+            for (ChunkedArchiveReader.Chunk indexEntry : chunks) {
+                out.writeLong(indexEntry.offset);
+                out.writeInt(indexEntry.length);
+                out.writeInt(indexEntry.recordCount);
+                out.write(indexEntry.digest);
+            }
+            out.writeLong(indexOffset);
+            out.write(INDEX_MAGIC);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package ch.ge.ve.commons.fileutils;
+
+/*-
+ * #%L
+ * Common file utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Writes lines to a stream while computing the hash of the written bytes, so that a file can be written and hashed in
+ * a single pass, without being read back.
+ * <p>
+ * The lines are encoded in UTF-8 and terminated by the platform line separator, as done by
+ * {@link java.nio.file.Files#write(java.nio.file.Path, Iterable, java.nio.file.OpenOption...)}. Instances are not
+ * thread safe.
+ * </p>
+ */
+public class HashingLineWriter implements Closeable {
+    private final DigestOutputStream digestOutputStream;
+    private final Writer writer;
+    private final String lineSeparator = System.lineSeparator();
+    private long lineCount;
+    private byte[] hash;
+
+    /**
+     * @param outputStream the target stream, closed along with this writer
+     * @param digest       the message digest computing the hash
+     */
+    public HashingLineWriter(OutputStream outputStream, MessageDigest digest) {
+        this.digestOutputStream = new DigestOutputStream(new BufferedOutputStream(outputStream), digest);
+        this.writer = new BufferedWriter(new OutputStreamWriter(digestOutputStream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param line the line to write, without its line separator
+     * @throws IOException
+     */
+    public void writeLine(CharSequence line) throws IOException {
+        writer.append(line).append(lineSeparator);
+        lineCount++;
+    }
+
+    /**
+     * @return the number of lines written so far
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return the hash of the written bytes
+     * @throws IllegalStateException if the writer has not been closed yet
+     */
+    public byte[] getHash() {
+        if (hash == null) {
+            throw new IllegalStateException("the hash is only available once the writer has been closed");
+        }
+        return hash.clone();
+    }
+
+    /**
+     * Flushes the remaining lines, computes the hash, then closes the underlying stream
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (hash != null) {
+            return;
+        }
+        try {
+            writer.flush();
+            hash = digestOutputStream.getMessageDigest().digest();
+        } finally {
+            writer.close();
+        }
+    }
+}
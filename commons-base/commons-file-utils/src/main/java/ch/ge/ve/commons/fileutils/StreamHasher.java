@@ -26,6 +26,8 @@ import ch.ge.ve.commons.properties.PropertyConfigurationService;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 
 /**
@@ -74,6 +76,45 @@ public class StreamHasher {
         return digest.digest();
     }
 
+    /**
+     * Wraps an input stream so that its hash is computed, with the default configured message digest, while it is
+     * being read: a file can then be parsed and hashed in a single pass.
+     *
+     * @param inputStream an input stream for the file for which the hash should be computed
+     * @return the wrapping stream, to be read instead of <tt>inputStream</tt>, then handed over to
+     * {@link #completeHash(DigestInputStream)}
+     */
+    public DigestInputStream digestingInputStream(InputStream inputStream) {
+        return new DigestInputStream(inputStream, new MessageDigestFactory(propertyConfigurationService).getInstance());
+    }
+
+    /**
+     * Reads the remainder of a stream returned by {@link #digestingInputStream(InputStream)}, so that the hash covers
+     * the whole file even if its parser did not read it until its end.
+     *
+     * @param digestInputStream the stream returned by {@link #digestingInputStream(InputStream)}
+     * @return the hash of the file
+     * @throws IOException
+     */
+    public byte[] completeHash(DigestInputStream digestInputStream) throws IOException {
+        byte[] bytes = new byte[1024];
+        while (digestInputStream.read(bytes) != -1) {
+            // the bytes are hashed while being read
+        }
+        return digestInputStream.getMessageDigest().digest();
+    }
+
+    /**
+     * Creates a writer of lines computing, with the default configured message digest, the hash of the written bytes:
+     * a file can then be written and hashed in a single pass.
+     *
+     * @param outputStream an output stream for the file to be written and hashed
+     * @return the writer, whose hash is available once closed
+     */
+    public HashingLineWriter hashingLineWriter(OutputStream outputStream) {
+        return new HashingLineWriter(outputStream, new MessageDigestFactory(propertyConfigurationService).getInstance());
+    }
+
     private MessageDigest getThreadSafeMessageDigest() {
         if (messageDigestThreadLocal.get() == null) {
             messageDigestThreadLocal.set(new MessageDigestFactory(propertyConfigurationService).getInstance());
@@ -0,0 +1,179 @@
+package ch.ge.ve.commons.fileutils
+
+/*-
+ * #%L
+ * Common file utilities
+ * %%
+ * Copyright (C) 2015 - 2016 République et Canton de Genève
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import ch.ge.ve.commons.properties.PropertyConfigurationService
+import org.bouncycastle.jce.provider.BouncyCastleProvider
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.security.Security
+import java.util.stream.Collectors
+
+/**
+ * This test suit aims at covering the {@link ChunkedArchiveWriter} and {@link ChunkedArchiveReader} classes.
+ */
+class ChunkedArchiveTest extends Specification {
+    private PropertyConfigurationService pcs
+    private Path archive
+
+    void setup() {
+        Security.addProvider(new BouncyCastleProvider())
+
+        pcs = Stub(PropertyConfigurationService)
+        pcs.getConfigValue("common.crypto.digest.algorithm") >> "SHA-256"
+        pcs.getConfigValue("common.crypto.digest.provider") >> "BC"
+
+        archive = Files.createTempFile("archive", ".chva")
+    }
+
+    void cleanup() {
+        Files.deleteIfExists(archive)
+    }
+
+    private List<String> writeArchive(int recordsCount, int chunkSize) {
+        def records = (0..<recordsCount).collect { "record #" + it + "-" * (it % 50) }
+        new ChunkedArchiveWriter(Files.newOutputStream(archive), pcs, chunkSize).withCloseable { writer ->
+            records.each { writer.write(it.getBytes(StandardCharsets.UTF_8)) }
+            assert writer.recordCount == recordsCount
+        }
+        return records
+    }
+
+    private static String asString(ByteBuffer record) {
+        byte[] bytes = new byte[record.remaining()]
+        record.duplicate().get(bytes)
+        return new String(bytes, StandardCharsets.UTF_8)
+    }
+
+    @Unroll
+    def "records should be read back in order, sequentially and in parallel (#recordsCount records, chunks of #chunkSize bytes)"() {
+        given:
+        def records = writeArchive(recordsCount, chunkSize)
+
+        expect:
+        new ChunkedArchiveReader(archive, pcs).withCloseable { reader ->
+            assert reader.recordCount == recordsCount
+            assert reader.chunkCount == chunkCount
+            assert reader.records().map { asString(it) }.collect(Collectors.toList()) == records
+            assert reader.records().parallel().map { asString(it) }.collect(Collectors.toList()) == records
+            true
+        }
+
+        where:
+        recordsCount | chunkSize || chunkCount
+        0            | 1024      || 0
+        1            | 1024      || 1
+        1000         | 1024      || 40
+        1000         | 16        || 1000
+        1000         | 1 << 20   || 1
+    }
+
+    @Unroll
+    def "the archive file should be hashed while its records are read (#recordsCount records)"() {
+        given:
+        def records = writeArchive(recordsCount, 1024)
+        def fileHash = Files.newInputStream(archive).withCloseable { new StreamHasher(pcs).threadSafeComputeHash(it) }
+        def hashes = []
+
+        expect:
+        new ChunkedArchiveReader(archive, pcs).withCloseable { reader ->
+            def read = reader.records { hashes << it }.map { asString(it) }.collect(Collectors.toList())
+            assert read == records
+            true
+        }
+        hashes.size() == 1
+        hashes[0] == fileHash
+
+        where:
+        recordsCount << [0, 1, 1000]
+    }
+
+    def "any record should be read without scanning the archive"() {
+        given:
+        def records = writeArchive(1000, 512)
+
+        expect:
+        new ChunkedArchiveReader(archive, pcs).withCloseable { reader ->
+            [0, 1, 17, 499, 998, 999].each { assert asString(reader.record(it)) == records[it] }
+            true
+        }
+    }
+
+    def "reading a record out of the archive should fail"() {
+        given:
+        writeArchive(10, 512)
+
+        when:
+        new ChunkedArchiveReader(archive, pcs).withCloseable { it.record(10) }
+
+        then:
+        thrown(IndexOutOfBoundsException)
+    }
+
+    def "an altered chunk should be detected"() {
+        given:
+        writeArchive(1000, 1024)
+        FileChannel.open(archive, StandardOpenOption.WRITE).withCloseable {
+            it.write(ByteBuffer.wrap([(byte) '#'] as byte[]), 2000)
+        }
+
+        when:
+        new ChunkedArchiveReader(archive, pcs).withCloseable { it.records().count() }
+
+        then:
+        FileOperationRuntimeException e = thrown()
+        e.message == "chunk 1 does not match its digest"
+    }
+
+    def "a truncated archive should be rejected"() {
+        given:
+        writeArchive(1000, 1024)
+        FileChannel.open(archive, StandardOpenOption.WRITE).withCloseable { it.truncate(Files.size(archive) - 1) }
+
+        when:
+        new ChunkedArchiveReader(archive, pcs)
+
+        then:
+        thrown(FileOperationRuntimeException)
+    }
+
+    def "archives should be told apart from other files"() {
+        given:
+        writeArchive(1, 1024)
+        def otherFile = Files.createTempFile("other", ".ser")
+        Files.write(otherFile, [0xAC, 0xED, 0, 5] as byte[])
+
+        expect:
+        ChunkedArchiveReader.isArchive(archive)
+        !ChunkedArchiveReader.isArchive(otherFile)
+
+        cleanup:
+        Files.delete(otherFile)
+    }
+}
@@ -28,6 +28,7 @@ import spock.lang.Specification
 import spock.lang.Unroll
 
 import java.nio.charset.StandardCharsets
+import java.nio.file.Files
 import java.security.MessageDigest
 import java.security.Security
 
@@ -82,4 +83,37 @@ class StreamHasherTest extends Specification {
                 "que le fichier utilisé est bien correct et " +
                 "que les mots de passe saisis sont corrects" || "a0230150333d84ce7530d232f6058f02b8e980e8"
     }
+
+    def "hash a stream while it is being read, even if it is not read until its end"() {
+        given:
+        def input = "Déchiffrement des données en échec, merci de vérifier " * 100
+        def expected = streamHasher.threadSafeComputeHash(IOUtils.toInputStream(input, StandardCharsets.UTF_8))
+
+        when:
+        def digestInputStream = streamHasher.digestingInputStream(IOUtils.toInputStream(input, StandardCharsets.UTF_8))
+        digestInputStream.read(new byte[100])
+
+        then:
+        streamHasher.completeHash(digestInputStream) == expected
+    }
+
+    def "hash lines while they are being written, as Files.write would write them"() {
+        given:
+        def lines = ["GE;6699:9903370001;0;37000101;p=DEP;1001", "àéè ü ß ¤ €", ""] * 1000
+        def expectedFile = Files.createTempFile("expected", ".txt")
+        Files.write(expectedFile, lines)
+        def outputStream = new ByteArrayOutputStream()
+
+        when:
+        def writer = streamHasher.hashingLineWriter(outputStream)
+        writer.withCloseable { lines.each { line -> writer.writeLine(line) } }
+
+        then:
+        writer.lineCount == lines.size()
+        outputStream.toByteArray() == Files.readAllBytes(expectedFile)
+        writer.hash == streamHasher.threadSafeComputeHash(Files.newInputStream(expectedFile))
+
+        cleanup:
+        Files.deleteIfExists(expectedFile)
+    }
 }